@@ -1,25 +1,56 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import static simpledb.Aggregator.NO_GROUPING;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes one or more aggregates (e.g., sum,
+ * avg, max, min), grouped by zero or more columns. All aggregates are
+ * computed in a single pass over the child.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Minimum number of pages each partial aggregation worker scans. */
+    static final int MIN_PAGES_PER_WORKER = 16;
+
     int gfield;
     int afield;
     Aggregator.Op what;
+    int[] gfields;
+    int[] afields;
+    Aggregator.Op[] whats;
     TupleDesc tupleDesc;
     OpIterator child;
     Aggregator aggregator;
     OpIterator opIterator;
     OpIterator[] children;
+    int parallelism = 1;
+
+    /**
+     * Worker threads shared by every parallel Aggregate, created on first
+     * use and bounded by the number of processors; partial aggregates of
+     * concurrent queries queue for them.
+     */
+    private static ExecutorService workers;
+
+    private static synchronized ExecutorService workers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "aggregate-worker");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return workers;
+    }
     /**
      * Constructor.
      * 
@@ -40,16 +71,56 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+        this(child, new int[]{afield},
+                gfield == NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key. Output
+     * tuples hold the group-by columns in order, followed by one column per
+     * aggregate.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator applied to each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("each aggregate needs exactly one operator");
+        }
+        TupleDesc childTd = child.getTupleDesc();
+        for (int i = 0; i < afields.length; i++) {
+            if (childTd.getFieldType(afields[i]) != Type.INT_TYPE && aops[i] != Aggregator.Op.COUNT) {
+                throw new IllegalArgumentException("only COUNT is supported over string fields");
+            }
+        }
         this.child = child;
-        this.gfield = gfield;
-        this.afield = afield;
-        this.what = aop;
+        this.gfields = gfields;
+        this.afields = afields;
+        this.whats = aops;
+        this.gfield = gfields.length == 0 ? NO_GROUPING : gfields[0];
+        this.afield = afields[0];
+        this.what = aops[0];
         this.children = new OpIterator[]{child};
-        if(gfield == NO_GROUPING){
-            this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
-        }else{
-            this.tupleDesc = new TupleDesc(new Type[]{child.getTupleDesc().getFieldType(gfield),Type.INT_TYPE});
+
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = childTd.getFieldType(gfields[i]);
+            names[i] = childTd.getFieldName(gfields[i]);
         }
+        for (int i = 0; i < afields.length; i++) {
+            types[gfields.length + i] = Type.INT_TYPE;
+            names[gfields.length + i] = nameOfAggregatorOp(aops[i]) + " (" + childTd.getFieldName(afields[i]) + ")";
+        }
+        this.tupleDesc = new TupleDesc(types, names);
     }
 
     /**
@@ -62,6 +133,14 @@ public class Aggregate extends Operator {
 	return gfield;
     }
 
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples; empty if
+     *         there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields;
+    }
+
     /**
      * @return If this aggregate is accompanied by a group by, return the name
      *         of the groupby field in the <b>OUTPUT</b> tuples. If not, return
@@ -69,7 +148,7 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-	return child.getTupleDesc().getFieldName(gfield);
+	return gfield == NO_GROUPING ? null : child.getTupleDesc().getFieldName(gfield);
     }
 
     /**
@@ -80,6 +159,13 @@ public class Aggregate extends Operator {
 	return afield;
     }
 
+    /**
+     * @return the aggregate field of each aggregate
+     */
+    public int[] aggregateFields() {
+        return afields;
+    }
+
     /**
      * @return return the name of the aggregate field in the <b>OUTPUT</b>
      *         tuples
@@ -97,29 +183,70 @@ public class Aggregate extends Operator {
 	return what;
     }
 
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return whats;
+    }
+
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	return aop.toString();
     }
 
-    public void open() throws NoSuchElementException, DbException,
-	    TransactionAbortedException {
-	    // some code goes here
-        Type gbfieldtype = null;
-        if(gfield != NO_GROUPING){
-            gbfieldtype = child.getTupleDesc().getFieldType(gfield);
+    /**
+     * Set the number of worker threads used to compute partial aggregates.
+     * The default of 1 aggregates on the calling thread. Parallel
+     * aggregation only applies when the child is a SeqScan over a
+     * HeapFile, optionally under Filters, with at least
+     * {@link #MIN_PAGES_PER_WORKER} pages per worker; otherwise the child is
+     * aggregated on the calling thread.
+     *
+     * @param parallelism the maximum number of workers, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
         }
-        switch (child.getTupleDesc().getFieldType(afield)){
-            case INT_TYPE:
-                aggregator = new IntegerAggregator(gfield,gbfieldtype,afield,what);
-                break;
-            case STRING_TYPE:
-                aggregator = new StringAggregator(gfield,gbfieldtype,afield,what);
-                break;
+        this.parallelism = parallelism;
+    }
 
+    private HashAggregator newAggregator() {
+        TupleDesc childTd = child.getTupleDesc();
+        if (gfields.length <= 1 && afields.length == 1) {
+            Type gbfieldtype = gfield == NO_GROUPING ? null : childTd.getFieldType(gfield);
+            switch (childTd.getFieldType(afield)){
+                case STRING_TYPE:
+                case VARCHAR_TYPE:
+                    return new StringAggregator(gfield,gbfieldtype,afield,what);
+                default:
+                    return new IntegerAggregator(gfield,gbfieldtype,afield,what);
+            }
         }
-        child.rewind();
-        while(child.hasNext()){
-            aggregator.mergeTupleIntoGroup(child.next());
+        Type[] gbfieldtypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            gbfieldtypes[i] = childTd.getFieldType(gfields[i]);
+        }
+        return new HashAggregator(gfields, gbfieldtypes, afields, whats, HashAggregator.DEFAULT_MEMORY_BUDGET);
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+	    TransactionAbortedException {
+	    // some code goes here
+        List<OpIterator> partitions = partition(child);
+        if (partitions == null) {
+            aggregator = newAggregator();
+            if (child instanceof FusedScan) {
+                ((FusedScan) child).forEach(aggregator::mergeTupleIntoGroup);
+            } else {
+                child.open();
+                while(child.hasNext()){
+                    aggregator.mergeTupleIntoGroup(child.next());
+                }
+                child.close();
+            }
+        } else {
+            aggregator = aggregateInParallel(partitions);
         }
         opIterator = aggregator.iterator();
         opIterator.open();
@@ -127,11 +254,120 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Split a plan into copies that each read a disjoint page range of the
+     * underlying HeapFile.
+     *
+     * @return one plan per worker, or null if the plan cannot be split or is
+     *         too small to be worth splitting
+     */
+    private List<OpIterator> partition(OpIterator plan) {
+        if (plan instanceof Filter) {
+            Filter filter = (Filter) plan;
+            List<OpIterator> parts = partition(filter.child);
+            if (parts == null) {
+                return null;
+            }
+            List<OpIterator> filtered = new ArrayList<>();
+            for (OpIterator part : parts) {
+                filtered.add(new Filter(filter.getPredicate(), part));
+            }
+            return filtered;
+        }
+        int tableid;
+        if (plan instanceof SeqScan) {
+            tableid = ((SeqScan) plan).tableid;
+        } else if (plan instanceof FusedScan) {
+            tableid = ((FusedScan) plan).getTableId();
+        } else {
+            return null;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            return null;
+        }
+        int numPages = ((HeapFile) file).numPages();
+        int workers = Math.min(parallelism, numPages / MIN_PAGES_PER_WORKER);
+        if (workers < 2) {
+            return null;
+        }
+        List<OpIterator> parts = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int start = (int) ((long) numPages * w / workers);
+            int end = w == workers - 1 ? Integer.MAX_VALUE : (int) ((long) numPages * (w + 1) / workers);
+            if (plan instanceof FusedScan) {
+                parts.add(((FusedScan) plan).partition(start, end));
+                continue;
+            }
+            SeqScan scan = (SeqScan) plan;
+            SeqScan part = new SeqScan(scan.tid, scan.tableid, scan.tableAlias, start, end);
+            for (Predicate p : scan.getPredicates()) {
+                part.pushPredicate(p);
+            }
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Run one partial aggregator per partition on a worker thread, then merge
+     * the partial results into a single final aggregator.
+     */
+    private HashAggregator aggregateInParallel(List<OpIterator> partitions)
+            throws DbException, TransactionAbortedException {
+        ExecutorService pool = workers();
+        List<Future<HashAggregator>> partials = new ArrayList<>();
+        try {
+            for (final OpIterator part : partitions) {
+                partials.add(pool.submit(new Callable<HashAggregator>() {
+                    @Override
+                    public HashAggregator call() throws Exception {
+                        HashAggregator partial = newAggregator();
+                        if (part instanceof FusedScan) {
+                            ((FusedScan) part).forEach(partial::mergeTupleIntoGroup);
+                            return partial;
+                        }
+                        part.open();
+                        while (part.hasNext()) {
+                            partial.mergeTupleIntoGroup(part.next());
+                        }
+                        part.close();
+                        return partial;
+                    }
+                }));
+            }
+            HashAggregator result = null;
+            for (Future<HashAggregator> partial : partials) {
+                if (result == null) {
+                    result = partial.get();
+                } else {
+                    result.merge(partial.get());
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted during parallel aggregation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) cause;
+            }
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            throw new DbException("partial aggregation failed: " + cause);
+        } finally {
+            for (Future<HashAggregator> partial : partials) {
+                partial.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the next tuple. The group by fields, if any, come first,
+     * followed by the result of each aggregate. With a single group by field
+     * and a single aggregate this is (groupVal, aggregateVal), or a single
+     * (aggregateVal) if there is no group by field. Should return null if
+     * there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
@@ -167,6 +403,17 @@ public class Aggregate extends Operator {
 
     public void close() {
 	// some code goes here
+        super.close();
+        if (opIterator != null) {
+            opIterator.close();
+            opIterator = null;
+        }
+        if (aggregator instanceof HashAggregator) {
+            // this run's aggregator is dropped, and its spill partitions
+            // with it
+            ((HashAggregator) aggregator).releaseSpill();
+        }
+        aggregator = null;
     }
 
     @Override
@@ -179,6 +426,7 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
 	// some code goes here
         this.children = children;
+        this.child = children[0];
     }
     
 }
@@ -0,0 +1,389 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeBulkLoader builds a B+ tree bottom-up from tuples sorted on the key
+ * field, instead of inserting them one at a time. Leaf pages are filled to
+ * the fill factor in key order, and every internal level is packed the same
+ * way from the pages of the level below, so no page is ever split and every
+ * page is written exactly once.
+ * <p>
+ * A page is written as soon as its parent is known, which is when the
+ * parent is packed. Each level therefore keeps at most about one and a half
+ * pages worth of pages in memory. Each level holds back enough items that
+ * its last page, or its last two pages sharing the remainder, are at least
+ * half full, like the pages built by BTreeFileEncoder.
+ * <p>
+ * If the key field is a string, pages compress their keys, so the loader
+ * weighs each item by the bytes it takes, its key compressed against the key
+ * of the item before it, instead of counting items. The key copied up for a
+ * leaf page is then the shortest prefix of its first key which is greater
+ * than the last key of the page before it.
+ * <p>
+ * The loader writes to the file directly, bypassing the BufferPool, so the
+ * BTreeFile must be registered with the Catalog, must be empty and must not
+ * be used by anyone else until the load is complete.
+ */
+public class BTreeBulkLoader {
+
+	/**
+	 * Default fraction of each page filled by the loader, which leaves room for
+	 * a few inserts on every page before it has to split.
+	 */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
+	private final BTreeFile bf;
+	private final int tableid;
+	private final int keyField;
+	private final Type[] typeAr;
+	private final int npagebytes;
+
+	// weight of tuples or children packed into a page at each level, the
+	// least a page may hold and the most it can hold. Level 0 holds the
+	// tuples of the leaf pages, level i > 0 the children of internal pages.
+	// Each item weighs 1, or the number of bytes it takes if keys are compressed.
+	private final int[] target = new int[2];
+	private final int[] min = new int[2];
+	private final int[] cap = new int[2];
+	private final boolean compressed;
+	private final int nonKeySize; // of a tuple, if keys are compressed
+
+	private int nextPageNo = 1;
+	private Field lastKey = null;
+	private int numTuples = 0;
+	private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+	private final ArrayList<ArrayList<Child>> children = new ArrayList<ArrayList<Child>>();
+	// total weight of the tuples and of the children of each level not packed yet
+	private final ArrayList<Integer> weights = new ArrayList<Integer>();
+	private final ArrayList<Integer> pagesPacked = new ArrayList<Integer>();
+	private BTreeLeafPage lastLeaf = null;
+
+	/**
+	 * A packed page which is not written yet because it has no parent, and
+	 * the smallest key in its subtree.
+	 */
+	private static class Child {
+		final Field key;
+		final BTreePage page;
+
+		Child(Field key, BTreePage page) {
+			this.key = key;
+			this.page = page;
+		}
+	}
+
+	/**
+	 * Create a loader for an empty BTreeFile.
+	 *
+	 * @param bf - the BTreeFile to load, which must be registered with the Catalog
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1.0
+	 * @throws DbException if the file is not empty
+	 * @throws IOException
+	 */
+	public BTreeBulkLoader(BTreeFile bf, double fillFactor) throws DbException, IOException {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0");
+		}
+		if(bf.getFile().length() > 0) {
+			throw new DbException("bulk load requires an empty B+ tree file");
+		}
+		this.bf = bf;
+		this.tableid = bf.getId();
+		this.keyField = bf.keyField();
+		TupleDesc td = bf.getTupleDesc();
+		this.typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		this.npagebytes = BufferPool.getPageSize();
+		this.compressed = BTreePage.isCompressed(typeAr[keyField]);
+		this.nonKeySize = td.getSize() - typeAr[keyField].getLen();
+
+		// a page holding its maximum number of tuples or entries whose keys do
+		// not compress at all also has room for the first key of the page, which
+		// is weighed compressed against the last key of the page before it
+		int[] unit = new int[] { 1, 1 };
+		if(compressed) {
+			unit[0] = nonKeySize + BTreePage.MAX_KEY_SIZE;
+			unit[1] = BTreePage.MAX_KEY_SIZE + BTreePage.INDEX_SIZE;
+		}
+		BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreePage.createEmptyPageData(), keyField);
+		cap[0] = leaf.getMaxTuples() * unit[0];
+		min[0] = cap[0] / 2;
+		BTreeInternalPage internal = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreePage.createEmptyPageData(), keyField);
+		cap[1] = compressed ? internal.getMaxEntries() * unit[1] : internal.getMaxEntries() + 1;
+		min[1] = (internal.getMaxEntries() / 2 + 1) * unit[1];
+		for(int i = 0; i < 2; i++) {
+			target[i] = Math.max(min[i], Math.min(cap[i], (int) (cap[i] * fillFactor)));
+		}
+	}
+
+	/**
+	 * Load tuples sorted on the key field into a BTreeFile, filling pages to the
+	 * given fill factor.
+	 *
+	 * @param bf - the empty BTreeFile to load
+	 * @param sorted - the tuples, in ascending order of the key field of bf
+	 * @param fillFactor - the fraction of each page to fill
+	 * @return the number of tuples loaded
+	 */
+	public static int load(BTreeFile bf, OpIterator sorted, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		return new BTreeBulkLoader(bf, fillFactor).load(sorted);
+	}
+
+	/**
+	 * Build a BTreeFile over all the tuples of another table, such as a HeapFile.
+	 * The tuples are sorted with an ExternalSort, so the table need not fit in
+	 * memory.
+	 *
+	 * @param tid - the transaction reading the table
+	 * @param source - the table to index, registered with the Catalog
+	 * @param bf - the empty BTreeFile to load, with the same TupleDesc as source
+	 * @param fillFactor - the fraction of each page to fill
+	 * @return the number of tuples loaded
+	 */
+	public static int load(TransactionId tid, DbFile source, BTreeFile bf, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		OpIterator sorted = new ExternalSort(bf.keyField(), true, new SeqScan(tid, source.getId()));
+		return load(bf, sorted, fillFactor);
+	}
+
+	/**
+	 * Load the tuples of an iterator, which must be sorted in ascending order of
+	 * the key field, and write out the B+ tree.
+	 *
+	 * @param sorted - the tuples to load
+	 * @return the number of tuples loaded
+	 * @throws DbException if the tuples are not sorted or do not match the TupleDesc of the file
+	 */
+	public int load(OpIterator sorted) throws DbException, TransactionAbortedException, IOException {
+		if(!sorted.getTupleDesc().equals(bf.getTupleDesc())) {
+			throw new DbException("tuple descriptor of the input does not match the B+ tree");
+		}
+		sorted.open();
+		try {
+			while(sorted.hasNext()) {
+				add(sorted.next());
+			}
+		} finally {
+			sorted.close();
+		}
+		finish();
+		return numTuples;
+	}
+
+	/**
+	 * Add the next tuple to the B+ tree.
+	 *
+	 * @param t - the tuple, whose key must not be smaller than that of the last tuple added
+	 * @throws DbException if the tuple is out of order
+	 */
+	public void add(Tuple t) throws DbException, IOException {
+		Field key = t.getField(keyField);
+		if(lastKey != null && lastKey.compare(Op.GREATER_THAN, key)) {
+			throw new DbException("bulk load input is not sorted on field " + keyField);
+		}
+		lastKey = key;
+		numTuples++;
+		tuples.add(t);
+		addWeight(0, weight(tuples, tuples.size() - 1, 0));
+		if(weights.get(0) >= target[0] + min[0]) {
+			int n = prefix(tuples, 0, target[0]);
+			packLeaf(new ArrayList<Tuple>(tuples.subList(0, n)));
+			tuples.subList(0, n).clear();
+			weights.set(0, weight(tuples, 0));
+		}
+	}
+
+	/**
+	 * @return the weight of an item of a level, whose key is compressed against
+	 * the key of the item before it in the list
+	 */
+	private <T> int weight(ArrayList<T> items, int i, int level) {
+		if(!compressed) {
+			return 1;
+		}
+		byte[] prev = i == 0 ? null : BTreePage.keyBytes(key(items.get(i - 1), level));
+		int size = BTreePage.keySize(BTreePage.keyBytes(key(items.get(i), level)), prev);
+		return size + (level == 0 ? nonKeySize : BTreePage.INDEX_SIZE);
+	}
+
+	private Field key(Object item, int level) {
+		return level == 0 ? ((Tuple) item).getField(keyField) : ((Child) item).key;
+	}
+
+	/**
+	 * @return the total weight of a list of items of a level
+	 */
+	private <T> int weight(ArrayList<T> items, int level) {
+		int total = 0;
+		for(int i = 0; i < items.size(); i++) {
+			total += weight(items, i, level);
+		}
+		return total;
+	}
+
+	/**
+	 * @return the number of items at the start of a list whose weight is at most
+	 * the given one, but at least one item
+	 */
+	private <T> int prefix(ArrayList<T> items, int level, int most) {
+		int total = weight(items, 0, level);
+		int n = 1;
+		while(n < items.size()) {
+			total += weight(items, n, level);
+			if(total > most) {
+				break;
+			}
+			n++;
+		}
+		return n;
+	}
+
+	private void addWeight(int level, int w) {
+		while(weights.size() <= level) {
+			weights.add(0);
+		}
+		weights.set(level, weights.get(level) + w);
+	}
+
+	/**
+	 * Pack the remaining tuples and children into pages, level by level, write
+	 * out the root and point the root pointer page at it.
+	 */
+	public void finish() throws DbException, IOException {
+		if(numTuples == 0) {
+			// an empty file is an empty B+ tree
+			return;
+		}
+		BTreePage root = null;
+		if(packRemainder(tuples, 0)) {
+			root = lastLeaf;
+		}
+		for(int level = 1; root == null; level++) {
+			ArrayList<Child> remaining = children.get(level);
+			if(packRemainder(remaining, level)) {
+				root = children.get(level + 1).get(0).page;
+			}
+		}
+		root.setParentId(BTreeRootPtrPage.getId(tableid));
+		bf.writePage(root);
+
+		BTreePageId rootId = root.getId();
+		byte[] rootPtrBytes = BTreeFileEncoder.convertToRootPtrPage(rootId.getPageNumber(), rootId.pgcateg(), 0, compressed);
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
+	}
+
+	/**
+	 * Pack the items left at the end of a level into one page, or two pages
+	 * sharing them equally if they do not fit on one.
+	 *
+	 * @return true if the level has a single page, which is the root. A root
+	 * leaf page is left in lastLeaf, a root internal page is the only child
+	 * added to the level above.
+	 */
+	private <T> boolean packRemainder(ArrayList<T> items, int level) throws DbException, IOException {
+		int size = items.size();
+		int total = weight(items, level);
+		boolean onlyPage = packed(level) == 0 && total <= cap[Math.min(level, 1)];
+		if(onlyPage && level == 0) {
+			// a root leaf page has no parent to add it to
+			newLeaf(new ArrayList<Tuple>(tuples));
+			tuples.clear();
+			return true;
+		}
+		int split = total <= cap[Math.min(level, 1)] ? size : prefix(items, level, total / 2);
+		pack(new ArrayList<T>(items.subList(0, split)), level);
+		if(split < size) {
+			pack(new ArrayList<T>(items.subList(split, size)), level);
+		}
+		items.clear();
+		return onlyPage;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void pack(ArrayList<T> items, int level) throws DbException, IOException {
+		if(level == 0) {
+			packLeaf((ArrayList<Tuple>) items);
+		}
+		else {
+			packInternal((ArrayList<Child>) items, level);
+		}
+	}
+
+	private int packed(int level) {
+		return level < pagesPacked.size() ? pagesPacked.get(level) : 0;
+	}
+
+	private BTreeLeafPage newLeaf(ArrayList<Tuple> pageTuples) throws IOException, DbException {
+		byte[] leafPageBytes = BTreeFileEncoder.convertToLeafPage(pageTuples, npagebytes,
+				typeAr.length, typeAr, keyField);
+		BTreePageId leafPid = new BTreePageId(tableid, nextPageNo++, BTreePageId.LEAF);
+		BTreeLeafPage leaf = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
+		if(lastLeaf != null) {
+			// the previous leaf is still waiting for its parent, so it is not written yet
+			lastLeaf.setRightSiblingId(leafPid);
+			leaf.setLeftSiblingId(lastLeaf.getId());
+		}
+		lastLeaf = leaf;
+		return leaf;
+	}
+
+	private void packLeaf(ArrayList<Tuple> pageTuples) throws DbException, IOException {
+		Field prevKey = lastLeaf == null ? null : lastLeaf.getLastKey();
+		BTreeLeafPage leaf = newLeaf(pageTuples);
+		countPacked(0);
+		addChild(1, new Child(BTreePage.separator(prevKey, pageTuples.get(0).getField(keyField)), leaf));
+	}
+
+	private void packInternal(ArrayList<Child> pageChildren, int level) throws DbException, IOException {
+		int childCategory = level == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		for(int i = 1; i < pageChildren.size(); i++) {
+			entries.add(new BTreeEntry(pageChildren.get(i).key, pageChildren.get(i - 1).page.getId(),
+					pageChildren.get(i).page.getId()));
+		}
+		byte[] internalPageBytes = BTreeFileEncoder.convertToInternalPage(entries, npagebytes,
+				typeAr[keyField], childCategory);
+		BTreePageId internalPid = new BTreePageId(tableid, nextPageNo++, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(internalPid, internalPageBytes, keyField);
+
+		// the children now know their parent, so they can be written out
+		for(Child c : pageChildren) {
+			c.page.setParentId(internalPid);
+			bf.writePage(c.page);
+		}
+		countPacked(level);
+		addChild(level + 1, new Child(pageChildren.get(0).key, page));
+	}
+
+	private void countPacked(int level) {
+		while(pagesPacked.size() <= level) {
+			pagesPacked.add(0);
+		}
+		pagesPacked.set(level, pagesPacked.get(level) + 1);
+	}
+
+	private void addChild(int level, Child c) throws DbException, IOException {
+		while(children.size() <= level) {
+			children.add(new ArrayList<Child>());
+		}
+		ArrayList<Child> items = children.get(level);
+		items.add(c);
+		addWeight(level, weight(items, items.size() - 1, level));
+		if(weights.get(level) >= target[1] + min[1]) {
+			int n = prefix(items, level, target[1]);
+			packInternal(new ArrayList<Child>(items.subList(0, n)), level);
+			items.subList(0, n).clear();
+			weights.set(level, weight(items, level));
+		}
+	}
+
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import simpledb.Predicate.Op;
 
@@ -25,6 +26,18 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 
+	// the internal and root pointer pages latched by the structure modification
+	// (split, steal or merge) this thread is running, or null outside of one
+	private final ThreadLocal<HashSet<PageId>> smoLatches = new ThreadLocal<HashSet<PageId>>();
+
+	// whether deletes merge or redistribute the leaf pages they leave underfull, or
+	// leave them to be compacted by a BTreeMaintainer
+	private volatile boolean mergeOnDelete = true;
+
+	// the number of times pages were taken from or returned to the header pages,
+	// which tells the BTreeMaintainer whether the pages it surveyed changed
+	private final AtomicInteger pageAllocations = new AtomicInteger();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -94,22 +107,42 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
+				boolean compressed = BTreePage.isCompressed(td.getFieldType(keyField));
+				if(p.getRootId() == null && p.getHeaderId() == null) {
+					// an empty tree takes the format of its key type
+					p.setCompressedKeys(compressed);
+					p.setBeforeImage();
+				}
+				else if(p.hasCompressedKeys() != compressed) {
+					throw new IllegalArgumentException("BTreeFile " + f.getName()
+							+ " was written with " + (p.hasCompressedKeys() ? "compressed" : "uncompressed")
+							+ " keys, but its key type requires " + (compressed ? "compressed" : "uncompressed")
+							+ " keys; rebuild the file");
+				}
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
+				if (id.getPageNumber() > 1 && id.getPageNumber() > numPages()) {
+					// the page was free, and the file was truncated after a reader
+					// found it: it reads as an empty page, which the reader drops
+					// when it checks the path to the page again
+					Debug.log(1, "BTreeFile.readPage: page %d is past the end of the file", id.getPageNumber());
 				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				else {
+					if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
+							BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
+						throw new IllegalArgumentException(
+								"Unable to seek to correct place in BTreeFile");
+					}
+					int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+					if (retval == -1) {
+						throw new IllegalArgumentException("Read past end of table");
+					}
+					if (retval < BufferPool.getPageSize()) {
+						throw new IllegalArgumentException("Unable to read "
+								+ BufferPool.getPageSize() + " bytes from BTreeFile");
+					}
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
@@ -168,6 +201,18 @@ public class BTreeFile implements DbFile {
 		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
 
+	/**
+	 * Set whether a delete which leaves a leaf page less than half full merges it with
+	 * a sibling or steals tuples from one right away, as it does by default. Otherwise
+	 * the page is left underfull, even empty, so that deletes do not restructure the
+	 * tree, and {@link BTreeMaintainer} compacts the leaf pages in the background.
+	 * 
+	 * @param mergeOnDelete - whether deletes keep the leaf pages at least half full
+	 */
+	public void setMergeOnDelete(boolean mergeOnDelete) {
+		this.mergeOnDelete = mergeOnDelete;
+	}
+
 	/**
 	 * Returns the index of the field that this B+ tree is keyed on
 	 */
@@ -176,26 +221,127 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. Internal nodes are not
+	 * locked: the path is traversed with latch crabbing, holding a shared latch on a
+	 * node only until its child is latched, so a reader never waits for the commit of
+	 * a transaction that split or merged an internal page. The leaf node is locked with
+	 * permission perm. As the tree may change while the lock is awaited, the path is
+	 * traversed again once the lock is granted, and the search restarts if it no
+	 * longer ends at the locked leaf.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
+	 * @param pid - the current page being searched, or the root pointer page to search
+	 * from the current root
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root page yet
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		return findLeafPage(tid, dirtypages, pid, perm, f, false, false);
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f, or if
+	 * last is set, the right-most leaf page possibly containing keys less than or equal
+	 * to f (less than f, if inclusive is false).
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, boolean last, boolean inclusive)
+					throws DbException, TransactionAbortedException {
+		while(true) {
+			BTreePageId leafId = findLeafPageId(dirtypages, pid, f, last, inclusive);
+			if(leafId == null) {
+				return null;
+			}
+			boolean locked = Database.getBufferPool().holdsLock(tid, leafId);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, leafId, perm);
+			if(leafId.equals(findLeafPageId(dirtypages, pid, f, last, inclusive))) {
+				return leaf;
+			}
+			// the leaf was split or merged while we waited for the lock
+			if(!locked) {
+				dirtypages.remove(leafId);
+				Database.getBufferPool().releasePage(tid, leafId);
+			}
+		}
+	}
+
+	/**
+	 * Traverse the tree from pid to the left-most leaf page possibly containing the key
+	 * field f, or if last is set to the right-most leaf page possibly containing keys
+	 * less than or equal to f (less than f, if inclusive is false), latching every
+	 * internal node until its child is latched.
+	 * 
+	 * @param dirtypages - the pages already fetched for writing by this operation
+	 * @param pid - the page to start from, or the root pointer page
+	 * @param f - the field to search for, or null for the left-most (right-most) leaf page
+	 * @param last - whether to find the right-most leaf page
+	 * @param inclusive - whether keys equal to f are wanted in the right-most leaf page
+	 * @return the id of the leaf page, or null if the tree has no root page yet
+	 */
+	private BTreePageId findLeafPageId(HashMap<PageId, Page> dirtypages, BTreePageId pid, Field f,
+			boolean last, boolean inclusive) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId latched = null;
+		try {
+			if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+				bp.latchPage(pid, Permissions.READ_ONLY);
+				latched = pid;
+				pid = ((BTreeRootPtrPage) peekPage(dirtypages, pid)).getRootId();
+				if(pid == null) {
+					return null;
+				}
+			}
+			while(pid.pgcateg() == BTreePageId.INTERNAL) {
+				bp.latchPage(pid, Permissions.READ_ONLY);
+				if(latched != null) {
+					bp.unlatchPage(latched, Permissions.READ_ONLY);
+				}
+				latched = pid;
+				BTreeInternalPage page = (BTreeInternalPage) peekPage(dirtypages, pid);
+				BTreePageId child = last ? page.findLastChild(f, inclusive) : page.findChild(f);
+				if(child == null) {
+					throw new DbException("internal page " + pid.getPageNumber() + " has no entries");
+				}
+				pid = child;
+			}
+			return pid;
+		} finally {
+			if(latched != null) {
+				bp.unlatchPage(latched, Permissions.READ_ONLY);
+			}
+		}
+	}
+
+	/**
+	 * Read a page without locking it. The caller must hold a latch on the page.
+	 */
+	private Page peekPage(HashMap<PageId, Page> dirtypages, BTreePageId pid) throws DbException {
+		Page p = dirtypages.get(pid);
+		return p != null ? p : Database.getBufferPool().peekPage(pid);
+	}
+
+	/**
+	 * Read the id of the current root page under a latch on the root pointer page.
+	 */
+	private BTreePageId getRootId(HashMap<PageId, Page> dirtypages) throws DbException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		Database.getBufferPool().latchPage(rootPtrId, Permissions.READ_ONLY);
+		try {
+			return ((BTreeRootPtrPage) peekPage(dirtypages, rootPtrId)).getRootId();
+		} finally {
+			Database.getBufferPool().unlatchPage(rootPtrId, Permissions.READ_ONLY);
+		}
 	}
 	
 	/**
@@ -216,6 +362,24 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Convenience method to find the right-most leaf page possibly containing keys less
+	 * than or equal to f (less than f, if inclusive is false) when there is no
+	 * dirtypages HashMap. Used by the reverse BTreeFile iterators.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the right-most leaf page
+	 * @param inclusive - whether keys equal to f are wanted
+	 * @return the right-most leaf page possibly containing the keys
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f, boolean inclusive)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f, true, inclusive);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -240,15 +404,42 @@ public class BTreeFile implements DbFile {
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		int moveCount = Math.max(1, page.getMoveCount(null, false));
+		Tuple[] moving = new Tuple[moveCount];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moveCount - 1; i >= 0; i--) {
+			moving[i] = it.next();
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the old one
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent, or its shortest
+		// prefix which still separates it from the last key of the old page
+		Field midKey = BTreePage.separator(page.getLastKey(), moving[0].getField(keyField));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		parent.insertEntry(new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, midKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -277,15 +468,34 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, from the last one down
+		int moveCount = Math.max(1, Math.min(page.getMoveCount(null, false), page.getNumEntries() - 2));
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = 0; i < moveCount; i++) {
+			BTreeEntry e = it.next();
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+
+		// the next entry is pushed up: its left child stays on the old page and
+		// its right child is already the first child of the new page
+		BTreeEntry mid = it.next();
+		page.deleteKeyAndRightChild(mid);
+		mid.setLeftChild(page.getId());
+		mid.setRightChild(newPage.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		parent.insertEntry(mid);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, mid.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -399,6 +609,10 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * During a split, redistribution or merge, internal pages and the root pointer page
+	 * fetched with read-write permission are also latched exclusively, and marked dirty.
+	 * @see #latchAncestors(HashMap, BTreePage, boolean)
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -411,15 +625,118 @@ public class BTreeFile implements DbFile {
 	 */
 	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
 			throws DbException, TransactionAbortedException {
-		if(dirtypages.containsKey(pid)) {
-			return dirtypages.get(pid);
+		HashSet<PageId> latched = smoLatches.get();
+		boolean restructured = latched != null && perm == Permissions.READ_WRITE
+				&& pid.pgcateg() != BTreePageId.LEAF && pid.pgcateg() != BTreePageId.HEADER;
+		if(restructured && !latched.contains(pid)) {
+			// the page is latched out of the top-down order, which may deadlock
+			Database.getBufferPool().tryLatchPage(pid, Permissions.READ_WRITE);
+			latched.add(pid);
 		}
-		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+		Page p = dirtypages.get(pid);
+		if(p == null) {
+			p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
-			return p;
+		}
+		if(restructured) {
+			// readers traverse internal pages without locks, so keep the page
+			// from being evicted and read back from disk before it is marked dirty
+			p.markDirty(true, tid);
+		}
+		return p;
+	}
+
+	/**
+	 * Latch the ancestors of a page which are about to be restructured by a split, a
+	 * redistribution or a merge starting at the page. The ancestors are latched exclusively
+	 * from the root pointer page down, in the same order readers latch them; the latches
+	 * above a node which can absorb the change without being restructured itself are
+	 * released as soon as that node is latched. Until {@link #unlatchAncestors()} is called,
+	 * every internal page fetched for writing by this thread is latched exclusively as well.
+	 * The thread already holds locks which the holder of one of these latches may be waiting
+	 * for, so the transaction is aborted if a latch cannot be granted in time.
+	 * 
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page to be split or merged, locked by this transaction
+	 * @param inserting - true before a split, false before a redistribution or merge
+	 * @throws DbException
+	 * @throws TransactionAbortedException if a latch cannot be granted in time
+	 */
+	private void latchAncestors(HashMap<PageId, Page> dirtypages, BTreePage page, boolean inserting)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while(true) {
+			// follow the parent pointers from the page up to the root pointer page
+			ArrayList<BTreePageId> path = new ArrayList<BTreePageId>();
+			BTreePageId pid = page.getParentId();
+			while(pid.pgcateg() != BTreePageId.ROOT_PTR) {
+				path.add(pid);
+				bp.tryLatchPage(pid, Permissions.READ_ONLY);
+				try {
+					pid = ((BTreePage) peekPage(dirtypages, pid)).getParentId();
+				} finally {
+					bp.unlatchPage(path.get(path.size() - 1), Permissions.READ_ONLY);
+				}
+			}
+
+			// latch the path top-down, checking that it did not change in the meantime
+			LinkedList<BTreePageId> held = new LinkedList<BTreePageId>();
+			boolean valid = true;
+			boolean latched = false;
+			try {
+				bp.tryLatchPage(rootPtrId, Permissions.READ_WRITE);
+				held.add(rootPtrId);
+				BTreePageId parentId = rootPtrId;
+				for(int i = path.size() - 1; i >= 0 && valid; i--) {
+					pid = path.get(i);
+					bp.tryLatchPage(pid, Permissions.READ_WRITE);
+					held.add(pid);
+					BTreeInternalPage p = (BTreeInternalPage) peekPage(dirtypages, pid);
+					boolean root = parentId.pgcateg() == BTreePageId.ROOT_PTR;
+					if(root) {
+						valid = pid.equals(((BTreeRootPtrPage) peekPage(dirtypages, rootPtrId)).getRootId());
+					}
+					else {
+						valid = p.getParentId().equals(parentId);
+					}
+					int maxEmptySlots = p.getMaxEntries() - p.getMaxEntries()/2; // ceiling
+					boolean safe = inserting ? p.getNumEmptySlots() > 0
+							: root ? p.getNumEntries() > 1 : p.getNumEmptySlots() < maxEmptySlots;
+					while(valid && safe && held.size() > 1) {
+						bp.unlatchPage(held.removeFirst(), Permissions.READ_WRITE);
+					}
+					parentId = pid;
+				}
+				if(path.isEmpty()) {
+					valid = page.getId().equals(((BTreeRootPtrPage) peekPage(dirtypages, rootPtrId)).getRootId());
+				}
+				latched = valid;
+			} finally {
+				if(!latched) {
+					for(BTreePageId h : held) {
+						bp.unlatchPage(h, Permissions.READ_WRITE);
+					}
+				}
+			}
+			if(latched) {
+				smoLatches.set(new HashSet<PageId>(held));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Release the latches taken by {@link #latchAncestors(HashMap, BTreePage, boolean)} and
+	 * during the restructuring which followed it.
+	 */
+	private void unlatchAncestors() {
+		HashSet<PageId> latched = smoLatches.get();
+		smoLatches.remove();
+		for(PageId pid : latched) {
+			Database.getBufferPool().unlatchPage(pid, Permissions.READ_WRITE);
 		}
 	}
 
@@ -437,21 +754,33 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		// create the root pointer page and root page if necessary, and read the
+		// root pointer under a latch rather than a lock
+		createFileIfEmpty();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(getRootId(dirtypages) == null) { // the root has just been created, so set the root pointer to point to it
+			Database.getBufferPool().latchPage(rootPtrId, Permissions.READ_WRITE);
+			try {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+				if(rootPtr.getRootId() == null) {
+					rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+					rootPtr.markDirty(true, tid);
+				}
+			} finally {
+				Database.getBufferPool().unlatchPage(rootPtrId, Permissions.READ_WRITE);
+			}
 		}
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, t.getField(keyField));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			latchAncestors(dirtypages, leafPage, true);
+			try {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			} finally {
+				unlatchAncestors();
+			}
 		}
 
 		// insert the tuple into the leaf page
@@ -537,11 +866,14 @@ public class BTreeFile implements DbFile {
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		// a page left far below minimum occupancy by deletes which did not merge
+		// it is also merged with a sibling if both cannot be left at least half full
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getNumEmptySlots() >= maxEmptySlots
+					|| leftSibling.getNumEmptySlots() + page.getNumEmptySlots() > 2 * maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
@@ -552,7 +884,8 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getNumEmptySlots() >= maxEmptySlots
+					|| rightSibling.getNumEmptySlots() + page.getNumEmptySlots() > 2 * maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
@@ -577,10 +910,32 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
 		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int moveCount = sibling.getMoveCount(page, isRightSibling);
+		if(moveCount == 0) {
+			return;
+		}
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		Tuple[] moving = new Tuple[moveCount];
+		for(int i = 0; i < moveCount; i++) {
+			moving[i] = it.next();
+		}
+
+		// the entry's key separates the last key of the left-hand page from the
+		// first key of the right-hand page; if the parent has no room for it, the
+		// page is left as it is
+		Field last = moving[moveCount - 1].getField(keyField);
+		Field next = it.next().getField(keyField);
+		Field key = isRightSibling ? BTreePage.separator(last, next) : BTreePage.separator(next, last);
+		if(!parent.hasRoomForKey(entry, key)) {
+			return;
+		}
+
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+		entry.setKey(key);
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -657,10 +1012,22 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int moveCount = leftSibling.getMoveCount(page, false);
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		BTreePageId firstChild = page.iterator().next().getLeftChild();
+		for(int i = 0; i < moveCount; i++) {
+			// rotate the last key of the left sibling through the parent entry
+			BTreeEntry e = it.next();
+			if(!parent.hasRoomForKey(parentEntry, e.getKey())) {
+				break;
+			}
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), firstChild));
+			leftSibling.deleteKeyAndRightChild(e);
+			parentEntry.setKey(e.getKey());
+			parent.updateEntry(parentEntry);
+			firstChild = e.getRightChild();
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -685,10 +1052,22 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int moveCount = rightSibling.getMoveCount(page, true);
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		BTreePageId lastChild = page.reverseIterator().next().getRightChild();
+		for(int i = 0; i < moveCount; i++) {
+			// rotate the first key of the right sibling through the parent entry
+			BTreeEntry e = it.next();
+			if(!parent.hasRoomForKey(parentEntry, e.getKey())) {
+				break;
+			}
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, e.getLeftChild()));
+			rightSibling.deleteKeyAndLeftChild(e);
+			parentEntry.setKey(e.getKey());
+			parent.updateEntry(parentEntry);
+			lastChild = e.getLeftChild();
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -714,11 +1093,25 @@ public class BTreeFile implements DbFile {
 					throws DbException, IOException, TransactionAbortedException {
 
 		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -746,12 +1139,24 @@ public class BTreeFile implements DbFile {
 					throws DbException, IOException, TransactionAbortedException {
 		
 		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the parent's key down between the two pages' children
+		BTreeEntry first = rightPage.iterator().next();
+		BTreeEntry last = leftPage.reverseIterator().next();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -781,7 +1186,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -804,7 +1209,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Delete a tuple from this BTreeFile. 
 	 * May cause pages to merge or redistribute entries/tuples if the pages 
-	 * become less than half full.
+	 * become less than half full, unless merges are deferred to a BTreeMaintainer.
+	 * @see #setMergeOnDelete(boolean)
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
@@ -824,8 +1230,13 @@ public class BTreeFile implements DbFile {
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		if(mergeOnDelete && page.getNumEmptySlots() > maxEmptySlots) { 
+			latchAncestors(dirtypages, page, false);
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				unlatchAncestors();
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -845,6 +1256,18 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createFileIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 * 
+	 * @throws IOException
+	 */
+	private void createFileIfEmpty() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -857,9 +1280,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -901,6 +1321,7 @@ public class BTreeFile implements DbFile {
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
+				pageAllocations.incrementAndGet();
 				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
 			}
 		}
@@ -941,7 +1362,16 @@ public class BTreeFile implements DbFile {
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+		return getEmptyPage(tid, dirtypages, pgcateg, getEmptyPageNo(tid, dirtypages));
+	}
+
+	/**
+	 * Wipe a page which was just taken from the header pages, on disk and in the cache,
+	 * and return a clean copy locked with read-write permission.
+	 * @see #getEmptyPage(TransactionId, HashMap, int)
+	 */
+	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg, int emptyPageNo)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
@@ -1041,104 +1471,615 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		pageAllocations.incrementAndGet();
 	}
 
 	/**
-	 * get the specified tuples from the file based on its IndexPredicate value on
-	 * behalf of the specified transaction. This method will acquire a read lock on
-	 * the affected pages of the file, and may block until the lock can be
-	 * acquired.
+	 * Lock the root pointer page and the header pages for reading, which keeps other
+	 * transactions from taking pages from or returning pages to the header pages until
+	 * tid completes, so that no leaf page, internal page or free page becomes another
+	 * kind of page in the meantime. Used by {@link BTreeMaintainer} before it works on
+	 * pages it surveyed in an earlier transaction.
 	 * 
 	 * @param tid - the transaction id
-	 * @param ipred - the index predicate value to filter on
-	 * @return an iterator for the filtered tuples
+	 * @return the number of times pages were taken from or returned to the header pages,
+	 * which is the same as when the pages were surveyed if none of them changed since
+	 * @see #getPageAllocations()
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
 	 */
-	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-		return new BTreeSearchIterator(this, tid, ipred);
+	int lockPageAllocation(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		return pageAllocations.get();
 	}
 
 	/**
-	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
-	 * will acquire a read lock on the affected pages of the file, and may block until 
-	 * the lock can be acquired.
-	 * 
-	 * @param tid - the transaction id
-	 * @return an iterator for all the tuples in this file
+	 * @return the number of times pages were taken from or returned to the header pages
+	 * @see #lockPageAllocation(TransactionId)
 	 */
-	public DbFileIterator iterator(TransactionId tid) {
-		return new BTreeFileIterator(this, tid);
+	int getPageAllocations() {
+		return pageAllocations.get();
 	}
 
-}
-
-/**
- * Helper class that implements the Java Iterator for tuples on a BTreeFile
- */
-class BTreeFileIterator extends AbstractDbFileIterator {
-
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
-
-	TransactionId tid;
-	BTreeFile f;
-
 	/**
-	 * Constructor for this iterator
-	 * @param f - the BTreeFile containing the tuples
+	 * Get the page numbers of the free pages of this BTreeFile, reading the header
+	 * pages with read-only permission.
+	 * 
 	 * @param tid - the transaction id
+	 * @return the free page numbers in increasing order
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
 	 */
-	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
-		this.f = f;
-		this.tid = tid;
+	ArrayList<Integer> getFreePageNos(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<Integer> free = new ArrayList<Integer>();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		int numPages = numPages();
+		for(int headerPageCount = 0; headerId != null; headerPageCount++) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			for(int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+				int pageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + i;
+				if(pageNo > 0 && pageNo <= numPages && !headerPage.isSlotUsed(i)) {
+					free.add(pageNo);
+				}
+			}
+			headerId = headerPage.getNextPageId();
+		}
+		return free;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Take a given page from the header pages, if it is free.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number
+	 * @return true if the page was free and is now in use
+	 * @see #getEmptyPageNo(TransactionId, HashMap)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
 	 */
-	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+	private boolean takeEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		for(int i = 0; headerId != null && i < pageNo / BTreeHeaderPage.getNumSlots(); i++) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		if(headerId == null || pageNo > numPages()) {
+			return false;
+		}
+		int slot = pageNo % BTreeHeaderPage.getNumSlots();
+		if(((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).isSlotUsed(slot)) {
+			return false;
+		}
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(slot, true);
+		pageAllocations.incrementAndGet();
+		return true;
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
+	 * Check that a page which was locked through an id found outside the tree is still
+	 * a page of the tree, by looking for it among the children of its parent under a
+	 * shared latch.
 	 * 
-	 * @return the next tuple, or null if none exists
+	 * @param dirtypages - the pages already fetched for writing by this operation
+	 * @param page - the page, locked by this transaction
+	 * @return true if the parent of the page points to it
+	 * @throws DbException
+	 * @throws TransactionAbortedException if the latch cannot be granted in time
 	 */
-	@Override
-	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
+	private boolean isInTree(HashMap<PageId, Page> dirtypages, BTreePage page)
+			throws DbException, TransactionAbortedException {
+		BTreePageId parentId = page.getParentId();
+		BufferPool bp = Database.getBufferPool();
+		bp.tryLatchPage(parentId, Permissions.READ_ONLY);
+		try {
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				return page.getId().equals(((BTreeRootPtrPage) peekPage(dirtypages, parentId)).getRootId());
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) peekPage(dirtypages, parentId)).iterator();
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				if(e.getLeftChild().equals(page.getId()) || e.getRightChild().equals(page.getId())) {
+					return true;
+				}
 			}
+			return false;
+		} finally {
+			bp.unlatchPage(parentId, Permissions.READ_ONLY);
 		}
-
-		if (it == null)
-			return null;
-		return it.next();
 	}
 
 	/**
-	 * rewind this iterator back to the beginning of the tuples
+	 * Merge a leaf page which is less than half full with a sibling, or steal tuples
+	 * from one, as a delete does unless merges are deferred. Nothing is done if the
+	 * page is at least half full, if it is the root page, or if it is no longer a leaf
+	 * page of the tree.
+	 * Used by {@link BTreeMaintainer}, which must have checked with
+	 * {@link #lockPageAllocation(TransactionId)} that the page is still a leaf page
+	 * or a free page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the id of the leaf page
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #handleMinOccupancyPage(TransactionId, HashMap, BTreePage)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
 	 */
-	public void rewind() throws DbException, TransactionAbortedException {
-		close();
-		open();
+	ArrayList<Page> compactLeafPage(TransactionId tid, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		if(page.getNumEmptySlots() > maxEmptySlots && page.getParentId().pgcateg() != BTreePageId.ROOT_PTR
+				&& isInTree(dirtypages, page)) {
+			page = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			latchAncestors(dirtypages, page, false);
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				unlatchAncestors();
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * Move a page of the tree to another page of the file, to put the leaf pages back in
+	 * key order on disk, or to pack the pages at the start of the file before it is
+	 * truncated. If the other page is free, the contents of the page move to it and the
+	 * page is freed; two leaf pages may also swap their tuples. The pages pointing to
+	 * the moved pages are then made to point to their new places, under the same latches
+	 * as a merge.
+	 * Used by {@link BTreeMaintainer}, which must have checked with
+	 * {@link #lockPageAllocation(TransactionId)} that the other page is still a free
+	 * page, or a leaf page if the page is one.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the id of the leaf, internal or header page to move
+	 * @param pageNo - the page number to move it to
+	 * @return a list of all pages that were dirtied by this operation, empty if either
+	 * page is no longer what it was when they were surveyed
+	 * @see #moveLeafPage(TransactionId, HashMap, BTreeLeafPage, int)
+	 * @see #moveInternalPage(TransactionId, HashMap, BTreeInternalPage, int)
+	 * @see #moveHeaderPage(TransactionId, HashMap, BTreeHeaderPage, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	ArrayList<Page> movePage(TransactionId tid, BTreePageId pid, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		boolean moved;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			moved = moveLeafPage(tid, dirtypages, (BTreeLeafPage) page, pageNo);
+		}
+		else if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			moved = moveInternalPage(tid, dirtypages, (BTreeInternalPage) page, pageNo);
+		}
+		else {
+			moved = moveHeaderPage(tid, dirtypages, (BTreeHeaderPage) page, pageNo);
+		}
+		return moved ? new ArrayList<Page>(dirtypages.values()) : new ArrayList<Page>();
+	}
+
+	/**
+	 * Move a leaf page to a free page, or swap the tuples of two leaf pages, and update
+	 * the parent and sibling pointers of both.
+	 * @see #movePage(TransactionId, BTreePageId, int)
+	 * @return false if either page is no longer a leaf page of the tree, or the other
+	 * page neither a leaf page nor free
+	 */
+	private boolean moveLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId pid = page.getId();
+		if(!isInTree(dirtypages, page)) {
+			return false;
+		}
+		BTreePageId otherId = new BTreePageId(tableid, pageNo, BTreePageId.LEAF);
+		boolean free = takeEmptyPage(tid, dirtypages, pageNo);
+		BTreeLeafPage other;
+		if(free) {
+			other = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF, pageNo);
+		}
+		else {
+			other = (BTreeLeafPage) getPage(tid, dirtypages, otherId, Permissions.READ_WRITE);
+			if(!isInTree(dirtypages, other)) {
+				return false;
+			}
+		}
+
+		HashMap<BTreePageId, BTreePageId> moved = new HashMap<BTreePageId, BTreePageId>();
+		moved.put(pid, otherId);
+		moved.put(otherId, pid);
+		ArrayList<Tuple> tuples = removeTuples(page);
+		ArrayList<Tuple> otherTuples = removeTuples(other);
+		BTreePageId parentId = page.getParentId();
+		BTreePageId otherParentId = free ? null : other.getParentId();
+		LinkedHashSet<BTreePageId> siblings = new LinkedHashSet<BTreePageId>();
+		siblings.add(page.getLeftSiblingId());
+		siblings.add(page.getRightSiblingId());
+		siblings.add(other.getLeftSiblingId());
+		siblings.add(other.getRightSiblingId());
+		siblings.removeAll(moved.keySet());
+		siblings.remove(null);
+
+		smoLatches.set(new HashSet<PageId>());
+		try {
+			// point the parents and the siblings of both pages to their new places
+			updateChildPointers(tid, dirtypages, parentId, moved);
+			if(otherParentId != null && !otherParentId.equals(parentId)) {
+				updateChildPointers(tid, dirtypages, otherParentId, moved);
+			}
+			for(BTreePageId siblingId : siblings) {
+				BTreeLeafPage sibling = (BTreeLeafPage) getPage(tid, dirtypages, siblingId, Permissions.READ_WRITE);
+				sibling.setLeftSiblingId(movedId(moved, sibling.getLeftSiblingId()));
+				sibling.setRightSiblingId(movedId(moved, sibling.getRightSiblingId()));
+			}
+
+			// and swap the pages
+			BTreePageId left = movedId(moved, page.getLeftSiblingId());
+			BTreePageId right = movedId(moved, page.getRightSiblingId());
+			if(free) {
+				page.setLeftSiblingId(null);
+				page.setRightSiblingId(null);
+				setEmptyPage(tid, dirtypages, pid.getPageNumber());
+			}
+			else {
+				page.setParentId(otherParentId);
+				page.setLeftSiblingId(movedId(moved, other.getLeftSiblingId()));
+				page.setRightSiblingId(movedId(moved, other.getRightSiblingId()));
+				for(Tuple t : otherTuples) {
+					page.insertTuple(t);
+				}
+			}
+			other.setParentId(parentId);
+			other.setLeftSiblingId(left);
+			other.setRightSiblingId(right);
+			for(Tuple t : tuples) {
+				other.insertTuple(t);
+			}
+		} finally {
+			unlatchAncestors();
+		}
+		return true;
+	}
+
+	/**
+	 * Move an internal page to a free page, and update the child pointer of its parent
+	 * and the parent pointers of its children.
+	 * @see #movePage(TransactionId, BTreePageId, int)
+	 * @return false if the page is no longer an internal page of the tree, or the
+	 * other page is not free
+	 */
+	private boolean moveInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page,
+			int pageNo) throws DbException, IOException, TransactionAbortedException {
+		if(!isInTree(dirtypages, page) || !takeEmptyPage(tid, dirtypages, pageNo)) {
+			return false;
+		}
+		smoLatches.set(new HashSet<PageId>());
+		try {
+			page = (BTreeInternalPage) getPage(tid, dirtypages, page.getId(), Permissions.READ_WRITE);
+			BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL, pageNo);
+			HashMap<BTreePageId, BTreePageId> moved = new HashMap<BTreePageId, BTreePageId>();
+			moved.put(page.getId(), newPage.getId());
+			updateChildPointers(tid, dirtypages, page.getParentId(), moved);
+
+			ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+			Iterator<BTreeEntry> it = page.iterator();
+			while(it.hasNext()) {
+				entries.add(it.next());
+			}
+			for(BTreeEntry e : entries) {
+				page.deleteKeyAndRightChild(e);
+			}
+			for(BTreeEntry e : entries) {
+				newPage.insertEntry(e);
+			}
+			newPage.setParentId(page.getParentId());
+			updateParentPointers(tid, dirtypages, newPage);
+			setEmptyPage(tid, dirtypages, page.getId().getPageNumber());
+		} finally {
+			unlatchAncestors();
+		}
+		return true;
+	}
+
+	/**
+	 * Move a header page to a free page, and update the pointers to it of the header
+	 * pages before and after it, or of the root pointer page.
+	 * @see #movePage(TransactionId, BTreePageId, int)
+	 * @return false if the page is no longer in the list of header pages, or the
+	 * other page is not free
+	 */
+	private boolean moveHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeHeaderPage page,
+			int pageNo) throws DbException, IOException, TransactionAbortedException {
+		BTreePageId pid = page.getId();
+		BTreePageId prevId = page.getPrevPageId();
+		BTreePageId nextId = page.getNextPageId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(prevId == null ? !pid.equals(getRootPtrPage(tid, dirtypages).getHeaderId())
+				: !pid.equals(((BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_ONLY)).getNextPageId())) {
+			return false;
+		}
+		if(!takeEmptyPage(tid, dirtypages, pageNo)) {
+			return false;
+		}
+		smoLatches.set(new HashSet<PageId>());
+		try {
+			BTreeHeaderPage newPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER, pageNo);
+			for(int i = 0; i < BTreeHeaderPage.getNumSlots(); i++) {
+				newPage.markSlotUsed(i, page.isSlotUsed(i));
+			}
+			newPage.setPrevPageId(prevId);
+			newPage.setNextPageId(nextId);
+			if(prevId == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newPage.getId());
+			}
+			else {
+				((BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE)).setNextPageId(newPage.getId());
+			}
+			if(nextId != null) {
+				((BTreeHeaderPage) getPage(tid, dirtypages, nextId, Permissions.READ_WRITE)).setPrevPageId(newPage.getId());
+			}
+			page.setPrevPageId(null);
+			page.setNextPageId(null);
+			setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		} finally {
+			unlatchAncestors();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the id a page moved to, or the id itself if it did not move
+	 */
+	private static BTreePageId movedId(HashMap<BTreePageId, BTreePageId> moved, BTreePageId id) {
+		BTreePageId to = moved.get(id);
+		return to == null ? id : to;
+	}
+
+	/**
+	 * Delete all the tuples of a leaf page.
+	 * @return the tuples, in key order
+	 */
+	private static ArrayList<Tuple> removeTuples(BTreeLeafPage page) throws DbException {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		for(Tuple t : tuples) {
+			page.deleteTuple(t);
+		}
+		return tuples;
+	}
+
+	/**
+	 * Point the child pointers of a page, or the root pointer, to the pages the
+	 * children moved to.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the internal page or of the root pointer page
+	 * @param moved - the pages which moved, and where to
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private void updateChildPointers(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			HashMap<BTreePageId, BTreePageId> moved) throws DbException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			rootPtr.setRootId(movedId(moved, rootPtr.getRootId()));
+			return;
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		for(BTreeEntry e : entries) {
+			if(moved.containsKey(e.getLeftChild()) || moved.containsKey(e.getRightChild())) {
+				e.setLeftChild(movedId(moved, e.getLeftChild()));
+				e.setRightChild(movedId(moved, e.getRightChild()));
+				page.updateEntry(e);
+			}
+		}
+	}
+
+	/**
+	 * Give the free pages at the end of the file back to the file system. The header
+	 * pages are locked for writing, so no other transaction is taking pages from them
+	 * or returning pages to them; the slots of the truncated pages are marked used, as
+	 * they are for the pages past the end of the file, so pages are appended to the
+	 * file again when there are no other free pages. Stale copies of the truncated
+	 * pages are dropped from the BufferPool.
+	 * As the file is truncated right away, the transaction must commit as soon as this
+	 * returns.
+	 * 
+	 * @param tid - the transaction id
+	 * @return a list of all pages that were dirtied by this operation
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	ArrayList<Page> truncateFreePages(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<BTreeHeaderPage> headerPages = new ArrayList<BTreeHeaderPage>();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+			headerPages.add(headerPage);
+			headerId = headerPage.getNextPageId();
+		}
+
+		int numSlots = BTreeHeaderPage.getNumSlots();
+		synchronized(this) {
+			int numPages = numPages();
+			int last = numPages;
+			while(last > 1 && last / numSlots < headerPages.size()
+					&& !headerPages.get(last / numSlots).isSlotUsed(last % numSlots)) {
+				last--;
+			}
+			if(last < numPages) {
+				for(int pageNo = last + 1; pageNo <= numPages; pageNo++) {
+					headerPages.get(pageNo / numSlots).markSlotUsed(pageNo % numSlots, true);
+					for(int pgcateg : new int[] { BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER }) {
+						Database.getBufferPool().discardPage(new BTreePageId(tableid, pageNo, pgcateg));
+					}
+				}
+				RandomAccessFile rf = new RandomAccessFile(f, "rw");
+				rf.setLength(BTreeRootPtrPage.getPageSize() + (long) last * BufferPool.getPageSize());
+				rf.close();
+				pageAllocations.incrementAndGet();
+			}
+		}
+		return new ArrayList<Page>(dirtypages.values());
+	}
+
+	/**
+	 * get the specified tuples from the file based on its IndexPredicate value on
+	 * behalf of the specified transaction. This method will acquire a read lock on
+	 * the affected pages of the file, and may block until the lock can be
+	 * acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if(ipred.getValues() != null) {
+			return new BTreeInListIterator(this, tid, ipred.getValues());
+		}
+		return new BTreeSearchIterator(this, tid, ipred);
+	}
+
+	/**
+	 * get the specified tuples from the file based on its IndexPredicate value,
+	 * in ascending or descending key order.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on, or null for all tuples
+	 * @param descending - whether to return the tuples in descending key order
+	 * @return an iterator for the filtered tuples
+	 * @see #indexIterator(TransactionId, IndexPredicate)
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, boolean descending) {
+		if(descending) {
+			return new BTreeReverseSearchIterator(this, tid, ipred);
+		}
+		return ipred == null ? iterator(tid) : indexIterator(tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key order,
+	 * following the left sibling pointers of the leaf pages.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeReverseSearchIterator(this, tid, null);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
+	 * will acquire a read lock on the affected pages of the file, and may block until 
+	 * the lock can be acquired.
+	 * 
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new BTreeFileIterator(this, tid);
+	}
+
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a BTreeFile
+ */
+class BTreeFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
+		curp = f.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, null);
+		it = curp == null ? null : curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples or
+	 * from the next page by following the right sibling pointer.
+	 * 
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (it != null && !it.hasNext())
+			it = null;
+
+		while (it == null && curp != null) {
+			BTreePageId nextp = curp.getRightSiblingId();
+			if(nextp == null) {
+				curp = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+				if (!it.hasNext())
+					it = null;
+			}
+		}
+
+		if (it == null)
+			return null;
+		return it.next();
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
 	}
 
 	/**
@@ -1181,22 +2122,139 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId root = BTreeRootPtrPage.getId(f.getId());
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			// skip the tuples on the first page which are below the key
+			it = curp == null ? null : curp.iterator(ipred.getField(), ipred.getOp() != Op.GREATER_THAN);
 		}
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			it = curp == null ? null : curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
+	 * The iteration ends at the first tuple above the upper bound of the predicate.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if (ipred.matches(key)) {
+					return t;
+				}
+				else if (ipred.isAbove(key)) {
+					// the keys are sorted, so no later tuple matches either
+					it = null;
+					return null;
+				}
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			// if there are no more pages to the right, end the iteration
+			if(nextp == null) {
+				it = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File in descending key order
+ */
+class BTreeReverseSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on, or null for all tuples
+	 */
+	public BTreeReverseSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 * applicable for the upper bound of the predicate
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreePageId root = BTreeRootPtrPage.getId(f.getId());
+		Field bound = null;
+		Op boundOp = null;
+		if(ipred != null && ipred.getValues() != null) {
+			Field[] values = ipred.getValues();
+			bound = values[values.length - 1];
+			boundOp = Op.LESS_THAN_OR_EQ;
+		}
+		else if(ipred != null && ipred.getUpperOp() != null) {
+			bound = ipred.getUpperField();
+			boundOp = ipred.getUpperOp();
+		}
+		else if(ipred != null && ipred.getOp() != Op.GREATER_THAN
+				&& ipred.getOp() != Op.GREATER_THAN_OR_EQ) {
+			bound = ipred.getField();
+			boundOp = ipred.getOp() == Op.LESS_THAN ? Op.LESS_THAN : Op.LESS_THAN_OR_EQ;
+		}
+		boolean inclusive = boundOp != Op.LESS_THAN;
+		curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY, bound, inclusive);
+		if(curp == null) {
+			it = null;
+		}
+		else {
+			// skip the tuples on the last page which are above the bound
+			it = bound == null ? curp.reverseIterator() : curp.reverseIterator(bound, inclusive);
+		}
+	}
+
+	/**
+	 * Read the previous tuple either from the current page if it has more tuples
+	 * matching the predicate or from the previous page by following the left sibling
+	 * pointer. The iteration ends at the first tuple below the lower bound of the
+	 * predicate.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
@@ -1207,28 +2265,135 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (ipred == null) {
+					return t;
+				}
+				Field key = t.getField(f.keyField());
+				if (ipred.matches(key)) {
 					return t;
 				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
+				else if (ipred.isBelow(key)) {
+					// the keys are sorted, so no earlier tuple matches either
+					it = null;
 					return null;
 				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
+			}
+
+			BTreePageId prevp = curp.getLeftSiblingId();
+			if(prevp == null) {
+				it = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a B+ Tree
+ * File whose keys are in a list of values. The values are looked up in
+ * increasing order; a value on the leaf page the previous value ended on, or
+ * on its right sibling, is found by binary search on that page instead of a
+ * search from the root.
+ */
+class BTreeInListIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+	Field[] values;
+	int cur;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param values - the distinct values to look up, in increasing order
+	 */
+	public BTreeInListIterator(BTreeFile f, TransactionId tid, Field[] values) {
+		this.f = f;
+		this.tid = tid;
+		this.values = values;
+	}
+
+	/**
+	 * Open this iterator by searching for the first value from the root
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		cur = 0;
+		seek(true);
+	}
+
+	/**
+	 * Position the iterator at the first tuple with a key greater than or equal to
+	 * the current value: on the current page if the value is not above its last key,
+	 * otherwise on the leaf page found from the root.
+	 */
+	private void seek(boolean fromRoot) throws DbException, TransactionAbortedException {
+		Field v = values[cur];
+		if(fromRoot || curp == null || curp.getLastKey() == null
+				|| v.compare(Op.GREATER_THAN, curp.getLastKey())) {
+			curp = f.findLeafPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, v);
+		}
+		it = curp == null ? null : curp.iterator(v, true);
+	}
+
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if (key.equals(values[cur])) {
+					return t;
+				}
+				// key is above the current value: move on to the values up to key
+				while (cur < values.length && values[cur].compare(Op.LESS_THAN, key)) {
+					cur++;
+				}
+				if (cur == values.length) {
+					it = null;
 					return null;
 				}
+				if (key.equals(values[cur])) {
+					return t;
+				}
+				seek(false);
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
-				return null;
+				it = null;
 			}
 			else {
+				// the current value may continue on the right sibling, or be the
+				// first key there
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
 				it = curp.iterator();
@@ -1252,5 +2417,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		curp = null;
 	}
 }
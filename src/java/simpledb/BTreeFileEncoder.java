@@ -324,7 +324,7 @@ public class BTreeFileEncoder {
 		// update the root pointer to point to the last page of the file
 		int root = bf.numPages();
 		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
+		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0, BTreePage.isCompressed(keyType));
 		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
 
 		// set all the parent and sibling pointers
@@ -493,7 +493,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage.
+	 * If the key field is a string, the keys are compressed, and as many tuples
+	 * are written as fit on the page.
 	 * 
 	 * @param tuples - the set of tuples
 	 * @param npagebytes - number of bytes per page
@@ -512,6 +514,9 @@ public class BTreeFileEncoder {
 		}
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
+		if (BTreePage.isCompressed(typeAr[keyField])) {
+			return convertToCompressedLeafPage(tuples, npagebytes, nrecbytes, pointerbytes, keyField);
+		}
 		int nrecords = (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
 
 		//  per record, we need one bit; there are nrecords per page, so we need
@@ -569,6 +574,62 @@ public class BTreeFileEncoder {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage whose
+	 * string keys are compressed.
+	 */
+	private static byte[] convertToCompressedLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int nrecbytes, int pointerbytes, int keyField) throws IOException {
+		// a record takes at least the two lengths of its key besides its other fields
+		int nminrecbytes = nrecbytes - Type.STRING_TYPE.getLen() + 2;
+		int nslots = (npagebytes * 8 - pointerbytes * 8) / (nminrecbytes * 8 + 1);
+		int nheaderbytes = (nslots + 7) / 8;
+
+		Collections.sort(tuples, new TupleComparator(keyField));
+		ByteArrayOutputStream records = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream rdos = new DataOutputStream(records);
+		int space = npagebytes - pointerbytes - nheaderbytes;
+		int recordcount = 0;
+		byte[] prevKey = null;
+		for (Tuple t : tuples) {
+			byte[] key = BTreePage.keyBytes(t.getField(keyField));
+			if (recordcount == nslots
+					|| records.size() + BTreePage.keySize(key, prevKey) + nminrecbytes - 2 > space)
+				break;
+			BTreePage.writeKey(rdos, key, prevKey);
+			for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+				if (j != keyField)
+					t.getField(j).serialize(rdos);
+			}
+			prevKey = key;
+			recordcount++;
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeInt(0); // left sibling pointer
+		dos.writeInt(0); // right sibling pointer
+		writeHeader(dos, nheaderbytes, recordcount);
+		records.writeTo(dos);
+		dos.write(new byte[space - records.size()]);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Write out the header of a page whose first slots are in use.
+	 */
+	private static void writeHeader(DataOutputStream dos, int nheaderbytes, int nused) throws IOException {
+		for (int i = 0; i < nheaderbytes; i++) {
+			byte headerbyte = 0;
+			for (int j = 0; j < 8; j++) {
+				if (i * 8 + j < nused)
+					headerbyte |= (1 << j);
+			}
+			dos.writeByte(headerbyte);
+		}
+	}
+
 	/**
 	 *  Comparator to sort BTreeEntry objects by key
 	 */
@@ -612,7 +673,9 @@ public class BTreeFileEncoder {
 	}
 
 	/**
-	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage.
+	 * If the key type is a string, the keys are compressed, and as many entries are
+	 * written as fit on the page.
 	 * 
 	 * @param entries - the set of entries
 	 * @param npagebytes - number of bytes per page
@@ -627,6 +690,9 @@ public class BTreeFileEncoder {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		if (BTreePage.isCompressed(keyType)) {
+			return convertToCompressedInternalPage(entries, npagebytes, pointerbytes, childPageCategory);
+		}
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
 		//  per entry, we need one bit; there are nentries per page, so we need
@@ -697,6 +763,45 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * whose string keys are compressed.
+	 */
+	private static byte[] convertToCompressedInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int pointerbytes, int childPageCategory) throws IOException {
+		// an entry takes at least the two lengths of its key and its child pointer
+		int nminentrybytes = 2 + BTreeInternalPage.INDEX_SIZE;
+		int nslots = (npagebytes * 8 - pointerbytes * 8 - 1) / (nminentrybytes * 8 + 1) + 1;
+		int nheaderbytes = (nslots + 7) / 8;
+
+		Collections.sort(entries, new EntryComparator());
+		ByteArrayOutputStream children = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream cdos = new DataOutputStream(children);
+		cdos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+		int space = npagebytes - pointerbytes + BTreeInternalPage.INDEX_SIZE - nheaderbytes;
+		int entrycount = 0;
+		byte[] prevKey = null;
+		for (BTreeEntry e : entries) {
+			byte[] key = BTreePage.keyBytes(e.getKey());
+			if (entrycount + 1 == nslots
+					|| children.size() + BTreePage.keySize(key, prevKey) + BTreeInternalPage.INDEX_SIZE > space)
+				break;
+			BTreePage.writeKey(cdos, key, prevKey);
+			cdos.writeInt(e.getRightChild().getPageNumber());
+			prevKey = key;
+			entrycount++;
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		writeHeader(dos, nheaderbytes, entrycount + 1);
+		children.writeTo(dos);
+		dos.write(new byte[space - children.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -708,12 +813,28 @@ public class BTreeFileEncoder {
 	 */
 	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header)
 			throws IOException {
+		return convertToRootPtrPage(root, rootCategory, header, false);
+	}
+
+	/**
+	 * Create a byte array in the format of a BTreeRootPtrPage
+	 * 
+	 * @param root - the page number of the root page
+	 * @param rootCategory - the category of the root page (leaf or internal)
+	 * @param header - the page number of the first header page
+	 * @param compressedKeys - whether the tree's pages front-code their string keys
+	 * @return a byte array which can be passed to the BTreeRootPtrPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header,
+			boolean compressedKeys) throws IOException {
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(BTreeRootPtrPage.getPageSize());
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		dos.writeInt(root); // root pointer
-		dos.writeByte((byte) rootCategory); // root page category
+		// root page category, with the key format flag
+		dos.writeByte((byte) (rootCategory | (compressedKeys ? BTreeRootPtrPage.COMPRESSED_KEYS : 0)));
 
 		dos.writeInt(header); // header pointer
 
@@ -17,10 +17,12 @@ public class BTreeInternalPage extends BTreePage {
 	private final byte header[];
 	private final Field keys[];
 	private final int children[];
-	private final int numSlots;
+	final int numSlots;
 	
 	private int childCategory; // either leaf or internal
 
+	private volatile KeyDirectory directory = null; // rebuilt after the page changes
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +39,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			assert (getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 2);
 		}
 	}
 	
@@ -57,6 +59,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * If the key field is a string, the first child pointer is followed by the
+	 * entries in use, in slot order, each a key compressed against the key of the
+	 * previous entry (see {@link BTreePage#MAX_KEY_SIZE}) and a child pointer.
+	 * There are then as many slots as entries fit if all keys compress to nothing,
+	 * and the page is full when it has no room for an entry whose key does not
+	 * compress at all.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +74,15 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, key, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a BTreeInternalPage holding keys of the given field of a TupleDesc.
+	 */
+	BTreeInternalPage(BTreePageId id, byte[] data, int key, TupleDesc td) throws IOException {
+		super(id, key, td);
+		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -87,6 +102,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -98,7 +120,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -111,10 +132,33 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * Read the child pointers and compressed keys of the entries in use.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		byte[] prevKey = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i)) {
+				children[i] = -1;
+				continue;
+			}
+			if (i > 0) {
+				prevKey = readKey(dis, prevKey);
+				keys[i] = toKey(prevKey);
+			}
+			children[i] = dis.readInt();
+		}
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * If keys are compressed, this is the number of entries whose keys do not
+	 * compress at all which fit, leaving room for one more: a page usually holds more.
  	 */
 	public int getMaxEntries() {        
+		if (compressed) {
+			return getSpace() / getMaxEntrySize() - 1;
+		}
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
@@ -129,13 +173,104 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = getNumSlots();
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * Computes the number of entry slots of the page, including the slot of the first
+	 * child pointer: one more than the maximum number of entries or, if keys are
+	 * compressed, than the number of entries which fit if no key takes any space
+	 * beyond its lengths.
+	 */
+	private int getNumSlots() {
+		if (!compressed)
+			return getMaxEntries() + 1;
+		int bitsPerEntryIncludingHeader = (2 + INDEX_SIZE) * 8 + 1;
+		int extraBits = (2 * INDEX_SIZE + 1) * 8 + 1;
+		return (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader + 1;
+	}
+
+	/**
+	 * @return the most space an entry can take on this page
+	 */
+	private int getMaxEntrySize() {
+		return compressed ? MAX_KEY_SIZE + INDEX_SIZE : td.getFieldType(keyField).getLen() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes available to entries on this page, beyond the
+	 * parent pointer, child category, header and first child pointer
+	 */
+	private int getSpace() {
+		return BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - (getNumSlots() + 7) / 8;
+	}
+
+	/**
+	 * @return the number of bytes the entries on this page take
+	 */
+	int getEntrySpace() {
+		KeyDirectory dir = getDirectory();
+		int n = Math.max(0, dir.slots.length - 1);
+		if (!compressed)
+			return n * getMaxEntrySize();
+		return dir.compressedSize + n * INDEX_SIZE;
+	}
+
+	/**
+	 * Check whether the key of an entry on this page can be replaced by another one
+	 * with {@link #updateEntry}, which always holds unless keys are compressed.
+	 * @param e - an entry on this page
+	 * @param key - the new key
+	 * @return true if the page has room for the new key
+	 */
+	public boolean hasRoomForKey(BTreeEntry e, Field key) {
+		if (!compressed)
+			return true;
+		KeyDirectory dir = getDirectory();
+		int slot = e.getRecordId().getTupleNumber();
+		int pos = 1;
+		while (pos < dir.slots.length && dir.slots[pos] != slot)
+			pos++;
+		if (pos == dir.slots.length)
+			return false;
+		Field prev = pos == 1 ? null : dir.keys[pos - 1];
+		Field next = pos + 1 == dir.slots.length ? null : dir.keys[pos + 1];
+		int growth = insertedKeySize(prev, key, next) - insertedKeySize(prev, dir.keys[pos], next);
+		return getEntrySpace() + growth <= getSpace();
+	}
+
+	/**
+	 * Count the entries to move from the end of this page, or from its start, to
+	 * another page so that both take about as much space: half the difference of
+	 * their numbers of entries or, if keys are compressed, as many entries as take
+	 * no more than half the difference of their space. One entry at least stays.
+	 * @param to - the page receiving the entries, or null for a new page
+	 * @param fromStart - whether to move the first entries rather than the last ones
+	 * @return the number of entries to move
+	 */
+	int getMoveCount(BTreeInternalPage to, boolean fromStart) {
+		if (!compressed)
+			return (getNumEntries() - (to == null ? 0 : to.getNumEntries())) / 2;
+		KeyDirectory dir = getDirectory();
+		int n = dir.slots.length - 1;
+		int excess = getEntrySpace() - (to == null ? 0 : to.getEntrySpace());
+		int moved = 0;
+		int count = 0;
+		for (; count < n - 1; count++) {
+			int pos = fromStart ? 1 + count : n - count;
+			byte[] prev = pos == 1 ? null : keyBytes(dir.keys[pos - 1]);
+			int size = keySize(keyBytes(dir.keys[pos]), prev) + INDEX_SIZE;
+			if (2 * (moved + size) > excess)
+				break;
+			moved += size;
+		}
+		return count;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -145,7 +280,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyField,td);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -262,6 +397,17 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (compressed) {
+			try {
+				writeCompressedEntries(dos);
+				dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -333,6 +479,24 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write out the entries in use, in slot order, each key compressed against the
+	 * key of the previous entry and followed by its child pointer.
+	 */
+	private void writeCompressedEntries(DataOutputStream dos) throws IOException {
+		byte[] prevKey = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			if (i > 0) {
+				byte[] k = keyBytes(keys[i]);
+				writeKey(dos, k, prevKey);
+				prevKey = k;
+			}
+			dos.writeInt(children[i]);
+		}
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -398,8 +562,9 @@ public class BTreeInternalPage extends BTreePage {
 	 * record id.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
-	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         already empty, updating this key would put the entry out of 
+	 *         order on the page, or the page has no room for the new key
+	 *         (see {@link #hasRoomForKey})
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
@@ -425,12 +590,20 @@ public class BTreeInternalPage extends BTreePage {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
-				children[i] = e.getLeftChild().getPageNumber();
 				break;
 			}	
 		}
+		if(!hasRoomForKey(e, e.getKey()))
+			throw new DbException("no room on the page for the updated key " + e.getKey());
+		for(int i = rid.getTupleNumber() - 1; i >= 0; i--) {
+			if(isSlotUsed(i)) {
+				children[i] = e.getLeftChild().getPageNumber();
+				break;
+			}
+		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		directory = null;
 	}
 
 	/**
@@ -457,12 +630,13 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
+			directory = null;
 			e.setRecordId(new RecordId(pid, 1));
 			return;
 		}
@@ -521,6 +695,17 @@ public class BTreeInternalPage extends BTreePage {
 					" left and right keys");
 		}
 
+		if(compressed) {
+			KeyDirectory dir = getDirectory();
+			int pos = 1;
+			while(pos < dir.slots.length && dir.slots[pos] <= lessOrEqKey)
+				pos++;
+			Field prev = pos == 1 ? null : dir.keys[pos - 1];
+			Field next = pos == dir.slots.length ? null : dir.keys[pos];
+			if(getEntrySpace() + insertedKeySize(prev, e.getKey(), next) + INDEX_SIZE > getSpace())
+				throw new DbException("called insertEntry on page with no room for the entry.");
+		}
+
 		// shift entries back or forward to fill empty slot and make room for new entry
 		// while keeping entries in sorted order
 		int goodSlot = -1;
@@ -542,6 +727,7 @@ public class BTreeInternalPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.getPageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
+		directory = null;
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
 
@@ -562,21 +748,28 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
-	}
-	
-	/**
-	 * Returns the number of empty slots on this page.
-	 */
-	public int getNumEmptySlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
 		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
+			if(isSlotUsed(i))
 				cnt++;
 		return cnt;
 	}
+	
+	/**
+	 * Returns the number of empty slots on this page. If keys are compressed,
+	 * this is the number of entries whose keys do not compress at all which fit
+	 * in the space left, out of {@link #getMaxEntries()}.
+	 */
+	public int getNumEmptySlots() {
+		int free = numSlots - 1 - getNumEntries();
+		if(compressed) {
+			int size = getMaxEntrySize();
+			free = Math.min(free, Math.max(0, (getMaxEntries() * size - getEntrySpace()) / size));
+		}
+		return free;
+	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
@@ -595,12 +788,74 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		directory = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child page which holds the keys equal to f, i.e. the left child of the
+	 * first entry whose key is greater than or equal to f, or the right-most child if
+	 * there is no such entry. The entry is found by binary search, without creating
+	 * a BTreeEntry for every entry on the page.
+	 * @param f - the key to search for, or null to get the left-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		KeyDirectory dir = getDirectory();
+		if(dir.slots.length < 2) {
+			return null;
+		}
+		int pos = f == null ? 1 : dir.search(f, 1, false);
+		int slot = dir.slots[pos - 1];
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Find the right-most child page which may hold keys less than or equal to f (or
+	 * less than f, if inclusive is false), i.e. the left child of the first entry whose
+	 * key is greater than f (greater than or equal to f), or the right-most child if
+	 * there is no such entry.
+	 * @param f - the key to search for, or null to get the right-most child
+	 * @param inclusive - whether keys equal to f are wanted
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findLastChild(Field f, boolean inclusive) {
+		KeyDirectory dir = getDirectory();
+		if(dir.slots.length < 2) {
+			return null;
+		}
+		int pos = f == null ? dir.slots.length : dir.search(f, 1, inclusive);
+		int slot = dir.slots[pos - 1];
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Get the dense, sorted directory of the keys on this page, building it if the
+	 * page changed since it was last used. The first position of the directory is
+	 * the slot of the left-most child pointer, which has no key.
+	 */
+	KeyDirectory getDirectory() {
+		KeyDirectory dir = directory;
+		if(dir == null) {
+			int n = getNumEntries();
+			int[] slots = new int[n == 0 ? 0 : n + 1];
+			Field[] keys = new Field[slots.length];
+			int j = 0;
+			for(int i = 0; i < numSlots && j < slots.length; i++) {
+				if(isSlotUsed(i)) {
+					slots[j] = i;
+					keys[j++] = i == 0 ? null : this.keys[i];
+				}
+			}
+			dir = new KeyDirectory(slots, keys);
+			directory = dir;
+		}
+		return dir;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -741,7 +996,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.numSlots - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -761,8 +1016,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is in the previous used slot, which need not be
+				// the adjacent one once entries have been deleted
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					prev--;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
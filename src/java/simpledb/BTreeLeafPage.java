@@ -14,11 +14,13 @@ import java.io.*;
 public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
 	private final Tuple tuples[];
-	private final int numSlots;
+	final int numSlots;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	private volatile KeyDirectory directory = null; // rebuilt after the page changes
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
@@ -36,7 +38,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		if (checkoccupancy && depth > 0) {
-			assert(getNumTuples() >= getMaxTuples()/2);
+			assert(getNumEmptySlots() <= getMaxTuples() - getMaxTuples()/2);
 		}
 	}
 
@@ -53,6 +55,11 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * If the key field is a string, the tuples in use are stored one after the
+	 * other, in slot order, with their key compressed against the key of the
+	 * previous tuple (see {@link BTreePage#MAX_KEY_SIZE}). There are then as
+	 * many slots as tuples fit if all keys compress to nothing, and the page is
+	 * full when it has no room for a tuple whose key does not compress at all.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -62,8 +69,15 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxTuples();
+		this(id, data, key, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a BTreeLeafPage holding tuples of the given TupleDesc.
+	 */
+	BTreeLeafPage(BTreePageId id, byte[] data, int key, TupleDesc td) throws IOException {
+		super(id, key, td);
+		this.numSlots = getNumSlots();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -96,8 +110,17 @@ public class BTreeLeafPage extends BTreePage {
 		tuples = new Tuple[numSlots];
 		try{
 			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
+			byte[] prevKey = null;
+			for (int i=0; i<tuples.length; i++) {
+				if (!compressed) {
+					tuples[i] = readNextTuple(dis,i);
+				}
+				else if (isSlotUsed(i)) {
+					byte[] k = readKey(dis, prevKey);
+					tuples[i] = readCompressedTuple(dis, i, toKey(k));
+					prevKey = k;
+				}
+			}
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -107,9 +130,15 @@ public class BTreeLeafPage extends BTreePage {
 	}
 
 	/** 
-	 * Retrieve the maximum number of tuples this page can hold.
+	 * Retrieve the maximum number of tuples this page can hold. If keys are
+	 * compressed, this is the number of tuples whose keys do not compress at
+	 * all which fit, leaving room for one more key: a page usually holds more.
 	 */
 	public int getMaxTuples() {        
+		if (compressed) {
+			int space = BufferPool.getPageSize() - 3 * INDEX_SIZE - (getNumSlots() + 7) / 8 - MAX_KEY_SIZE;
+			return space / getMaxTupleSize();
+		}
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8; 
@@ -117,11 +146,30 @@ public class BTreeLeafPage extends BTreePage {
 		return tuplesPerPage;
 	}
 
+	/**
+	 * @return the most space a tuple can take on this page
+	 */
+	private int getMaxTupleSize() {
+		return compressed ? td.getSize() - Type.STRING_TYPE.getLen() + MAX_KEY_SIZE : td.getSize();
+	}
+
+	/**
+	 * Computes the number of tuple slots of the page: the maximum number of tuples,
+	 * or if keys are compressed, the number of tuples which fit if no key takes any
+	 * space beyond its lengths.
+	 */
+	private int getNumSlots() {
+		if (!compressed)
+			return getMaxTuples();
+		int minTupleSize = td.getSize() - Type.STRING_TYPE.getLen() + 2;
+		return (BufferPool.getPageSize()*8 - 3 * INDEX_SIZE * 8) / (minTupleSize * 8 + 1);
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
 	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+		int tuplesPerPage = numSlots;
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
@@ -187,6 +235,24 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read the fields of a tuple other than its compressed key from the source file.
+	 */
+	private Tuple readCompressedTuple(DataInputStream dis, int slotId, Field key) throws NoSuchElementException {
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slotId));
+		try {
+			for (int j=0; j<td.numFields(); j++) {
+				t.setField(j, j == keyField ? key : td.getFieldType(j).parse(dis));
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -233,6 +299,17 @@ public class BTreeLeafPage extends BTreePage {
 			}
 		}
 
+		if (compressed) {
+			try {
+				writeCompressedTuples(dos);
+				dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -279,6 +356,25 @@ public class BTreeLeafPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Write out the tuples in use, in slot order, each key compressed against the
+	 * key of the previous tuple.
+	 */
+	private void writeCompressedTuples(DataOutputStream dos) throws IOException {
+		byte[] prevKey = null;
+		for (int i=0; i<tuples.length; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			byte[] k = keyBytes(tuples[i].getField(keyField));
+			writeKey(dos, k, prevKey);
+			prevKey = k;
+			for (int j=0; j<td.numFields(); j++) {
+				if (j != keyField)
+					tuples[i].getField(j).serialize(dos);
+			}
+		}
+	}
+
 	/**
 	 * Delete the specified tuple from the page;  the tuple should be updated to reflect
 	 *   that it is no longer stored on any page.
@@ -323,15 +419,16 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		KeyDirectory dir = getDirectory();
+		int pos = dir.search(t.getField(keyField), 0, true);
+		int lessOrEqKey = pos == 0 ? -1 : dir.slots[pos - 1];
+
+		if (compressed) {
+			Field prev = pos == 0 ? null : dir.keys[pos - 1];
+			Field next = pos == dir.keys.length ? null : dir.keys[pos];
+			int size = getMaxTupleSize() - MAX_KEY_SIZE + insertedKeySize(prev, t.getField(keyField), next);
+			if (getTupleSpace() + size > getSpace())
+				throw new DbException("called addTuple on page with no room for the tuple.");
 		}
 
 		// shift records back or forward to fill empty slot and make room for new record
@@ -356,6 +453,7 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		directory = null;
 	}
 
 	/**
@@ -438,18 +536,71 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		int cnt = 0;
+		for(int i=0; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. If keys are compressed,
+	 * this is the number of tuples whose keys do not compress at all which fit
+	 * in the space left, out of {@link #getMaxTuples()}.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		int free = numSlots - getNumTuples();
+		if(compressed) {
+			int size = getMaxTupleSize();
+			free = Math.min(free, Math.max(0, (getMaxTuples() * size - getTupleSpace()) / size));
+		}
+		return free;
+	}
+
+	/**
+	 * @return the number of bytes available to tuples on this page
+	 */
+	private int getSpace() {
+		return BufferPool.getPageSize() - 3 * INDEX_SIZE - header.length;
+	}
+
+	/**
+	 * @return the number of bytes the tuples on this page take
+	 */
+	int getTupleSpace() {
+		KeyDirectory dir = getDirectory();
+		if(!compressed)
+			return dir.slots.length * td.getSize();
+		return dir.compressedSize + dir.slots.length * (td.getSize() - Type.STRING_TYPE.getLen());
+	}
+
+	/**
+	 * Count the tuples to move from the end of this page, or from its start, to
+	 * another page so that both take about as much space: half the difference of
+	 * their numbers of tuples or, if keys are compressed, as many tuples as take
+	 * no more than half the difference of their space. One tuple at least stays.
+	 * @param to - the page receiving the tuples, or null for a new page
+	 * @param fromStart - whether to move the first tuples rather than the last ones
+	 * @return the number of tuples to move
+	 */
+	int getMoveCount(BTreeLeafPage to, boolean fromStart) {
+		if(!compressed)
+			return (getNumTuples() - (to == null ? 0 : to.getNumTuples())) / 2;
+		KeyDirectory dir = getDirectory();
+		int n = dir.keys.length;
+		int excess = getTupleSpace() - (to == null ? 0 : to.getTupleSpace());
+		int fieldSize = td.getSize() - Type.STRING_TYPE.getLen();
+		int moved = 0;
+		int count = 0;
+		for(; count < n - 1; count++) {
+			int i = fromStart ? count : n - 1 - count;
+			byte[] prev = i == 0 ? null : keyBytes(dir.keys[i - 1]);
+			int size = keySize(keyBytes(dir.keys[i]), prev) + fieldSize;
+			if(2 * (moved + size) > excess)
+				break;
+			moved += size;
+		}
+		return count;
 	}
 
 	/**
@@ -469,6 +620,7 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		directory = null;
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -483,6 +635,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page with a key greater than or equal
+	 * to f, or strictly greater than f if inclusive is false. The first such tuple is
+	 * found by binary search.
+	 */
+	public Iterator<Tuple> iterator(Field f, boolean inclusive) {
+		KeyDirectory dir = getDirectory();
+		int pos = dir.search(f, 0, !inclusive);
+		return new BTreeLeafPageIterator(this, pos < dir.slots.length ? dir.slots[pos] : numSlots);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -491,6 +654,48 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return a reverse iterator over the tuples on this page with a key less than or
+	 * equal to f, or strictly less than f if inclusive is false. The last such tuple is
+	 * found by binary search.
+	 */
+	public Iterator<Tuple> reverseIterator(Field f, boolean inclusive) {
+		KeyDirectory dir = getDirectory();
+		int pos = dir.search(f, 0, inclusive);
+		return new BTreeLeafPageReverseIterator(this, pos > 0 ? dir.slots[pos - 1] : -1);
+	}
+
+	/**
+	 * @return the largest key on this page, or null if the page is empty
+	 */
+	Field getLastKey() {
+		KeyDirectory dir = getDirectory();
+		return dir.keys.length == 0 ? null : dir.keys[dir.keys.length - 1];
+	}
+
+	/**
+	 * Get the dense, sorted directory of the keys on this page, building it if the
+	 * page changed since it was last used.
+	 */
+	KeyDirectory getDirectory() {
+		KeyDirectory dir = directory;
+		if(dir == null) {
+			int n = getNumTuples();
+			int[] slots = new int[n];
+			Field[] keys = new Field[n];
+			int j = 0;
+			for(int i = 0; i < numSlots && j < n; i++) {
+				if(isSlotUsed(i)) {
+					slots[j] = i;
+					keys[j++] = tuples[i].getField(keyField);
+				}
+			}
+			dir = new KeyDirectory(slots, keys);
+			directory = dir;
+		}
+		return dir;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -529,6 +734,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
+		this.p = p;
+		this.curTuple = firstSlot;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
@@ -574,8 +784,15 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 	BTreeLeafPage p;
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
+		this(p, p.numSlots - 1);
+	}
+
+	/**
+	 * @param start - the slot of the first tuple to return, if used
+	 */
+	public BTreeLeafPageReverseIterator(BTreeLeafPage p, int start) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = start;
 	}
 
 	public boolean hasNext() {
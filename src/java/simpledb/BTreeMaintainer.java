@@ -0,0 +1,377 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeMaintainer keeps a BTreeFile compact and its leaf pages in key order on
+ * disk, in the background. It is meant for B+ trees whose deletes leave
+ * underfull leaf pages behind instead of merging them right away (see
+ * {@link BTreeFile#setMergeOnDelete}), but works on any B+ tree. Each pass:
+ * <ul>
+ * <li>compacts the leaf pages which are less than half full, merging them with
+ * a sibling or stealing tuples from one, as deletes otherwise do;</li>
+ * <li>re-sequences the leaf pages, moving the i-th leaf page in key order to
+ * the i-th lowest of the pages which are leaf pages or free, so that a range
+ * scan reads the file forward, and the free pages end up at the end of the
+ * file;</li>
+ * <li>moves the internal pages and the header pages at the end of the file
+ * to the free pages before them, and truncates the free pages at the end of
+ * the file.</li>
+ * </ul>
+ * <p>
+ * The leaf pages and the free pages are surveyed in a transaction which holds
+ * the lock on each leaf page only while it reads it. Every page compacted or
+ * moved then gets a short transaction of its own, which restructures the tree
+ * under the same latches as the splits and merges of other transactions, and
+ * is committed right away. A step whose lock or latch times out is aborted
+ * and skipped, and a pass stops as soon as another transaction took a page
+ * from the header pages or returned one to them, as the pages it surveyed
+ * may not be leaf pages any more; the next pass starts over.
+ */
+public class BTreeMaintainer implements Runnable {
+
+	/**
+	 * A step of the maintenance, run in a transaction of its own.
+	 */
+	private interface Step {
+		/**
+		 * @return the pages dirtied by the step, or null if it was given up
+		 */
+		ArrayList<Page> run(TransactionId tid) throws DbException, IOException, TransactionAbortedException;
+	}
+
+	private final BTreeFile bf;
+	private final Object monitor = new Object();
+	private Thread thread = null;
+	private long interval;
+	private boolean stopped;
+
+	// the leaf pages in key order, those less than half full, the category of
+	// every page of the tree and the free pages, as of the last survey
+	private final ArrayList<Integer> leaves = new ArrayList<Integer>();
+	private final ArrayList<Boolean> underfull = new ArrayList<Boolean>();
+	private final HashMap<Integer, Integer> categories = new HashMap<Integer, Integer>();
+	private final TreeSet<Integer> free = new TreeSet<Integer>();
+	private int numPages;
+	// the number of times pages were taken from or returned to the header pages
+	// after the last survey and the steps which followed it
+	private int allocations;
+
+	/**
+	 * Create a maintainer for a BTreeFile.
+	 *
+	 * @param bf - the BTreeFile to maintain, which must be registered with the Catalog
+	 */
+	public BTreeMaintainer(BTreeFile bf) {
+		this.bf = bf;
+	}
+
+	/**
+	 * Run maintenance passes on a daemon thread until {@link #stop()} is called.
+	 *
+	 * @param intervalMillis - the time to wait between the end of a pass and the next one
+	 */
+	public void start(long intervalMillis) {
+		synchronized(monitor) {
+			if(thread != null) {
+				throw new IllegalStateException("the maintainer is already running");
+			}
+			interval = intervalMillis;
+			stopped = false;
+			thread = new Thread(this, "BTreeMaintainer-" + bf.getId());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop the thread started by {@link #start(long)}, waiting for the pass it is
+	 * running to finish.
+	 */
+	public void stop() throws InterruptedException {
+		Thread t;
+		synchronized(monitor) {
+			stopped = true;
+			monitor.notifyAll();
+			t = thread;
+			thread = null;
+		}
+		if(t != null) {
+			t.join();
+		}
+	}
+
+	/**
+	 * Run maintenance passes until the maintainer is stopped. The thread is not
+	 * interrupted, since a lock request does not expect it.
+	 */
+	public void run() {
+		while(true) {
+			synchronized(monitor) {
+				if(stopped) {
+					return;
+				}
+			}
+			try {
+				runOnce();
+			} catch (DbException | IOException e) {
+				e.printStackTrace();
+			}
+			synchronized(monitor) {
+				if(!stopped) {
+					try {
+						monitor.wait(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run one maintenance pass: compact, re-sequence, then truncate.
+	 *
+	 * @return the number of pages compacted, moved or truncated
+	 */
+	public synchronized int runOnce() throws DbException, IOException {
+		return compact() + resequence() + truncate();
+	}
+
+	/**
+	 * Merge or redistribute the leaf pages which are less than half full. A page
+	 * merged with an underfull page before it may still be less than half full, so
+	 * this is repeated until every leaf page is at least half full.
+	 *
+	 * @return the number of leaf pages compacted
+	 */
+	public synchronized int compact() throws DbException, IOException {
+		int compacted = 0;
+		int numLeaves = Integer.MAX_VALUE;
+		// every pass but the last merges pages, so this terminates
+		while(survey() && leaves.size() < numLeaves) {
+			numLeaves = leaves.size();
+			int pass = 0;
+			for(int i = 0; i < leaves.size(); i++) {
+				if(!underfull.get(i)) {
+					continue;
+				}
+				final BTreePageId pid = leafId(leaves.get(i));
+				ArrayList<Page> pages = step(tid -> bf.compactLeafPage(tid, pid));
+				if(pages == null) {
+					break;
+				}
+				if(!pages.isEmpty()) {
+					pass++;
+				}
+			}
+			if(pass == 0) {
+				break;
+			}
+			compacted += pass;
+		}
+		return compacted;
+	}
+
+	/**
+	 * Move the leaf pages so that their page numbers increase in key order, to the
+	 * lowest of the pages which are leaf pages or free.
+	 *
+	 * @return the number of leaf pages moved
+	 */
+	public synchronized int resequence() throws DbException, IOException {
+		if(!survey()) {
+			return 0;
+		}
+		TreeSet<Integer> pages = new TreeSet<Integer>(leaves);
+		pages.addAll(free);
+		Iterator<Integer> targets = pages.iterator();
+
+		// the page each leaf page is on, and the leaf page on each page
+		int[] at = new int[leaves.size()];
+		HashMap<Integer, Integer> leafAt = new HashMap<Integer, Integer>();
+		for(int i = 0; i < at.length; i++) {
+			at[i] = leaves.get(i);
+			leafAt.put(at[i], i);
+		}
+
+		int moved = 0;
+		for(int i = 0; i < at.length; i++) {
+			// the leaf pages before this one are on the pages before the target
+			final int from = at[i];
+			final int to = targets.next();
+			if(from == to) {
+				continue;
+			}
+			ArrayList<Page> dirtied = step(tid -> bf.movePage(tid, leafId(from), to));
+			if(dirtied == null || dirtied.isEmpty()) {
+				break;
+			}
+			moved++;
+			Integer swapped = leafAt.remove(to);
+			leafAt.remove(from);
+			at[i] = to;
+			leafAt.put(to, i);
+			if(swapped != null) {
+				at[swapped] = from;
+				leafAt.put(from, swapped);
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Move the internal pages and the header pages after the first free page to the
+	 * free pages, from the end of the file, then give the free pages at the end of the
+	 * file back to the file system. This stops at a leaf page, so the leaf pages
+	 * should be re-sequenced first.
+	 *
+	 * @return the number of pages truncated
+	 */
+	public synchronized int truncate() throws DbException, IOException {
+		if(!survey()) {
+			return 0;
+		}
+		int last = numPages;
+		while(true) {
+			while(free.contains(last)) {
+				last--;
+			}
+			Integer category = categories.get(last);
+			if(free.isEmpty() || free.first() > last || category == null || category == BTreePageId.LEAF) {
+				break;
+			}
+			final BTreePageId pid = new BTreePageId(bf.getId(), last, category);
+			final int to = free.first();
+			ArrayList<Page> dirtied = step(tid -> bf.movePage(tid, pid, to));
+			if(dirtied == null || dirtied.isEmpty()) {
+				break;
+			}
+			free.remove(to);
+			free.add(last);
+			categories.put(to, categories.remove(last));
+		}
+
+		int before = bf.numPages();
+		if(transaction(tid -> bf.truncateFreePages(tid)) == null) {
+			return 0;
+		}
+		return before - bf.numPages();
+	}
+
+	private BTreePageId leafId(int pageNo) {
+		return new BTreePageId(bf.getId(), pageNo, BTreePageId.LEAF);
+	}
+
+	/**
+	 * Walk the internal pages level by level and the leaf pages in key order, then
+	 * read the header pages and the free pages.
+	 *
+	 * @return false if the file is empty, or pages were taken from or returned to the
+	 * header pages during the survey
+	 */
+	private boolean survey() throws DbException, IOException {
+		leaves.clear();
+		underfull.clear();
+		categories.clear();
+		free.clear();
+		if(bf.getFile().length() == 0) {
+			return false;
+		}
+		final int before = bf.getPageAllocations();
+		ArrayList<Page> done = transaction(tid -> {
+			BufferPool bp = Database.getBufferPool();
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+			BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getRootId();
+			bp.releasePage(tid, rootPtrId);
+			LinkedList<BTreePageId> internal = new LinkedList<BTreePageId>();
+			if(rootId != null && rootId.pgcateg() == BTreePageId.INTERNAL) {
+				internal.add(rootId);
+			}
+			while(!internal.isEmpty()) {
+				BTreePageId pid = internal.removeFirst();
+				categories.put(pid.getPageNumber(), BTreePageId.INTERNAL);
+				Iterator<BTreeEntry> it = ((BTreeInternalPage) bp.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+				BTreeEntry e = null;
+				while(it.hasNext()) {
+					e = it.next();
+					if(e.getLeftChild().pgcateg() == BTreePageId.INTERNAL) {
+						internal.add(e.getLeftChild());
+					}
+				}
+				if(e != null && e.getRightChild().pgcateg() == BTreePageId.INTERNAL) {
+					internal.add(e.getRightChild());
+				}
+				bp.releasePage(tid, pid);
+			}
+
+			BTreeLeafPage page = bf.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, null);
+			while(page != null) {
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				leaves.add(page.getId().getPageNumber());
+				underfull.add(page.getNumEmptySlots() > maxEmptySlots);
+				categories.put(page.getId().getPageNumber(), BTreePageId.LEAF);
+				BTreePageId next = page.getRightSiblingId();
+				bp.releasePage(tid, page.getId());
+				page = next == null ? null : (BTreeLeafPage) bp.getPage(tid, next, Permissions.READ_ONLY);
+			}
+
+			allocations = bf.lockPageAllocation(tid);
+			if(allocations != before) {
+				return null;
+			}
+			BTreePageId headerId = ((BTreeRootPtrPage) bp.getPage(tid, rootPtrId, Permissions.READ_ONLY)).getHeaderId();
+			while(headerId != null) {
+				categories.put(headerId.getPageNumber(), BTreePageId.HEADER);
+				headerId = ((BTreeHeaderPage) bp.getPage(tid, headerId, Permissions.READ_ONLY)).getNextPageId();
+			}
+			free.addAll(bf.getFreePageNos(tid));
+			numPages = bf.numPages();
+			return new ArrayList<Page>();
+		});
+		return done != null;
+	}
+
+	/**
+	 * Run a step on pages found by the last survey, if none of them changed since.
+	 *
+	 * @return the pages dirtied by the step, or null if the pages changed or the step
+	 * was aborted
+	 */
+	private ArrayList<Page> step(Step step) throws DbException, IOException {
+		return transaction(tid -> {
+			if(bf.lockPageAllocation(tid) != allocations) {
+				return null;
+			}
+			ArrayList<Page> pages = step.run(tid);
+			allocations = bf.getPageAllocations();
+			return pages;
+		});
+	}
+
+	/**
+	 * Run a step in a transaction of its own, marking the pages it dirtied, and
+	 * commit it, or abort it if the step was given up or a lock or a latch timed out.
+	 *
+	 * @return the pages dirtied by the step, or null if it was aborted
+	 */
+	private ArrayList<Page> transaction(Step step) throws DbException, IOException {
+		TransactionId tid = new TransactionId();
+		ArrayList<Page> pages = null;
+		try {
+			pages = step.run(tid);
+			if(pages != null) {
+				for(Page p : pages) {
+					p.markDirty(true, tid);
+				}
+			}
+		} catch (TransactionAbortedException e) {
+			// presumably a deadlock with a user transaction, which goes first
+			pages = null;
+		} finally {
+			Database.getBufferPool().transactionComplete(tid, pages != null);
+		}
+		return pages;
+	}
+}
@@ -16,9 +16,18 @@ public abstract class BTreePage implements Page {
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
+	/**
+	 * The pages of a B+ tree keyed on a string field compress their keys: each key is
+	 * stored as the length of the prefix it shares with the previous key on the page,
+	 * followed by the length and the bytes of the rest of it. This is the most a
+	 * compressed key can take.
+	 */
+	protected final static int MAX_KEY_SIZE = 2 + Type.STRING_LEN;
+
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final boolean compressed; // whether keys are prefix compressed
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -49,9 +58,130 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, key, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a BTreePage holding tuples of the given TupleDesc, or keys of its key field.
+	 */
+	BTreePage(BTreePageId id, int key, TupleDesc td) {
 		this.pid = id;
 		this.keyField = key;
-		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.td = td;
+		this.compressed = isCompressed(td.getFieldType(key));
+	}
+
+	/**
+	 * @return whether the pages of a B+ tree keyed on a field of the given type
+	 * compress their keys
+	 */
+	static boolean isCompressed(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * @return the bytes a string key is stored as: the low bytes of its characters,
+	 * as written by {@link StringField#serialize}
+	 */
+	static byte[] keyBytes(Field key) {
+		String s = ((StringField) key).getValue();
+		byte[] b = new byte[Math.min(s.length(), Type.STRING_LEN)];
+		for(int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * @return the length of the common prefix of two keys, or 0 if prev is null
+	 */
+	static int sharedPrefix(byte[] prev, byte[] key) {
+		int i = 0;
+		if(prev != null) {
+			int n = Math.min(prev.length, key.length);
+			while(i < n && prev[i] == key[i]) {
+				i++;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * @return the number of bytes a key takes when it follows prev on a page, or when
+	 * it is the first key on the page if prev is null
+	 */
+	static int keySize(byte[] key, byte[] prev) {
+		return 2 + key.length - sharedPrefix(prev, key);
+	}
+
+	/**
+	 * @return the number of bytes the keys of a page grow by when key is put between
+	 * prev and next, either of which may be null at an end of the page
+	 */
+	static int insertedKeySize(Field prev, Field key, Field next) {
+		byte[] p = prev == null ? null : keyBytes(prev);
+		byte[] k = keyBytes(key);
+		int size = keySize(k, p);
+		if(next != null) {
+			byte[] n = keyBytes(next);
+			size += keySize(n, k) - keySize(n, p);
+		}
+		return size;
+	}
+
+	/**
+	 * Write a key compressed against the previous key on the page, or null for the first.
+	 */
+	static void writeKey(DataOutputStream dos, byte[] key, byte[] prev) throws IOException {
+		int shared = sharedPrefix(prev, key);
+		dos.writeByte(shared);
+		dos.writeByte(key.length - shared);
+		dos.write(key, shared, key.length - shared);
+	}
+
+	/**
+	 * Read a key compressed against the previous key on the page, or null for the first.
+	 * @return the bytes of the key
+	 */
+	static byte[] readKey(DataInputStream dis, byte[] prev) throws IOException {
+		int shared = dis.readUnsignedByte();
+		byte[] key = new byte[shared + dis.readUnsignedByte()];
+		if(shared > 0) {
+			System.arraycopy(prev, 0, key, 0, shared);
+		}
+		dis.readFully(key, shared, key.length - shared);
+		return key;
+	}
+
+	/**
+	 * @return the key stored as the given bytes, as {@link Type#parse} reads it
+	 */
+	static Field toKey(byte[] key) {
+		return new StringField(new String(key), Type.STRING_LEN);
+	}
+
+	/**
+	 * Suffix truncation: get the key to put in the parent of two adjacent pages whose
+	 * last and first keys are left and right. Any key k with left &lt; k &lt;= right
+	 * separates them; for strings, the shortest prefix of right which is greater than
+	 * left is used, so that the parent holds short keys. Other keys, and a right key
+	 * equal to the left one, are returned as is.
+	 * @param left - the last key of the left-hand page, or null
+	 * @param right - the first key of the right-hand page
+	 * @return the separator key
+	 */
+	static Field separator(Field left, Field right) {
+		if(left == null || !(right instanceof StringField) || !left.compare(Predicate.Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int i = 0;
+		while(i < l.length() && l.charAt(i) == r.charAt(i)) {
+			i++;
+		}
+		// left < right, so right is longer than their common prefix
+		return i + 1 == r.length() ? right : new StringField(r.substring(0, i + 1), Type.STRING_LEN);
 	}
 
 	/**
@@ -138,5 +268,82 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * A dense view of the used slots of a page, in key order, which lets lookups
+	 * binary search the page instead of walking every slot. When the key field is
+	 * an integer, the keys are copied into an int array so that the search
+	 * compares primitives instead of calling Field.compare.
+	 * The directory is built lazily and discarded whenever the page changes.
+	 */
+	static class KeyDirectory {
+		final int[] slots;
+		final Field[] keys;
+		final int[] intKeys;
+		final int compressedSize; // of the keys, if they are strings
+
+		/**
+		 * @param slots - the used slots of the page, in key order
+		 * @param keys - the key in each of these slots (may be null for a slot without key)
+		 */
+		KeyDirectory(int[] slots, Field[] keys) {
+			this.slots = slots;
+			this.keys = keys;
+			int[] ints = new int[keys.length];
+			for(int i = 0; i < keys.length; i++) {
+				if(keys[i] == null) {
+					continue;
+				}
+				if(!(keys[i] instanceof IntField)) {
+					ints = null;
+					break;
+				}
+				ints[i] = ((IntField) keys[i]).getValue();
+			}
+			this.intKeys = ints;
+
+			int size = 0;
+			byte[] prev = null;
+			for(Field k : keys) {
+				if(k instanceof StringField) {
+					byte[] b = keyBytes(k);
+					size += keySize(b, prev);
+					prev = b;
+				}
+			}
+			this.compressedSize = size;
+		}
+
+		/**
+		 * Binary search for the first position at or after from whose key is greater
+		 * than or equal to f (or strictly greater than f, if strict is set).
+		 * @return a position in [from, slots.length]
+		 */
+		int search(Field f, int from, boolean strict) {
+			int lo = from;
+			int hi = slots.length;
+			if(intKeys != null && f instanceof IntField) {
+				int v = ((IntField) f).getValue();
+				while(lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if(intKeys[mid] < v || (strict && intKeys[mid] == v))
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			}
+			else {
+				Predicate.Op before = strict ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+				while(lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if(keys[mid].compare(before, f))
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
 }
 
@@ -12,6 +12,12 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
+	/**
+	 * Flag set in the root category byte of trees whose string keys are
+	 * front-coded; see {@link BTreePage#isCompressed}
+	 */
+	final static int COMPRESSED_KEYS = 0x80;
+
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
 
@@ -21,6 +27,7 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private boolean compressedKeys;
 
 	private byte[] oldData;
 
@@ -31,7 +38,8 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page. The high bit of the category byte is set if the
+	 * tree's pages front-code their string keys.
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -39,7 +47,9 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the root pointer
 		root = dis.readInt();
-		rootCategory = (int) dis.readByte();
+		int category = dis.readByte() & 0xff;
+		rootCategory = category & ~COMPRESSED_KEYS;
+		compressedKeys = (category & COMPRESSED_KEYS) != 0;
 
 		// read in the header pointer
 		header = dis.readInt();
@@ -91,7 +101,7 @@ public class BTreeRootPtrPage implements Page {
 
 		// write out the category of the root page (leaf or internal)
 		try{
-			dos.writeByte((byte) rootCategory);
+			dos.writeByte((byte) (rootCategory | (compressedKeys ? COMPRESSED_KEYS : 0)));
 		}catch(IOException e){
 			e.printStackTrace();
 		}
@@ -214,6 +224,21 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * @return whether the tree's pages were written with front-coded string keys
+	 */
+	public boolean hasCompressedKeys() {
+		return compressedKeys;
+	}
+
+	/**
+	 * Record whether the tree's pages are written with front-coded string keys
+	 * @param compressedKeys - true for the compressed page layout
+	 */
+	public void setCompressedKeys(boolean compressedKeys) {
+		this.compressedKeys = compressedKeys;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
@@ -4,7 +4,7 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, ascending or descending
  */
 public class BTreeScan implements OpIterator {
 
@@ -12,8 +12,10 @@ public class BTreeScan implements OpIterator {
 
 	private boolean isOpen = false;
 	private TransactionId tid;
+	private int tableid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private boolean descending = false;
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
@@ -43,6 +45,65 @@ public class BTreeScan implements OpIterator {
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * Creates a B+ tree scan over a range of keys. The scan starts where
+	 * ipred places it and ends at the first tuple whose key does not
+	 * satisfy upper, so two range predicates on the key are answered by a
+	 * single bounded scan.
+	 *
+	 * @param ipred
+	 *            a GREATER_THAN or GREATER_THAN_OR_EQ predicate on the key
+	 *            bounding the scan from below, or null
+	 * @param upper
+	 *            a LESS_THAN or LESS_THAN_OR_EQ predicate on the key bounding
+	 *            the scan from above, or null
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			IndexPredicate upper) {
+		this(tid, tableid, tableAlias, ipred == null ? upper : upper == null ? ipred
+				: new IndexPredicate(ipred.getOp(), ipred.getField(), upper.getOp(), upper.getField()));
+	}
+
+	/**
+	 * Creates a B+ tree scan returning the tuples matching a predicate in
+	 * ascending or descending key order. A descending scan starts at the
+	 * upper bound of the predicate and follows the left sibling pointers of
+	 * the leaf pages.
+	 *
+	 * @param descending
+	 *            whether to return the tuples in descending key order
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred,
+			boolean descending) {
+		this.tid = tid;
+		this.ipred = ipred;
+		this.descending = descending;
+		reset(tableid,tableAlias);
+	}
+
+	/**
+	 * @return the predicate positioning this scan, or null for a full scan
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return the upper bound of the range of this scan, or null
+	 */
+	public IndexPredicate getUpperBound() {
+		return ipred == null ? null : ipred.getUpperBound();
+	}
+
+	/**
+	 * @return true if this scan returns the tuples in descending key order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -74,9 +135,13 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(descending) {
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred, true);
+		}
+		else if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
@@ -95,6 +160,15 @@ public class BTreeScan implements OpIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	/**
+	 * Run this scan as part of another transaction. Used to execute a cached
+	 * plan again; the scan must be closed.
+	 */
+	void setTransactionId(TransactionId tid) {
+		this.tid = tid;
+		reset(tableid, alias);
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -130,7 +204,6 @@ public class BTreeScan implements OpIterator {
 	TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-
 		return it.next();
 	}
 
@@ -695,15 +695,17 @@ public class BTreeUtility {
 				if(!(e instanceof TransactionAbortedException)) {
 					e.printStackTrace();
 				}
-				synchronized(elock) {
-					error = e;
-				}
 
+				// roll back before reporting the error, as the thread may be rerun
+				// with a new transaction as soon as the error is seen
 				try {
 					Database.getBufferPool().transactionComplete(tid, false);
 				} catch (java.io.IOException e2) {
 					e2.printStackTrace();
 				}
+				synchronized(elock) {
+					error = e;
+				}
 			}
 		}
 		
@@ -794,10 +796,9 @@ public class BTreeUtility {
 				if(!(e instanceof TransactionAbortedException)) {
 					e.printStackTrace();
 				}
-				synchronized(elock) {
-					error = e;
-				}
 
+				// roll back before reporting the error, as the thread may be rerun
+				// with a new transaction as soon as the error is seen
 				try {
 					insertedTuples.put(tuple);
 					Database.getBufferPool().transactionComplete(tid, false);
@@ -806,6 +807,9 @@ public class BTreeUtility {
 				} catch (InterruptedException e3) {
 					e3.printStackTrace();
 				}
+				synchronized(elock) {
+					error = e;
+				}
 			}
 		}
 		
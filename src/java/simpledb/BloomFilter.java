@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A Bloom filter over field values. A HashEquiJoin fills one with the join
+ * keys of its build side and publishes it to the scan or Filter feeding its
+ * probe side, which drops the tuples whose key is certainly not in the build
+ * side before they reach the join.
+ * <p>
+ * The filter is sized for a false-positive probability when it is
+ * {@link #reset} with the number of keys it will hold, and can be refilled
+ * for each batch of build tuples without republishing it.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double fpp;
+    private long[] bits;
+    private int mask;
+    private int numHashes;
+    private transient long rejected;
+
+    /**
+     * Create an empty filter, which contains no key until it is reset.
+     *
+     * @param fpp the false-positive probability to size the filter for,
+     *            between 0 and 1
+     */
+    public BloomFilter(double fpp) {
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("false-positive probability must be between 0 and 1");
+        }
+        this.fpp = fpp;
+        reset(0);
+    }
+
+    /**
+     * Clear the filter and size it to hold expectedKeys keys with its
+     * false-positive probability: m = -n ln(p) / ln(2)^2 bits, rounded up to
+     * a power of two, and k = m / n ln(2) hash functions.
+     */
+    public void reset(int expectedKeys) {
+        int n = Math.max(expectedKeys, 1);
+        double m = -n * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        int numBits = Integer.highestOneBit((int) Math.min(Math.ceil(m), 1 << 30) - 1) << 1;
+        numBits = Math.max(numBits, 64);
+        bits = new long[numBits >>> 6];
+        mask = numBits - 1;
+        numHashes = Math.max(1, Math.min(16, (int) Math.round((double) numBits / n * Math.log(2))));
+    }
+
+    /** Add a key to the filter. */
+    public void add(Field f) {
+        long h = mix(f.hashCode());
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if f was certainly not added since the last reset; true
+     *         if it was, or with the false-positive probability if not
+     */
+    public boolean mightContain(Field f) {
+        long h = mix(f.hashCode());
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                rejected++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a TupleFilter passing the tuples that satisfy rest, if not
+     *         null, and whose value of field might be in this filter
+     */
+    public TupleFilter filter(int field, TupleFilter rest) {
+        if (rest == null)
+            return t -> mightContain(t.getField(field));
+        if (rest instanceof PageFilter)
+            return ((PageFilter) rest).and(t -> mightContain(t.getField(field)));
+        return t -> rest.matches(t) && mightContain(t.getField(field));
+    }
+
+    /** @return the false-positive probability the filter is sized for */
+    public double getFpp() {
+        return fpp;
+    }
+
+    /** @return the size of the filter in bits */
+    public int numBits() {
+        return mask + 1;
+    }
+
+    /** @return the number of hash functions */
+    public int numHashes() {
+        return numHashes;
+    }
+
+    /** @return the number of lookups that rejected their key */
+    public long rejected() {
+        return rejected;
+    }
+
+    /** SplitMix64 finalizer, as in {@link HyperLogLog}. */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
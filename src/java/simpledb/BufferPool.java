@@ -31,6 +31,8 @@ public class BufferPool {
 
     LockManager lockManager;
 
+    LatchManager latchManager;
+
     Map<PageId,Page> pageIdToPage;
 
     //grain granularity lock
@@ -46,6 +48,7 @@ public class BufferPool {
         // some code goes here
         this.numPages = numPages;
         this.lockManager = new LockManager();
+        this.latchManager = new LatchManager();
         this.pageIdToPage = new ConcurrentHashMap<>();
     }
     
@@ -88,12 +91,14 @@ public class BufferPool {
         //System.out.println("getPage pageIdToPage:"+pid+","+pageIdToPage);
         if(pageIdToPage.containsKey(pid)){
             page = pageIdToPage.get(pid);
-            if(perm.equals(Permissions.READ_WRITE)){
+            // a page already dirtied by this transaction keeps the before
+            // image taken when it was clean
+            if(perm.equals(Permissions.READ_WRITE) && page.isDirty() == null){
                 page.setBeforeImage();
             }
             return page;
         }else{
-            if(pageIdToPage.size() == numPages){
+            while(pageIdToPage.size() >= numPages){
                 //System.out.println("evictPage "+pid);
                 //lockManager.xlock.lock();
                 evictPage();
@@ -112,6 +117,66 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Retrieve the specified page without acquiring a transactional lock.
+     * The caller must hold a latch on the page (see {@link #latchPage}) for
+     * as long as it reads the returned page, and must not modify it. Used by
+     * B+ tree traversals, which latch internal pages instead of locking them.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page peekPage(PageId pid) throws DbException {
+        Page page = pageIdToPage.get(pid);
+        if(page != null){
+            return page;
+        }
+        while(pageIdToPage.size() >= numPages){
+            evictPage();
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        page = file.readPage(pid);
+        Page cached = pageIdToPage.putIfAbsent(pid, page);
+        return cached == null ? page : cached;
+    }
+
+    /**
+     * Latch a page for the current thread. Latches protect the structure of
+     * a page while it is read or changed and are released by the thread with
+     * {@link #unlatchPage} as soon as it is done, independently of the
+     * transaction's locks.
+     *
+     * @param pid the ID of the page to latch
+     * @param perm READ_ONLY for a shared latch, READ_WRITE for an exclusive one
+     */
+    public void latchPage(PageId pid, Permissions perm) {
+        latchManager.latch(pid, perm);
+    }
+
+    /**
+     * Latch a page for the current thread out of the usual order, aborting
+     * the transaction if the latch is not granted within the lock timeout.
+     *
+     * @param pid the ID of the page to latch
+     * @param perm READ_ONLY for a shared latch, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the latch is not granted in time,
+     *         presumably because of a deadlock
+     */
+    public void tryLatchPage(PageId pid, Permissions perm) throws TransactionAbortedException {
+        if(!latchManager.tryLatch(pid, perm, LockManager.LOCK_TIMEOUT)){
+            throw new TransactionAbortedException();
+        }
+    }
+
+    /**
+     * Release a latch taken with {@link #latchPage}.
+     *
+     * @param pid the ID of the latched page
+     * @param perm the permissions the latch was taken with
+     */
+    public void unlatchPage(PageId pid, Permissions perm) {
+        latchManager.unlatch(pid, perm);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -135,9 +200,11 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
+    }
 
+    private void releaseLocks(TransactionId tid) {
         lockManager.xlock.lock();
-//        flushPages(tid);
         Set<LockManager.PageLock> pageLocks = lockManager.tidToPageLocks.get(tid);
         if(pageLocks == null){
             lockManager.xlock.unlock();
@@ -174,14 +241,19 @@ public class BufferPool {
         // not necessary for lab1|lab2
         if(commit){
             flushPages(tid);
-            transactionComplete(tid);
+            releaseLocks(tid);
         }else {
             lockManager.xlock.lock();
             Set<LockManager.PageLock> pageLocks = lockManager.tidToPageLocks.get(tid);
+            if(pageLocks == null){
+                lockManager.xlock.unlock();
+                return;
+            }
             for(LockManager.PageLock pageLock : pageLocks){
-                if(pageLock.perm.equals(Permissions.READ_WRITE)){
-                    Page page = pageIdToPage.get(pageLock.pageId).getBeforeImage();
-                    pageIdToPage.put(pageLock.pageId,page);
+                // pages evicted while clean have nothing to roll back
+                Page dirty = pageIdToPage.get(pageLock.pageId);
+                if(pageLock.perm.equals(Permissions.READ_WRITE) && dirty != null){
+                    pageIdToPage.put(pageLock.pageId,dirty.getBeforeImage());
                 }
                 pageLock.unlock();
                 lockManager.pageLockToTids.get(pageLock).remove(tid);
@@ -203,7 +275,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * that future requests see up-to-date pages. The secondary indexes of
+     * the table are updated along with it.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -215,25 +288,11 @@ public class BufferPool {
         // not necessary for lab1
 //        System.out.println("insertTuple :"+t);
         ArrayList<Page> modifiedPages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid,t);
-        for(Page page:modifiedPages){
-            if(pageIdToPage.containsKey(page.getId())){
-                pageIdToPage.put(page.getId(),page);
-                //System.out.println("insertTuple :"+t+"???"+page.getId()+","+page.isDirty());
-            }else{
-                if(pageIdToPage.size() == numPages){
-                    lockManager.xlock.lock();
-                    evictPage();
-                    lockManager.xlock.unlock();
-                    if(pageIdToPage.size() == numPages){
-                        throw new DbException("BufferPool is out of space");
-                    }
-
-                }
-                pageIdToPage.put(page.getId(),page);
-               // System.out.println("insertTuple :"+t+"!!!");
-            }
-
+        cacheDirtyPages(tid, modifiedPages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.insertTuple(tid, t));
         }
+        TableStats.tupleInserted(tableId);
     }
 
     /**
@@ -244,7 +303,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
-     * that future requests see up-to-date pages. 
+     * that future requests see up-to-date pages. The secondary indexes of
+     * the table are updated along with it.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -254,8 +314,32 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid,t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        ArrayList<Page> modifiedPages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid,t);
+        cacheDirtyPages(tid, modifiedPages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            cacheDirtyPages(tid, index.deleteTuple(tid, t));
+        }
+        TableStats.tupleDeleted(tableId);
+
+    }
 
+    /**
+     * Mark the pages modified by an insert or delete dirty and put them in
+     * the cache, replacing the cached versions. B+ tree files modify copies
+     * of their pages outside the cache, which may have been evicted while
+     * they were clean.
+     */
+    private void cacheDirtyPages(TransactionId tid, List<Page> modifiedPages) throws DbException {
+        for(Page page:modifiedPages){
+            page.markDirty(true,tid);
+            if(!pageIdToPage.containsKey(page.getId())){
+                while(pageIdToPage.size() >= numPages){
+                    evictPage();
+                }
+            }
+            pageIdToPage.put(page.getId(),page);
+        }
     }
 
     /**
@@ -272,6 +356,18 @@ public class BufferPool {
 
     }
 
+    /**
+     * @return the number of pages of the given table currently cached
+     */
+    public int residentPages(int tableId) {
+        int n = 0;
+        for (PageId pid : pageIdToPage.keySet()) {
+            if (pid.getTableId() == tableId)
+                n++;
+        }
+        return n;
+    }
+
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
@@ -307,6 +403,8 @@ public class BufferPool {
         for(Map.Entry<PageId,Page> entry:pageIdToPage.entrySet()){
             if(entry.getValue().isDirty() == tid){
                 flushPage(entry.getKey());
+                // the committed contents are the before image of the next writer
+                entry.getValue().setBeforeImage();
             }
         }
 
@@ -327,9 +425,9 @@ public class BufferPool {
             //System.out.println("evictPage pageIdToPage isDirty:"+entry.getValue().isDirty());
             pageId = entry.getKey();
 
-            boolean holdSlock = lockManager.holdsLock(pageId,Permissions.READ_ONLY);
-            boolean holdXlock = lockManager.holdsLock(pageId,Permissions.READ_WRITE);
-            if(holdSlock || !holdXlock) {
+            // NO STEAL: only clean pages are evicted, so a dirty page is
+            // never written before its transaction commits
+            if(entry.getValue().isDirty() == null) {
 //                if (entry.getValue().isDirty() != null) {
 //                    //System.out.println("evictPage pageIdToPage isDirty:"+entry);
 //                    try {
@@ -343,6 +441,7 @@ public class BufferPool {
                 return;
             }
         }
+        lockManager.xlock.unlock();
         throw new DbException("BufferPool is out of space");
 
 
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -21,6 +22,13 @@ public class Catalog {
     Map<Integer,Table> idToTable;
     Map<String,Table> nameToTable;
     List<Integer> tableIds;
+    // secondary indexes, by the id of their BTreeFile and of their table
+    Map<Integer,SecondaryIndex> idToIndex;
+    Map<Integer,List<SecondaryIndex>> tableIdToIndexes;
+
+    // versions are unique across catalogs, so a new Catalog never reuses one
+    private static final AtomicLong versions = new AtomicLong();
+    private volatile long version = versions.incrementAndGet();
 
     class Table {
         public DbFile file;
@@ -41,6 +49,8 @@ public class Catalog {
         this.nameToTable = new HashMap<>();
         this.idToTable = new HashMap<>();
         this.tableIds = new ArrayList<>();
+        this.idToIndex = new HashMap<>();
+        this.tableIdToIndexes = new HashMap<>();
     }
 
     /**
@@ -58,6 +68,7 @@ public class Catalog {
         nameToTable.put(name,table);
         idToTable.put(file.getId(),table);
         tableIds.add(file.getId());
+        version = versions.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -75,6 +86,34 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index on a table already in the catalog. The BTreeFile
+     * of the index can be read through {@link #getDatabaseFile} like a
+     * table, but is not listed by {@link #tableIdIterator}.
+     * @param index the index to add
+     * @throws IllegalArgumentException if the indexed table is not in the catalog
+     */
+    public void addIndex(SecondaryIndex index) {
+        if(!idToTable.containsKey(index.getTableId())){
+            throw new IllegalArgumentException("no table with id " + index.getTableId());
+        }
+        idToIndex.put(index.getFile().getId(), index);
+        List<SecondaryIndex> indexes = new ArrayList<>(getIndexes(index.getTableId()));
+        indexes.add(index);
+        tableIdToIndexes.put(index.getTableId(), Collections.unmodifiableList(indexes));
+        version = versions.incrementAndGet();
+    }
+
+    /**
+     * Returns the secondary indexes of a table
+     * @param tableid The id of the table
+     * @return the indexes, in the order they were added; empty if there are none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = tableIdToIndexes.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : indexes;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -95,10 +134,7 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        if(!idToTable.containsKey(tableid)){
-            throw new NoSuchElementException();
-        }
-        return idToTable.get(tableid).file.getTupleDesc();
+        return getDatabaseFile(tableid).getTupleDesc();
     }
 
     /**
@@ -110,7 +146,11 @@ public class Catalog {
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
         if(!idToTable.containsKey(tableid)){
-            throw new NoSuchElementException();
+            SecondaryIndex index = idToIndex.get(tableid);
+            if(index == null){
+                throw new NoSuchElementException();
+            }
+            return index.getFile();
         }
         return idToTable.get(tableid).file;
     }
@@ -136,7 +176,18 @@ public class Catalog {
         this.nameToTable = new HashMap<>();
         this.idToTable = new HashMap<>();
         this.tableIds = new ArrayList<>();
+        this.idToIndex = new HashMap<>();
+        this.tableIdToIndexes = new HashMap<>();
+        version = versions.incrementAndGet();
+    }
 
+    /**
+     * @return a number that changes whenever a table is added or the catalog
+     *         is cleared; plans built against an older version may refer to
+     *         tables that no longer exist
+     */
+    public long getVersion() {
+        return version;
     }
     
     /**
@@ -150,7 +201,11 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...),
+                //where a type is int, string or varchar, and may be followed by the annotations pk, index,
+                //index=name and include=name; the fields annotated index=name
+                //are the key of a composite index, in the order they appear,
+                //and the fields annotated include=name are stored in it
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -158,6 +213,8 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                LinkedHashMap<String, ArrayList<Integer>> indexKeys = new LinkedHashMap<String, ArrayList<Integer>>();
+                HashMap<String, ArrayList<Integer>> indexIncludes = new HashMap<String, ArrayList<Integer>>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -165,15 +222,24 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().toLowerCase().equals("varchar"))
+                        types.add(Type.VARCHAR_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int a = 2; a < els2.length; a++) {
+                        String annotation = els2[a].trim();
+                        if (annotation.equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (annotation.equals("index"))
+                            indexField(indexKeys, els2[0].trim(), names.size() - 1);
+                        else if (annotation.startsWith("index="))
+                            indexField(indexKeys, annotation.substring(6), names.size() - 1);
+                        else if (annotation.startsWith("include="))
+                            indexField(indexIncludes, annotation.substring(8), names.size() - 1);
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[a]);
                             System.exit(0);
                         }
                     }
@@ -181,11 +247,41 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
+                if (types.contains(Type.VARCHAR_TYPE)) {
+                    // tuples of variable size are stored on slotted pages
+                    if (!indexKeys.isEmpty()) {
+                        System.out.println("Table " + name + " has VARCHAR fields, which cannot be indexed");
+                        System.exit(0);
+                    }
+                    addTable(new SlottedHeapFile(new File(baseFolder+"/"+name + ".dat"), t),name,primaryKey);
+                    System.out.println("Added table : " + name + " with schema " + t);
+                    continue;
+                }
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (Map.Entry<String, ArrayList<Integer>> e : indexKeys.entrySet()) {
+                    String indexName = name + "_" + e.getKey();
+                    File indexFile = new File(baseFolder + "/" + indexName + ".idx");
+                    boolean build = !indexFile.exists() || indexFile.length() == 0;
+                    ArrayList<Integer> includes = indexIncludes.remove(e.getKey());
+                    SecondaryIndex index = new SecondaryIndex(indexName, tabHf, toArray(e.getValue()),
+                            includes == null ? new int[0] : toArray(includes), indexFile);
+                    addIndex(index);
+                    if (build && tabHf.numPages() > 0) {
+                        // index a table loaded without it
+                        TransactionId tid = new TransactionId();
+                        index.build(tid, BTreeBulkLoader.DEFAULT_FILL_FACTOR);
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                    System.out.println("Added index : " + indexName + " on " + name);
+                }
+                if (!indexIncludes.isEmpty()) {
+                    System.out.println("Unknown index " + indexIncludes.keySet().iterator().next());
+                    System.exit(0);
+                }
             }
-        } catch (IOException e) {
+        } catch (IOException | DbException | TransactionAbortedException e) {
             e.printStackTrace();
             System.exit(0);
         } catch (IndexOutOfBoundsException e) {
@@ -193,5 +289,20 @@ public class Catalog {
             System.exit(0);
         }
     }
-}
 
+    private static void indexField(Map<String, ArrayList<Integer>> indexes, String index, int field) {
+        ArrayList<Integer> fields = indexes.get(index);
+        if (fields == null) {
+            fields = new ArrayList<Integer>();
+            indexes.put(index, fields);
+        }
+        fields.add(field);
+    }
+
+    private static int[] toArray(ArrayList<Integer> fields) {
+        int[] a = new int[fields.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = fields.get(i);
+        return a;
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures the constants of {@link CostModel} on the host machine.
+ * <p>
+ * A temporary table of random integers is written to disk and its pages are
+ * read in file order and in random order, fetched again from the
+ * BufferPool, iterated over and filtered. Every time is divided by the time
+ * of a sequential page read. Reads go through the operating system's file
+ * cache like all other reads of SimpleDB, so on a warm machine the page
+ * costs measure that cache rather than the disk.
+ * <p>
+ * Usage: java simpledb.SimpleDb calibrate [pages] [output file]
+ */
+public class CostCalibration {
+
+    /** Default size of the temporary table, in pages. */
+    public static final int DEFAULT_PAGES = 2048;
+
+    static final int REPEAT = 3;
+
+    /**
+     * Run the calibration and install the measured constants in
+     * {@link CostModel}.
+     *
+     * @param numPages the size of the temporary table
+     * @return the measured constants: sequential page, random page, cached
+     *         page, per tuple and per predicate costs
+     */
+    public static double[] calibrate(int numPages) throws IOException,
+            DbException, TransactionAbortedException {
+        File f = File.createTempFile("calibrate", ".dat");
+        f.deleteOnExit();
+        int columns = 4;
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (columns * Type.INT_TYPE.getLen() * 8 + 1);
+        Random r = new Random(0);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < numPages * tuplesPerPage; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            for (int c = 0; c < columns; c++)
+                t.add(r.nextInt());
+            tuples.add(t);
+        }
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), columns);
+        tuples = null;
+        HeapFile hf = Utility.openHeapFile(columns, f);
+        numPages = hf.numPages();
+
+        // sequential and random page reads straight from the file
+        int[] order = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            order[i] = i;
+        double seq = Double.MAX_VALUE;
+        double rand = Double.MAX_VALUE;
+        for (int k = 0; k < REPEAT; k++) {
+            seq = Math.min(seq, readPages(hf, order));
+            shuffle(order, r);
+            rand = Math.min(rand, readPages(hf, order));
+            Arrays.sort(order);
+        }
+
+        // pages already cached in the BufferPool
+        int cachedPages = Math.min(numPages, BufferPool.DEFAULT_PAGES / 2);
+        TransactionId tid = new TransactionId();
+        HeapPage[] pages = new HeapPage[cachedPages];
+        for (int i = 0; i < cachedPages; i++) {
+            pages[i] = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        double cached = Double.MAX_VALUE;
+        int rounds = Math.max(1, 100000 / cachedPages);
+        for (int k = 0; k < REPEAT; k++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < rounds; n++) {
+                for (int i = 0; i < cachedPages; i++) {
+                    Database.getBufferPool().getPage(tid,
+                            new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+                }
+            }
+            cached = Math.min(cached, (double) (System.nanoTime() - start) / ((long) rounds * cachedPages));
+        }
+
+        // producing tuples from cached pages, and filtering them
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0));
+        double tuple = Double.MAX_VALUE;
+        double pred = Double.MAX_VALUE;
+        int matches = 0;
+        for (int k = 0; k < REPEAT; k++) {
+            long count = 0;
+            long start = System.nanoTime();
+            for (HeapPage page : pages) {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    it.next();
+                    count++;
+                }
+            }
+            long iterated = System.nanoTime();
+            for (HeapPage page : pages) {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    if (p.filter(it.next()))
+                        matches++;
+                }
+            }
+            long filtered = System.nanoTime();
+            double perTuple = (double) (iterated - start) / Math.max(1, count);
+            tuple = Math.min(tuple, perTuple);
+            pred = Math.min(pred, Math.max(0, (double) (filtered - iterated) / Math.max(1, count) - perTuple));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        for (int i = 0; i < cachedPages; i++)
+            Database.getBufferPool().discardPage(new HeapPageId(hf.getId(), i));
+
+        double[] costs = new double[] { 1.0, rand / seq, cached / seq,
+                tuple / seq, pred / seq };
+        CostModel.setCosts(costs[0], costs[1], costs[2], costs[3], costs[4]);
+        System.out.println(String.format(
+                "%d pages: sequential page %.1fus, random page %.1fus, cached page %.3fus, tuple %.3fus, predicate %.3fus (%d matches)",
+                numPages, seq / 1000, rand / 1000, cached / 1000, tuple / 1000, pred / 1000, matches));
+        return costs;
+    }
+
+    /** @return the average time in nanoseconds to read each page of order */
+    private static double readPages(HeapFile hf, int[] order) {
+        long start = System.nanoTime();
+        for (int pgNo : order)
+            hf.readPage(new HeapPageId(hf.getId(), pgNo));
+        return (double) (System.nanoTime() - start) / order.length;
+    }
+
+    private static void shuffle(int[] a, Random r) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            int t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAGES;
+        double[] costs = calibrate(pages);
+        System.out.println(String.format(
+                "seq_page_cost=%.4f random_page_cost=%.4f cached_page_cost=%.6f cpu_tuple_cost=%.6f cpu_predicate_cost=%.6f",
+                costs[0], costs[1], costs[2], costs[3], costs[4]));
+        if (args.length > 1) {
+            CostModel.save(new File(args[1]));
+            System.out.println("Wrote " + args[1]);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * CostModel holds the constants the optimizer uses to turn page and tuple
+ * counts into costs. All constants are relative to reading one page
+ * sequentially from disk; TableStats multiplies them by its ioCostPerPage.
+ * <p>
+ * The defaults follow the usual ratios of a spinning disk. Run
+ * {@link CostCalibration} to measure them on the host machine and
+ * {@link #load} the resulting file.
+ */
+public class CostModel {
+
+    public static final double DEFAULT_SEQ_PAGE_COST = 1.0;
+    public static final double DEFAULT_RANDOM_PAGE_COST = 4.0;
+    public static final double DEFAULT_CACHED_PAGE_COST = 0.01;
+    public static final double DEFAULT_CPU_TUPLE_COST = 0.01;
+    public static final double DEFAULT_CPU_PREDICATE_COST = 0.0025;
+
+    private static volatile double seqPageCost = DEFAULT_SEQ_PAGE_COST;
+    private static volatile double randomPageCost = DEFAULT_RANDOM_PAGE_COST;
+    private static volatile double cachedPageCost = DEFAULT_CACHED_PAGE_COST;
+    private static volatile double cpuTupleCost = DEFAULT_CPU_TUPLE_COST;
+    private static volatile double cpuPredicateCost = DEFAULT_CPU_PREDICATE_COST;
+
+    /** @return the cost of reading a page as part of a sequential scan */
+    public static double seqPageCost() {
+        return seqPageCost;
+    }
+
+    /** @return the cost of reading a page after a seek */
+    public static double randomPageCost() {
+        return randomPageCost;
+    }
+
+    /** @return the cost of fetching a page already in the BufferPool */
+    public static double cachedPageCost() {
+        return cachedPageCost;
+    }
+
+    /** @return the cost of producing one tuple from a page */
+    public static double cpuTupleCost() {
+        return cpuTupleCost;
+    }
+
+    /** @return the cost of evaluating one predicate on one tuple */
+    public static double cpuPredicateCost() {
+        return cpuPredicateCost;
+    }
+
+    /**
+     * Set all constants, relative to a sequential page read.
+     */
+    public static void setCosts(double seqPage, double randomPage,
+            double cachedPage, double cpuTuple, double cpuPredicate) {
+        if (seqPage <= 0 || randomPage <= 0 || cachedPage < 0 || cpuTuple < 0
+                || cpuPredicate < 0) {
+            throw new IllegalArgumentException("costs must be positive");
+        }
+        seqPageCost = seqPage;
+        randomPageCost = randomPage;
+        cachedPageCost = cachedPage;
+        cpuTupleCost = cpuTuple;
+        cpuPredicateCost = cpuPredicate;
+    }
+
+    /** Restore the default constants. */
+    public static void resetCosts() {
+        setCosts(DEFAULT_SEQ_PAGE_COST, DEFAULT_RANDOM_PAGE_COST,
+                DEFAULT_CACHED_PAGE_COST, DEFAULT_CPU_TUPLE_COST,
+                DEFAULT_CPU_PREDICATE_COST);
+    }
+
+    /**
+     * @return the cost file kept next to the given catalog file
+     */
+    public static File costFileFor(String catalogFile) {
+        return new File(catalogFile + ".costs");
+    }
+
+    /**
+     * Write the current constants to a properties file.
+     */
+    public static void save(File f) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("seq_page_cost", Double.toString(seqPageCost));
+        p.setProperty("random_page_cost", Double.toString(randomPageCost));
+        p.setProperty("cached_page_cost", Double.toString(cachedPageCost));
+        p.setProperty("cpu_tuple_cost", Double.toString(cpuTupleCost));
+        p.setProperty("cpu_predicate_cost", Double.toString(cpuPredicateCost));
+        OutputStream out = new FileOutputStream(f);
+        try {
+            p.store(out, "SimpleDB cost model, relative to a sequential page read");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load constants written by {@link #save}. Missing or malformed entries
+     * keep their current value.
+     *
+     * @return true if the file existed and was read
+     */
+    public static boolean load(File f) {
+        if (!f.exists())
+            return false;
+        Properties p = new Properties();
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            setCosts(get(p, "seq_page_cost", seqPageCost),
+                    get(p, "random_page_cost", randomPageCost),
+                    get(p, "cached_page_cost", cachedPageCost),
+                    get(p, "cpu_tuple_cost", cpuTupleCost),
+                    get(p, "cpu_predicate_cost", cpuPredicateCost));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not read cost model " + f + ": " + e);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring cost model " + f + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private static double get(Properties p, String key, double dflt) {
+        String v = p.getProperty(key);
+        return v == null ? dflt : Double.parseDouble(v.trim());
+    }
+
+    /**
+     * @return the fraction of a table's pages currently cached in the
+     *         BufferPool, between 0 and 1
+     */
+    public static double residentFraction(int tableid, int numPages) {
+        if (numPages <= 0)
+            return 0.0;
+        int resident = Database.getBufferPool().residentPages(tableid);
+        return Math.min(1.0, (double) resident / numPages);
+    }
+
+    /**
+     * @return the cost of reading pages, of which the given fraction is
+     *         already cached, the rest costing pageCost each
+     */
+    public static double pageCost(double pages, double residentFraction, double pageCost) {
+        return pages * (residentFraction * cachedPageCost + (1 - residentFraction) * pageCost);
+    }
+
+    /**
+     * Estimated height of a B+ tree, counting the leaf level, with the
+     * given number of leaf pages and internal pages holding up to fanout
+     * children.
+     */
+    public static int btreeHeight(double leafPages, int fanout) {
+        int height = 1;
+        double pages = leafPages;
+        while (pages > 1) {
+            pages = Math.ceil(pages / Math.max(2, fanout));
+            height++;
+        }
+        return height;
+    }
+}
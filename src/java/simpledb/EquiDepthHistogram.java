@@ -0,0 +1,294 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram over a single integer-based field, built from a
+ * sample of its values.
+ * <p>
+ * The most common values (MCVs) are tracked separately with their exact
+ * sample frequencies. The remaining values are split into buckets holding
+ * roughly the same number of sampled values; a bucket never splits a run of
+ * equal values, so it covers [lo, hi] with lo and hi actual sample values.
+ * Within a bucket values are assumed to be uniformly spread over its
+ * distinct values.
+ */
+public class EquiDepthHistogram implements Histogram {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of most common values tracked outside the buckets. */
+    public static final int MAX_MCVS = 10;
+
+    int min;
+    int max;
+    // most common values, sorted, with their sample counts
+    int[] mcvs;
+    double[] mcvCounts;
+    // buckets, sorted by lo, with their sample counts and distinct values
+    int[] los;
+    int[] his;
+    double[] counts;
+    double[] distincts;
+    double total;
+
+    /**
+     * Build a histogram from a sample of values.
+     *
+     * @param sample the sampled values; sorted in place
+     * @param buckets the maximum number of buckets
+     * @param distinct the estimated number of distinct values in the whole
+     *            column, used to scale the per-bucket distinct counts of the
+     *            sample; 0 to use the sample's distinct counts
+     */
+    public EquiDepthHistogram(int[] sample, int buckets, double distinct) {
+        Arrays.sort(sample);
+        int n = sample.length;
+        this.total = n;
+        this.min = n == 0 ? 0 : sample[0];
+        this.max = n == 0 ? -1 : sample[n - 1];
+
+        // run-length encode the sorted sample
+        int[] values = new int[n];
+        int[] runs = new int[n];
+        int numValues = 0;
+        for (int i = 0; i < n; i++) {
+            if (numValues > 0 && values[numValues - 1] == sample[i]) {
+                runs[numValues - 1]++;
+            } else {
+                values[numValues] = sample[i];
+                runs[numValues++] = 1;
+            }
+        }
+
+        // a value is common if it is more frequent than an average bucket
+        boolean[] common = new boolean[numValues];
+        int numMcvs = 0;
+        double threshold = Math.max(1, (double) n / Math.max(1, buckets));
+        Integer[] byFrequency = new Integer[numValues];
+        for (int i = 0; i < numValues; i++) {
+            byFrequency[i] = i;
+        }
+        Arrays.sort(byFrequency, (a, b) -> runs[b] - runs[a]);
+        for (int i = 0; i < numValues && numMcvs < MAX_MCVS && runs[byFrequency[i]] > threshold; i++) {
+            common[byFrequency[i]] = true;
+            numMcvs++;
+        }
+        mcvs = new int[numMcvs];
+        mcvCounts = new double[numMcvs];
+        int m = 0;
+        int rest = 0;
+        int restValues = 0;
+        for (int i = 0; i < numValues; i++) {
+            if (common[i]) {
+                mcvs[m] = values[i];
+                mcvCounts[m++] = runs[i];
+            } else {
+                rest += runs[i];
+                restValues++;
+            }
+        }
+
+        // split the remaining values into buckets of about rest/buckets
+        int numBuckets = Math.min(Math.max(1, buckets), Math.max(1, restValues));
+        los = new int[numBuckets];
+        his = new int[numBuckets];
+        counts = new double[numBuckets];
+        distincts = new double[numBuckets];
+        double depth = (double) rest / numBuckets;
+        int b = -1;
+        double seen = 0;
+        for (int i = 0; i < numValues; i++) {
+            if (common[i]) {
+                continue;
+            }
+            if (b < 0 || (seen >= depth * (b + 1) && b < numBuckets - 1)) {
+                b++;
+                los[b] = values[i];
+            }
+            his[b] = values[i];
+            counts[b] += runs[i];
+            distincts[b]++;
+            seen += runs[i];
+        }
+        numBuckets = b + 1;
+        los = Arrays.copyOf(los, numBuckets);
+        his = Arrays.copyOf(his, numBuckets);
+        counts = Arrays.copyOf(counts, numBuckets);
+        distincts = Arrays.copyOf(distincts, numBuckets);
+
+        // values missing from the sample are spread over the buckets
+        if (distinct > numValues && restValues > 0) {
+            double scale = (distinct - numMcvs) / restValues;
+            for (int i = 0; i < numBuckets; i++) {
+                distincts[i] = Math.min(distincts[i] * scale, (double) his[i] - los[i] + 1);
+            }
+        }
+    }
+
+    /**
+     * Add a value to the histogram after it was built, counting it towards
+     * its MCV or the bucket covering it; values outside [min, max] widen the
+     * first or last bucket.
+     */
+    public void addValue(Object v) {
+        int val = (Integer) v;
+        total++;
+        int m = Arrays.binarySearch(mcvs, val);
+        if (m >= 0) {
+            mcvCounts[m]++;
+            return;
+        }
+        if (los.length == 0) {
+            los = new int[]{val};
+            his = new int[]{val};
+            counts = new double[]{0};
+            distincts = new double[]{1};
+        }
+        int b = bucketOf(val);
+        if (b < 0) {
+            b = val < los[0] ? 0 : los.length - 1;
+            los[b] = Math.min(los[b], val);
+            his[b] = Math.max(his[b], val);
+        }
+        counts[b]++;
+        min = Math.min(min, val);
+        max = Math.max(max, val);
+    }
+
+    /**
+     * @return the bucket whose [lo, hi] range covers v, or -1
+     */
+    private int bucketOf(int v) {
+        int lo = 0;
+        int hi = los.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (his[mid] < v) {
+                lo = mid + 1;
+            } else if (los[mid] > v) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private double equalsFraction(int v) {
+        if (total == 0 || v < min || v > max) {
+            return 0.0;
+        }
+        int m = Arrays.binarySearch(mcvs, v);
+        if (m >= 0) {
+            return mcvCounts[m] / total;
+        }
+        int b = bucketOf(v);
+        if (b < 0) {
+            return 0.0;
+        }
+        return counts[b] / Math.max(1.0, distincts[b]) / total;
+    }
+
+    private double lessThanFraction(int v) {
+        if (total == 0 || v <= min) {
+            return 0.0;
+        }
+        if (v > max) {
+            return 1.0;
+        }
+        double less = 0;
+        for (int i = 0; i < mcvs.length && mcvs[i] < v; i++) {
+            less += mcvCounts[i];
+        }
+        for (int b = 0; b < los.length && los[b] < v; b++) {
+            if (his[b] < v) {
+                less += counts[b];
+            } else {
+                less += counts[b] * (v - los[b]) / ((double) his[b] - los[b] + 1);
+            }
+        }
+        return Math.min(1.0, less / total);
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     *
+     * @param op Operator
+     * @param v Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, Object v) {
+        int val = (Integer) v;
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return equalsFraction(val);
+            case NOT_EQUALS:
+                return 1 - equalsFraction(val);
+            case LESS_THAN:
+                return lessThanFraction(val);
+            case LESS_THAN_OR_EQ:
+                return Math.min(1.0, lessThanFraction(val) + equalsFraction(val));
+            case GREATER_THAN:
+                return Math.max(0.0, 1 - lessThanFraction(val) - equalsFraction(val));
+            case GREATER_THAN_OR_EQ:
+                return 1 - lessThanFraction(val);
+        }
+        return 0.0;
+    }
+
+    /**
+     * @return the number of distinct values the histogram accounts for
+     */
+    public double distinctValues() {
+        double d = mcvs.length;
+        for (double bd : distincts) {
+            d += bd;
+        }
+        return d;
+    }
+
+    /**
+     * @return the average selectivity of an equality predicate, i.e. the
+     *         probability that two random values of the field are equal
+     */
+    public double avgSelectivity() {
+        if (total == 0) {
+            return 1.0;
+        }
+        double sel = 0;
+        for (double c : mcvCounts) {
+            sel += (c / total) * (c / total);
+        }
+        for (int b = 0; b < los.length; b++) {
+            double f = counts[b] / total;
+            sel += f * f / Math.max(1.0, distincts[b]);
+        }
+        return sel;
+    }
+
+    /** @return the most common values, in ascending order */
+    public int[] mostCommonValues() {
+        return mcvs.clone();
+    }
+
+    /** @return the fraction of the column taken by each most common value */
+    public double[] mostCommonFrequencies() {
+        double[] f = new double[mcvCounts.length];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = mcvCounts[i] / total;
+        }
+        return f;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("mcvs=");
+        sb.append(Arrays.toString(mcvs)).append(" buckets=");
+        for (int b = 0; b < los.length; b++) {
+            sb.append("[").append(los[b]).append(",").append(his[b]).append("]:")
+                    .append((int) counts[b]).append(" ");
+        }
+        return sb.toString();
+    }
+}
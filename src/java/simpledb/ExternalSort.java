@@ -0,0 +1,328 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts the tuples of its child on one field without holding
+ * them all in memory. The child is read in runs of at most maxInMemory
+ * tuples, each run is sorted and written to a temporary file, and the runs
+ * are merged with a priority queue as the sorted tuples are iterated. If
+ * there are more than MAX_FAN_IN runs, groups of runs are first merged into
+ * longer runs, so that the final merge reads at most MAX_FAN_IN files at
+ * once. Input that fits in a single run is never written to disk.
+ * <p>
+ * The sort is stable: tuples with equal keys are returned in the order the
+ * child produced them.
+ */
+public class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples sorted in memory per run. */
+    public static final int DEFAULT_MAX_IN_MEMORY = 100000;
+
+    /** Maximum number of runs merged at once. */
+    static final int MAX_FAN_IN = 64;
+
+    private OpIterator child;
+    private final int sortField;
+    private final boolean asc;
+    private final int maxInMemory;
+
+    private transient ArrayList<Tuple> memory;
+    private transient Iterator<Tuple> memoryIt;
+    private transient ArrayList<File> runs;
+    private transient RunReader[] readers;
+    private transient PriorityQueue<RunReader> heap;
+
+    /**
+     * Constructor.
+     *
+     * @param sortField
+     *            the field on which the tuples are sorted
+     * @param asc
+     *            true if the sort order is ascending
+     * @param child
+     *            the tuples to sort
+     */
+    public ExternalSort(int sortField, boolean asc, OpIterator child) {
+        this(sortField, asc, child, DEFAULT_MAX_IN_MEMORY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sortField
+     *            the field on which the tuples are sorted
+     * @param asc
+     *            true if the sort order is ascending
+     * @param child
+     *            the tuples to sort
+     * @param maxInMemory
+     *            the number of tuples sorted in memory before a run is
+     *            written to a temporary file
+     */
+    public ExternalSort(int sortField, boolean asc, OpIterator child, int maxInMemory) {
+        if (maxInMemory < 1)
+            throw new IllegalArgumentException("maxInMemory must be positive");
+        this.child = child;
+        this.sortField = sortField;
+        this.asc = asc;
+        this.maxInMemory = maxInMemory;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** @return the field the tuples are sorted on */
+    public int getSortField() {
+        return sortField;
+    }
+
+    /** @return true if the sort order is ascending */
+    public boolean isASC() {
+        return asc;
+    }
+
+    /** @return the number of sorted runs written to disk by the last open */
+    public int numRuns() {
+        return runs == null ? 0 : runs.size();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        closeRuns();
+        runs = new ArrayList<File>();
+        memory = new ArrayList<Tuple>();
+        child.open();
+        while (child.hasNext()) {
+            memory.add(child.next());
+            if (memory.size() >= maxInMemory) {
+                runs.add(writeRun(memory));
+                memory.clear();
+            }
+        }
+        child.close();
+        if (!runs.isEmpty() && !memory.isEmpty()) {
+            runs.add(writeRun(memory));
+            memory.clear();
+        }
+        while (runs.size() > MAX_FAN_IN)
+            mergePass();
+        if (runs.isEmpty())
+            Collections.sort(memory, new TupleComparator(sortField, asc));
+        startIteration();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeRuns();
+        memory = null;
+        memoryIt = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeReaders();
+        startIteration();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (memoryIt != null)
+            return memoryIt.hasNext() ? memoryIt.next() : null;
+        RunReader r = heap.poll();
+        if (r == null)
+            return null;
+        Tuple t = r.head;
+        if (r.advance())
+            heap.add(r);
+        return t;
+    }
+
+    private void startIteration() throws DbException {
+        if (runs.isEmpty()) {
+            memoryIt = memory.iterator();
+            return;
+        }
+        memoryIt = null;
+        readers = new RunReader[runs.size()];
+        heap = new PriorityQueue<RunReader>(runs.size(), readerComparator());
+        for (int i = 0; i < runs.size(); i++) {
+            readers[i] = new RunReader(runs.get(i), i);
+            if (readers[i].advance())
+                heap.add(readers[i]);
+        }
+    }
+
+    /**
+     * Order run readers on their current tuple, and on the run number for
+     * equal keys, which keeps the merge stable.
+     */
+    private Comparator<RunReader> readerComparator() {
+        final TupleComparator cmp = new TupleComparator(sortField, asc);
+        return new Comparator<RunReader>() {
+            public int compare(RunReader r1, RunReader r2) {
+                int c = cmp.compare(r1.head, r2.head);
+                return c != 0 ? c : Integer.compare(r1.run, r2.run);
+            }
+        };
+    }
+
+    /**
+     * Sort the tuples and write them to a new run file.
+     */
+    private File writeRun(List<Tuple> tuples) throws DbException {
+        Collections.sort(tuples, new TupleComparator(sortField, asc));
+        RunWriter w = new RunWriter();
+        for (Tuple t : tuples)
+            w.write(t);
+        return w.finish();
+    }
+
+    /**
+     * Merge consecutive groups of MAX_FAN_IN runs into one run each.
+     */
+    private void mergePass() throws DbException {
+        ArrayList<File> merged = new ArrayList<File>();
+        for (int start = 0; start < runs.size(); start += MAX_FAN_IN) {
+            List<File> group = runs.subList(start, Math.min(start + MAX_FAN_IN, runs.size()));
+            PriorityQueue<RunReader> q = new PriorityQueue<RunReader>(group.size(), readerComparator());
+            for (int i = 0; i < group.size(); i++) {
+                RunReader r = new RunReader(group.get(i), i);
+                if (r.advance())
+                    q.add(r);
+            }
+            RunWriter w = new RunWriter();
+            RunReader r;
+            while ((r = q.poll()) != null) {
+                w.write(r.head);
+                if (r.advance())
+                    q.add(r);
+            }
+            merged.add(w.finish());
+            for (File f : group)
+                f.delete();
+        }
+        runs = merged;
+    }
+
+    private void closeReaders() {
+        if (readers != null) {
+            for (RunReader r : readers)
+                r.close();
+        }
+        readers = null;
+        heap = null;
+    }
+
+    private void closeRuns() {
+        closeReaders();
+        if (runs != null) {
+            for (File f : runs)
+                f.delete();
+        }
+        runs = null;
+    }
+
+    /**
+     * Appends serialized tuples to a new temporary run file.
+     */
+    private class RunWriter {
+        private final File file;
+        private final DataOutputStream dos;
+
+        RunWriter() throws DbException {
+            try {
+                file = File.createTempFile("sort_run", ".dat");
+                file.deleteOnExit();
+                dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("could not create sort run: " + e.getMessage());
+            }
+        }
+
+        void write(Tuple t) throws DbException {
+            try {
+                for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                    t.getField(i).serialize(dos);
+            } catch (IOException e) {
+                throw new DbException("could not write sort run: " + e.getMessage());
+            }
+        }
+
+        File finish() throws DbException {
+            try {
+                dos.close();
+            } catch (IOException e) {
+                throw new DbException("could not write sort run: " + e.getMessage());
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Reads the tuples of one run file back in order.
+     */
+    private class RunReader {
+        final int run;
+        Tuple head;
+        private DataInputStream dis;
+
+        RunReader(File file, int run) throws DbException {
+            this.run = run;
+            try {
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (IOException e) {
+                throw new DbException("could not open sort run: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Read the next tuple of the run into head.
+         *
+         * @return false, and closes the run, if the run is exhausted
+         */
+        boolean advance() throws DbException {
+            TupleDesc td = child.getTupleDesc();
+            try {
+                if (dis.available() == 0) {
+                    close();
+                    return false;
+                }
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(dis));
+                head = t;
+                return true;
+            } catch (IOException | ParseException e) {
+                throw new DbException("could not read sort run: " + e.getMessage());
+            }
+        }
+
+        void close() {
+            head = null;
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                dis = null;
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
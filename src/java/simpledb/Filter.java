@@ -12,6 +12,9 @@ public class Filter extends Operator {
     Predicate p;
     OpIterator child;
     OpIterator[] children;
+    private transient TupleFilter compiled;
+    private BloomFilter bloomFilter;
+    private int bloomField = -1;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -34,6 +37,22 @@ public class Filter extends Operator {
         return p;
     }
 
+    /**
+     * Have the Filter also drop the tuples whose value of field is not in
+     * bf. Set by the HashEquiJoin whose probe side this Filter feeds when
+     * its child cannot apply the Bloom filter itself; takes effect when the
+     * Filter is next opened.
+     */
+    void setBloomFilter(int field, BloomFilter bf) {
+        this.bloomField = field;
+        this.bloomFilter = bf;
+    }
+
+    /** @return the Bloom filter applied by this Filter, or null */
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return child.getTupleDesc();
@@ -42,6 +61,9 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        compiled = PredicateCompiler.compile(p);
+        if (bloomFilter != null)
+            compiled = bloomFilter.filter(bloomField, compiled);
         child.open();
         super.open();
     }
@@ -72,7 +94,7 @@ public class Filter extends Operator {
         // some code goes here
         while(child.hasNext()){
             Tuple tuple = child.next();
-            if(p.filter(tuple)){
+            if(compiled.matches(tuple)){
                 return tuple;
             }
         }
@@ -89,7 +111,7 @@ public class Filter extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         this.children = children;
-
+        this.child = children[0];
     }
 
 }
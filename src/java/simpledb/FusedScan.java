@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * FusedScan is a sequential scan of a HeapFile with its selection fused
+ * into the loop over the slots of each page. It replaces a SeqScan and the
+ * Filters above it when {@link QueryCompiler} is enabled.
+ * <p>
+ * An operator that consumes every tuple, like Aggregate, can call
+ * {@link #forEach} to have the tuples pushed to it from a single loop over
+ * the pages, without going through hasNext and next for each tuple. As an
+ * OpIterator, the scan hands out the matching tuples of one page at a time
+ * from a buffer.
+ */
+public class FusedScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final ArrayList<Predicate> predicates;
+    private final int startPage;
+    private final int endPage;
+    private BloomFilter bloomFilter;
+    private int bloomField = -1;
+
+    private transient TupleFilter filter;
+    private transient ArrayList<Tuple> batch;
+    private int pos;
+    private int nextPgNo;
+    private boolean isOpen = false;
+
+    /**
+     * @param tid the transaction the scan runs as a part of
+     * @param tableid the table to scan; must be stored in a HeapFile
+     * @param tableAlias the alias of the table, prefixed to field names
+     * @param predicates the predicates tuples must satisfy
+     * @param startPage the first page to scan
+     * @param endPage one past the last page to scan; clipped to numPages()
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    public FusedScan(TransactionId tid, int tableid, String tableAlias,
+            List<Predicate> predicates, int startPage, int endPage) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("only HeapFile scans can be fused");
+        }
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.predicates = new ArrayList<Predicate>(predicates);
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Fuse a SeqScan, including its pushed predicates, with more predicates
+     * over its tuples.
+     */
+    public FusedScan(SeqScan scan, List<Predicate> predicates) {
+        this(scan.tid, scan.tableid, scan.tableAlias, concat(scan.getPredicates(), predicates),
+                scan.startPage >= 0 ? scan.startPage : 0,
+                scan.startPage >= 0 ? scan.endPage : Integer.MAX_VALUE);
+        this.bloomFilter = scan.bloomFilter;
+        this.bloomField = scan.bloomField;
+    }
+
+    private static List<Predicate> concat(List<Predicate> a, List<Predicate> b) {
+        List<Predicate> all = new ArrayList<Predicate>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    /**
+     * @return a scan of the pages in [start, end) of this scan's table with
+     *         the same predicates, used to split the scan across workers
+     */
+    public FusedScan partition(int start, int end) {
+        FusedScan part = new FusedScan(tid, tableid, tableAlias, predicates, start, end);
+        part.setBloomFilter(bloomField, bloomFilter);
+        return part;
+    }
+
+    /** @return the table name of the table the scan reads */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /** @return the alias of the table the scan reads */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /** @return the predicates evaluated by the scan */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Have the scan drop the tuples whose value of field is not in bf, like
+     * {@link SeqScan#setBloomFilter}.
+     */
+    void setBloomFilter(int field, BloomFilter bf) {
+        this.bloomField = field;
+        this.bloomFilter = bf;
+    }
+
+    /** @return the Bloom filter applied by the scan, or null */
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    private TupleFilter compile() {
+        TupleFilter f = PredicateCompiler.compile(predicates, Database.getCatalog().getTupleDesc(tableid));
+        return bloomFilter == null ? f : bloomFilter.filter(bloomField, f);
+    }
+
+    int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * Run this scan as part of another transaction. Used to execute a cached
+     * plan again; the scan must be closed.
+     */
+    void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    private int lastPage() {
+        return Math.min(endPage, ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages());
+    }
+
+    /**
+     * Read the scanned pages and hand every tuple satisfying the predicates
+     * to sink. Does not require the scan to be open.
+     */
+    public void forEach(Consumer<Tuple> sink) throws DbException, TransactionAbortedException {
+        TupleFilter f = compile();
+        int last = lastPage();
+        for (int pgNo = startPage; pgNo < last; pgNo++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, pgNo), Permissions.READ_ONLY);
+            page.forEach(f, sink);
+        }
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        // compiled here, since bound parameters may change the operands
+        filter = compile();
+        batch = new ArrayList<Tuple>();
+        pos = 0;
+        nextPgNo = startPage;
+        isOpen = true;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            return false;
+        if (pos < batch.size())
+            return true;
+        batch.clear();
+        pos = 0;
+        int last = lastPage();
+        while (batch.isEmpty() && nextPgNo < last) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, nextPgNo++), Permissions.READ_ONLY);
+            page.forEach(filter, batch::add);
+        }
+        return !batch.isEmpty();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return batch.get(pos++);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * @return the TupleDesc of the table with field names prefixed with the
+     *         alias, like {@link SeqScan#getTupleDesc}
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(tableid);
+        return new TupleDesc(tupleDesc.typeArs, tupleDesc.fieldArs.stream()
+                .map(name -> tableAlias + "." + name).collect(Collectors.toList()));
+    }
+
+    public void close() {
+        batch = null;
+        isOpen = false;
+    }
+}
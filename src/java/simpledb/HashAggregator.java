@@ -0,0 +1,645 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A memory-budgeted hash aggregator that evaluates one or more aggregates
+ * over IntFields (or COUNT over any field), grouped by zero or more columns.
+ * <p>
+ * Groups are kept in an open-addressing hash table backed by primitive arrays:
+ * INT group columns are stored in an int[] and STRING and VARCHAR group
+ * columns in a String[], each strided by the number of such columns, and
+ * every aggregate keeps a long partial value. Merging a tuple into an
+ * existing group never allocates or boxes. The table grows until it holds as many groups as the
+ * memory budget allows; from then on, tuples whose group is not already
+ * resident are hash-partitioned to temporary spill files. Each partition is
+ * aggregated on its own in a second pass when the results are iterated,
+ * recursively spilling again (with a different hash) if a single partition
+ * still does not fit.
+ * <p>
+ * Aggregate values and group sizes are accumulated as longs and converted to
+ * ints on output. Output tuples hold the group-by columns in order, followed
+ * by one INT_TYPE column per aggregate.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes the group table of one aggregator may occupy. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    /** Number of spill partitions created once the memory budget is exceeded. */
+    static final int NUM_PARTITIONS = 16;
+
+    /** Past this depth partitions are aggregated in memory regardless of the budget. */
+    static final int MAX_SPILL_DEPTH = 4;
+
+    static final int INITIAL_CAPACITY = 64;
+
+    int[] gbfields;
+    Type[] gbfieldtypes;
+    int[] afields;
+    Op[] whats;
+    long memoryBudget;
+    int depth;
+    TupleDesc tupleDesc;
+
+    // position of each group column within intKeys or stringKeys of a slot
+    int[] keyOffsets;
+    int numIntKeys;
+    int numStringKeys;
+
+    // open-addressing group table, always at most half full
+    boolean[] used;
+    int[] hashes;
+    int[] intKeys;
+    String[] stringKeys;
+    long[] aggregateVals;
+    long[] groupSizes;
+    int numGroups;
+    int maxGroups;
+
+    // per-tuple scratch space, so that merging a tuple does not allocate
+    transient Field[] keyScratch;
+    transient long[] valScratch;
+
+    // spill partitions, created on the first overflow
+    File[] spillFiles;
+    transient DataOutputStream[] spillStreams;
+    int[] spillCounts;
+    // set once spilled groups have been deleted by releaseSpill
+    boolean released;
+
+    /**
+     * Aggregate constructor using {@link #DEFAULT_MEMORY_BUDGET}.
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator
+     */
+    public HashAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
+        this(gbfield, gbfieldtype, afield, what, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Aggregate constructor.
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator
+     * @param memoryBudget
+     *            the number of bytes the in-memory group table may occupy
+     *            before groups are spilled to disk
+     */
+    public HashAggregator(int gbfield, Type gbfieldtype, int afield, Op what, long memoryBudget) {
+        this(gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield},
+                gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype},
+                new int[]{afield}, new Op[]{what}, memoryBudget);
+    }
+
+    /**
+     * Aggregate constructor for several aggregates over a composite group key.
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param whats
+     *            the aggregation operator applied to each aggregate field
+     * @param memoryBudget
+     *            the number of bytes the in-memory group table may occupy
+     *            before groups are spilled to disk
+     */
+    public HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] whats, long memoryBudget) {
+        this(gbfields, gbfieldtypes, afields, whats, memoryBudget, 0);
+    }
+
+    private HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] whats,
+            long memoryBudget, int depth) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != whats.length || afields.length == 0) {
+            throw new IllegalArgumentException("mismatched group-by or aggregate specification");
+        }
+        this.gbfields = gbfields;
+        this.gbfieldtypes = gbfieldtypes;
+        this.afields = afields;
+        this.whats = whats;
+        this.memoryBudget = memoryBudget;
+        this.depth = depth;
+
+        Type[] types = new Type[gbfields.length + afields.length];
+        this.keyOffsets = new int[gbfields.length];
+        for (int c = 0; c < gbfields.length; c++) {
+            types[c] = gbfieldtypes[c];
+            keyOffsets[c] = gbfieldtypes[c] != Type.INT_TYPE ? numStringKeys++ : numIntKeys++;
+        }
+        for (int a = 0; a < afields.length; a++) {
+            types[gbfields.length + a] = Type.INT_TYPE;
+        }
+        this.tupleDesc = new TupleDesc(types);
+        this.maxGroups = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 4, memoryBudget / bytesPerGroup()));
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the approximate number of bytes used by one group, including
+     *         the empty slots kept around by the load factor
+     */
+    private long bytesPerGroup() {
+        long slot = 1 + 4 + 8; // used flag, hash, group size
+        slot += 8L * afields.length;
+        slot += 4L * numIntKeys;
+        slot += (8L + Type.STRING_LEN) * numStringKeys; // reference and string contents
+        return slot * 2;
+    }
+
+    private void allocate(int capacity) {
+        used = new boolean[capacity];
+        hashes = new int[capacity];
+        intKeys = new int[capacity * numIntKeys];
+        stringKeys = new String[capacity * numStringKeys];
+        aggregateVals = new long[capacity * afields.length];
+        groupSizes = new long[capacity];
+    }
+
+    /**
+     * @return the TupleDesc of the tuples returned by {@link #iterator()}
+     */
+    public TupleDesc getTupleDesc() {
+        return tupleDesc;
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing an aggregate field and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        if (keyScratch == null) {
+            keyScratch = new Field[gbfields.length];
+            valScratch = new long[afields.length];
+        }
+        for (int c = 0; c < gbfields.length; c++) {
+            keyScratch[c] = tup.getField(gbfields[c]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            if (whats[a] == Op.COUNT) {
+                valScratch[a] = 1;
+            } else {
+                valScratch[a] = ((IntField) tup.getField(afields[a])).getValue();
+            }
+        }
+        mergeIntoGroup(keyScratch, valScratch, 1);
+    }
+
+    /**
+     * Merge a partial aggregate into the group with the given key. A single
+     * tuple is the partial aggregate (value, 1); COUNT uses (1, 1).
+     *
+     * @param groupkey the group-by values, one per group-by field
+     * @param aggregateVals the partial value of each aggregate
+     * @param groupSize the number of tuples folded into aggregateVals
+     */
+    void mergeIntoGroup(Field[] groupkey, long[] aggregateVals, long groupSize) {
+        int hash = hash(groupkey);
+        int slot = findSlot(groupkey, hash);
+        if (used[slot]) {
+            combine(slot, aggregateVals, groupSize);
+            return;
+        }
+        if (numGroups >= maxGroups && depth < MAX_SPILL_DEPTH) {
+            spill(groupkey, hash, aggregateVals, groupSize);
+            return;
+        }
+        if ((numGroups + 1) * 2 > used.length) {
+            grow();
+            slot = findSlot(groupkey, hash);
+        }
+        used[slot] = true;
+        hashes[slot] = hash;
+        for (int c = 0; c < gbfields.length; c++) {
+            if (gbfieldtypes[c] != Type.INT_TYPE) {
+                stringKeys[slot * numStringKeys + keyOffsets[c]] = ((StringField) groupkey[c]).getValue();
+            } else {
+                intKeys[slot * numIntKeys + keyOffsets[c]] = ((IntField) groupkey[c]).getValue();
+            }
+        }
+        System.arraycopy(aggregateVals, 0, this.aggregateVals, slot * afields.length, afields.length);
+        groupSizes[slot] = groupSize;
+        numGroups++;
+    }
+
+    private void combine(int slot, long[] vals, long groupSize) {
+        int base = slot * afields.length;
+        for (int a = 0; a < afields.length; a++) {
+            switch (whats[a]) {
+                case MIN:
+                    aggregateVals[base + a] = Math.min(aggregateVals[base + a], vals[a]);
+                    break;
+                case MAX:
+                    aggregateVals[base + a] = Math.max(aggregateVals[base + a], vals[a]);
+                    break;
+                default:
+                    aggregateVals[base + a] += vals[a];
+                    break;
+            }
+        }
+        groupSizes[slot] += groupSize;
+    }
+
+    /**
+     * Hash the group key, mixed with a per-depth seed so that a partition
+     * re-spilled at the next depth is split across new partitions.
+     */
+    private int hash(Field[] groupkey) {
+        int h = depth * 0x9E3779B9;
+        for (Field f : groupkey) {
+            h = 31 * h + f.hashCode();
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private boolean keyEquals(int slot, Field[] groupkey) {
+        for (int c = 0; c < gbfields.length; c++) {
+            if (gbfieldtypes[c] != Type.INT_TYPE) {
+                if (!stringKeys[slot * numStringKeys + keyOffsets[c]].equals(((StringField) groupkey[c]).getValue())) {
+                    return false;
+                }
+            } else if (intKeys[slot * numIntKeys + keyOffsets[c]] != ((IntField) groupkey[c]).getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot holding groupkey, or the empty slot where it belongs
+     */
+    private int findSlot(Field[] groupkey, int hash) {
+        int mask = used.length - 1;
+        int slot = hash & mask;
+        while (used[slot] && (hashes[slot] != hash || !keyEquals(slot, groupkey))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        boolean[] oldUsed = used;
+        int[] oldHashes = hashes;
+        int[] oldIntKeys = intKeys;
+        String[] oldStringKeys = stringKeys;
+        long[] oldAggregateVals = aggregateVals;
+        long[] oldGroupSizes = groupSizes;
+        allocate(oldUsed.length * 2);
+        int mask = used.length - 1;
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) {
+                continue;
+            }
+            int slot = oldHashes[i] & mask;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            hashes[slot] = oldHashes[i];
+            System.arraycopy(oldIntKeys, i * numIntKeys, intKeys, slot * numIntKeys, numIntKeys);
+            System.arraycopy(oldStringKeys, i * numStringKeys, stringKeys, slot * numStringKeys, numStringKeys);
+            System.arraycopy(oldAggregateVals, i * afields.length, aggregateVals, slot * afields.length, afields.length);
+            groupSizes[slot] = oldGroupSizes[i];
+        }
+    }
+
+    /**
+     * @return the group-by values stored in a slot, one Field per column
+     */
+    private Field[] groupKey(int slot) {
+        Field[] key = new Field[gbfields.length];
+        for (int c = 0; c < gbfields.length; c++) {
+            if (gbfieldtypes[c] == Type.STRING_TYPE) {
+                key[c] = new StringField(stringKeys[slot * numStringKeys + keyOffsets[c]], Type.STRING_LEN);
+            } else if (gbfieldtypes[c] == Type.VARCHAR_TYPE) {
+                key[c] = new VarcharField(stringKeys[slot * numStringKeys + keyOffsets[c]]);
+            } else {
+                key[c] = new IntField(intKeys[slot * numIntKeys + keyOffsets[c]]);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Append a partial aggregate for a group that is not resident to the
+     * spill partition selected by the high bits of its hash.
+     */
+    private void spill(Field[] groupkey, int hash, long[] vals, long groupSize) {
+        if (spillFiles == null) {
+            spillFiles = new File[NUM_PARTITIONS];
+            spillStreams = new DataOutputStream[NUM_PARTITIONS];
+            spillCounts = new int[NUM_PARTITIONS];
+        }
+        int partition = (hash >>> 28) & (NUM_PARTITIONS - 1);
+        try {
+            if (spillStreams[partition] == null) {
+                if (spillFiles[partition] == null) {
+                    spillFiles[partition] = File.createTempFile("agg_spill", ".dat");
+                    spillFiles[partition].deleteOnExit();
+                }
+                // a partition read back before more tuples arrived is
+                // appended to, not truncated
+                spillStreams[partition] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(spillFiles[partition], true)));
+            }
+            DataOutputStream dos = spillStreams[partition];
+            for (Field f : groupkey) {
+                f.serialize(dos);
+            }
+            for (long v : vals) {
+                dos.writeLong(v);
+            }
+            dos.writeLong(groupSize);
+            spillCounts[partition]++;
+        } catch (IOException e) {
+            throw new RuntimeException("failed to spill aggregate partition", e);
+        }
+    }
+
+    /**
+     * Close the spill partition streams once the build phase is over, so
+     * their file descriptors are released before the partitions are read.
+     */
+    private void closeSpillStreams() throws IOException {
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (spillStreams[p] != null) {
+                spillStreams[p].close();
+                spillStreams[p] = null;
+            }
+        }
+    }
+
+    /**
+     * Close and delete every spill partition. Groups that were spilled are
+     * lost, so this is only called once the aggregator itself is no longer
+     * needed; iterating over it afterwards throws IllegalStateException.
+     */
+    void releaseSpill() {
+        if (spillFiles == null) {
+            return;
+        }
+        released = true;
+        try {
+            closeSpillStreams();
+        } catch (IOException e) {
+            // the files are deleted regardless
+        }
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            if (spillFiles[p] != null) {
+                spillFiles[p].delete();
+                spillFiles[p] = null;
+            }
+            spillCounts[p] = 0;
+        }
+    }
+
+    /**
+     * Aggregate one spill partition into a fresh aggregator one level deeper.
+     */
+    private HashAggregator loadPartition(int partition) throws DbException {
+        HashAggregator sub = new HashAggregator(gbfields, gbfieldtypes, afields, whats, memoryBudget, depth + 1);
+        Field[] groupkey = new Field[gbfields.length];
+        long[] vals = new long[afields.length];
+        try {
+            closeSpillStreams();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spillFiles[partition])));
+            try {
+                for (int i = 0; i < spillCounts[partition]; i++) {
+                    for (int c = 0; c < gbfields.length; c++) {
+                        groupkey[c] = gbfieldtypes[c].parse(dis);
+                    }
+                    for (int a = 0; a < afields.length; a++) {
+                        vals[a] = dis.readLong();
+                    }
+                    sub.mergeIntoGroup(groupkey, vals, dis.readLong());
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException | java.text.ParseException e) {
+            throw new DbException("failed to read aggregate spill partition: " + e.getMessage());
+        }
+        return sub;
+    }
+
+    /**
+     * Merge the partial aggregates computed by another aggregator over a
+     * disjoint part of the input into this one. Each group carries its
+     * aggregate values and group size, so MIN, MAX, SUM and COUNT combine
+     * natively and AVG combines as (sum, count).
+     *
+     * @param other an aggregator built with the same fields and operators
+     */
+    public void merge(HashAggregator other) throws DbException {
+        if (!Arrays.equals(other.whats, whats) || !Arrays.equals(other.gbfields, gbfields)) {
+            throw new IllegalArgumentException("cannot merge aggregators over different aggregates");
+        }
+        long[] vals = new long[afields.length];
+        for (int i = 0; i < other.used.length; i++) {
+            if (!other.used[i]) {
+                continue;
+            }
+            System.arraycopy(other.aggregateVals, i * afields.length, vals, 0, afields.length);
+            mergeIntoGroup(other.groupKey(i), vals, other.groupSizes[i]);
+        }
+        if (other.spillFiles != null) {
+            for (int p = 0; p < NUM_PARTITIONS; p++) {
+                if (other.spillCounts[p] > 0) {
+                    HashAggregator sub = other.loadPartition(p);
+                    merge(sub);
+                    sub.releaseSpill();
+                }
+            }
+            // other is consumed by the merge
+            other.releaseSpill();
+        }
+    }
+
+    /**
+     * @return the number of groups currently held in memory
+     */
+    public int numResidentGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @return true if some groups were partitioned to disk
+     */
+    public boolean hasSpilled() {
+        return spillFiles != null;
+    }
+
+    private Tuple groupTuple(int slot) {
+        Tuple t = new Tuple(tupleDesc);
+        Field[] key = groupKey(slot);
+        for (int c = 0; c < key.length; c++) {
+            t.setField(c, key[c]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            long val = aggregateVals[slot * afields.length + a];
+            if (whats[a] == Op.AVG) {
+                val /= groupSizes[slot];
+            }
+            t.setField(gbfields.length + a, new IntField((int) val));
+        }
+        return t;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results. Resident groups are
+     * returned first, followed by the groups of each spill partition. The
+     * partitions are kept until {@link #releaseSpill}, so the results can be
+     * iterated any number of times until then.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed by
+     *         the value of each aggregate; with a single aggregate this is
+     *         the pair (groupVal, aggregateVal) if using group, or a single
+     *         (aggregateVal) if no grouping.
+     */
+    public OpIterator iterator() {
+        checkNotReleased();
+        return new GroupIterator();
+    }
+
+    private void checkNotReleased() {
+        if (released) {
+            throw new IllegalStateException("the spilled groups of this aggregator were released");
+        }
+    }
+
+    /**
+     * Streams resident groups, then aggregates and streams one spill
+     * partition at a time so that at most one partition is in memory.
+     */
+    private class GroupIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        boolean open = false;
+        int slot;
+        int partition;
+        HashAggregator partitionAgg;
+        OpIterator partitionIt;
+        Tuple next;
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            checkNotReleased();
+            open = true;
+            slot = 0;
+            partition = 0;
+            partitionIt = null;
+            next = null;
+        }
+
+        private Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (slot < used.length) {
+                if (used[slot]) {
+                    return groupTuple(slot++);
+                }
+                slot++;
+            }
+            while (spillFiles != null) {
+                if (partitionIt != null && partitionIt.hasNext()) {
+                    return partitionIt.next();
+                }
+                closePartition();
+                while (partition < NUM_PARTITIONS && spillCounts[partition] == 0) {
+                    partition++;
+                }
+                if (partition == NUM_PARTITIONS) {
+                    break;
+                }
+                partitionAgg = loadPartition(partition++);
+                partitionIt = partitionAgg.iterator();
+                partitionIt.open();
+            }
+            return null;
+        }
+
+        /**
+         * Close the iterator over the current partition, and drop the
+         * partitions that aggregating it spilled one level deeper.
+         */
+        private void closePartition() {
+            if (partitionIt != null) {
+                partitionIt.close();
+                partitionAgg.releaseSpill();
+            }
+            partitionIt = null;
+            partitionAgg = null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open) {
+                throw new IllegalStateException("iterator not open");
+            }
+            if (next == null) {
+                next = fetchNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            closePartition();
+            open();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return tupleDesc;
+        }
+
+        @Override
+        public void close() {
+            closePartition();
+            open = false;
+            next = null;
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashBucketPage stores the tuples of one page of a bucket
+ * of a HashFile: the primary page of the bucket or one of the overflow pages
+ * chained to it. It implements the Page interface that is used by BufferPool.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashBucketPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+
+	final HashPageId pid;
+	final TupleDesc td;
+	final byte header[];
+	final Tuple tuples[];
+	final int numSlots;
+
+	private int nextPage; // next overflow page of the bucket or 0
+
+	byte[] oldData;
+	private final byte[] oldDataLock = new byte[0];
+
+	/**
+	 * Create a HashBucketPage from a set of bytes of data read from disk.
+	 * The format of a HashBucketPage is the page number of the next overflow
+	 * page of the bucket, or 0 if this is the last page of the bucket,
+	 * followed by a set of header bytes indicating the slots of the page that
+	 * are in use and the tuple slots, as in a HeapPage. The number of tuples
+	 * is equal to: <p>
+	 *          floor(((BufferPool.getPageSize() - 4)*8) / (tuple size * 8 + 1))
+	 * <p> A page of zeroes is an empty page at the end of its bucket.
+	 * @see Database#getCatalog
+	 * @see Catalog#getTupleDesc
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+		this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a HashBucketPage holding tuples of the given TupleDesc.
+	 */
+	HashBucketPage(HashPageId id, byte[] data, TupleDesc td) throws IOException {
+		this.pid = id;
+		this.td = td;
+		this.numSlots = getMaxTuples(td);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+		nextPage = dis.readInt();
+
+		// allocate and read the header slots of this page
+		header = new byte[getHeaderSize()];
+		for (int i=0; i<header.length; i++)
+			header[i] = dis.readByte();
+
+		tuples = new Tuple[numSlots];
+		try {
+			// allocate and read the actual records of this page
+			for (int i=0; i<tuples.length; i++)
+				tuples[i] = readNextTuple(dis,i);
+		} catch(NoSuchElementException e) {
+			e.printStackTrace();
+		}
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * @return the number of tuples a bucket page of tuples of the given
+	 * TupleDesc holds
+	 */
+	static int getMaxTuples(TupleDesc td) {
+		return (BufferPool.getPageSize() - INDEX_SIZE) * 8 / (td.getSize() * 8 + 1);
+	}
+
+	/**
+	 * Computes the number of bytes in the header of the page
+	 */
+	private int getHeaderSize() {
+		return (numSlots + 7) / 8;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashBucketPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashBucketPage(pid,oldDataRef,td);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Suck up tuples from the source file.
+	 */
+	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
+		// if associated bit is not set, read forward to the next tuple, and
+		// return null.
+		if (!isSlotUsed(slotId)) {
+			for (int i=0; i<td.getSize(); i++) {
+				try {
+					dis.readByte();
+				} catch (IOException e) {
+					throw new NoSuchElementException("error reading empty tuple");
+				}
+			}
+			return null;
+		}
+
+		// read fields in the tuple
+		Tuple t = new Tuple(td);
+		RecordId rid = new RecordId(pid, slotId);
+		t.setRecordId(rid);
+		try {
+			for (int j=0; j<td.numFields(); j++) {
+				Field f = td.getFieldType(j).parse(dis);
+				t.setField(j, f);
+			}
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+			throw new NoSuchElementException("parsing error!");
+		}
+
+		return t;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashBucketPage constructor and
+	 * have it produce an identical HashBucketPage object.
+	 *
+	 * @see #HashBucketPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+
+		try {
+			dos.writeInt(nextPage);
+			dos.write(header);
+
+			for (int i=0; i<tuples.length; i++) {
+				if (!isSlotUsed(i)) {
+					// empty slot
+					dos.write(new byte[td.getSize()]);
+					continue;
+				}
+				for (int j=0; j<td.numFields(); j++)
+					tuples[i].getField(j).serialize(dos);
+			}
+
+			// padding
+			dos.write(new byte[len - INDEX_SIZE - header.length - td.getSize() * tuples.length]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashBucketPage.
+	 * Used to add new, empty pages to the file. Passing the results of
+	 * this method to the HashBucketPage constructor will create a page with
+	 * no valid tuples in it and no overflow page.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * @return the page number of the next overflow page of the bucket, or 0 if
+	 * this is its last page
+	 */
+	public int getNextPageNo() {
+		return nextPage;
+	}
+
+	/**
+	 * Chain an overflow page to this page.
+	 * @param pgNo the page number of the overflow page, or 0
+	 */
+	public void setNextPageNo(int pgNo) {
+		this.nextPage = pgNo;
+	}
+
+	/**
+	 * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
+	 *   that it is no longer stored on any page.
+	 * @throws DbException if this tuple is not on this page, or tuple slot is
+	 *         already empty.
+	 * @param t The tuple to delete
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if(rid == null || !pid.equals(rid.getPageId()) || rid.getTupleNumber() >= numSlots
+				|| !isSlotUsed(rid.getTupleNumber())) {
+			throw new DbException("tuple is not on this page, or tuple slot is already empty");
+		}
+		markSlotUsed(rid.getTupleNumber(), false);
+		tuples[rid.getTupleNumber()] = null;
+	}
+
+	/**
+	 * Adds the specified tuple to the page;  the tuple should be updated to reflect
+	 *  that it is now stored on this page.
+	 * @throws DbException if the page is full (no empty slots) or tupledesc
+	 *         is mismatch.
+	 * @param t The tuple to add.
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if(!t.getTupleDesc().equals(td)) {
+			throw new DbException("tupledesc is mismatch");
+		}
+		for(int i=0; i<numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				markSlotUsed(i, true);
+				tuples[i] = t;
+				t.setRecordId(new RecordId(pid, i));
+				return;
+			}
+		}
+		throw new DbException("page is full (no empty slots)");
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+
+	/**
+	 * Returns the number of empty slots on this page.
+	 */
+	public int getNumEmptySlots() {
+		int num = 0;
+		for(int i=0; i<numSlots; i++) {
+			if(!isSlotUsed(i)) {
+				num++;
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Returns true if associated slot on this page is filled.
+	 */
+	public boolean isSlotUsed(int i) {
+		return ((header[i/8] >> (i%8)) & 1) == 1;
+	}
+
+	/**
+	 * Abstraction to fill or clear a slot on this page.
+	 */
+	private void markSlotUsed(int i, boolean value) {
+		if(value) {
+			header[i/8] |= 1 << (i%8);
+		}
+		else {
+			header[i/8] &= ~(1 << (i%8));
+		}
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+	 * (note that this iterator shouldn't return tuples in empty slots!)
+	 */
+	public Iterator<Tuple> iterator() {
+		List<Tuple> validTuples = new ArrayList<Tuple>();
+		for(int i=0; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				validTuples.add(tuples[i]);
+			}
+		}
+		return Collections.unmodifiableList(validTuples).iterator();
+	}
+}
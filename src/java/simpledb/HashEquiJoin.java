@@ -13,6 +13,8 @@ public class HashEquiJoin extends Operator {
     private TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    private BloomFilter bloomFilter;
+    transient private boolean published = false;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -40,6 +42,50 @@ public class HashEquiJoin extends Operator {
         return comboTD;
     }
     
+    /**
+     * Have the join publish a Bloom filter of the keys of its build side
+     * (child1) to the probe side (child2), where the SeqScan, FusedScan or
+     * Filter reading the probe tuples drops those without a matching key.
+     *
+     * @param fpp the false-positive probability of the filter, or 0 to
+     *            publish none
+     */
+    public void setBloomFilterFpp(double fpp) {
+        bloomFilter = fpp > 0 ? new BloomFilter(fpp) : null;
+    }
+
+    /** @return the Bloom filter built by the join, or null */
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Install bf on the operator that first reads the probe tuples below
+     * probe, looking through Filters, which keep the field positions.
+     *
+     * @return false if no operator below probe can apply the filter
+     */
+    private static boolean publish(OpIterator probe, int field, BloomFilter bf) {
+        if (probe instanceof SeqScan) {
+            SeqScan scan = (SeqScan) probe;
+            if (!(Database.getCatalog().getDatabaseFile(scan.tableid) instanceof HeapFile))
+                return false;
+            scan.setBloomFilter(field, bf);
+            return true;
+        }
+        if (probe instanceof FusedScan) {
+            ((FusedScan) probe).setBloomFilter(field, bf);
+            return true;
+        }
+        if (probe instanceof Filter) {
+            Filter f = (Filter) probe;
+            if (!publish(f.getChildren()[0], field, bf))
+                f.setBloomFilter(field, bf);
+            return true;
+        }
+        return false;
+    }
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -56,6 +102,7 @@ public class HashEquiJoin extends Operator {
     private boolean loadMap() throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
+        boolean more = false;
         while (child1.hasNext()) {
             t1 = child1.next();
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
@@ -64,18 +111,31 @@ public class HashEquiJoin extends Operator {
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            if (cnt++ == MAP_SIZE) {
+                more = true;
+                break;
+            }
+        }
+        if (published) {
+            // the probe side is scanned once per batch of build tuples;
+            // refill the filter with this batch's keys
+            bloomFilter.reset(map.size());
+            for (Object key : map.keySet())
+                bloomFilter.add((Field) key);
         }
-        return cnt > 0;
+        return more || cnt > 0;
 
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        published = bloomFilter != null
+                && publish(child2, pred.getField2(), bloomFilter);
         child1.open();
-        child2.open();
         loadMap();
+        // opened after the filter is filled, since the probe side applies
+        // it from its first tuple
+        child2.open();
         super.open();
     }
 
@@ -91,6 +151,8 @@ public class HashEquiJoin extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
+        listIt = null;
+        loadMap();
         child2.rewind();
     }
 
@@ -150,9 +212,10 @@ public class HashEquiJoin extends Operator {
 
         }
 
-        // child2 is done: advance child1
-        child2.rewind();
+        // child2 is done: advance child1, then rescan child2, whose Bloom
+        // filter must hold the new batch's keys before it reads a page
         if (loadMap()) {
+            child2.rewind();
             return fetchNext();
         }
 
@@ -0,0 +1,737 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashFile is an implementation of a DbFile that stores its tuples in the
+ * buckets of a linear hash table on a key field, so the tuples with a given
+ * key are found by reading a single bucket. The first page of the file is a
+ * HashMetaPage, which maps a hash value of the key to the primary page of a
+ * bucket; a bucket whose primary page is full continues on a chain of
+ * overflow pages. The format of these pages is described in their
+ * constructors.
+ * <p>
+ * The table grows one bucket at a time: whenever an insert has to chain a
+ * new overflow page to a bucket, the next bucket in line is split, moving the
+ * tuples whose hash value now maps to the new bucket. Buckets are split in
+ * order rather than the one that overflowed, so chains stay short on average
+ * without a directory, and a point lookup reads the meta page, which stays
+ * in the BufferPool, and the primary page of one bucket.
+ * <p>
+ * Bucket pages are locked through the BufferPool like the pages of any other
+ * file. The meta page is only latched by lookups and inserts, like the
+ * internal pages of a BTreeFile, so a reader does not wait for a transaction
+ * that split a bucket to commit unless it needs one of the buckets the split
+ * moved tuples between; as a split may happen while a lock is awaited, the
+ * bucket is looked up again once the lock is granted. Transactions that
+ * allocate pages lock the meta page for writing, and full scans lock it for
+ * reading, so no bucket is split under a scan. Pages are never freed: a
+ * bucket emptied by deletes keeps its overflow pages for later inserts.
+ *
+ * @see simpledb.HashMetaPage#HashMetaPage
+ * @see simpledb.HashBucketPage#HashBucketPage
+ */
+public class HashFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private final int tableid;
+	private final int keyField;
+
+	/**
+	 * Constructs a hash file backed by the specified file.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this hash
+	 *            file.
+	 * @param key - the field which the tuples are hashed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public HashFile(File f, int key, TupleDesc td) {
+		this.f = f;
+		this.tableid = f.getAbsoluteFile().hashCode();
+		this.keyField = key;
+		this.td = td;
+	}
+
+	/**
+	 * Returns the File backing this HashFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * Returns an ID uniquely identifying this HashFile: the hash code of the
+	 * absolute file name of the underlying file.
+	 *
+	 * @return an ID uniquely identifying this HashFile.
+	 */
+	public int getId() {
+		return tableid;
+	}
+
+	/**
+	 * Returns the TupleDesc of the table stored in this DbFile.
+	 *
+	 * @return TupleDesc of this DbFile.
+	 */
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * Returns the index of the field that the tuples are hashed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * Read a page from the file on disk. This should not be called directly
+	 * but should be called from the BufferPool via getPage()
+	 *
+	 * @param pid - the id of the page to read from disk
+	 * @return the page constructed from the contents on disk
+	 */
+	public Page readPage(PageId pid) {
+		HashPageId id = (HashPageId) pid;
+		RandomAccessFile rf = null;
+		try {
+			rf = new RandomAccessFile(f, "r");
+			byte pageBuf[] = new byte[BufferPool.getPageSize()];
+			rf.seek((long) id.getPageNumber() * BufferPool.getPageSize());
+			int retval = rf.read(pageBuf, 0, BufferPool.getPageSize());
+			if (retval == -1) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			if (retval < BufferPool.getPageSize()) {
+				throw new IllegalArgumentException("Unable to read "
+						+ BufferPool.getPageSize() + " bytes from HashFile");
+			}
+			Debug.log(1, "HashFile.readPage: read page %d", id.getPageNumber());
+			if(id.getPageNumber() == HashPageId.META) {
+				return new HashMetaPage(id, pageBuf);
+			}
+			return new HashBucketPage(id, pageBuf, td);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			// Close the file on success or error
+			try {
+				if (rf != null)
+					rf.close();
+			} catch (IOException ioe) {
+				// Ignore failures closing the file
+			}
+		}
+	}
+
+	/**
+	 * Write a page to disk.  This should not be called directly but should
+	 * be called from the BufferPool when pages are flushed to disk
+	 *
+	 * @param page - the page to write to disk
+	 */
+	public void writePage(Page page) throws IOException {
+		RandomAccessFile rf = new RandomAccessFile(f, "rw");
+		try {
+			rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+			rf.write(page.getPageData());
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Returns the number of pages in this HashFile, including the meta page
+	 * and the overflow pages.
+	 */
+	public int numPages() {
+		return (int) (f.length() / BufferPool.getPageSize());
+	}
+
+	/**
+	 * @return the hash value of a key: the SplitMix64 finalizer, as in
+	 * {@link HyperLogLog}, of its hash code, whose low bits select the bucket
+	 */
+	static int hash(Field key) {
+		long z = key.hashCode() + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return (int) (z ^ (z >>> 31));
+	}
+
+	/**
+	 * @return the id of the meta page of this file
+	 */
+	private HashPageId getMetaId() {
+		return new HashPageId(tableid, HashPageId.META);
+	}
+
+	/**
+	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
+	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
+	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
+	 * presumably they will soon be dirtied by this transaction.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the id of the requested page
+	 * @param perm - the requested permissions on the page
+	 * @return the requested page
+	 */
+	Page getPage(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		Page p = dirtypages.get(pid);
+		if(p == null) {
+			p = Database.getBufferPool().getPage(tid, pid, perm);
+			if(perm == Permissions.READ_WRITE) {
+				dirtypages.put(pid, p);
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Find the page number of the primary page of the bucket holding the keys
+	 * with a hash value, under a latch on the meta page.
+	 */
+	private int getBucketPageNo(HashMap<PageId, Page> dirtypages, int hash) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		HashPageId metaId = getMetaId();
+		bp.latchPage(metaId, Permissions.READ_ONLY);
+		try {
+			Page p = dirtypages.get(metaId);
+			HashMetaPage meta = (HashMetaPage) (p != null ? p : bp.peekPage(metaId));
+			return meta.getBucketPageNo(meta.getBucket(hash));
+		} finally {
+			bp.unlatchPage(metaId, Permissions.READ_ONLY);
+		}
+	}
+
+	/**
+	 * Find and lock the primary page of the bucket holding the keys with a
+	 * hash value. As the bucket may be split while the lock is awaited, the
+	 * bucket is looked up again once the lock is granted, and the search
+	 * restarts if it is no longer the locked one.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param hash - the hash value of the key
+	 * @param perm - the permissions with which to lock the page
+	 * @return the primary page of the bucket
+	 */
+	private HashBucketPage findBucketPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int hash,
+			Permissions perm) throws DbException, TransactionAbortedException {
+		while(true) {
+			HashPageId pid = new HashPageId(tableid, getBucketPageNo(dirtypages, hash));
+			boolean locked = Database.getBufferPool().holdsLock(tid, pid);
+			HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid, perm);
+			if(pid.getPageNumber() == getBucketPageNo(dirtypages, hash)) {
+				return page;
+			}
+			// the bucket was split while we waited for the lock
+			if(!locked) {
+				dirtypages.remove(pid);
+				Database.getBufferPool().releasePage(tid, pid);
+			}
+		}
+	}
+
+	/**
+	 * Convenience method to find a bucket page when there is no dirtypages HashMap.
+	 * Used by the HashFile iterators.
+	 * @see #findBucketPage(TransactionId, HashMap, int, Permissions)
+	 */
+	HashBucketPage findBucketPage(TransactionId tid, Field key, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		try {
+			createFileIfEmpty();
+		} catch (IOException e) {
+			throw new DbException("unable to create " + f + ": " + e.getMessage());
+		}
+		return findBucketPage(tid, new HashMap<PageId, Page>(), hash(key), perm);
+	}
+
+	/**
+	 * Insert a tuple into this HashFile, in the first page of its bucket with
+	 * an empty slot. If every page of the bucket is full, an overflow page is
+	 * chained to it, and the next bucket in line is split if there are too
+	 * many overflow pages for the number of buckets.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 * @see #splitBucket(TransactionId, HashMap, HashMetaPage)
+	 */
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		createFileIfEmpty();
+
+		HashBucketPage page = findBucketPage(tid, dirtypages, hash(t.getField(keyField)), Permissions.READ_WRITE);
+		while(page.getNumEmptySlots() == 0 && page.getNextPageNo() != 0) {
+			page = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, page.getNextPageNo()), Permissions.READ_WRITE);
+		}
+		if(page.getNumEmptySlots() == 0) {
+			HashMetaPage meta = (HashMetaPage) getPage(tid, dirtypages, getMetaId(), Permissions.READ_WRITE);
+			page = addOverflowPage(tid, dirtypages, meta, page);
+			page.insertTuple(t);
+			if(meta.needsSplit()) {
+				splitBucket(tid, dirtypages, meta);
+			}
+		}
+		else {
+			page.insertTuple(t);
+			page.markDirty(true, tid);
+		}
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Chain an overflow page to the last page of a bucket, reusing a free one
+	 * if there is any. The caller must hold a write lock on the meta page.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param meta - the meta page, locked for writing
+	 * @param page - the last page of the bucket
+	 * @return the new overflow page, locked for writing
+	 */
+	private HashBucketPage addOverflowPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			HashMetaPage meta, HashBucketPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		// the free list only changes under the write lock on the meta page
+		int pgNo = meta.getFreePage();
+		int nextFree = 0;
+		HashBucketPage overflow = null;
+		if(pgNo != 0) {
+			overflow = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+			nextFree = overflow.getNextPageNo();
+			overflow.setNextPageNo(0);
+		}
+		bp.latchPage(meta.getId(), Permissions.READ_WRITE);
+		try {
+			if(pgNo == 0) {
+				pgNo = meta.allocatePages(1);
+			}
+			meta.useOverflowPage(pgNo, nextFree);
+			meta.markDirty(true, tid);
+		} finally {
+			bp.unlatchPage(meta.getId(), Permissions.READ_WRITE);
+		}
+		if(overflow == null) {
+			clearPages(pgNo, 1);
+			overflow = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+		}
+		overflow.markDirty(true, tid);
+		page.setNextPageNo(pgNo);
+		page.markDirty(true, tid);
+		return overflow;
+	}
+
+	/**
+	 * Add the next bucket of the linear hash table, and move the tuples of
+	 * the bucket it is split from whose hash value maps to it. Both buckets
+	 * are locked before the meta page is changed, so a reader looking up a key
+	 * in either waits for this transaction to complete, and then finds the
+	 * new mapping. The tuples left in the bucket split from are then packed
+	 * into the first pages of its chain, and the overflow pages emptied are
+	 * freed. The caller must hold a write lock on the meta page.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param meta - the meta page, locked for writing
+	 */
+	private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages, HashMetaPage meta)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		int newPageNo = meta.getNextBucketPageNo();
+		if(meta.getNextBlockSize() > 0) {
+			clearPages(newPageNo, meta.getNextBlockSize());
+		}
+		HashBucketPage newPage = (HashBucketPage) getPage(tid, dirtypages,
+				new HashPageId(tableid, newPageNo), Permissions.READ_WRITE);
+		ArrayList<HashBucketPage> oldPages = new ArrayList<HashBucketPage>();
+		int pgNo = meta.getBucketPageNo(meta.getSplitBucket());
+		while(pgNo != 0) {
+			HashBucketPage p = (HashBucketPage) getPage(tid, dirtypages,
+					new HashPageId(tableid, pgNo), Permissions.READ_WRITE);
+			oldPages.add(p);
+			pgNo = p.getNextPageNo();
+		}
+
+		int bucket;
+		bp.latchPage(meta.getId(), Permissions.READ_WRITE);
+		try {
+			bucket = meta.addBucket();
+			meta.markDirty(true, tid);
+		} finally {
+			bp.unlatchPage(meta.getId(), Permissions.READ_WRITE);
+		}
+
+		HashBucketPage last = newPage;
+		last.markDirty(true, tid);
+		for(HashBucketPage p : oldPages) {
+			Iterator<Tuple> it = p.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(meta.getBucket(hash(t.getField(keyField))) != bucket) {
+					continue;
+				}
+				p.deleteTuple(t);
+				if(last.getNumEmptySlots() == 0) {
+					last = addOverflowPage(tid, dirtypages, meta, last);
+				}
+				last.insertTuple(t);
+			}
+			p.markDirty(true, tid);
+		}
+
+		for(int i = oldPages.size() - 1; i > 0; i--) {
+			HashBucketPage from = oldPages.get(i);
+			Iterator<Tuple> it = from.iterator();
+			for(int j = 0; j < i && it.hasNext(); j++) {
+				HashBucketPage to = oldPages.get(j);
+				while(to.getNumEmptySlots() > 0 && it.hasNext()) {
+					Tuple t = it.next();
+					from.deleteTuple(t);
+					to.insertTuple(t);
+				}
+			}
+			if(it.hasNext()) {
+				break;
+			}
+			oldPages.get(i - 1).setNextPageNo(0);
+			freeOverflowPage(tid, meta, from);
+		}
+	}
+
+	/**
+	 * Put an overflow page unchained from its bucket first on the list of
+	 * free pages. The caller must hold a write lock on the meta page.
+	 *
+	 * @param tid - the transaction id
+	 * @param meta - the meta page, locked for writing
+	 * @param page - the empty overflow page, locked for writing
+	 */
+	private void freeOverflowPage(TransactionId tid, HashMetaPage meta, HashBucketPage page) {
+		BufferPool bp = Database.getBufferPool();
+		bp.latchPage(meta.getId(), Permissions.READ_WRITE);
+		try {
+			page.setNextPageNo(meta.getFreePage());
+			meta.freeOverflowPage(page.getId().getPageNumber());
+			meta.markDirty(true, tid);
+		} finally {
+			bp.unlatchPage(meta.getId(), Permissions.READ_WRITE);
+		}
+		page.markDirty(true, tid);
+	}
+
+	/**
+	 * Write empty pages over a range of pages just allocated, which may hold
+	 * the pages of a transaction that allocated them and aborted, extending
+	 * the file as needed, and drop any copy of them from the BufferPool.
+	 */
+	private void clearPages(int firstPageNo, int n) throws IOException {
+		int pageSize = BufferPool.getPageSize();
+		synchronized(this) {
+			RandomAccessFile rf = new RandomAccessFile(f, "rw");
+			try {
+				long start = (long) firstPageNo * pageSize;
+				long end = start + (long) n * pageSize;
+				if(rf.length() > start) {
+					rf.seek(start);
+					byte[] empty = HashBucketPage.createEmptyPageData();
+					for(long pos = start; pos < Math.min(end, rf.length()); pos += pageSize) {
+						rf.write(empty);
+					}
+				}
+				if(rf.length() < end) {
+					rf.setLength(end);
+				}
+			} finally {
+				rf.close();
+			}
+		}
+		for(int i = 0; i < n; i++) {
+			Database.getBufferPool().discardPage(new HashPageId(tableid, firstPageNo + i));
+		}
+	}
+
+	/**
+	 * Delete a tuple from this HashFile. The page it is on is locked for
+	 * writing; buckets are never merged.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashPageId pageId = new HashPageId(tableid, t.getRecordId().getPageId().getPageNumber());
+		if(pageId.getPageNumber() == HashPageId.META) {
+			throw new DbException("tuple is not on a bucket page");
+		}
+		HashBucketPage page = (HashBucketPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		page.markDirty(true, tid);
+
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.add(page);
+		return dirtyPagesArr;
+	}
+
+	/**
+	 * Create the meta page and the page of the first bucket if the file is
+	 * empty.
+	 *
+	 * @throws IOException
+	 */
+	private void createFileIfEmpty() throws IOException {
+		synchronized(this) {
+			if(f.length() == 0) {
+				HashMetaPage meta = new HashMetaPage(getMetaId(), HashMetaPage.createEmptyPageData());
+				meta.init();
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
+				bw.write(meta.getPageData());
+				bw.write(HashBucketPage.createEmptyPageData());
+				bw.close();
+			}
+		}
+	}
+
+	/**
+	 * Lock the meta page for reading, so that no bucket is split until the
+	 * transaction completes, and return it.
+	 */
+	HashMetaPage getMetaPage(TransactionId tid) throws DbException, TransactionAbortedException {
+		try {
+			createFileIfEmpty();
+		} catch (IOException e) {
+			throw new DbException("unable to create " + f + ": " + e.getMessage());
+		}
+		return (HashMetaPage) Database.getBufferPool().getPage(tid, getMetaId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Get the tuples of this file whose key satisfies an IndexPredicate on
+	 * behalf of the specified transaction. An EQUALS predicate or a list of
+	 * values reads only the buckets of the values; since a hash table keeps
+	 * no order, any other predicate is answered by a scan of the whole file.
+	 * This method will acquire a read lock on the pages read, and may block
+	 * until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
+		if(ipred.getOp() != Predicate.Op.EQUALS) {
+			return new HashFileIterator(this, tid, ipred);
+		}
+		return new HashSearchIterator(this, tid, ipred);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this hash file, bucket by bucket. This
+	 * method will acquire a read lock on the affected pages of the file, and may
+	 * block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid) {
+		return new HashFileIterator(this, tid, null);
+	}
+
+}
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HashFile
+ */
+class HashFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+	HashMetaPage meta = null;
+	int bucket;
+
+	TransactionId tid;
+	HashFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate the keys of the tuples returned must
+	 * satisfy, or null
+	 */
+	public HashFileIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by locking the meta page and getting an iterator on
+	 * the primary page of the first bucket
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		meta = f.getMetaPage(tid);
+		bucket = 0;
+		curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+				new HashPageId(f.getId(), meta.getBucketPageNo(0)), Permissions.READ_ONLY);
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples,
+	 * from the next overflow page of the bucket, or from the next bucket.
+	 *
+	 * @return the next tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (ipred == null || ipred.matches(t.getField(f.keyField()))) {
+					return t;
+				}
+			}
+
+			int nextp = curp.getNextPageNo();
+			if (nextp == 0 && bucket < meta.getMaxBucket()) {
+				nextp = meta.getBucketPageNo(++bucket);
+			}
+			if (nextp == 0) {
+				it = null;
+			}
+			else {
+				curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+						new HashPageId(f.getId(), nextp), Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+		meta = null;
+	}
+}
+
+/**
+ * Helper class that implements the DbFileIterator for the tuples of a
+ * HashFile with given keys, reading only the buckets of the keys
+ */
+class HashSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	HashBucketPage curp = null;
+	Field[] keys;
+	int pos;
+
+	TransactionId tid;
+	HashFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the HashFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the EQUALS predicate or list of values to look up
+	 */
+	public HashSearchIterator(HashFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by finding the bucket of the first key. The keys are
+	 * read from the predicate here, so that a parameter bound after the
+	 * iterator was created is used.
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		keys = ipred.getValues() != null ? ipred.getValues() : new Field[] { ipred.getField() };
+		pos = 0;
+		curp = f.findBucketPage(tid, keys[0], Permissions.READ_ONLY);
+		it = curp.iterator();
+	}
+
+	/**
+	 * Read the next tuple with the current key from the current page, from
+	 * the next overflow page of its bucket, or from the bucket of the next
+	 * key.
+	 *
+	 * @return the next tuple with one of the keys, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it != null) {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).equals(keys[pos])) {
+					return t;
+				}
+			}
+
+			if (curp.getNextPageNo() != 0) {
+				curp = (HashBucketPage) Database.getBufferPool().getPage(tid,
+						new HashPageId(f.getId(), curp.getNextPageNo()), Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+			else if (++pos < keys.length) {
+				curp = f.findBucketPage(tid, keys[pos], Permissions.READ_ONLY);
+				it = curp.iterator();
+			}
+			else {
+				it = null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
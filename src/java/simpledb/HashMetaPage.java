@@ -0,0 +1,335 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashMetaPage is the first page of a HashFile. It holds the state of the
+ * linear hashing scheme: the highest bucket number and the two masks that map
+ * a hash value to a bucket, the number of pages allocated in the file and of
+ * overflow pages in use, the head of the list of free overflow pages, and
+ * where the primary pages of each group of buckets start.
+ * <p>
+ * Buckets are added one at a time, in order, and are grouped by split point:
+ * split point 0 is bucket 0, and split point s &gt; 0 the buckets from
+ * 2<sup>s-1</sup> to 2<sup>s</sup>-1. The primary pages of the buckets of a
+ * split point are allocated together, when its first bucket is added, so the
+ * page of any bucket is found from the start of its group without a
+ * directory. Overflow pages are allocated one at a time between the groups,
+ * and freed overflow pages are chained through their next page pointers for
+ * reuse.
+ *
+ * @see HashFile
+ * @see BufferPool
+ *
+ */
+public class HashMetaPage implements Page {
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
+
+	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	final static int SPLIT_POINTS = 32;
+	// a bucket is split whenever there is an overflow page for fewer buckets
+	final static int BUCKETS_PER_OVERFLOW_PAGE = 8;
+
+	private final HashPageId pid;
+
+	private int maxBucket;
+	private int lowMask;
+	private int highMask;
+	private int numPages;
+	private int numOverflowPages;
+	private int freePage; // first free overflow page or 0
+	private final int[] blockStart = new int[SPLIT_POINTS];
+
+	byte[] oldData;
+	private final byte[] oldDataLock = new byte[0];
+
+	/**
+	 * Create a HashMetaPage from a set of bytes of data read from disk.
+	 * The format of a HashMetaPage is the highest bucket number, the low and
+	 * high masks, the number of pages allocated in the file, the number of
+	 * overflow pages in use, the first free overflow page or 0, and the page
+	 * number of the first primary page of each split point, each an integer.
+	 * A page of zeroes must be initialized with {@link #init()}.
+	 * @see BufferPool#getPageSize()
+	 */
+	public HashMetaPage(HashPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		maxBucket = dis.readInt();
+		lowMask = dis.readInt();
+		highMask = dis.readInt();
+		numPages = dis.readInt();
+		numOverflowPages = dis.readInt();
+		freePage = dis.readInt();
+		for (int i=0; i<blockStart.length; i++)
+			blockStart[i] = dis.readInt();
+		dis.close();
+
+		setBeforeImage();
+	}
+
+	/**
+	 * Set up the meta page of a new file with a single, empty bucket, stored
+	 * on the page following the meta page.
+	 */
+	public void init() {
+		maxBucket = 0;
+		lowMask = 0;
+		highMask = 1;
+		numPages = 2;
+		blockStart[0] = 1;
+	}
+
+	/**
+	 * @return the split point of a bucket: 0 for bucket 0, and s for the
+	 * buckets from 2<sup>s-1</sup> to 2<sup>s</sup>-1
+	 */
+	static int splitPoint(int bucket) {
+		return 32 - Integer.numberOfLeadingZeros(bucket);
+	}
+
+	/**
+	 * @return the first bucket of a split point
+	 */
+	private static int firstBucket(int splitPoint) {
+		return splitPoint == 0 ? 0 : 1 << (splitPoint - 1);
+	}
+
+	/**
+	 * @return the highest bucket number in use
+	 */
+	public int getMaxBucket() {
+		return maxBucket;
+	}
+
+	/**
+	 * @return the number of pages allocated in the file, including this one
+	 */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * @return the number of overflow pages chained to buckets
+	 */
+	public int getNumOverflowPages() {
+		return numOverflowPages;
+	}
+
+	/**
+	 * @return true if there are so many overflow pages for the number of
+	 * buckets that the next bucket should be split
+	 */
+	public boolean needsSplit() {
+		return numOverflowPages * BUCKETS_PER_OVERFLOW_PAGE > maxBucket + 1;
+	}
+
+	/**
+	 * @return the first page of the list of free overflow pages, or 0
+	 */
+	public int getFreePage() {
+		return freePage;
+	}
+
+	/**
+	 * Record that an overflow page was chained to a bucket, taking it off the
+	 * list of free pages if it was its first page.
+	 * @param pgNo the overflow page
+	 * @param nextFree the next page of the list of free pages, if pgNo was
+	 * its first page
+	 */
+	public void useOverflowPage(int pgNo, int nextFree) {
+		if (pgNo == freePage)
+			freePage = nextFree;
+		numOverflowPages++;
+	}
+
+	/**
+	 * Record that an overflow page was unchained from its bucket and put
+	 * first on the list of free pages, its next page being the former first.
+	 * @param pgNo the overflow page
+	 */
+	public void freeOverflowPage(int pgNo) {
+		freePage = pgNo;
+		numOverflowPages--;
+	}
+
+	/**
+	 * @return the bucket holding the tuples whose key has the given hash value
+	 */
+	public int getBucket(int hash) {
+		int bucket = hash & highMask;
+		if (bucket > maxBucket)
+			bucket &= lowMask; // not split yet in this round
+		return bucket;
+	}
+
+	/**
+	 * @return the page number of the primary page of a bucket
+	 */
+	public int getBucketPageNo(int bucket) {
+		int sp = splitPoint(bucket);
+		return blockStart[sp] + bucket - firstBucket(sp);
+	}
+
+	/**
+	 * @return the bucket the next call to {@link #addBucket()} adds
+	 */
+	public int getNextBucket() {
+		return maxBucket + 1;
+	}
+
+	/**
+	 * @return the bucket whose tuples the next bucket is split from
+	 */
+	public int getSplitBucket() {
+		return getNextBucket() & lowMask;
+	}
+
+	/**
+	 * @return the page number the primary page of the next bucket will have
+	 */
+	public int getNextBucketPageNo() {
+		int bucket = getNextBucket();
+		int sp = splitPoint(bucket);
+		return bucket == firstBucket(sp) ? numPages : blockStart[sp] + bucket - firstBucket(sp);
+	}
+
+	/**
+	 * @return the number of primary pages allocated with the next bucket:
+	 * the pages of its whole split point if it is the first bucket of one,
+	 * and none otherwise
+	 */
+	public int getNextBlockSize() {
+		int bucket = getNextBucket();
+		int sp = splitPoint(bucket);
+		return bucket == firstBucket(sp) ? Math.max(1, bucket) : 0;
+	}
+
+	/**
+	 * Add the next bucket, allocating the primary pages of its split point if
+	 * it is the first bucket of one. The tuples of the bucket it is split from
+	 * whose hash value now maps to it must then be moved to it.
+	 * @return the new bucket
+	 */
+	public int addBucket() {
+		int bucket = getNextBucket();
+		int sp = splitPoint(bucket);
+		if (sp >= SPLIT_POINTS)
+			throw new IllegalStateException("too many buckets");
+		if (bucket == firstBucket(sp))
+			blockStart[sp] = allocatePages(getNextBlockSize());
+		maxBucket = bucket;
+		if (bucket > highMask) {
+			// start a new round, doubling the number of buckets
+			lowMask = highMask;
+			highMask = bucket | lowMask;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Allocate pages at the end of the file.
+	 * @return the page number of the first one
+	 */
+	public int allocatePages(int n) {
+		int first = numPages;
+		numPages += n;
+		return first;
+	}
+
+	/** Return a view of this page before it was modified
+        -- used by recovery */
+	public HashMetaPage getBeforeImage(){
+		try {
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData;
+			}
+			return new HashMetaPage(pid,oldDataRef);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = getPageData().clone();
+		}
+	}
+
+	/**
+	 * @return the PageId associated with this page.
+	 */
+	public HashPageId getId() {
+		return pid;
+	}
+
+	/**
+	 * Generates a byte array representing the contents of this page.
+	 * Used to serialize this page to disk.
+	 * <p>
+	 * The invariant here is that it should be possible to pass the byte
+	 * array generated by getPageData to the HashMetaPage constructor and
+	 * have it produce an identical HashMetaPage object.
+	 *
+	 * @see #HashMetaPage
+	 * @return A byte array correspond to the bytes of this page.
+	 */
+	public byte[] getPageData() {
+		int len = BufferPool.getPageSize();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(maxBucket);
+			dos.writeInt(lowMask);
+			dos.writeInt(highMask);
+			dos.writeInt(numPages);
+			dos.writeInt(numOverflowPages);
+			dos.writeInt(freePage);
+			for (int i=0; i<blockStart.length; i++)
+				dos.writeInt(blockStart[i]);
+			dos.write(new byte[len - (6 + SPLIT_POINTS) * INDEX_SIZE]);
+			dos.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Static method to generate a byte array corresponding to an empty
+	 * HashMetaPage, to be initialized with {@link #init()}.
+	 *
+	 * @return The returned ByteArray.
+	 */
+	public static byte[] createEmptyPageData() {
+		int len = BufferPool.getPageSize();
+		return new byte[len]; //all 0
+	}
+
+	/**
+	 * Marks this page as dirty/not dirty and record that transaction
+	 * that did the dirtying
+	 */
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirty = dirty;
+		if (dirty) this.dirtier = tid;
+	}
+
+	/**
+	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+	 */
+	public TransactionId isDirty() {
+		if (this.dirty)
+			return this.dirtier;
+		else
+			return null;
+	}
+}
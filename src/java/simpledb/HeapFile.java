@@ -176,7 +176,34 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid,f,getId());
+        return new HeapFileIterator(tid,f,getId(),0,Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored on a contiguous range of
+     * pages of this file. Disjoint ranges can be scanned by different
+     * threads on behalf of the same transaction.
+     *
+     * @param tid the transaction the scan runs as a part of
+     * @param startPage the first page to scan
+     * @param endPage one past the last page to scan; clipped to numPages()
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+        return new HeapFileIterator(tid,f,getId(),startPage,endPage);
+    }
+
+    /**
+     * Returns an iterator over the tuples of a range of pages that pass a
+     * filter. The filter is evaluated on each page as it is read, so
+     * rejected tuples never leave the scan.
+     *
+     * @param filter the filter tuples must pass, or null
+     * @see #iterator(TransactionId, int, int)
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, TupleFilter filter) {
+        HeapFileIterator it = new HeapFileIterator(tid,f,getId(),startPage,endPage);
+        it.filter = filter;
+        return it;
     }
 
     class HeapFileIterator implements DbFileIterator{
@@ -188,24 +215,29 @@ public class HeapFile implements DbFile {
         Iterator<Tuple> tupleIterator;
         File f;
         int tableId;
+        int startPgNo;
+        int endPgNo;
         boolean hasNext = false;
         boolean isOpen = false;
+        TupleFilter filter = null;
 
         /**
          * Opens the iterator
          *
          * @throws DbException when there are problems opening/accessing the database.
          */
-        public HeapFileIterator(TransactionId tid,File f,int tableId){
+        public HeapFileIterator(TransactionId tid,File f,int tableId,int startPgNo,int endPgNo){
             this.tid = tid;
             this.f = f;
             this.tableId = tableId;
+            this.startPgNo = startPgNo;
+            this.endPgNo = endPgNo;
         }
         @Override
         public void open() throws DbException, TransactionAbortedException {
             try {
                 isOpen = true;
-                nextPgNo = 0;
+                nextPgNo = startPgNo;
                 fis = new FileInputStream(f);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
@@ -231,9 +263,9 @@ public class HeapFile implements DbFile {
                 }
             }
             //System.out.println("hasNext :"+"??"+nextPgNo+","+numPages());
-            while (nextPgNo < numPages()){
+            while (nextPgNo < Math.min(endPgNo,numPages())){
                 heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(tableId,nextPgNo), Permissions.READ_ONLY);
-                tupleIterator = heapPage.iterator();
+                tupleIterator = filter == null ? heapPage.iterator() : heapPage.iterator(filter);
                 if(tupleIterator.hasNext()){
                     hasNext = true;
                     return true;
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
 
 /**
@@ -16,7 +17,10 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    // tuples decoded so far; a used slot that is null here is still only in data
+    final AtomicReferenceArray<Tuple> tuples;
+    // the page as read from disk, from which slots are decoded on first use
+    final byte[] data;
     final int numSlots;
     TransactionId tid;
     boolean dirty;
@@ -36,30 +40,35 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * <p>
+     * A slot is decoded into a Tuple when it is first requested, so a scan
+     * with a compiled {@link PageFilter} can test INT fields in the bytes of
+     * the page and decode only the tuples that pass. The page keeps data,
+     * which must not be modified afterwards.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a HeapPage holding tuples of the given TupleDesc, for pages of
+     * files that are not in the catalog, such as the spill file of a
+     * {@link Materialize}.
+     */
+    HeapPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        System.arraycopy(data, 0, header, 0, header.length);
+
+        tuples = new AtomicReferenceArray<Tuple>(numSlots);
 
         setBeforeImage();
     }
@@ -95,7 +104,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,oldDataRef,td);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -121,21 +130,32 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in data of the tuple in a slot
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * @return the tuple in a used slot, decoding it from data if it has not
+     *         been decoded before
+     */
+    private Tuple tuple(int slotId) {
+        Tuple t = tuples.get(slotId);
+        if (t == null) {
+            t = readTuple(slotId);
+            if (!tuples.compareAndSet(slotId, null, t))
+                t = tuples.get(slotId);
         }
+        return t;
+    }
+
+    /**
+     * Decode the tuple in a used slot from data.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+                slotOffset(slotId), td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -181,7 +201,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        for (int i=0; i<numSlots; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
@@ -196,9 +216,20 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // a slot that was never decoded is copied as it was read
+            Tuple t = tuples.get(i);
+            if (t == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
                 
@@ -209,7 +240,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * numSlots); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -278,7 +309,7 @@ public class HeapPage implements Page {
             for(int i=0;i<getNumTuples();i++){
                 if(!isSlotUsed(i)){
                     markSlotUsed(i,true);
-                    tuples[i] = t;
+                    tuples.set(i, t);
                     t.setRecordId(new RecordId(pid,i));
                     iterator();
                     return;
@@ -317,13 +348,15 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
+        // only the first numSlots bits of the header are slots; the rest of
+        // the last header byte is padding
         int num = 0;
-        for(Byte b : header){
-            for(int i=0;i<8;i++){
-                num += (b>>i & 1);
+        for(int i=0;i<numSlots;i++){
+            if(!isSlotUsed(i)){
+                num ++;
             }
         }
-        return header.length*8 - num;
+        return num;
     }
 
     /**
@@ -335,12 +368,21 @@ public class HeapPage implements Page {
         try{
             flag =  ((header[i/8] >> (i%8)) & 1) == 1;
         }catch (Exception e){
-            System.out.println("isSlotUsed: "+i+","+header.length+","+tuples.length);
+            System.out.println("isSlotUsed: "+i+","+header.length+","+numSlots);
             throw e;
         }
         return flag;
     }
 
+    /**
+     * @return the tuple in a slot of this page, or null if the slot is empty
+     */
+    Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        return tuple(i);
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -366,13 +408,62 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         // some code goes here
         List<Tuple> validTuples = new ArrayList<>();
-        for(int i=0;i<header.length*8;i++){
+        for(int i=0;i<numSlots;i++){
             if(isSlotUsed(i)){
-                validTuples.add(tuples[i]);
+                validTuples.add(tuple(i));
             }
         }
         return validTuples.iterator();
     }
 
+    /**
+     * @return an iterator over the tuples on this page that pass filter;
+     *         the filter is applied while walking the slots, so rejected
+     *         tuples are never handed to the caller
+     */
+    public Iterator<Tuple> iterator(TupleFilter filter) {
+        List<Tuple> validTuples = new ArrayList<>();
+        forEach(filter, validTuples::add);
+        return validTuples.iterator();
+    }
+
+    /**
+     * Hand every tuple on this page that passes filter to sink, in slot
+     * order, reading the slot bitmap a byte at a time. If filter is a
+     * {@link PageFilter}, a slot that has not been decoded yet is first
+     * tested on its bytes, and decoded only if it passes.
+     */
+    void forEach(TupleFilter filter, java.util.function.Consumer<Tuple> sink) {
+        PageFilter pf = filter instanceof PageFilter ? (PageFilter) filter : null;
+        SlotFilter slotFilter = pf == null ? null : pf.slot;
+        TupleFilter rest = pf == null ? filter : pf.rest;
+        for(int b=0;b<header.length;b++){
+            int bits = header[b] & 0xff;
+            while(bits != 0){
+                int i = b*8 + Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if(i >= numSlots){
+                    continue;
+                }
+                Tuple t = tuples.get(i);
+                if(t != null){
+                    // tuples decoded or inserted since the page was read no
+                    // longer match data
+                    if(filter.matches(t)){
+                        sink.accept(t);
+                    }
+                    continue;
+                }
+                if(slotFilter != null && !slotFilter.matches(data, slotOffset(i))){
+                    continue;
+                }
+                t = tuple(i);
+                if(rest == null || rest.matches(t)){
+                    sink.accept(t);
+                }
+            }
+        }
+    }
+
 }
 
@@ -1,6 +1,6 @@
 package simpledb;
 
-public interface Histogram {
+public interface Histogram extends java.io.Serializable {
     void addValue(Object v);
     double estimateSelectivity(Predicate.Op op, Object v);
 }
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct values added to it
+ * in constant space. With 2^precision registers the relative standard error
+ * of the estimate is about 1.04 / sqrt(2^precision).
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default precision: 4096 registers, about 1.6% standard error. */
+    public static final int DEFAULT_PRECISION = 12;
+
+    final int precision;
+    final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision the number of hash bits used to select a register,
+     *            between 4 and 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision must be between 4 and 18");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /** Add an int value to the sketch. */
+    public void add(int v) {
+        addHash(mix(v));
+    }
+
+    /** Add a field value to the sketch. */
+    public void add(Field f) {
+        if (f instanceof IntField) {
+            add(((IntField) f).getValue());
+        } else {
+            addHash(mix(f.hashCode()));
+        }
+    }
+
+    private void addHash(long hash) {
+        int idx = (int) (hash >>> (64 - precision));
+        // the sentinel bit bounds the rank when all remaining bits are 0
+        long w = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[idx]) {
+            registers[idx] = rank;
+        }
+    }
+
+    /** SplitMix64 finalizer; spreads consecutive ints over all 64 bits. */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return the estimated number of distinct values added, using linear
+     *         counting while many registers are still empty
+     */
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        if (e <= 2.5 * m && zeros > 0) {
+            return m * Math.log((double) m / zeros);
+        }
+        return e;
+    }
+
+    /** Merge another sketch of the same precision into this one. */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /** @return the relative standard error of {@link #estimate()} */
+    public double relativeError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+}
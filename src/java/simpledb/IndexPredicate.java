@@ -1,9 +1,13 @@
 package simpledb;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
- * IndexPredicate compares a field which has index on it against a given value
+ * IndexPredicate compares a field which has index on it against a given value.
+ * A range predicate also carries an upper bound, so that
+ * <tt>a &gt;= 10 AND a &lt; 20</tt> is a single predicate, and an IN-list
+ * predicate matches any of a set of values.
  * @see IndexOpIterator
  */
 public class IndexPredicate implements Serializable {
@@ -12,6 +16,9 @@ public class IndexPredicate implements Serializable {
 	
     private Predicate.Op op;
     private Field fieldvalue;
+    private Predicate.Op upperOp;
+    private Field upperValue;
+    private Field[] values;
 
     /**
      * Constructor.
@@ -27,14 +34,136 @@ public class IndexPredicate implements Serializable {
         this.fieldvalue = fvalue;
     }
 
+    /**
+     * Constructor for a range bounded on both sides.
+     *
+     * @param op The operation of the lower bound, Predicate.Op.GREATER_THAN or
+     *   Predicate.Op.GREATER_THAN_OR_EQ
+     * @param fvalue The lower bound
+     * @param upperOp The operation of the upper bound, Predicate.Op.LESS_THAN or
+     *   Predicate.Op.LESS_THAN_OR_EQ
+     * @param upperValue The upper bound
+     */
+    public IndexPredicate(Predicate.Op op, Field fvalue, Predicate.Op upperOp, Field upperValue) {
+        if ((op != Predicate.Op.GREATER_THAN && op != Predicate.Op.GREATER_THAN_OR_EQ)
+                || (upperOp != Predicate.Op.LESS_THAN && upperOp != Predicate.Op.LESS_THAN_OR_EQ))
+            throw new IllegalArgumentException("not a range: " + op + " " + upperOp);
+        this.op = op;
+        this.fieldvalue = fvalue;
+        this.upperOp = upperOp;
+        this.upperValue = upperValue;
+    }
+
+    /**
+     * @return a predicate matching the keys equal to any of the given values;
+     *         its field is the smallest value
+     */
+    public static IndexPredicate in(Field... values) {
+        if (values.length == 0)
+            throw new IllegalArgumentException("empty IN list");
+        Field[] sorted = values.clone();
+        Arrays.sort(sorted, (a, b) -> a.compare(Predicate.Op.LESS_THAN, b) ? -1
+                : a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0);
+        int n = 1;
+        for (int i = 1; i < sorted.length; i++)
+            if (!sorted[i].equals(sorted[n - 1]))
+                sorted[n++] = sorted[i];
+        IndexPredicate p = new IndexPredicate(Predicate.Op.EQUALS, sorted[0]);
+        p.values = Arrays.copyOf(sorted, n);
+        return p;
+    }
+
     public Field getField() {
         return fieldvalue;
     }
 
+    /**
+     * Replace the value, e.g. to bind a parameter of a prepared query.
+     */
+    void setField(Field fvalue) {
+        this.fieldvalue = fvalue;
+    }
+
     public Predicate.Op getOp() {
         return op;
     }
 
+    /**
+     * @return the operation of the upper bound of a range, or null
+     */
+    public Predicate.Op getUpperOp() {
+        return upperOp;
+    }
+
+    /**
+     * @return the upper bound of a range, or null
+     */
+    public Field getUpperField() {
+        return upperValue;
+    }
+
+    /**
+     * @return the upper bound of a range as a predicate of its own, or null
+     */
+    public IndexPredicate getUpperBound() {
+        return upperOp == null ? null : new IndexPredicate(upperOp, upperValue);
+    }
+
+    /**
+     * @return the distinct values of an IN-list predicate in increasing order,
+     *         or null
+     */
+    public Field[] getValues() {
+        return values == null ? null : values.clone();
+    }
+
+    /**
+     * @return true if a key satisfies this predicate
+     */
+    public boolean matches(Field key) {
+        if (values != null)
+            return Arrays.asList(values).contains(key);
+        return key.compare(op, fieldvalue)
+                && (upperOp == null || key.compare(upperOp, upperValue));
+    }
+
+    /**
+     * @return true if no key greater than or equal to this one satisfies the
+     *         predicate, so an ascending scan can stop at it
+     */
+    boolean isAbove(Field key) {
+        Field last = values != null ? values[values.length - 1] : upperValue;
+        Predicate.Op lastOp = values != null ? Predicate.Op.LESS_THAN_OR_EQ : upperOp;
+        if (lastOp == null) {
+            if (op == Predicate.Op.EQUALS)
+                lastOp = Predicate.Op.LESS_THAN_OR_EQ;
+            else if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ)
+                lastOp = op;
+            else
+                return false;
+            last = fieldvalue;
+        }
+        return !key.compare(lastOp, last);
+    }
+
+    /**
+     * @return true if no key less than or equal to this one satisfies the
+     *         predicate, so a descending scan can stop at it
+     */
+    boolean isBelow(Field key) {
+        if (values != null)
+            return key.compare(Predicate.Op.LESS_THAN, values[0]);
+        switch (op) {
+        case EQUALS:
+            return key.compare(Predicate.Op.LESS_THAN, fieldvalue);
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return !key.compare(op, fieldvalue);
+        default:
+            return false;
+        }
+    }
+
     /** Return true if the fieldvalue in the supplied predicate
         is satisfied by this predicate's fieldvalue and
         operator.
@@ -43,7 +172,10 @@ public class IndexPredicate implements Serializable {
     public boolean equals(IndexPredicate ipd) {
         if (ipd == null)
             return false;
-        return (op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue));
+        return op.equals(ipd.op) && fieldvalue.equals(ipd.fieldvalue)
+                && upperOp == ipd.upperOp && (upperValue == null ? ipd.upperValue == null
+                        : upperValue.equals(ipd.upperValue))
+                && Arrays.equals(values, ipd.values);
     }
 
 }
@@ -0,0 +1,262 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a HeapFile table whose key satisfies a range
+ * of a {@link SecondaryIndex} on it. The RecordIds of the matching entries
+ * are collected first and sorted by page, so that each page of the table is
+ * read only once, in file order, however the keys are spread over the
+ * pages. Tuples are therefore returned in page order, not key order.
+ * <p>
+ * An index-only scan returns tuples built from the index entries alone, in
+ * key order, without reading the table. The fields of the table the index
+ * does not store are set to 0 or the empty string; the planner only uses
+ * such a scan when the query reads none of them.
+ */
+public class IndexScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId tid;
+    private final SecondaryIndex index;
+    private final String alias;
+    private final IndexPredicate ipred;
+    private final IndexPredicate upper;
+    private final boolean indexOnly;
+    private final TupleDesc td;
+
+    // the matching RecordIds of the last open, as page number << 32 | tuple number
+    private transient long[] rids;
+    private transient int numRids;
+    private transient int pos;
+    private transient HeapPage page;
+    private transient Tuple next;
+    private transient boolean isOpen = false;
+    // the entries read by an index-only scan; null once past the upper bound
+    private transient DbFileIterator entries;
+
+    /**
+     * Creates a scan of the tuples of a table found through one of its
+     * indexes.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to search
+     * @param tableAlias
+     *            the alias of the indexed table; the returned tupleDesc has
+     *            fields with name tableAlias.fieldName
+     * @param ipred
+     *            The predicate positioning the scan in the index, or null to
+     *            read the whole index
+     * @param upper
+     *            a LESS_THAN or LESS_THAN_OR_EQ predicate on the key bounding
+     *            the scan from above, or null
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred, IndexPredicate upper) {
+        this(tid, index, tableAlias, ipred, upper, false);
+    }
+
+    /**
+     * Creates a scan of the tuples of a table found through one of its
+     * indexes, optionally answered from the index alone.
+     *
+     * @param indexOnly
+     *            true to build the tuples from the index entries without
+     *            reading the table
+     * @see #IndexScan(TransactionId, SecondaryIndex, String, IndexPredicate,
+     *      IndexPredicate)
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias,
+            IndexPredicate ipred, IndexPredicate upper, boolean indexOnly) {
+        this.tid = tid;
+        this.index = index;
+        this.alias = tableAlias;
+        this.ipred = ipred;
+        this.upper = upper;
+        this.indexOnly = indexOnly;
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+        String[] names = new String[tableTd.numFields()];
+        Type[] types = new Type[tableTd.numFields()];
+        for (int i = 0; i < tableTd.numFields(); i++) {
+            names[i] = tableAlias + "." + tableTd.getFieldName(i);
+            types[i] = tableTd.getFieldType(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /** @return the index this scan searches */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /** @return the predicate positioning this scan, or null for a full scan */
+    public IndexPredicate getIndexPredicate() {
+        return ipred;
+    }
+
+    /** @return the predicate bounding this scan from above, or null */
+    public IndexPredicate getUpperBound() {
+        return upper;
+    }
+
+    /** @return the name of the table this operator scans, as in the catalog */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return true if this scan does not read the table */
+    public boolean isIndexOnly() {
+        return indexOnly;
+    }
+
+    /**
+     * @return the number of RecordIds found in the index by the last open;
+     *         an index-only scan does not count them in advance
+     */
+    public int numMatches() {
+        return numRids;
+    }
+
+    /**
+     * Run this scan as part of another transaction. Used to execute a cached
+     * plan again; the scan must be closed.
+     */
+    void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one OpIterator.");
+        BTreeFile file = index.getFile();
+        DbFileIterator it = ipred == null ? file.iterator(tid) : file.indexIterator(tid, ipred);
+        numRids = 0;
+        pos = 0;
+        page = null;
+        next = null;
+        it.open();
+        isOpen = true;
+        if (indexOnly) {
+            entries = it;
+            return;
+        }
+        rids = new long[64];
+        try {
+            Tuple entry;
+            while ((entry = nextEntry(it)) != null) {
+                if (numRids == rids.length)
+                    rids = Arrays.copyOf(rids, 2 * numRids);
+                rids[numRids++] = ((long) ((IntField) entry.getField(index.pageNoField())).getValue() << 32)
+                        | ((IntField) entry.getField(index.pageNoField() + 1)).getValue();
+            }
+        } finally {
+            it.close();
+        }
+        Arrays.sort(rids, 0, numRids);
+    }
+
+    /**
+     * @return the next entry of it within the upper bound, or null
+     */
+    private Tuple nextEntry(DbFileIterator it) throws DbException, TransactionAbortedException {
+        if (!it.hasNext())
+            return null;
+        Tuple entry = it.next();
+        if (upper != null && !entry.getField(0).compare(upper.getOp(), upper.getField()))
+            return null; // keys are sorted, so no later entry is in range either
+        return entry;
+    }
+
+    /**
+     * @return the tuple of the table an index entry describes, with the
+     *         fields the index does not store set to 0 or the empty string
+     */
+    private Tuple fromEntry(Tuple entry) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            int f = index.entryField(i);
+            if (f >= 0)
+                t.setField(i, entry.getField(f));
+            else if (td.getFieldType(i) == Type.INT_TYPE)
+                t.setField(i, new IntField(0));
+            else
+                t.setField(i, new StringField("", Type.STRING_LEN));
+        }
+        t.setRecordId(index.recordIdOf(entry));
+        return t;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (indexOnly) {
+            if (next == null && entries != null) {
+                Tuple entry = nextEntry(entries);
+                if (entry != null) {
+                    next = fromEntry(entry);
+                } else {
+                    entries.close();
+                    entries = null;
+                }
+            }
+            return next != null;
+        }
+        while (next == null && pos < numRids) {
+            int pgNo = (int) (rids[pos] >>> 32);
+            int slot = (int) rids[pos++];
+            if (page == null || page.getId().getPageNumber() != pgNo) {
+                page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(index.getTableId(), pgNo), Permissions.READ_ONLY);
+            }
+            next = page.getTuple(slot);
+        }
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = next;
+        next = null;
+        return t;
+    }
+
+    /**
+     * Start over from the first RecordId found by open, without searching the
+     * index again. An index-only scan reads its entries again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        if (indexOnly) {
+            close();
+            open();
+            return;
+        }
+        pos = 0;
+        page = null;
+        next = null;
+    }
+
+    public void close() {
+        if (entries != null)
+            entries.close();
+        entries = null;
+        isOpen = false;
+        rids = null;
+        page = null;
+        next = null;
+    }
+}
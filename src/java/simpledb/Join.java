@@ -161,6 +161,8 @@ public class Join extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         this.children = children;
+        this.child1 = children[0];
+        this.child2 = children[1];
     }
 
 }
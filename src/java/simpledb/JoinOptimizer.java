@@ -11,6 +11,17 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+
+    /**
+     * Queries joining more tables than this are ordered greedily rather than
+     * by exhaustive dynamic programming, which is exponential in the number
+     * of joins.
+     */
+    static final int MAX_DP_TABLES = 12;
+
+    /** Hard limit on the number of joins ordered by dynamic programming. */
+    static final int MAX_DP_JOINS = 16;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
@@ -48,6 +59,11 @@ public class JoinOptimizer {
         int t1id = 0, t2id = 0;
         OpIterator j;
 
+        if (lj instanceof LogicalSubplanJoinNode
+                && ((LogicalSubplanJoinNode) lj).isSemiJoin()) {
+            return instantiateSemiJoin((LogicalSubplanJoinNode) lj, plan1, plan2);
+        }
+
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
         } catch (NoSuchElementException e) {
@@ -68,12 +84,133 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // equality joins build a hash table on plan1 and probe it with plan2
+        if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * The largest fraction of the probe tuples of a hash join expected to
+     * find a match for which the join publishes a Bloom filter; above it, the
+     * filter would drop too few tuples to pay for its lookups.
+     */
+    public static final double BLOOM_MAX_MATCH_FRACTION = 0.5;
+
+    /**
+     * Choose the false-positive probability of the Bloom filter a hash join
+     * publishes to its probe side. Under the containment assumption, a
+     * fraction min(1, buildDistinct / probeDistinct) of the probe tuples has
+     * a match; false positives are kept to about a tenth of those matches.
+     *
+     * @param buildDistinct estimated distinct join keys of the build side
+     * @param probeDistinct estimated distinct join keys of the probe side
+     * @return the false-positive probability, or 0 if no filter should be
+     *         published
+     */
+    public static double bloomFilterFpp(double buildDistinct, double probeDistinct) {
+        if (buildDistinct <= 0 || probeDistinct <= 0)
+            return 0;
+        double match = Math.min(1.0, buildDistinct / probeDistinct);
+        if (match > BLOOM_MAX_MATCH_FRACTION)
+            return 0;
+        return Math.max(0.001, Math.min(0.1, 0.1 * match));
+    }
+
+    /**
+     * Choose the false-positive probability of the Bloom filter of the hash
+     * join instantiated for j, from the distinct counts of the join fields.
+     * The build side has at most as many distinct keys as tuples left after
+     * its filters.
+     *
+     * @return the false-positive probability, or 0 for no filter
+     */
+    public double bloomFilterFpp(LogicalJoinNode j, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return 0;
+        TableStats s1 = statsFor(j.t1Alias, stats, p.getTableAliasToIdMapping());
+        TableStats s2 = statsFor(j.t2Alias, stats, p.getTableAliasToIdMapping());
+        int f1 = fieldIndex(s1, j.f1PureName);
+        int f2 = fieldIndex(s2, j.f2PureName);
+        if (f1 < 0 || f2 < 0)
+            return 0;
+        Double sel = filterSelectivities.get(j.t1Alias);
+        double buildDistinct = Math.min(s1.distinctCount(f1),
+                s1.estimateTableCardinality(sel == null ? 1.0 : sel));
+        return bloomFilterFpp(buildDistinct, s2.distinctCount(f2));
+    }
+
+    /**
+     * Decide whether the inner side of a nested loops join should be spooled
+     * by a {@link Materialize}. Rerunning the inner plan for each of the
+     * outer tuples costs outerCard * innerCost; spooling it costs one run,
+     * writing innerCard tuples once, and reading them back for every outer
+     * tuple.
+     *
+     * @param outerCard estimated cardinality of the outer side
+     * @param innerCost estimated cost of one run of the inner plan
+     * @param innerCard estimated cardinality of the inner plan
+     * @return true if spooling the inner side is cheaper
+     */
+    public static boolean shouldMaterialize(double outerCard, double innerCost, int innerCard) {
+        if (outerCard < 2)
+            return false;
+        double tupleCost = CostModel.cpuTupleCost() * TableStats.IOCOSTPERPAGE;
+        double recompute = outerCard * innerCost;
+        double spool = innerCost + (outerCard + 1) * innerCard * tupleCost;
+        return spool < recompute;
+    }
+
+    /**
+     * Decide whether the join instantiated for j should read its inner side,
+     * inner, through a {@link Materialize}. Only nested loops joins rescan
+     * their inner side, and a bare scan is already served from the
+     * BufferPool, so only filtered scans, joins and subplans are spooled.
+     */
+    public boolean materializeInner(LogicalJoinNode j, OpIterator inner,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        if (j.p == Predicate.Op.EQUALS
+                || (j instanceof LogicalSubplanJoinNode && ((LogicalSubplanJoinNode) j).isSemiJoin()))
+            return false;
+        if (inner instanceof SeqScan && ((SeqScan) inner).getPredicates().isEmpty())
+            return false;
+        if (inner instanceof BTreeScan || inner instanceof HashScan)
+            return false;
+        Side outer = baseSide(j.t1Alias, j.f1PureName, stats, filterSelectivities);
+        Side in = innerSide(j, stats, filterSelectivities);
+        return shouldMaterialize(outer.card, in.cost, in.card);
+    }
+
+    /**
+     * Build a hash semi-join or anti-join of plan1 with the subplan of lj,
+     * matching the join field of plan1 with the first field of the subplan.
+     */
+    private static OpIterator instantiateSemiJoin(LogicalSubplanJoinNode lj,
+            OpIterator plan1, OpIterator plan2) throws ParsingException {
+        boolean anti = lj.kind == LogicalSubplanJoinNode.Kind.ANTI;
+        if (lj.f1PureName == null)
+            return new SemiJoin(null, plan1, plan2, anti);
+
+        int t1id;
+        try {
+            t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        if (plan2.getTupleDesc().getFieldType(0) != plan1.getTupleDesc().getFieldType(t1id)) {
+            throw new ParsingException("Subquery compared to " + lj.f1QuantifiedName
+                    + " returns a field of a different type");
+        }
+        return new SemiJoin(new JoinPredicate(t1id, Predicate.Op.EQUALS, 0),
+                plan1, plan2, anti);
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -103,18 +240,39 @@ public class JoinOptimizer {
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
-            return card1 + cost1 + cost2;
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) j;
+            if (sj.isSemiJoin()) {
+                // SemiJoin runs the subplan once to build a hash set of its
+                // values, then probes the set once per outer tuple
+                return cost1 + cost2 + (double) (card1 + card2) * pairCost();
+            }
+            // a join with a subplan is a nested loops Join, which reruns the
+            // subplan for every outer tuple
+            return cost1 + (double) card1 * cost2
+                    + (double) card1 * card2 * pairCost();
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // equality joins run as a HashEquiJoin, which scans each side
+            // once, inserting the outer tuples into a hash table and probing
+            // it with the inner ones
+            return cost1 + cost2 + (double) (card1 + card2) * pairCost();
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + cost2 + card1*card2;
+            // Join is a tuple-at-a-time nested loops join: the inner side is
+            // rescanned once per outer tuple, and the predicate is applied
+            // to every pair
+            return cost1 + (double) card1 * cost2
+                    + (double) card1 * card2 * pairCost();
         }
     }
 
+    /**
+     * @return the cost of evaluating a join predicate on one pair of tuples,
+     *         in the units of the scan costs of tables using the default
+     *         I/O cost per page
+     */
+    static double pairCost() {
+        return CostModel.cpuPredicateCost() * TableStats.IOCOSTPERPAGE;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -137,9 +295,14 @@ public class JoinOptimizer {
     public int estimateJoinCardinality(LogicalJoinNode j, int card1, int card2,
             boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
-            return card1;
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) j;
+            if (!sj.isSemiJoin())
+                return card1;
+            TableStats s1 = statsFor(j.t1Alias, stats, p.getTableAliasToIdMapping());
+            int f1 = fieldIndex(s1, j.f1PureName);
+            double distinct1 = f1 < 0 ? -1 : s1.distinctCount(f1);
+            return estimateSemiJoinCardinality(sj.kind == LogicalSubplanJoinNode.Kind.ANTI,
+                    j.f1PureName == null, card1, distinct1, card2);
         } else {
             return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
                     j.f1PureName, j.f2PureName, card1, card2, t1pkey, t2pkey,
@@ -147,6 +310,36 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * Estimate the cardinality of a semi-join (IN, EXISTS) or an anti-join
+     * (NOT IN, NOT EXISTS) of card1 outer tuples with a subquery returning
+     * card2 tuples. The subquery has at most card2 distinct values; assuming
+     * each of them is one of the distinct1 values of the outer field, a
+     * fraction min(1, card2 / distinct1) of the outer tuples has a match,
+     * and the rest are returned by the anti-join. Without statistics on the
+     * outer field, half of the outer tuples are assumed to match.
+     *
+     * @param anti true for an anti-join
+     * @param keyless true for an uncorrelated EXISTS, which passes every
+     *        outer tuple or none
+     * @param card1 cardinality of the outer input
+     * @param distinct1 distinct values of the outer join field, or a
+     *        negative value if unknown
+     * @param card2 cardinality of the subquery
+     */
+    public static int estimateSemiJoinCardinality(boolean anti, boolean keyless,
+            int card1, double distinct1, int card2) {
+        double matching;
+        if (keyless)
+            matching = card2 > 0 ? 1.0 : 0.0;
+        else if (distinct1 > 0)
+            matching = Math.min(1.0, card2 / Math.min(distinct1, Math.max(card1, 1)));
+        else
+            matching = 0.5;
+        double card = card1 * (anti ? 1.0 - matching : matching);
+        return (int) Math.round(card);
+    }
+
     /**
      * Estimate the join cardinality of two tables.
      * */
@@ -157,10 +350,147 @@ public class JoinOptimizer {
             Map<String, Integer> tableAliasToId) {
         int card = 1;
         // some code goes here
-        card = Math.max(card1,card2);
+        TableStats s1 = statsFor(table1Alias, stats, tableAliasToId);
+        TableStats s2 = statsFor(table2Alias, stats, tableAliasToId);
+        int f1 = fieldIndex(s1, field1PureName);
+        int f2 = fieldIndex(s2, field2PureName);
+        boolean haveStats = f1 >= 0 && f2 >= 0;
+
+        double estimate;
+        switch (joinOp) {
+            case EQUALS:
+            case LIKE:
+                if (t1pkey && t2pkey) {
+                    estimate = Math.min(card1, card2);
+                } else if (t1pkey) {
+                    // every tuple of the foreign key side matches at most one
+                    // key
+                    estimate = card2;
+                } else if (t2pkey) {
+                    estimate = card1;
+                } else if (haveStats) {
+                    estimate = equiJoinCardinality(s1, f1, card1, s2, f2, card2);
+                } else {
+                    estimate = Math.max(card1, card2);
+                }
+                break;
+            case NOT_EQUALS:
+                estimate = (double) card1 * card2;
+                if (haveStats)
+                    estimate -= equiJoinCardinality(s1, f1, card1, s2, f2, card2);
+                break;
+            default:
+                estimate = (double) card1 * card2
+                        * (haveStats ? rangeJoinSelectivity(joinOp, s1, f1, s2, f2)
+                                : DEFAULT_RANGE_JOIN_SELECTIVITY);
+                break;
+        }
+        card = (int) Math.min(Integer.MAX_VALUE, Math.round(estimate));
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * Selectivity of an inequality join when no histograms are available
+     * for its columns.
+     */
+    static final double DEFAULT_RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /** Number of slices of the inner value range used to cost range joins. */
+    static final int RANGE_JOIN_SLICES = 32;
+
+    private static TableStats statsFor(String alias,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        if (alias == null || stats == null || tableAliasToId == null)
+            return null;
+        Integer tableId = tableAliasToId.get(alias);
+        if (tableId == null)
+            return null;
+        try {
+            return stats.get(Database.getCatalog().getTableName(tableId));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the index of the field in the table described by s, or -1 if
+     *         s is null or has no such field
+     */
+    private static int fieldIndex(TableStats s, String pureName) {
+        if (s == null || pureName == null)
+            return -1;
+        try {
+            return s.tupleDesc.fieldNameToIndex(pureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Estimate an equi-join as card1 * card2 / max(d1, d2), where d1 and d2
+     * are the distinct values of each column. For integer columns, only the
+     * part of each column falling in the range of values the two columns
+     * share can find a match, so both the cardinalities and the distinct
+     * counts are first restricted to that overlap using the histograms.
+     */
+    private static double equiJoinCardinality(TableStats s1, int f1, int card1,
+            TableStats s2, int f2, int card2) {
+        double d1 = Math.min(s1.distinctCount(f1), card1);
+        double d2 = Math.min(s2.distinctCount(f2), card2);
+        double c1 = card1;
+        double c2 = card2;
+        Histogram h1 = s1.histogram(f1);
+        Histogram h2 = s2.histogram(f2);
+        if (h1 instanceof EquiDepthHistogram && h2 instanceof EquiDepthHistogram) {
+            int lo = Math.max(s1.minValue(f1), s2.minValue(f2));
+            int hi = Math.min(s1.maxValue(f1), s2.maxValue(f2));
+            if (lo > hi)
+                return 0;
+            double frac1 = rangeFraction(h1, lo, hi);
+            double frac2 = rangeFraction(h2, lo, hi);
+            c1 *= frac1;
+            c2 *= frac2;
+            d1 *= frac1;
+            d2 *= frac2;
+        }
+        return c1 * c2 / Math.max(1.0, Math.max(d1, d2));
+    }
+
+    /** @return the fraction of the values in h falling in [lo, hi] */
+    private static double rangeFraction(Histogram h, int lo, int hi) {
+        double f = h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, lo)
+                - h.estimateSelectivity(Predicate.Op.GREATER_THAN, hi);
+        return Math.max(0.0, Math.min(1.0, f));
+    }
+
+    /**
+     * Estimate the fraction of pairs satisfying t1.f1 op t2.f2 for a range
+     * operator by slicing the range of f2 and weighing the selectivity of
+     * f1 op v, with v the middle of each slice, by the fraction of f2 in the
+     * slice.
+     */
+    private static double rangeJoinSelectivity(Predicate.Op op, TableStats s1,
+            int f1, TableStats s2, int f2) {
+        Histogram h1 = s1.histogram(f1);
+        Histogram h2 = s2.histogram(f2);
+        if (!(h1 instanceof EquiDepthHistogram && h2 instanceof EquiDepthHistogram))
+            return DEFAULT_RANGE_JOIN_SELECTIVITY;
+        long min = s2.minValue(f2);
+        long width = (long) s2.maxValue(f2) - min + 1;
+        if (width <= 0)
+            return DEFAULT_RANGE_JOIN_SELECTIVITY;
+        int slices = (int) Math.min(RANGE_JOIN_SLICES, width);
+        double sel = 0;
+        for (int i = 0; i < slices; i++) {
+            int from = (int) (min + width * i / slices);
+            int to = (int) (min + width * (i + 1) / slices - 1);
+            double mass = rangeFraction(h2, from, to);
+            int mid = (int) (((long) from + to) / 2);
+            sel += mass * h1.estimateSelectivity(op, mid);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -208,8 +538,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed. In a bushy plan both subtrees of
+     *         a join are listed, outer first, before the join itself.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -221,11 +552,297 @@ public class JoinOptimizer {
         //Not necessary for labs 1--3
 
         // some code goes here
-        //Replace the following
-        return joins;
+        if (joins.size() <= 1) {
+            return joins;
+        }
+
+        Set<String> aliases = new HashSet<String>();
+        for (LogicalJoinNode j : joins) {
+            aliases.add(j.t1Alias);
+            if (j.t2Alias != null)
+                aliases.add(j.t2Alias);
+        }
+
+        Vector<LogicalJoinNode> order = null;
+        PlanCache pc = null;
+        if (aliases.size() <= MAX_DP_TABLES && joins.size() <= MAX_DP_JOINS) {
+            pc = new PlanCache(joins.size());
+            order = orderJoinsDP(stats, filterSelectivities, pc);
+        }
+        if (order == null) {
+            pc = new PlanCache();
+            order = orderJoinsGreedy(stats, filterSelectivities, pc);
+        }
+
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
+    }
+
+    /**
+     * Estimated cost, cardinality and primary-key flag of one side of a join.
+     */
+    private static class Side {
+        double cost;
+        int card;
+        boolean pkey;
+
+        Side(double cost, int card, boolean pkey) {
+            this.cost = cost;
+            this.card = card;
+            this.pkey = pkey;
+        }
+    }
+
+    /**
+     * @return the cost of scanning a base table after its filters, or of a
+     *         subquery when alias is null
+     */
+    private Side baseSide(String alias, String field,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        if (alias == null)
+            return new Side(0, 0, false);
+        Integer tableId = this.p.getTableId(alias);
+        if (tableId == null)
+            throw new ParsingException("Unknown table " + alias);
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        Double sel = filterSelectivities.get(alias);
+        if (s == null || sel == null)
+            throw new ParsingException("Missing statistics for table " + alias);
+        return new Side(s.estimateCachedScanCost(), s.estimateTableCardinality(sel),
+                isPkey(alias, field));
+    }
+
+    /**
+     * @return the cost of the inner side of j when it is a base table, or of
+     *         running its subplan once
+     */
+    private Side innerSide(LogicalJoinNode j,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        if (j instanceof LogicalSubplanJoinNode) {
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) j;
+            return new Side(sj.subplanCost, sj.subplanCard, false);
+        }
+        return baseSide(j.t2Alias, j.f2PureName, stats, filterSelectivities);
     }
 
-    // ===================== Private Methods =================================
+    /**
+     * Selinger-style dynamic programming over subsets of joins, represented
+     * as bitmasks over the join list. Subsets are visited in increasing
+     * numeric order, so every proper subset of a mask has been planned
+     * before the mask itself. A subset is planned by choosing its last join
+     * j: the remaining joins fall into the subplan connected to j's outer
+     * table and the one connected to its inner table, either of which may be
+     * a single base table. When both are joins the plan is bushy. A join
+     * whose tables are both covered by the remaining joins closes a cycle
+     * and is placed after them.
+     *
+     * @return the best order, or null if the joins are not connected
+     */
+    private Vector<LogicalJoinNode> orderJoinsDP(
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc)
+            throws ParsingException {
+        int n = joins.size();
+
+        // tables touched by each join, as bitmasks over the aliases
+        HashMap<String, Integer> aliasIndex = new HashMap<String, Integer>();
+        long[] t1Bits = new long[n];
+        long[] t2Bits = new long[n];
+        Side[] outerBase = new Side[n];
+        Side[] innerBase = new Side[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.elementAt(i);
+            t1Bits[i] = aliasBit(aliasIndex, j.t1Alias);
+            t2Bits[i] = j.t2Alias == null ? 0 : aliasBit(aliasIndex, j.t2Alias);
+            outerBase[i] = baseSide(j.t1Alias, j.f1PureName, stats, filterSelectivities);
+            innerBase[i] = innerSide(j, stats, filterSelectivities);
+        }
+
+        int full = (1 << n) - 1;
+        for (int mask = 1; mask <= full; mask++) {
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if ((mask & (1 << i)) == 0)
+                    continue;
+                int rest = mask & ~(1 << i);
+                int outer = component(rest, t1Bits[i], t1Bits, t2Bits);
+                int inner = t2Bits[i] == 0 ? 0 : component(rest, t2Bits[i], t1Bits, t2Bits);
+                LogicalJoinNode j = joins.elementAt(i);
+                if (rest != 0 && outer == rest && inner == rest) {
+                    // j closes a cycle: both of its tables are already in
+                    // the plan for rest, so it only filters that plan
+                    if (!pc.hasPlan(rest))
+                        continue;
+                    double cost = pc.getCost(rest) + pc.getCard(rest) * pairCost();
+                    if (cost >= bestCost)
+                        continue;
+                    bestCost = cost;
+                    int card = estimateJoinCardinality(j, pc.getCard(rest),
+                            pc.getCard(rest), pc.getPkey(rest), pc.getPkey(rest), stats);
+                    pc.addPlan(mask, cost, Math.min(card, pc.getCard(rest)),
+                            pc.getPkey(rest), i, rest, false);
+                    continue;
+                }
+                // otherwise the rest must split exactly into the two sides,
+                // or the subset is disconnected
+                if ((outer & inner) != 0 || (outer | inner) != rest)
+                    continue;
+                if ((outer != 0 && !pc.hasPlan(outer)) || (inner != 0 && !pc.hasPlan(inner)))
+                    continue;
+
+                Side left = outer == 0 ? outerBase[i]
+                        : new Side(pc.getCost(outer), pc.getCard(outer), pc.getPkey(outer));
+                Side right = inner == 0 ? innerBase[i]
+                        : new Side(pc.getCost(inner), pc.getCard(inner), pc.getPkey(inner));
+
+                boolean swapped = false;
+                double cost = estimateJoinCost(j, left.card, right.card, left.cost, right.cost);
+                if (j.t2Alias != null) {
+                    LogicalJoinNode j2 = j.swapInnerOuter();
+                    double cost2 = estimateJoinCost(j2, right.card, left.card, right.cost, left.cost);
+                    if (cost2 < cost) {
+                        cost = cost2;
+                        swapped = true;
+                    }
+                }
+                if (cost >= bestCost)
+                    continue;
+                bestCost = cost;
+                int card = swapped
+                        ? estimateJoinCardinality(j.swapInnerOuter(), right.card, left.card, right.pkey, left.pkey, stats)
+                        : estimateJoinCardinality(j, left.card, right.card, left.pkey, right.pkey, stats);
+                pc.addPlan(mask, cost, card, left.pkey || right.pkey, i,
+                        swapped ? inner : outer, swapped);
+            }
+        }
+        if (!pc.hasPlan(full))
+            return null;
+        return pc.getOrder(full, joins);
+    }
+
+    private static long aliasBit(HashMap<String, Integer> aliasIndex, String alias) {
+        Integer idx = aliasIndex.get(alias);
+        if (idx == null) {
+            idx = aliasIndex.size();
+            aliasIndex.put(alias, idx);
+        }
+        return 1L << idx;
+    }
+
+    /**
+     * @return the joins of mask connected, directly or through other joins
+     *         of mask, to the given tables
+     */
+    private static int component(int mask, long tables, long[] t1Bits, long[] t2Bits) {
+        int comp = 0;
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (int i = 0; i < t1Bits.length; i++) {
+                int bit = 1 << i;
+                if ((mask & bit) != 0 && (comp & bit) == 0
+                        && ((t1Bits[i] | t2Bits[i]) & tables) != 0) {
+                    comp |= bit;
+                    tables |= t1Bits[i] | t2Bits[i];
+                    grew = true;
+                }
+            }
+        }
+        return comp;
+    }
+
+    /**
+     * Greedy left-deep ordering for queries too large for dynamic
+     * programming: start from the cheapest single join, then repeatedly
+     * append the cheapest join that brings one more table into the plan.
+     * Joins whose tables are both already in the plan, and joins not
+     * connected to it, are appended at the end in their original order.
+     * The cost and cardinality of every prefix of the order are recorded in
+     * pc, as the dynamic program does, so the plan can be printed.
+     */
+    private Vector<LogicalJoinNode> orderJoinsGreedy(
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc)
+            throws ParsingException {
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        boolean[] used = new boolean[joins.size()];
+        Set<String> inPlan = new HashSet<String>();
+        Side plan = null;
+        while (true) {
+            int best = -1;
+            boolean bestSwapped = false;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < joins.size(); i++) {
+                LogicalJoinNode j = joins.elementAt(i);
+                if (used[i])
+                    continue;
+                boolean has1 = inPlan.contains(j.t1Alias);
+                boolean has2 = j.t2Alias != null && inPlan.contains(j.t2Alias);
+                if (plan != null && has1 == has2)
+                    continue;
+                Side left = has1 ? plan : baseSide(j.t1Alias, j.f1PureName, stats, filterSelectivities);
+                Side right = has2 ? plan : innerSide(j, stats, filterSelectivities);
+                double cost = estimateJoinCost(j, left.card, right.card, left.cost, right.cost);
+                if (cost < bestCost) {
+                    best = i;
+                    bestCost = cost;
+                    bestSwapped = false;
+                }
+                if (j.t2Alias != null) {
+                    double cost2 = estimateJoinCost(j.swapInnerOuter(), right.card, left.card, right.cost, left.cost);
+                    if (cost2 < bestCost) {
+                        best = i;
+                        bestCost = cost2;
+                        bestSwapped = true;
+                    }
+                }
+            }
+            if (best < 0)
+                break;
+
+            used[best] = true;
+            LogicalJoinNode j = joins.elementAt(best);
+            boolean has1 = inPlan.contains(j.t1Alias);
+            boolean has2 = j.t2Alias != null && inPlan.contains(j.t2Alias);
+            Side left = has1 ? plan : baseSide(j.t1Alias, j.f1PureName, stats, filterSelectivities);
+            Side right = has2 ? plan : innerSide(j, stats, filterSelectivities);
+            int card;
+            if (bestSwapped) {
+                j = j.swapInnerOuter();
+                card = estimateJoinCardinality(j, right.card, left.card, right.pkey, left.pkey, stats);
+            } else {
+                card = estimateJoinCardinality(j, left.card, right.card, left.pkey, right.pkey, stats);
+            }
+            order.addElement(j);
+            inPlan.add(j.t1Alias);
+            if (j.t2Alias != null)
+                inPlan.add(j.t2Alias);
+            plan = new Side(bestCost, card, left.pkey || right.pkey);
+            addGreedyPlan(pc, order, plan);
+        }
+        for (int i = 0; i < joins.size(); i++) {
+            if (!used[i]) {
+                order.addElement(joins.elementAt(i));
+                // the join only filters the plan built so far, applying its
+                // predicate once per tuple
+                if (plan != null)
+                    plan = new Side(plan.cost + plan.card * pairCost(), plan.card, plan.pkey);
+                else
+                    plan = new Side(0, 0, false);
+                addGreedyPlan(pc, order, plan);
+            }
+        }
+        return order;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addGreedyPlan(PlanCache pc, Vector<LogicalJoinNode> order, Side plan) {
+        pc.addPlan(new HashSet<LogicalJoinNode>(order), plan.cost, plan.card,
+                (Vector<LogicalJoinNode>) order.clone());
+    }
 
     /**
      * This is a helper method that computes the cost and cardinality of joining
@@ -290,13 +907,13 @@ public class JoinOptimizer {
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = stats.get(table1Name).estimateCachedScanCost();
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
             t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+                    .estimateCachedScanCost();
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
@@ -324,7 +941,7 @@ public class JoinOptimizer {
                 leftPkey = hasPkey(prevBest);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                        .estimateCachedScanCost();
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -338,7 +955,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = stats.get(table1Name).estimateCachedScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
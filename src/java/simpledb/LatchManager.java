@@ -0,0 +1,71 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LatchManager hands out short-term page latches. Unlike the locks of the
+ * LockManager, a latch belongs to a thread rather than a transaction and is
+ * held only while a page is read or restructured, never until commit.
+ * Latches are not checked for deadlock, so callers must acquire them in a
+ * fixed order (top-down in a B+ tree), or use {@link #tryLatch} and give up
+ * when the latch is not granted in time.
+ */
+public class LatchManager {
+
+    private final Map<PageId, ReentrantReadWriteLock> pageIdToLatch = new ConcurrentHashMap<>();
+
+    private ReentrantReadWriteLock getLatch(PageId pid) {
+        return pageIdToLatch.computeIfAbsent(pid, p -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Latch a page, blocking until the latch is available.
+     *
+     * @param pid the page to latch
+     * @param perm READ_ONLY for a shared latch, READ_WRITE for an exclusive one
+     */
+    public void latch(PageId pid, Permissions perm) {
+        if(perm.equals(Permissions.READ_ONLY)){
+            getLatch(pid).readLock().lock();
+        }else {
+            getLatch(pid).writeLock().lock();
+        }
+    }
+
+    /**
+     * Latch a page, waiting at most timeout milliseconds for the latch.
+     *
+     * @param pid the page to latch
+     * @param perm READ_ONLY for a shared latch, READ_WRITE for an exclusive one
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return true if the latch was granted
+     */
+    public boolean tryLatch(PageId pid, Permissions perm, long timeout) {
+        try {
+            if(perm.equals(Permissions.READ_ONLY)){
+                return getLatch(pid).readLock().tryLock(timeout, TimeUnit.MILLISECONDS);
+            }
+            return getLatch(pid).writeLock().tryLock(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Release a latch taken by this thread with {@link #latch}.
+     *
+     * @param pid the latched page
+     * @param perm the permissions the latch was taken with
+     */
+    public void unlatch(PageId pid, Permissions perm) {
+        if(perm.equals(Permissions.READ_ONLY)){
+            getLatch(pid).readLock().unlock();
+        }else {
+            getLatch(pid).writeLock().unlock();
+        }
+    }
+
+}
@@ -7,6 +7,9 @@ import java.util.concurrent.locks.*;
 
 public class LockManager {
 
+    /** Milliseconds a transaction waits for a lock before it is aborted. */
+    public static final long LOCK_TIMEOUT = 1000;
+
     public Map<PageId, ReadWriteLock> pageIdToLock = new ConcurrentHashMap<>();
     public Map<PageId,PageLock> pageIdToSLock = new ConcurrentHashMap<>();
     public Map<PageId,PageLock> pageIdToXLock = new ConcurrentHashMap<>();
@@ -100,14 +103,16 @@ public class LockManager {
         PageLock wlock = new PageLock(pid,Permissions.READ_WRITE);
 
 
-        //r -> w
+        //r -> w, unless another transaction waits for the page: a writer may
+        //already hold the underlying lock, so wait for it with a timeout below
         Set<TransactionId> txIds = pageLockToTids.get(rlock);
         Set<TransactionId> expectedTxIds = pageLockToExpectedTid.get(rlock);
         if(txIds != null
                 && perm.equals(Permissions.READ_WRITE)
                 && txIds.contains(tid)
                 && txIds.size() == 1
-                && expectedTxIds == null)
+                && expectedTxIds == null
+                && !pageLockToExpectedTid.containsKey(wlock))
         {
            // System.out.println("lock: "+pageLock);
 
@@ -148,6 +153,15 @@ public class LockManager {
             return;
 
         }else {
+            //r -> r: read locks are not reentrant, so never take a second hold
+            txIds = pageLockToTids.get(rlock);
+            if(txIds != null
+                    && perm.equals(Permissions.READ_ONLY)
+                    && txIds.contains(tid))
+            {
+                xlock.unlock();
+                return;
+            }
             //w -> w/r
             txIds = pageLockToTids.get(wlock);
             if(txIds != null
@@ -175,7 +189,7 @@ public class LockManager {
 
         //pageLock.lock();
         try {
-            if(!pageLock.lock.tryLock(1, TimeUnit.SECONDS)){
+            if(!pageLock.lock.tryLock(LOCK_TIMEOUT, TimeUnit.MILLISECONDS)){
                 xlock.lock();
                 pageLockToExpectedTid.get(pageLock).remove(tid);
                 if(pageLockToExpectedTid.get(pageLock).size() == 0){
@@ -286,14 +300,16 @@ public class LockManager {
         PageLock pageLock;
         pageLock = pageIdToSLock.get(pid);
         if(pageLock != null){
-            if(pageLockToTids.get(pageLock).contains(tid)){
+            Set<TransactionId> tids = pageLockToTids.get(pageLock);
+            if(tids != null && tids.contains(tid)){
                 flag = true;
             }
         }
 
         pageLock = pageIdToXLock.get(pid);
         if(pageLock != null){
-            if(pageLockToTids.get(pageLock).contains(tid)){
+            Set<TransactionId> tids = pageLockToTids.get(pageLock);
+            if(tids != null && tids.contains(tid)){
                 flag = true;
             }
         }
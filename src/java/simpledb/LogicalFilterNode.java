@@ -20,6 +20,9 @@ public class LogicalFilterNode {
     public String fieldPureName;
     
     public String fieldQuantifiedName;
+
+    /** The index of the parameter the filter compares against, or -1 if it compares against c */
+    public int parameter = -1;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
         tableAlias = table;
@@ -32,4 +35,10 @@ public class LogicalFilterNode {
             fieldPureName=field;
         this.fieldQuantifiedName = tableAlias+"."+fieldPureName;
     }
+
+    /** Create a filter comparing the field against a parameter bound when the plan is executed */
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, int parameter) {
+        this(table, field, pred, (String) null);
+        this.parameter = parameter;
+    }
 }
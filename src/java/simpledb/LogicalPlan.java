@@ -5,16 +5,19 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * LogicalPlans can represent any number of aggregates over any number
+ * of group by fields; all of them are computed by a single Aggregate
+ * operator.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,13 +32,20 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
     private boolean oByAsc, hasOrderBy = false;
+    // set by physicalPlan if the scan of the only table returns the tuples in
+    // the order of the ORDER BY clause
+    private boolean orderedScan = false;
     private String oByField;
     private String query;
+    private int numParameters = 0;
+    private PlanParameter[] parameters = new PlanParameter[0];
+    private double estimatedCost = 0;
+    private int estimatedCardinality = 0;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -105,6 +115,43 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a filter comparing a field against a parameter of the query,
+     *   whose value is bound each time the physical plan is executed.
+     *   Parameters are numbered from 0 in the order they are added.
+     *   @param field The name of the over which the filter applies (see {@link #addFilter})
+     *   @param p The predicate for the filter
+     *   @return the index of the new parameter
+     *   @throws ParsingException if field is unknown or ambiguous
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        LogicalFilterNode lf = new LogicalFilterNode(table, field.split("[.]")[1], p, numParameters);
+        filters.addElement(lf);
+        return numParameters++;
+    }
+
+    /** @return the number of parameters added via {@link #addParameterFilter} */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /** Get the parameters of the physical plan built by the last call to
+     *   {@link #physicalPlan}, indexed by their position in the query.
+     *   Binding a value to a parameter changes the predicates that use it.
+     */
+    public PlanParameter[] getParameters() {
+        return parameters;
+    }
+
+    /** @return the parameter compared against by lf, created on first use */
+    private PlanParameter parameter(LogicalFilterNode lf, Type type) {
+        if (parameters[lf.parameter] == null)
+            parameters[lf.parameter] = new PlanParameter(lf.parameter, type);
+        return parameters[lf.parameter];
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -146,16 +193,77 @@ public class LogicalPlan {
      *      or is not in one of the tables added via {@link #addScan}
      */
     public void addJoin(String joinField1, OpIterator joinField2, Predicate.Op pred) throws ParsingException {
+        addJoin(joinField1, joinField2, pred, 0, 0);
+    }
+
+    /** Add a join between a field and a subquery, with estimates of the
+     *  subquery's cost and cardinality for the {@link JoinOptimizer}.
+     *  @see #addJoin(String, OpIterator, Predicate.Op)
+     */
+    public void addJoin(String joinField1, OpIterator joinField2, Predicate.Op pred,
+            double subplanCost, int subplanCard) throws ParsingException {
         joinField1 = disambiguateName(joinField1);
 
         String table1 = joinField1.split("[.]")[0];
         String pureField = joinField1.split("[.]")[1];
 
         LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1,pureField, joinField2, pred);
+        lj.subplanCost = subplanCost;
+        lj.subplanCard = subplanCard;
         System.out.println("Added subplan join on " + joinField1);
         joins.addElement(lj);
     }
 
+    /** Add a semi-join (IN, EXISTS) or an anti-join (NOT IN, NOT EXISTS)
+     *  between a field and a subquery; it keeps the tuples whose value of
+     *  the field does, or does not, appear in the first field of the
+     *  subquery's result.
+     *  @param joinField1 The name of the field, resolved as in
+     *  {@link #addJoin(String, OpIterator, Predicate.Op)}, or null to only
+     *  test whether the subquery returns any tuple
+     *  @param subplan the physical plan of the subquery
+     *  @param anti true for an anti-join
+     *  @param subplanCost estimated cost of running the subplan once
+     *  @param subplanCard estimated cardinality of the subplan
+     *  @throws ParsingException if the field is ambiguous or unknown, or the
+     *      plan has no table
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, boolean anti,
+            double subplanCost, int subplanCard) throws ParsingException {
+        String table1, pureField;
+        if (joinField1 == null) {
+            // the test applies to the whole query; attach it to any table
+            if (tables.isEmpty())
+                throw new ParsingException("EXISTS requires a table in the FROM list");
+            table1 = tables.firstElement().alias;
+            pureField = null;
+        } else {
+            joinField1 = disambiguateName(joinField1);
+            table1 = joinField1.split("[.]")[0];
+            pureField = joinField1.split("[.]")[1];
+        }
+
+        LogicalSubplanJoinNode lj = new LogicalSubplanJoinNode(table1, pureField, subplan,
+                anti ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI,
+                subplanCost, subplanCard);
+        System.out.println("Added " + (anti ? "anti" : "semi") + " join on "
+                + (joinField1 == null ? table1 : joinField1));
+        joins.addElement(lj);
+    }
+
+    /** @return the estimated cost of running the physical plan last built
+     *  by {@link #physicalPlan}: the cost of scanning each table once, and
+     *  of running each subquery once */
+    public double getEstimatedCost() {
+        return estimatedCost;
+    }
+
+    /** @return the estimated cardinality of the physical plan last built by
+     *  {@link #physicalPlan} */
+    public int getEstimatedCardinality() {
+        return estimatedCardinality;
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -186,23 +294,45 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once per aggregate in the select list;
+        all aggregates are computed in the same pass over the input.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+        if (aggIndex(op, afield) < 0) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+        }
         hasAgg = true;
     }
 
+    /** Add a field to the GROUP BY list of the query.  Fields are grouped
+        in the order they are added; adding a field twice has no effect.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of the aggregate op(afield) in the output of the
+        Aggregate operator, not counting group by fields, or -1 if absent */
+    private int aggIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equals(op) && aggFields.elementAt(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -271,6 +401,286 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * The sargable filters of a table on one field, the index predicate they
+     * allow and their combined selectivity.
+     */
+    private static class KeyRange {
+        Type keyType;
+        LogicalFilterNode eq, eqParam;
+        ArrayList<LogicalFilterNode> bounds = new ArrayList<LogicalFilterNode>();
+        IndexPredicate ipred;
+        double sel;
+    }
+
+    /**
+     * Choose how to read a table. A BTreeFile with sargable filters on its
+     * key can be read with a BTreeScan over the range of keys the filters
+     * allow, and a HeapFile with sargable filters on the key of one of its
+     * secondary indexes with an IndexScan of that range. An index storing
+     * every field of the table the query reads can also answer it without
+     * reading the table, over a range or in full. The index is used when
+     * TableStats estimates it to be cheaper than a SeqScan; of several
+     * secondary indexes, the cheapest is used. The filters the index answers
+     * are added to indexed and need no Filter operator. A BTreeFile keyed on
+     * the ORDER BY field of a query over it alone is always read with a
+     * BTreeScan, backwards for a descending order, so that no sort is needed.
+     * A HashFile with an equality filter on its key is read with a HashScan
+     * of the bucket of the key, which a range filter cannot use.
+     */
+    private OpIterator accessPath(TransactionId t, LogicalScanNode table,
+            DbFile file, TableStats s, Set<LogicalFilterNode> indexed) throws ParsingException {
+        SeqScan seqScan = new SeqScan(t, file.getId(), table.alias);
+        if (s == null)
+            return seqScan;
+        if (file instanceof BTreeFile) {
+            int keyField = ((BTreeFile) file).keyField();
+            KeyRange r = keyRange(table, file.getTupleDesc(), keyField, s);
+            boolean useRange = r != null && s.estimateIndexScanCost(r.sel) < s.estimateCachedScanCost();
+            if (hasOrderBy && !hasAgg && joins.isEmpty() && tables.size() == 1
+                    && oByField.equals(table.alias + "." + file.getTupleDesc().getFieldName(keyField))) {
+                // the tuples are read in key order, forwards or backwards,
+                // so the ORDER BY clause needs no sort
+                orderedScan = true;
+                if (useRange)
+                    useKeyRange(r, indexed);
+                return new BTreeScan(t, file.getId(), table.alias, useRange ? r.ipred : null, !oByAsc);
+            }
+            if (!useRange)
+                return seqScan;
+            useKeyRange(r, indexed);
+            return new BTreeScan(t, file.getId(), table.alias, r.ipred);
+        }
+        if (file instanceof HashFile) {
+            KeyRange r = keyRange(table, file.getTupleDesc(), ((HashFile) file).keyField(), s);
+            if (r == null || r.eq == null && r.eqParam == null
+                    || s.estimateHashScanCost(r.sel) >= s.estimateCachedScanCost())
+                return seqScan;
+            useKeyRange(r, indexed);
+            return new HashScan(t, file.getId(), table.alias, r.ipred);
+        }
+
+        Set<Integer> read = fieldsRead(table, file.getTupleDesc());
+        SecondaryIndex bestIndex = null;
+        KeyRange best = null;
+        boolean bestIndexOnly = false;
+        double bestCost = s.estimateCachedScanCost();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(file.getId())) {
+            boolean indexOnly = read != null && index.covers(read);
+            KeyRange r = index.isComposite() ? compositeKeyRange(table, file.getTupleDesc(), index, s)
+                    : keyRange(table, file.getTupleDesc(), index.getKeyField(), s);
+            if (r == null && indexOnly) {
+                r = new KeyRange(); // read the whole index
+                r.sel = 1.0;
+            }
+            if (r == null)
+                continue;
+            double cost = s.estimateSecondaryIndexCost(index, r.sel, indexOnly);
+            if (cost < bestCost) {
+                bestIndex = index;
+                best = r;
+                bestIndexOnly = indexOnly;
+                bestCost = cost;
+            }
+        }
+        if (best == null)
+            return seqScan;
+        useKeyRange(best, indexed);
+        return new IndexScan(t, bestIndex, table.alias, best.ipred, null, bestIndexOnly);
+    }
+
+    /**
+     * @return the fields of a table that the query reads anywhere, or null if
+     *         it reads all of them or some field cannot be resolved
+     */
+    private Set<Integer> fieldsRead(LogicalScanNode table, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.addAll(aggFields);
+        names.addAll(groupByFields);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+
+        String prefix = table.alias + ".";
+        Set<Integer> fields = new HashSet<Integer>();
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.equals("null.*") || name.equals(prefix + "*"))
+                return null;
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(prefix.length())));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Find the range of a composite index the filters of a table allow: the
+     * packed values of the leading key fields with equality filters, followed
+     * by the bounds on the next key field, if any. Filters against parameters
+     * are not used. The packed key only bounds the scan, so every filter is
+     * still applied by a Filter operator.
+     *
+     * @return the range of keys, or null if no filter can use the index
+     */
+    private KeyRange compositeKeyRange(LogicalScanNode table, TupleDesc td,
+            SecondaryIndex index, TableStats s) throws ParsingException {
+        ArrayList<Field> lower = new ArrayList<Field>();
+        ArrayList<Field> upper = new ArrayList<Field>();
+        double sel = 1.0;
+        for (int keyField : index.getKeyFields()) {
+            KeyRange c = keyRange(table, td, keyField, s);
+            if (c == null || c.eqParam != null && c.eq == null)
+                break;
+            sel *= c.sel;
+            if (c.eq != null) {
+                lower.add(c.ipred.getField());
+                upper.add(c.ipred.getField());
+                continue;
+            }
+            boolean hasLower = c.ipred.getOp() == Predicate.Op.GREATER_THAN
+                    || c.ipred.getOp() == Predicate.Op.GREATER_THAN_OR_EQ;
+            if (hasLower)
+                lower.add(c.ipred.getField());
+            if (c.ipred.getUpperField() != null)
+                upper.add(c.ipred.getUpperField());
+            else if (!hasLower)
+                upper.add(c.ipred.getField());
+            break;
+        }
+        if (lower.isEmpty() && upper.isEmpty())
+            return null;
+
+        KeyRange r = new KeyRange();
+        r.keyType = Type.STRING_TYPE;
+        r.sel = sel;
+        Field lowerKey = lower.isEmpty() ? null : index.lowerKey(lower.toArray(new Field[0]));
+        Field upperKey = upper.isEmpty() ? null : index.upperKey(upper.toArray(new Field[0]));
+        if (lowerKey != null && upperKey != null)
+            r.ipred = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, lowerKey,
+                    Predicate.Op.LESS_THAN_OR_EQ, upperKey);
+        else if (lowerKey != null)
+            r.ipred = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, lowerKey);
+        else
+            r.ipred = new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, upperKey);
+        return r;
+    }
+
+    /**
+     * Find the filters of a table on one field which an index on the field
+     * can answer: an equality filter positions the scan by itself, otherwise
+     * the tightest lower and upper bounds are combined into one bounded scan.
+     * An equality filter against a parameter is costed with the average
+     * selectivity of the key; range filters against parameters are left to
+     * Filter operators, since their tightness is unknown until the
+     * parameters are bound.
+     *
+     * @return the range of keys, or null if no filter can use the index
+     */
+    private KeyRange keyRange(LogicalScanNode table, TupleDesc td, int keyField,
+            TableStats s) throws ParsingException {
+        String keyName = td.getFieldName(keyField);
+        Type keyType = td.getFieldType(keyField);
+
+        KeyRange r = new KeyRange();
+        r.keyType = keyType;
+        LogicalFilterNode lower = null, upper = null;
+        Field eqVal = null, lowerVal = null, upperVal = null;
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(table.alias) || !lf.fieldPureName.equals(keyName))
+                continue;
+            if (lf.parameter >= 0) {
+                if (lf.p == Predicate.Op.EQUALS && r.eqParam == null)
+                    r.eqParam = lf;
+                continue;
+            }
+            Field v;
+            try {
+                v = keyType == Type.INT_TYPE ? new IntField(Integer.parseInt(lf.c))
+                        : new StringField(lf.c, Type.STRING_LEN);
+            } catch (NumberFormatException e) {
+                throw new ParsingException("Invalid constant " + lf.c + " for field " + lf.fieldQuantifiedName);
+            }
+            switch (lf.p) {
+            case EQUALS:
+                if (r.eq == null) {
+                    r.eq = lf;
+                    eqVal = v;
+                }
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                r.bounds.add(lf);
+                if (lower == null || v.compare(Predicate.Op.GREATER_THAN, lowerVal)
+                        || (v.equals(lowerVal) && lf.p == Predicate.Op.GREATER_THAN)) {
+                    lower = lf;
+                    lowerVal = v;
+                }
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                r.bounds.add(lf);
+                if (upper == null || v.compare(Predicate.Op.LESS_THAN, upperVal)
+                        || (v.equals(upperVal) && lf.p == Predicate.Op.LESS_THAN)) {
+                    upper = lf;
+                    upperVal = v;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        if (r.eq != null) {
+            r.ipred = new IndexPredicate(Predicate.Op.EQUALS, eqVal);
+            r.sel = s.estimateSelectivity(keyField, Predicate.Op.EQUALS, eqVal);
+        } else if (r.eqParam != null) {
+            r.ipred = new IndexPredicate(Predicate.Op.EQUALS, null);
+            r.sel = s.avgSelectivity(keyField, Predicate.Op.EQUALS);
+        } else if (lower != null || upper != null) {
+            double lowerSel = lower == null ? 1.0 : s.estimateSelectivity(keyField, lower.p, lowerVal);
+            double upperSel = upper == null ? 1.0 : s.estimateSelectivity(keyField, upper.p, upperVal);
+            r.sel = Math.max(0.0, lowerSel + upperSel - 1.0);
+            if (lower != null && upper != null)
+                r.ipred = new IndexPredicate(lower.p, lowerVal, upper.p, upperVal);
+            else if (lower != null)
+                r.ipred = new IndexPredicate(lower.p, lowerVal);
+            else
+                r.ipred = new IndexPredicate(upper.p, upperVal);
+        } else {
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * Record that the filters of a key range are answered by an index scan,
+     * and bind the index predicate to its parameter, if any.
+     */
+    private void useKeyRange(KeyRange r, Set<LogicalFilterNode> indexed) {
+        if (r.eq != null) {
+            indexed.add(r.eq);
+        } else if (r.eqParam != null) {
+            indexed.add(r.eqParam);
+            parameter(r.eqParam, r.keyType).addIndexPredicate(r.ipred);
+        } else {
+            // every other bound is implied by the tightest ones
+            indexed.addAll(r.bounds);
+        }
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -290,17 +700,22 @@ public class LogicalPlan {
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
 
+        Set<LogicalFilterNode> indexedFilters = new HashSet<LogicalFilterNode>();
+        parameters = new PlanParameter[numParameters];
+        orderedScan = false;
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            DbFile file = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 file = Database.getCatalog().getDatabaseFile(table.t);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
-            subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
+            subplanMap.put(table.alias, accessPath(t, table, file,
+                    baseTableStats.get(baseTableName), indexedFilters));
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
@@ -323,8 +738,12 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
+            if (lf.parameter >= 0)
+                f = null; // bound before each execution
+            else if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c).intValue());
+            else if (ftyp == Type.VARCHAR_TYPE)
+                f = new VarcharField(lf.c);
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
 
@@ -334,11 +753,22 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!indexedFilters.contains(lf)) {
+                // evaluate filters on HeapFiles inside the scan itself
+                if (subplan instanceof SeqScan && Database.getCatalog().getDatabaseFile(
+                        this.getTableId(lf.tableAlias)) instanceof HeapFile)
+                    ((SeqScan) subplan).pushPredicate(p);
+                else
+                    subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+                if (lf.parameter >= 0)
+                    parameter(lf, ftyp).addPredicate(p);
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            int sfield = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            double sel = lf.parameter >= 0 ? s.avgSelectivity(sfield, lf.p)
+                    : s.estimateSelectivity(sfield, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -381,8 +811,17 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            // nested loops joins rescan their inner side once per outer
+            // tuple; spool it when that is cheaper than rerunning it
+            if (jo.materializeInner(lj, plan2, statsMap, filterSelectivities))
+                plan2 = new Materialize(plan2);
+
             OpIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            if (j instanceof HashEquiJoin) {
+                ((HashEquiJoin) j).setBloomFilterFpp(
+                        jo.bloomFilterFpp(lj, statsMap, filterSelectivities));
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -414,7 +853,7 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                outFields.add(groupByFields.size() + aggIndex(si.aggOp, si.fname));
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +865,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int gidx = groupByFields.indexOf(si.fname);
+                    if (gidx < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(gidx);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +902,16 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                aggNode = new Aggregate(node, afields, gfields, aops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,11 +920,44 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
+        if (hasOrderBy && !orderedScan) {
             node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
         }
 
-        return new Project(outFields, outTypes, node);
+        Project plan = new Project(outFields, outTypes, node);
+        estimate(plan, statsMap, filterSelectivities);
+        return QueryCompiler.isEnabled() ? QueryCompiler.compile(plan) : plan;
+    }
+
+    /**
+     * Record the estimated cost and cardinality of a physical plan of this
+     * LogicalPlan, which a query using it as a subquery needs to cost its
+     * join with it.
+     */
+    private void estimate(Project plan, HashMap<String,TableStats> statsMap,
+            HashMap<String,Double> filterSelectivities) {
+        double cost = 0;
+        int card = 0;
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            cost += s.estimateCachedScanCost();
+            card = Math.max(card, s.estimateTableCardinality(filterSelectivities.get(table.alias)));
+        }
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode)
+                cost += ((LogicalSubplanJoinNode) j).subplanCost;
+        }
+        try {
+            OperatorCardinality.updateOperatorCardinality(plan, tableMap, statsMap);
+            card = plan.getEstimatedCardinality();
+        } catch (RuntimeException e) {
+            // no estimate for some operator of the plan; keep the largest
+            // table's
+        }
+        estimatedCost = cost;
+        estimatedCardinality = card;
     }
 
     public static void main(String argv[]) {
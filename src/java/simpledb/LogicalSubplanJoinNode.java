@@ -1,28 +1,74 @@
 package simpledb;
 
+import java.util.Objects;
+
 /** A LogicalSubplanJoinNode represens the state needed of a join of a
  * table to a subplan in a LogicalQueryPlan -- inherits state from
  * {@link LogicalJoinNode}; t2 and f2 should always be null
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
+
+    /** How the tuples of the table are matched with the subplan */
+    public enum Kind {
+        /** a join with the subplan, like <tt>f = (SELECT ...)</tt> */
+        JOIN,
+        /** a semi-join: IN and EXISTS */
+        SEMI,
+        /** an anti-join: NOT IN and NOT EXISTS */
+        ANTI
+    }
     
     /** The subplan (used on the inner) of the join */
     OpIterator subPlan;
+
+    /** The kind of join */
+    public Kind kind = Kind.JOIN;
+
+    /** Estimated cost of running the subplan once */
+    public double subplanCost;
+
+    /** Estimated number of tuples the subplan returns */
+    public int subplanCard;
     
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
         t1Alias = table1;
-        String[] tmps = joinField1.split("[.]");
-        if (tmps.length>1)
-            f1PureName = tmps[tmps.length-1];
-        else
-            f1PureName=joinField1;
-        f1QuantifiedName=t1Alias+"."+f1PureName;
+        if (joinField1 != null) {
+            String[] tmps = joinField1.split("[.]");
+            if (tmps.length>1)
+                f1PureName = tmps[tmps.length-1];
+            else
+                f1PureName=joinField1;
+            f1QuantifiedName=t1Alias+"."+f1PureName;
+        }
         subPlan = sp;
         p = pred;
     }
+
+    /**
+     * @param table1 the alias of the table the subplan is joined to
+     * @param joinField1 the field of table1 compared to the first field of
+     *        the subplan, or null for an uncorrelated EXISTS, which only
+     *        tests if the subplan is empty
+     * @param sp the subplan
+     * @param kind SEMI or ANTI
+     * @param subplanCost estimated cost of running the subplan once
+     * @param subplanCard estimated cardinality of the subplan
+     */
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Kind kind,
+            double subplanCost, int subplanCard) {
+        this(table1, joinField1, sp, Predicate.Op.EQUALS);
+        this.kind = kind;
+        this.subplanCost = subplanCost;
+        this.subplanCard = subplanCard;
+    }
+
+    /** @return true if this is a semi-join or an anti-join */
+    public boolean isSemiJoin() {
+        return kind != Kind.JOIN;
+    }
     
     @Override public int hashCode() {
-        return t1Alias.hashCode() + f1PureName.hashCode() + subPlan.hashCode();
+        return t1Alias.hashCode() + Objects.hashCode(f1PureName) + subPlan.hashCode();
     }
     
     @Override public boolean equals(Object o) {
@@ -30,12 +76,18 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         if (!(o instanceof LogicalSubplanJoinNode))
             return false;
         
-        return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
+        return (j2.t1Alias.equals(t1Alias)  && Objects.equals(j2.f1PureName, f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, kind,
+                subplanCost, subplanCard);
+        j2.p = p;
         return j2;
     }
 
+    @Override public String toString() {
+        return t1Alias + ":" + (kind == Kind.JOIN ? "subplan" : kind.toString().toLowerCase() + "(subplan)");
+    }
+
 }
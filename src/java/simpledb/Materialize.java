@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * The Materialize operator spools the tuples of its child on the first pass
+ * and serves every later pass from the spool, so the child is read once
+ * however often the operator is rewound. It is placed by the planner on the
+ * inner side of a nested loops Join whose inner plan costs more to rerun
+ * than to read back.
+ * <p>
+ * The first maxInMemory tuples are kept in memory; the rest are serialized
+ * field by field to a temporary file, as ExternalSort writes its runs, so
+ * tuples of any TupleDesc spill, including ones with VARCHAR fields that do
+ * not fit a HeapPage.
+ */
+public class Materialize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples spooled in memory before spilling to disk. */
+    public static final int DEFAULT_MAX_IN_MEMORY = 50000;
+
+    private OpIterator child;
+    private final int maxInMemory;
+
+    private transient ArrayList<Tuple> memory;
+    private transient boolean complete;
+    private transient int memoryPos;
+
+    // the spill file, written on the first pass and read on later ones
+    private transient File spillFile;
+    private transient DataOutputStream spillOut;
+    private transient DataInputStream spillIn;
+    private transient int numSpilled;
+    private transient int numRead;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator whose tuples are spooled
+     */
+    public Materialize(OpIterator child) {
+        this(child, DEFAULT_MAX_IN_MEMORY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator whose tuples are spooled
+     * @param maxInMemory
+     *            The number of tuples kept in memory before the spool spills
+     *            to a temporary file
+     */
+    public Materialize(OpIterator child, int maxInMemory) {
+        if (maxInMemory < 0)
+            throw new IllegalArgumentException("maxInMemory must not be negative");
+        this.child = child;
+        this.maxInMemory = maxInMemory;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** @return true once the child has been read to its end */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** @return the number of tuples written to the spill file */
+    public int numSpilledTuples() {
+        return numSpilled;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        closeSpill();
+        memory = new ArrayList<Tuple>();
+        complete = false;
+        memoryPos = 0;
+        numSpilled = 0;
+        numRead = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        memory = null;
+        closeSpill();
+    }
+
+    /**
+     * Rewind to the first spooled tuple. If the first pass has not reached
+     * the end of the child, the rest of the child is spooled first.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        while (!complete)
+            fetchFromChild();
+        memoryPos = 0;
+        numRead = 0;
+        closeSpillReader();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!complete)
+            return fetchFromChild();
+        if (memoryPos < memory.size())
+            return memory.get(memoryPos++);
+        if (numRead >= numSpilled)
+            return null;
+        return readSpilled();
+    }
+
+    /**
+     * Read the next tuple of the child and add it to the spool.
+     *
+     * @return the tuple, or null if the child is exhausted
+     */
+    private Tuple fetchFromChild() throws DbException, TransactionAbortedException {
+        if (!child.hasNext()) {
+            complete = true;
+            if (spillOut != null) {
+                try {
+                    spillOut.close();
+                } catch (IOException e) {
+                    throw new DbException("could not spill tuples: " + e.getMessage());
+                }
+                spillOut = null;
+            }
+            // the first pass has returned every tuple already
+            memoryPos = memory.size();
+            numRead = numSpilled;
+            return null;
+        }
+        Tuple t = child.next();
+        if (memory.size() < maxInMemory)
+            memory.add(t);
+        else
+            spill(t);
+        return t;
+    }
+
+    private void spill(Tuple t) throws DbException {
+        try {
+            if (spillOut == null) {
+                spillFile = File.createTempFile("materialize", ".dat");
+                spillFile.deleteOnExit();
+                spillOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(spillFile)));
+            }
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                t.getField(i).serialize(spillOut);
+            numSpilled++;
+        } catch (IOException e) {
+            throw new DbException("could not spill tuples: " + e.getMessage());
+        }
+    }
+
+    private Tuple readSpilled() throws DbException {
+        TupleDesc td = child.getTupleDesc();
+        try {
+            if (spillIn == null) {
+                spillIn = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(spillFile)));
+            }
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(spillIn));
+            numRead++;
+            return t;
+        } catch (IOException | ParseException e) {
+            throw new DbException("could not read spilled tuples: " + e.getMessage());
+        }
+    }
+
+    private void closeSpillReader() {
+        if (spillIn != null) {
+            try {
+                spillIn.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        spillIn = null;
+    }
+
+    private void closeSpill() {
+        closeSpillReader();
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (spillFile != null)
+            spillFile.delete();
+        spillOut = null;
+        spillFile = null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
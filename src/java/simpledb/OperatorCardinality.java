@@ -1,6 +1,7 @@
 package simpledb;
 
 //import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -29,6 +30,9 @@ public class OperatorCardinality {
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof SemiJoin) {
+            return updateSemiJoinCardinality((SemiJoin) o, tableAliasToId,
+                    tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -41,10 +45,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -77,10 +79,8 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,9 +120,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +131,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,9 +175,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +186,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -201,6 +197,44 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    /**
+     * The inner child of a SemiJoin is a subquery over tables not in
+     * tableAliasToId; its cardinality was estimated when it was planned.
+     */
+    private static boolean updateSemiJoinCardinality(SemiJoin j,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        OpIterator child1 = j.getChildren()[0];
+        OpIterator child2 = j.getChildren()[1];
+        int child1Card = 1;
+        boolean hasJoinPK = false;
+        if (child1 instanceof Operator) {
+            hasJoinPK = updateOperatorCardinality((Operator) child1,
+                    tableAliasToId, tableStats);
+            child1Card = ((Operator) child1).getEstimatedCardinality();
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
+        }
+        int child2Card = child2 instanceof Operator
+                ? ((Operator) child2).getEstimatedCardinality() : 1;
+
+        double distinct1 = -1;
+        String name = j.getJoinField1Name();
+        if (name != null) {
+            String[] tmp = name.split("[.]");
+            Integer tableId = tmp.length == 2 ? tableAliasToId.get(tmp[0]) : null;
+            TableStats s = tableId == null ? null
+                    : tableStats.get(Database.getCatalog().getTableName(tableId));
+            if (s != null) {
+                distinct1 = s.distinctCount(Database.getCatalog()
+                        .getTupleDesc(tableId).fieldNameToIndex(tmp[1]));
+            }
+        }
+        j.setEstimatedCardinality(JoinOptimizer.estimateSemiJoinCardinality(
+                j.isAnti(), name == null, child1Card, distinct1, child2Card));
+        return hasJoinPK;
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -219,29 +253,118 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // with several group by fields, the number of groups is at most the
+        // product of the distinct values of each field
+        TupleDesc childTd = child.getTupleDesc();
+        double groups = 1.0;
+        for (int gfield : a.groupFields()) {
+            String[] tmp = childTd.getFieldName(gfield).split("[.]");
+            Integer tableId = tmp.length == 2 ? tableAliasToId.get(tmp[0]) : null;
+            if (tableId == null) {
+                groups = -1;
+                break;
+            }
+            String pureFieldName = tmp[1];
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
+            groups *= 1.0 / groupFieldAvgSelectivity;
+        }
+        if (groups >= 0) {
+            a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
             return hasJoinPK;
         }
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    /**
+     * @return true if the operator reads a base table
+     */
+    private static boolean isScan(OpIterator o) {
+        return o instanceof SeqScan || o instanceof BTreeScan
+                || o instanceof IndexScan || o instanceof FusedScan
+                || o instanceof HashScan;
+    }
+
+    /**
+     * @return the estimated number of tuples a base table scan returns; a
+     *         BTreeScan or IndexScan only returns the keys in its range, a
+     *         HashScan the tuples with its keys, and
+     *         a SeqScan or FusedScan only the tuples passing its predicates
+     */
+    private static int scanCardinality(OpIterator o,
+            Map<String, TableStats> tableStats) {
+        if (o instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) o;
+            DbFile file = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(scan.getTableName()));
+            return rangeCardinality(tableStats.get(scan.getTableName()), ((BTreeFile) file).keyField(),
+                    scan.getIndexPredicate(), scan.getUpperBound());
+        }
+        if (o instanceof HashScan) {
+            HashScan scan = (HashScan) o;
+            DbFile file = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(scan.getTableName()));
+            return rangeCardinality(tableStats.get(scan.getTableName()), ((HashFile) file).keyField(),
+                    scan.getIndexPredicate(), null);
+        }
+        if (o instanceof IndexScan) {
+            IndexScan scan = (IndexScan) o;
+            if (scan.getIndex().isComposite()) {
+                // the packed key only bounds the scan; the filters on the
+                // key fields are all applied, and estimated, above it
+                return tableStats.get(scan.getTableName()).estimateTableCardinality(1.0);
+            }
+            return rangeCardinality(tableStats.get(scan.getTableName()), scan.getIndex().getKeyField(),
+                    scan.getIndexPredicate(), scan.getUpperBound());
+        }
+        TableStats s;
+        List<Predicate> predicates;
+        if (o instanceof FusedScan) {
+            s = tableStats.get(((FusedScan) o).getTableName());
+            predicates = ((FusedScan) o).getPredicates();
+        } else {
+            s = tableStats.get(((SeqScan) o).getTableName());
+            predicates = ((SeqScan) o).getPredicates();
+        }
+        double sel = 1.0;
+        for (Predicate p : predicates) {
+            sel *= p.getOperand() == null ? s.avgSelectivity(p.getField(), p.getOp())
+                    : s.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        return s.estimateTableCardinality(sel);
+    }
+
+    /**
+     * @return the estimated number of tuples with a key between the bounds
+     *         of an index scan
+     */
+    private static int rangeCardinality(TableStats s, int keyField,
+            IndexPredicate ipred, IndexPredicate upper) {
+        double sel = 1.0;
+        if (upper == null && ipred != null)
+            upper = ipred.getUpperBound();
+        if (ipred != null && ipred.getValues() != null) {
+            sel = 0.0;
+            for (Field v : ipred.getValues())
+                sel += s.estimateSelectivity(keyField, Predicate.Op.EQUALS, v);
+            return s.estimateTableCardinality(Math.min(1.0, sel));
+        }
+        if (ipred != null && ipred.getField() != null)
+            sel = s.estimateSelectivity(keyField, ipred.getOp(), ipred.getField());
+        else if (ipred != null)
+            sel = s.avgSelectivity(keyField, ipred.getOp());
+        if (upper != null)
+            sel = Math.max(0.0, sel + s.estimateSelectivity(keyField,
+                    upper.getOp(), upper.getField()) - 1.0);
+        return s.estimateTableCardinality(sel);
+    }
 }
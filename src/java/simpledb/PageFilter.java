@@ -0,0 +1,37 @@
+package simpledb;
+
+/**
+ * A TupleFilter that a HeapPage can evaluate in two steps: the INT
+ * comparisons on the bytes of a slot, then the rest of the predicates on the
+ * tuple decoded from the slots that pass. As a TupleFilter it evaluates every
+ * predicate on a decoded tuple.
+ */
+class PageFilter implements TupleFilter {
+    /** The INT comparisons, on serialized tuples, or null if there are none. */
+    final SlotFilter slot;
+    /** The other predicates, or null if there are none. */
+    final TupleFilter rest;
+    /** Every predicate, on decoded tuples. */
+    final TupleFilter all;
+
+    PageFilter(SlotFilter slot, TupleFilter rest, TupleFilter all) {
+        this.slot = slot;
+        this.rest = rest;
+        this.all = all;
+    }
+
+    public boolean matches(Tuple t) {
+        return all.matches(t);
+    }
+
+    /**
+     * @return a PageFilter passing the tuples that pass both this filter and
+     *         more, which is evaluated on decoded tuples only
+     */
+    PageFilter and(TupleFilter more) {
+        final TupleFilter r = rest;
+        final TupleFilter a = all;
+        return new PageFilter(slot, r == null ? more : t -> r.matches(t) && more.matches(t),
+                t -> a.matches(t) && more.matches(t));
+    }
+}
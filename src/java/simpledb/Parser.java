@@ -50,6 +50,11 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (isSubqueryPredicate(wx)) {
+            processSubqueryPredicate(tid, wx, false, lp);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && isSubqueryPredicate(wx.getOperand(0))) {
+            processSubqueryPredicate(tid, (ZExpression) wx.getOperand(0), true, lp);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -62,6 +67,20 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            // a parameter of a prepared query: column op ?
+            boolean op1param = isParameter(ops.elementAt(0));
+            boolean op2param = isParameter(ops.elementAt(1));
+            if (op1param || op2param) {
+                ZExp other = ops.elementAt(op1param ? 1 : 0);
+                if (op1param && op2param || !(other instanceof ZConstant)
+                        || ((ZConstant) other).getType() != ZConstant.COLUMNNAME) {
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared to a field.");
+                }
+                lp.addParameterFilter(((ZConstant) other).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -94,19 +113,11 @@ public class Parser {
                 }
 
                 if (!op2const) { // right op is a nested query
-                    try {
-                        LogicalPlan sublp = parseQueryLogicalPlan(tid,
-                                (ZQuery) ops.elementAt(1));
-                        OpIterator pp = sublp.physicalPlan(tid,
-                                TableStats.getStatsMap(), explain);
-                        lp.addJoin(tab1field, pp, op);
-                    } catch (IOException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    } catch (Zql.ParseException e) {
-                        throw new simpledb.ParsingException("Invalid subquery "
-                                + ops.elementAt(1));
-                    }
+                    LogicalPlan sublp = parseSubquery(tid, (ZQuery) ops.elementAt(1));
+                    OpIterator pp = sublp.physicalPlan(tid,
+                            TableStats.getStatsMap(), explain);
+                    lp.addJoin(tab1field, pp, op, sublp.getEstimatedCost(),
+                            sublp.getEstimatedCardinality());
                 } else {
                     tab2field = ((ZConstant) ops.elementAt(1)).getValue();
                     lp.addJoin(tab1field, tab2field, op);
@@ -132,6 +143,179 @@ public class Parser {
 
     }
 
+    /** @return the logical plan of a subquery */
+    private LogicalPlan parseSubquery(TransactionId tid, ZQuery q)
+            throws simpledb.ParsingException {
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, q);
+            if (sublp.numParameters() > 0) {
+                throw new simpledb.ParsingException(
+                        "Parameters are not supported in subqueries.");
+            }
+            return sublp;
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + q);
+        }
+    }
+
+    /** @return true if e is <tt>f IN (SELECT ...)</tt>, <tt>f NOT IN
+     *  (SELECT ...)</tt> or <tt>EXISTS (SELECT ...)</tt> */
+    static boolean isSubqueryPredicate(ZExp e) {
+        if (!(e instanceof ZExpression))
+            return false;
+        ZExpression wx = (ZExpression) e;
+        String op = wx.getOperator();
+        if (op.equals("EXISTS"))
+            return wx.nbOperands() == 1 && wx.getOperand(0) instanceof ZQuery;
+        return (op.equals("IN") || op.equals("NOT IN")) && wx.nbOperands() == 2
+                && wx.getOperand(1) instanceof ZQuery;
+    }
+
+    /**
+     * Add a semi-join or anti-join with the subquery of an IN, NOT IN or
+     * EXISTS predicate to lp. A correlated EXISTS subquery, whose WHERE
+     * clause equates one of its fields with a field of the outer query, is
+     * rewritten into an IN subquery selecting that field.
+     *
+     * @param negate true if the predicate is under a NOT
+     */
+    void processSubqueryPredicate(TransactionId tid, ZExpression wx,
+            boolean negate, LogicalPlan lp) throws simpledb.ParsingException {
+        String op = wx.getOperator();
+        boolean anti = negate != op.equals("NOT IN");
+        ZQuery q = (ZQuery) wx.getOperand(op.equals("EXISTS") ? 0 : 1);
+        String field = null;
+        if (op.equals("EXISTS")) {
+            String[] correlation = new String[2];
+            q = decorrelate(q, correlation);
+            field = correlation[0];
+        } else {
+            ZExp f = wx.getOperand(0);
+            if (!(f instanceof ZConstant)
+                    || ((ZConstant) f).getType() != ZConstant.COLUMNNAME) {
+                throw new simpledb.ParsingException(
+                        "Only fields can be compared to the result of a subquery.");
+            }
+            field = ((ZConstant) f).getValue();
+        }
+
+        LogicalPlan sublp = parseSubquery(tid, q);
+        OpIterator pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        if (field != null && pp.getTupleDesc().numFields() != 1) {
+            throw new simpledb.ParsingException(
+                    "Subquery of an IN predicate must return one field: " + q);
+        }
+        lp.addSemiJoin(field, pp, anti, sublp.getEstimatedCost(),
+                sublp.getEstimatedCardinality());
+    }
+
+    /**
+     * Rewrite an EXISTS subquery with a conjunct <tt>inner = outer</tt>
+     * comparing one of its fields to a field of the outer query into a
+     * subquery selecting the inner field, without the conjunct.
+     *
+     * @param correlation set to the outer and inner field names, or left
+     *        null if q is not correlated
+     * @return q, or the rewritten subquery
+     */
+    private static ZQuery decorrelate(ZQuery q, String[] correlation)
+            throws simpledb.ParsingException {
+        Set<String> inner = new HashSet<String>();
+        @SuppressWarnings("unchecked")
+        Vector<ZFromItem> from = q.getFrom();
+        for (ZFromItem fi : from)
+            inner.add(fi.getAlias() != null ? fi.getAlias() : fi.getTable());
+
+        ZExp where = q.getWhere();
+        Vector<ZExp> conjuncts = new Vector<ZExp>();
+        if (where instanceof ZExpression && ((ZExpression) where).getOperator().equals("AND")) {
+            for (int i = 0; i < ((ZExpression) where).nbOperands(); i++)
+                conjuncts.add(((ZExpression) where).getOperand(i));
+        } else if (where != null) {
+            conjuncts.add(where);
+        }
+
+        Vector<ZExp> rest = new Vector<ZExp>();
+        for (ZExp c : conjuncts) {
+            if (correlation[0] == null && c instanceof ZExpression
+                    && ((ZExpression) c).getOperator().equals("=")
+                    && ((ZExpression) c).nbOperands() == 2) {
+                ZExp a = ((ZExpression) c).getOperand(0);
+                ZExp b = ((ZExpression) c).getOperand(1);
+                if (isOuterField(a, inner) && isField(b) && !isOuterField(b, inner)) {
+                    correlation[0] = ((ZConstant) a).getValue();
+                    correlation[1] = ((ZConstant) b).getValue();
+                    continue;
+                }
+                if (isOuterField(b, inner) && isField(a) && !isOuterField(a, inner)) {
+                    correlation[0] = ((ZConstant) b).getValue();
+                    correlation[1] = ((ZConstant) a).getValue();
+                    continue;
+                }
+            }
+            if (refersTo(c, inner)) {
+                throw new simpledb.ParsingException(
+                        "Only one equality with an outer field is supported in an EXISTS subquery.");
+            }
+            rest.add(c);
+        }
+        if (correlation[0] == null)
+            return q;
+        if (q.getGroupBy() != null) {
+            throw new simpledb.ParsingException(
+                    "GROUP BY is not supported in a correlated subquery.");
+        }
+
+        ZQuery rewritten = new ZQuery();
+        Vector<ZSelectItem> select = new Vector<ZSelectItem>();
+        select.add(new ZSelectItem(correlation[1]));
+        rewritten.addSelect(select);
+        rewritten.addFrom(from);
+        if (rest.size() == 1) {
+            rewritten.addWhere(rest.firstElement());
+        } else if (rest.size() > 1) {
+            ZExpression and = new ZExpression("AND");
+            for (ZExp c : rest)
+                and.addOperand(c);
+            rewritten.addWhere(and);
+        }
+        return rewritten;
+    }
+
+    private static boolean isField(ZExp e) {
+        return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.COLUMNNAME;
+    }
+
+    /** @return true if e is a field qualified by a table not in inner */
+    private static boolean isOuterField(ZExp e, Set<String> inner) {
+        if (!isField(e))
+            return false;
+        String[] parts = ((ZConstant) e).getValue().split("[.]");
+        return parts.length > 1 && !inner.contains(parts[0]);
+    }
+
+    /** @return true if e contains a field of a table not in inner */
+    private static boolean refersTo(ZExp e, Set<String> inner) {
+        if (isOuterField(e, inner))
+            return true;
+        if (e instanceof ZExpression) {
+            for (int i = 0; i < ((ZExpression) e).nbOperands(); i++) {
+                if (refersTo(((ZExpression) e).getOperand(i), inner))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if e is a <tt>?</tt> placeholder of a prepared query */
+    static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression
+                && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -182,23 +366,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +387,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +398,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,12 +419,17 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        if (!aggFuns.isEmpty()) {
+            for (String groupByField : groupByFields) {
+                lp.addGroupByField(groupByField);
+            }
+            for (int i = 0; i < aggFuns.size(); i++) {
+                lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null);
+            }
         }
         // sort the data
 
@@ -365,13 +548,14 @@ public class Parser {
                     IntField f = new IntField(new Integer(zc.getValue()));
                     t.setField(i, f);
                 } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
                                 + " is a string, expected an integer.");
                     }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
+                    StringField f = td.getFieldType(i) == Type.VARCHAR_TYPE
+                            ? new VarcharField(zc.getValue())
+                            : new StringField(zc.getValue(), Type.STRING_LEN);
                     t.setField(i, f);
                 } else {
                     throw new simpledb.ParsingException(
@@ -484,6 +668,47 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    private final StatementCache statementCache = new StatementCache(
+            StatementCache.DEFAULT_CAPACITY);
+
+    /**
+     * Prepare a SELECT statement whose WHERE clause may compare fields
+     * against <tt>?</tt> parameters. The statement is parsed and planned
+     * once; its plan is reused by every execution, and kept in this
+     * parser's {@link StatementCache} once the PreparedQuery is closed, so
+     * preparing the same SQL again skips parsing and planning.
+     *
+     * @param sql the statement, with or without a trailing ';'
+     * @throws ParsingException if the statement is not a valid SELECT
+     */
+    public PreparedQuery prepare(String sql) throws simpledb.ParsingException {
+        String key = StatementCache.normalize(sql);
+        PreparedQuery pq = statementCache.take(key);
+        if (pq != null)
+            return pq;
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                (key + ";").getBytes()));
+        ZStatement stmt;
+        try {
+            stmt = p.readStatement();
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        } catch (Zql.TokenMgrError e) {
+            throw new simpledb.ParsingException(
+                    "Invalid SQL expression: \n \t " + e);
+        }
+        if (!(stmt instanceof ZQuery))
+            throw new simpledb.ParsingException(
+                    "Only SELECT statements can be prepared: " + sql);
+        return new PreparedQuery(this, statementCache, key, (ZQuery) stmt);
+    }
+
+    /** @return the cache of plans of closed prepared queries */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -585,7 +810,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 5) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,19 +820,31 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-compile] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        if (statsFile != null) {
+            try {
+                TableStats.saveStatistics(statsFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
+    protected File statsFile;
+
     protected boolean interactive = true;
 
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        CostModel.load(CostModel.costFileFor(argv[0]));
+        statsFile = TableStats.statsFileFor(argv[0]);
+        TableStats.loadStatistics(statsFile);
+        TableStats.enableAutoAnalyze(TableStats.DEFAULT_ANALYZE_THRESHOLD);
 
         String queryFile = null;
 
@@ -616,6 +853,9 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-compile")) {
+                    QueryCompiler.setEnabled(true);
+                    System.out.println("Query compilation enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares interpreted execution of scan, filter and aggregate pipelines
+ * with the fused pipelines of {@link QueryCompiler}.
+ * <p>
+ * A table of random integers is written to a temporary file and every
+ * query is planned once in each mode, then executed repeatedly with all
+ * pages in the BufferPool, so the times measure the CPU cost of the
+ * operators rather than I/O. The best of the runs is reported.
+ * <p>
+ * Usage: java simpledb.SimpleDb benchmark [pages] [runs]
+ */
+public class PipelineBenchmark {
+
+    /** Default size of the table, in pages; it must fit in the BufferPool. */
+    public static final int DEFAULT_PAGES = 400;
+
+    /** Default number of timed runs per query and mode. */
+    public static final int DEFAULT_RUNS = 10;
+
+    static final String[] QUERIES = {
+        "SELECT COUNT(bench.c0) FROM bench WHERE bench.c1 > 100;",
+        "SELECT bench.c2, SUM(bench.c0), MAX(bench.c3) FROM bench WHERE bench.c1 < 500 AND bench.c3 > 10 GROUP BY bench.c2;",
+        "SELECT bench.c0, bench.c2 FROM bench WHERE bench.c1 > 900;",
+    };
+
+    /**
+     * Run the benchmark.
+     *
+     * @return for each query, the best interpreted and compiled times in
+     *         milliseconds
+     */
+    public static double[][] run(int numPages, int runs) throws Exception {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        int columns = 4;
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (columns * Type.INT_TYPE.getLen() * 8 + 1);
+        Random r = new Random(0);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < numPages * tuplesPerPage; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(r.nextInt(1000));
+            t.add(r.nextInt(1000));
+            t.add(r.nextInt(100));
+            t.add(r.nextInt(1000));
+            tuples.add(t);
+        }
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), columns);
+        tuples = null;
+        HeapFile hf = Utility.openHeapFile(columns, "c", f);
+        Database.getCatalog().addTable(hf, "bench");
+        TableStats.setTableStats("bench", new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+
+        boolean wasEnabled = QueryCompiler.isEnabled();
+        double[][] times = new double[QUERIES.length][2];
+        TransactionId tid = new TransactionId();
+        try {
+            for (int q = 0; q < QUERIES.length; q++) {
+                long[] rows = new long[2];
+                for (int mode = 0; mode < 2; mode++) {
+                    QueryCompiler.setEnabled(mode == 1);
+                    OpIterator plan = new Parser().generateLogicalPlan(tid, QUERIES[q])
+                            .physicalPlan(tid, TableStats.getStatsMap(), false);
+                    execute(plan); // warm up the BufferPool and the JIT
+                    double best = Double.MAX_VALUE;
+                    for (int i = 0; i < runs; i++) {
+                        long start = System.nanoTime();
+                        rows[mode] = execute(plan);
+                        best = Math.min(best, (System.nanoTime() - start) / 1e6);
+                    }
+                    times[q][mode] = best;
+                }
+                if (rows[0] != rows[1]) {
+                    throw new DbException("compiled plan returned " + rows[1]
+                            + " rows instead of " + rows[0] + " for " + QUERIES[q]);
+                }
+            }
+        } finally {
+            QueryCompiler.setEnabled(wasEnabled);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return times;
+    }
+
+    private static long execute(OpIterator plan) throws DbException, TransactionAbortedException {
+        long rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            rows++;
+        }
+        plan.close();
+        return rows;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAGES;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+        double[][] times = run(pages, runs);
+        System.out.println(String.format("%d pages, best of %d runs", pages, runs));
+        for (int q = 0; q < QUERIES.length; q++) {
+            System.out.println(String.format("interpreted %8.2fms  compiled %8.2fms  speedup %.2fx  %s",
+                    times[q][0], times[q][1], times[q][0] / times[q][1], QUERIES[q]));
+        }
+    }
+}
@@ -1,14 +1,109 @@
 package simpledb;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * Besides sets of joins, plans can be stored by bitmask, where bit i stands
+ * for the i-th join of the query. A mask-indexed plan records only its last
+ * join and the mask of the subplan on that join's outer side; the subplan on
+ * the inner side is the remaining joins, so the full (possibly bushy) order
+ * is rebuilt by following masks down to base tables. */
 public class PlanCache {
     HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
     HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
     HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
+
+    double[] maskCosts;
+    int[] maskCards;
+    boolean[] maskPkeys;
+    int[] maskJoins;
+    int[] maskOuters;
+    boolean[] maskSwapped;
+
+    public PlanCache() {
+    }
+
+    /** Create a PlanCache that can also hold a plan for every subset of
+        numJoins joins, indexed by bitmask.
+        @param numJoins the number of joins in the query, at most 30
+    */
+    public PlanCache(int numJoins) {
+        int size = 1 << numJoins;
+        maskCosts = new double[size];
+        maskCards = new int[size];
+        maskPkeys = new boolean[size];
+        maskJoins = new int[size];
+        maskOuters = new int[size];
+        maskSwapped = new boolean[size];
+        Arrays.fill(maskJoins, -1);
+    }
+
+    /** Add or replace the plan for the joins selected by mask.
+        @param mask the joins covered by the plan
+        @param cost the estimated cost of the plan
+        @param card the estimated cardinality of the plan
+        @param pkey whether the plan joins on a primary key
+        @param join the index of the last join of the plan
+        @param outer the joins of the subplan on the outer side of that join
+        @param swapped whether that join is executed with its sides swapped
+    */
+    void addPlan(int mask, double cost, int card, boolean pkey, int join, int outer, boolean swapped) {
+        maskCosts[mask] = cost;
+        maskCards[mask] = card;
+        maskPkeys[mask] = pkey;
+        maskJoins[mask] = join;
+        maskOuters[mask] = outer;
+        maskSwapped[mask] = swapped;
+    }
+
+    /** @return true if a plan for the joins selected by mask is cached */
+    boolean hasPlan(int mask) {
+        return maskJoins[mask] >= 0;
+    }
+
+    double getCost(int mask) {
+        return maskCosts[mask];
+    }
+
+    int getCard(int mask) {
+        return maskCards[mask];
+    }
+
+    boolean getPkey(int mask) {
+        return maskPkeys[mask];
+    }
+
+    /** Rebuild the join order of the plan for mask: the outer subplan's
+        joins, then the inner subplan's joins, then the last join.
+        @param joins the joins of the query, indexed as in the masks
+    */
+    Vector<LogicalJoinNode> getOrder(int mask, Vector<LogicalJoinNode> joins) {
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        appendOrder(mask, joins, order);
+        return order;
+    }
+
+    /** Appends the joins of mask's plan to order, and records the cost and
+        cardinality of each join's subplan under the set of joins ordered so
+        far, which is how plans are looked up when printed. */
+    @SuppressWarnings("unchecked")
+    private void appendOrder(int mask, Vector<LogicalJoinNode> joins, Vector<LogicalJoinNode> order) {
+        if (mask == 0)
+            return;
+        int j = maskJoins[mask];
+        int outer = maskOuters[mask];
+        appendOrder(outer, joins, order);
+        appendOrder(mask & ~outer & ~(1 << j), joins, order);
+        LogicalJoinNode lj = joins.elementAt(j);
+        order.addElement(maskSwapped[mask] ? lj.swapInnerOuter() : lj);
+        addPlan(new HashSet<LogicalJoinNode>(order), maskCosts[mask], maskCards[mask],
+                (Vector<LogicalJoinNode>) order.clone());
+    }
     
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * A PlanParameter is a <tt>?</tt> placeholder of a query, as seen by the
+ * physical plan built for it: the predicates of Filter operators and the
+ * index predicates of BTreeScans, IndexScans and HashScans that compare
+ * against the parameter. Binding a value sets it in all of them, so the same
+ * operator tree can be executed again with other values.
+ */
+public class PlanParameter {
+
+    private final int index;
+    private final Type type;
+    private final ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    private final ArrayList<IndexPredicate> indexPredicates = new ArrayList<IndexPredicate>();
+
+    /**
+     * @param index the position of the parameter in the query, from 0
+     * @param type the type of the fields compared against the parameter
+     */
+    public PlanParameter(int index, Type type) {
+        this.index = index;
+        this.type = type;
+    }
+
+    /** @return the position of the parameter in the query, from 0 */
+    public int getIndex() {
+        return index;
+    }
+
+    /** @return the type of the values the parameter accepts */
+    public Type getType() {
+        return type;
+    }
+
+    void addPredicate(Predicate p) {
+        predicates.add(p);
+    }
+
+    void addIndexPredicate(IndexPredicate p) {
+        indexPredicates.add(p);
+    }
+
+    /**
+     * Set the value compared against by every predicate using the parameter.
+     *
+     * @throws DbException if the value is null or of the wrong type
+     */
+    void bind(Field value) throws DbException {
+        if (value == null)
+            throw new DbException("parameter " + index + " is not set");
+        if (value.getType() != type)
+            throw new DbException("parameter " + index + " expects a value of type " + type
+                    + " but was set to " + value.getType());
+        for (Predicate p : predicates)
+            p.setOperand(value);
+        for (IndexPredicate p : indexPredicates)
+            p.setField(value);
+    }
+}
@@ -90,6 +90,13 @@ public class Predicate implements Serializable {
         return operand;
     }
     
+    /**
+     * Replace the operand, e.g. to bind a parameter of a prepared query.
+     */
+    void setOperand(Field operand) {
+        this.operand = operand;
+    }
+
     /**
      * Compares the field number of t specified in the constructor to the
      * operand field specified in the constructor using the operator specific in
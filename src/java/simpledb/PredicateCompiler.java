@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PredicateCompiler turns Predicates into {@link TupleFilter}s specialized
+ * for their operator and operand type.
+ * <p>
+ * {@link Predicate#filter} looks up the field, dispatches on its class and
+ * switches on the operator for every tuple. A compiled filter on an INT
+ * field is a lambda that reads the int value and compares it to a
+ * constant with a fixed operator, so that each evaluation is a single
+ * comparison. A conjunction evaluates its INT comparisons before any
+ * other predicate and stops at the first that fails.
+ * <p>
+ * For a scan, {@link #compile(List, TupleDesc)} also compiles the INT
+ * comparisons into a {@link SlotFilter}, which reads the int at the field's
+ * offset in a HeapPage slot. The page applies it to the bytes of each slot
+ * and decodes only the tuples that pass.
+ * <p>
+ * The operands are copied when a filter is compiled; filters must be
+ * compiled again after the operand of a Predicate changes, as happens when
+ * a parameter of a prepared query is bound.
+ */
+public class PredicateCompiler {
+
+    /**
+     * Compile a single predicate.
+     */
+    public static TupleFilter compile(Predicate p) {
+        final int f = p.getField();
+        final Field operand = p.getOperand();
+        if (operand instanceof IntField) {
+            final int c = ((IntField) operand).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return t -> ((IntField) t.getField(f)).getValue() == c;
+            case NOT_EQUALS:
+                return t -> ((IntField) t.getField(f)).getValue() != c;
+            case GREATER_THAN:
+                return t -> ((IntField) t.getField(f)).getValue() > c;
+            case GREATER_THAN_OR_EQ:
+                return t -> ((IntField) t.getField(f)).getValue() >= c;
+            case LESS_THAN:
+                return t -> ((IntField) t.getField(f)).getValue() < c;
+            case LESS_THAN_OR_EQ:
+                return t -> ((IntField) t.getField(f)).getValue() <= c;
+            }
+        }
+        final Predicate.Op op = p.getOp();
+        return t -> t.getField(f).compare(op, operand);
+    }
+
+    /**
+     * Compile a comparison of an INT field with an INT constant into a
+     * filter over serialized tuples.
+     *
+     * @param offset the offset of the field within a serialized tuple
+     */
+    static SlotFilter compileSlot(Predicate p, final int offset) {
+        final int c = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            return (d, o) -> readInt(d, o + offset) == c;
+        case NOT_EQUALS:
+            return (d, o) -> readInt(d, o + offset) != c;
+        case GREATER_THAN:
+            return (d, o) -> readInt(d, o + offset) > c;
+        case GREATER_THAN_OR_EQ:
+            return (d, o) -> readInt(d, o + offset) >= c;
+        case LESS_THAN:
+            return (d, o) -> readInt(d, o + offset) < c;
+        case LESS_THAN_OR_EQ:
+            return (d, o) -> readInt(d, o + offset) <= c;
+        default:
+            throw new IllegalArgumentException("unknown operator " + p.getOp());
+        }
+    }
+
+    /**
+     * @return the int written by {@link IntField#serialize} at offset
+     */
+    static int readInt(byte[] d, int offset) {
+        return (d[offset] << 24) | ((d[offset + 1] & 0xff) << 16)
+                | ((d[offset + 2] & 0xff) << 8) | (d[offset + 3] & 0xff);
+    }
+
+    /**
+     * Compile a conjunction of predicates over the tuples of a HeapFile into
+     * a {@link PageFilter}: comparisons of INT fields with INT constants are
+     * evaluated on the serialized tuple, the rest on the decoded one.
+     *
+     * @param conjuncts the predicates, all of which a tuple must satisfy
+     * @param td the TupleDesc of the scanned file
+     * @return a filter accepting the tuples satisfying every predicate
+     */
+    public static TupleFilter compile(List<Predicate> conjuncts, TupleDesc td) {
+        List<SlotFilter> slots = new ArrayList<SlotFilter>();
+        List<Predicate> rest = new ArrayList<Predicate>();
+        for (Predicate p : conjuncts) {
+            if (p.getOperand() instanceof IntField
+                    && td.getFieldType(p.getField()) == Type.INT_TYPE) {
+                int offset = 0;
+                for (int i = 0; i < p.getField(); i++)
+                    offset += td.getFieldType(i).getLen();
+                slots.add(compileSlot(p, offset));
+            } else {
+                rest.add(p);
+            }
+        }
+        if (slots.isEmpty())
+            return compile(conjuncts);
+        SlotFilter slot;
+        switch (slots.size()) {
+        case 1:
+            slot = slots.get(0);
+            break;
+        case 2: {
+            final SlotFilter a = slots.get(0);
+            final SlotFilter b = slots.get(1);
+            slot = (d, o) -> a.matches(d, o) && b.matches(d, o);
+            break;
+        }
+        default: {
+            final SlotFilter[] all = slots.toArray(new SlotFilter[slots.size()]);
+            slot = (d, o) -> {
+                for (SlotFilter filter : all) {
+                    if (!filter.matches(d, o))
+                        return false;
+                }
+                return true;
+            };
+        }
+        }
+        return new PageFilter(slot, rest.isEmpty() ? null : compile(rest), compile(conjuncts));
+    }
+
+    /**
+     * Compile a conjunction of predicates.
+     *
+     * @param conjuncts the predicates, all of which a tuple must satisfy
+     * @return a filter accepting the tuples satisfying every predicate
+     */
+    public static TupleFilter compile(List<Predicate> conjuncts) {
+        // cheap integer comparisons first
+        List<TupleFilter> filters = new ArrayList<TupleFilter>();
+        for (Predicate p : conjuncts) {
+            if (p.getOperand() instanceof IntField)
+                filters.add(compile(p));
+        }
+        for (Predicate p : conjuncts) {
+            if (!(p.getOperand() instanceof IntField))
+                filters.add(compile(p));
+        }
+        switch (filters.size()) {
+        case 0:
+            return t -> true;
+        case 1:
+            return filters.get(0);
+        case 2: {
+            final TupleFilter a = filters.get(0);
+            final TupleFilter b = filters.get(1);
+            return t -> a.matches(t) && b.matches(t);
+        }
+        case 3: {
+            final TupleFilter a = filters.get(0);
+            final TupleFilter b = filters.get(1);
+            final TupleFilter c = filters.get(2);
+            return t -> a.matches(t) && b.matches(t) && c.matches(t);
+        }
+        default: {
+            final TupleFilter[] all = filters.toArray(new TupleFilter[filters.size()]);
+            return t -> {
+                for (TupleFilter filter : all) {
+                    if (!filter.matches(t))
+                        return false;
+                }
+                return true;
+            };
+        }
+        }
+    }
+}
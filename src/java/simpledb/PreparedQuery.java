@@ -0,0 +1,191 @@
+package simpledb;
+
+import Zql.*;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A PreparedQuery is a SELECT statement with <tt>?</tt> parameters that is
+ * parsed and planned once and executed many times. Create one with
+ * {@link Parser#prepare}, set its parameters, and call {@link #execute} to
+ * get a {@link Query} running the cached plan as part of a transaction:
+ *
+ * <pre>
+ * PreparedQuery pq = parser.prepare("SELECT * FROM t WHERE t.id = ?");
+ * pq.setInt(0, 42);
+ * Query q = pq.execute(tid);
+ * </pre>
+ *
+ * Parameters are numbered from 0 in the order they appear in the WHERE
+ * clause and can only be compared to a field, not used in subqueries. The
+ * plan is chosen without knowing the parameter values, using average
+ * selectivities, and is rebuilt when the Catalog or TableStats have changed
+ * since it was planned. The Query of one execution must be closed before
+ * the next one starts; closing the PreparedQuery hands its plan to the
+ * parser's {@link StatementCache}.
+ */
+public class PreparedQuery {
+
+    private final Parser parser;
+    private final StatementCache cache;
+    private final String sql;
+    private final ZQuery statement;
+    private final Field[] values;
+
+    private OpIterator plan = null;
+    private LogicalPlan logicalPlan = null;
+    private PlanParameter[] parameters = null;
+    private long catalogVersion;
+    private long statsVersion;
+    private int plans = 0;
+
+    PreparedQuery(Parser parser, StatementCache cache, String sql, ZQuery statement) {
+        this.parser = parser;
+        this.cache = cache;
+        this.sql = sql;
+        this.statement = statement;
+        this.values = new Field[countParameters(statement.getWhere())];
+    }
+
+    /** @return the number of <tt>?</tt> placeholders in e, outside subqueries */
+    private static int countParameters(ZExp e) {
+        if (Parser.isParameter(e))
+            return 1;
+        if (!(e instanceof ZExpression))
+            return 0;
+        int n = 0;
+        for (int i = 0; i < ((ZExpression) e).nbOperands(); i++)
+            n += countParameters(((ZExpression) e).getOperand(i));
+        return n;
+    }
+
+    /** @return the normalized SQL of the statement */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the number of parameters of the statement */
+    public int numParameters() {
+        return values.length;
+    }
+
+    /**
+     * Set a parameter for the following executions.
+     *
+     * @param index the position of the parameter, from 0
+     * @param value the value; must have the type of the compared field
+     * @throws IndexOutOfBoundsException if there is no such parameter
+     */
+    public void setParameter(int index, Field value) {
+        if (index < 0 || index >= values.length)
+            throw new IndexOutOfBoundsException("parameter " + index + " of " + values.length);
+        values[index] = value;
+    }
+
+    public void setInt(int index, int value) {
+        setParameter(index, new IntField(value));
+    }
+
+    public void setString(int index, String value) {
+        setParameter(index, new StringField(value, Type.STRING_LEN));
+    }
+
+    /** Unset all parameters. */
+    public void clearParameters() {
+        Arrays.fill(values, null);
+    }
+
+    /**
+     * @return true if the Catalog or TableStats changed since the plan was
+     *         built, so that the next execution plans the statement again
+     */
+    public boolean isStale() {
+        return plan != null && (catalogVersion != Database.getCatalog().getVersion()
+                || statsVersion != TableStats.getVersion());
+    }
+
+    /** @return the number of times the statement has been planned */
+    public int timesPlanned() {
+        return plans;
+    }
+
+    /** @return the logical plan of the current physical plan, or null */
+    public LogicalPlan getLogicalPlan() {
+        return logicalPlan;
+    }
+
+    /**
+     * Bind the parameters to the plan and run it as part of a transaction,
+     * planning the statement first if it has no plan or a stale one.
+     *
+     * @param tid the transaction to run the query in
+     * @return a Query over the plan; it must be closed before the next
+     *         execution of this PreparedQuery
+     * @throws DbException if a parameter is not set or has the wrong type
+     * @throws ParsingException if the statement cannot be planned
+     */
+    public Query execute(TransactionId tid) throws DbException, ParsingException,
+            TransactionAbortedException {
+        if (plan == null || isStale())
+            plan(tid);
+        else
+            setTransactionId(plan, tid);
+        for (int i = 0; i < parameters.length; i++)
+            parameters[i].bind(values[i]);
+        Query query = new Query(plan, tid);
+        query.setLogicalPlan(logicalPlan);
+        return query;
+    }
+
+    private void plan(TransactionId tid) throws ParsingException {
+        // the versions are read first, so a change while planning makes
+        // the new plan stale rather than being missed
+        long cv = Database.getCatalog().getVersion();
+        long sv = TableStats.getVersion();
+        LogicalPlan lp;
+        try {
+            lp = parser.parseQueryLogicalPlan(tid, statement);
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        } catch (Zql.ParseException e) {
+            throw new ParsingException(e);
+        }
+        OpIterator pp = lp.physicalPlan(tid, TableStats.getStatsMap(), Parser.explain);
+        if (lp.numParameters() != values.length)
+            throw new ParsingException("Expected " + values.length + " parameters but planned "
+                    + lp.numParameters());
+        plan = pp;
+        logicalPlan = lp;
+        parameters = lp.getParameters();
+        catalogVersion = cv;
+        statsVersion = sv;
+        plans++;
+    }
+
+    /** Point every scan of a plan at another transaction. */
+    private static void setTransactionId(OpIterator op, TransactionId tid) {
+        if (op instanceof SeqScan) {
+            ((SeqScan) op).setTransactionId(tid);
+        } else if (op instanceof BTreeScan) {
+            ((BTreeScan) op).setTransactionId(tid);
+        } else if (op instanceof IndexScan) {
+            ((IndexScan) op).setTransactionId(tid);
+        } else if (op instanceof HashScan) {
+            ((HashScan) op).setTransactionId(tid);
+        } else if (op instanceof FusedScan) {
+            ((FusedScan) op).setTransactionId(tid);
+        } else if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren())
+                setTransactionId(child, tid);
+        }
+    }
+
+    /**
+     * Give the plan back to the parser's cache for the next PreparedQuery
+     * of the same statement. The PreparedQuery must not be used afterwards.
+     */
+    public void close() {
+        clearParameters();
+        cache.release(this);
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * QueryCompiler rewrites physical plans to fuse the pipelines at their
+ * leaves: a SeqScan of a HeapFile and the Filters directly above it become
+ * one {@link FusedScan}, which evaluates the compiled conjunction of all
+ * their predicates inside its loop over the slots of each page. An
+ * Aggregate over a FusedScan folds the tuples into its (partial)
+ * aggregators from that loop, so that scan, selection and aggregation run
+ * without an OpIterator call per tuple.
+ * <p>
+ * Compilation is off by default; enable it with {@link #setEnabled} or the
+ * parser's -compile flag. {@link PipelineBenchmark} compares both modes.
+ */
+public class QueryCompiler {
+
+    private static volatile boolean enabled = false;
+
+    /** Turn plan compilation by {@link LogicalPlan#physicalPlan} on or off. */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /** @return true if physical plans are compiled */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Fuse every Filter*-over-SeqScan pipeline of a HeapFile in a plan.
+     *
+     * @return the compiled plan; its root may be replaced
+     */
+    public static OpIterator compile(OpIterator plan) {
+        FusedScan fused = fuse(plan);
+        if (fused != null)
+            return fused;
+        if (plan instanceof Operator) {
+            Operator op = (Operator) plan;
+            OpIterator[] children = op.getChildren();
+            OpIterator[] compiled = new OpIterator[children.length];
+            boolean changed = false;
+            for (int i = 0; i < children.length; i++) {
+                compiled[i] = children[i] == null ? null : compile(children[i]);
+                changed |= compiled[i] != children[i];
+            }
+            if (changed)
+                op.setChildren(compiled);
+        }
+        return plan;
+    }
+
+    /**
+     * @return a FusedScan equivalent to plan, or null if plan is not a
+     *         chain of Filters over a SeqScan of a HeapFile
+     */
+    private static FusedScan fuse(OpIterator plan) {
+        ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+        while (plan instanceof Filter) {
+            predicates.add(((Filter) plan).getPredicate());
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        if (!(plan instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) plan;
+        if (!(Database.getCatalog().getDatabaseFile(scan.tableid) instanceof HeapFile))
+            return null;
+        return new FusedScan(scan, predicates);
+    }
+}
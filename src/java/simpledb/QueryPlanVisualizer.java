@@ -3,16 +3,24 @@ package simpledb;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import simpledb.TupleDesc.TDItem;
 
 public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
+    static final String MATERIALIZE = "materialize";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
+    static final String INDEX_ONLY_SCAN = "index only scan";
+    static final String HASH_SCAN = "hash scan";
+    static final String FUSED_SCAN = "fused scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -26,7 +34,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,24 +73,61 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan
+                || queryPlan instanceof IndexScan || queryPlan instanceof FusedScan
+                || queryPlan instanceof HashScan) {
+            String tableName, alias, scan;
+            List<Predicate> predicates = null;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = SCAN;
+                predicates = s.getPredicates();
+            } else if (queryPlan instanceof FusedScan) {
+                FusedScan s = (FusedScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = FUSED_SCAN;
+                predicates = s.getPredicates();
+            } else if (queryPlan instanceof IndexScan) {
+                IndexScan s = (IndexScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = s.isIndexOnly() ? INDEX_ONLY_SCAN : INDEX_SCAN;
+            } else if (queryPlan instanceof HashScan) {
+                HashScan s = (HashScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = HASH_SCAN;
+            } else {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = INDEX_SCAN;
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (predicates != null) {
+                // predicates evaluated by the scan
+                TupleDesc td = queryPlan.getTupleDesc();
+                for (Predicate p : predicates) {
+                    thisNode.text += String.format(",%1$s%2$s%3$s",
+                            td.getFieldName(p.getField()), p.getOp(), p.getOperand());
+                }
+            }
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -143,8 +188,10 @@ public class QueryPlanVisualizer {
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                String bloom = j.getBloomFilter() == null ? ""
+                        : ",bloom:" + j.getBloomFilter().getFpp();
+                thisNode.text = String.format("%1$s(%2$s%3$s),card:%4$d", HASH_JOIN, field1
+                        + jp.getOperator() + field2, bloom, j.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
                     upBarShift = HASH_JOIN.length() / 2;
@@ -165,21 +212,60 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof SemiJoin) {
+                SemiJoin j = (SemiJoin) plan;
+                String name = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                String cond = j.getJoinPredicate() == null ? "exists"
+                        : j.getJoinField1Name() + "=" + j.getJoinField2Name();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", name,
+                        cond, j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
+            }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
-                int gfield = a.groupField();
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < a.aggregateFields().length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(a.aggregateOps()[i]).append("(")
+                            .append(a.child.getTupleDesc().getFieldName(a.aggregateFields()[i]))
+                            .append(")");
+                }
 
-                if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                if (a.groupFields().length == 0) {
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int gfield : a.groupFields()) {
+                        if (groups.length() > 0)
+                            groups.append(", ");
+                        groups.append(a.child.getTupleDesc().getFieldName(gfield));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -217,6 +303,24 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Materialize) {
+                Materialize m = (Materialize) plan;
+                thisNode.text = String.format("%1$s,card:%2$d", MATERIALIZE,
+                        m.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (MATERIALIZE.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = MATERIALIZE.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - MATERIALIZE.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
                 thisNode.text = String.format(
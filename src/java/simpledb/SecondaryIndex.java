@@ -0,0 +1,342 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A SecondaryIndex maps the values of one or more fields of a HeapFile table
+ * to the RecordIds of the tuples holding them. It is stored in a BTreeFile of
+ * entries (key, include fields, page number, tuple number), keyed on the
+ * first field; the table id of the RecordIds is that of the indexed table.
+ * <p>
+ * The key of a composite index, on several fields, is the values of the
+ * fields packed into one string which sorts like the fields compared
+ * lexicographically (see {@link #packKey}), followed by the fields
+ * themselves. Strings longer than Type.STRING_LEN are cut, so entries whose
+ * fields differ only past the cut share a packed key; scans therefore treat
+ * the packed key as a bound and leave the exact test to a Filter. Include
+ * fields are stored in the entries but not ordered on; an index holding
+ * every field a query reads can answer it without reading the table.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex} and kept in sync with
+ * their table by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple}. Entries are locked and logged like the
+ * pages of any other BTreeFile, so they commit and abort with the tuples
+ * they point to.
+ */
+public class SecondaryIndex {
+
+    private final String name;
+    private final int tableid;
+    private final int[] keyFields;
+    private final int[] includeFields;
+    private final BTreeFile file;
+    // the entry field holding each field of the table, or -1
+    private final int[] entryFields;
+
+    /**
+     * Constructor for an index on a single field.
+     *
+     * @param name
+     *            the name of the index
+     * @param table
+     *            the table to index
+     * @param keyField
+     *            the field of the table the index is keyed on
+     * @param f
+     *            the file backing the index; an empty or missing file is an
+     *            empty index
+     */
+    public SecondaryIndex(String name, HeapFile table, int keyField, File f) {
+        this(name, table, new int[] { keyField }, new int[0], f);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *            the name of the index
+     * @param table
+     *            the table to index
+     * @param keyFields
+     *            the fields of the table the index is keyed on, most
+     *            significant first
+     * @param includeFields
+     *            fields of the table stored in the entries besides the key
+     * @param f
+     *            the file backing the index; an empty or missing file is an
+     *            empty index
+     */
+    public SecondaryIndex(String name, HeapFile table, int[] keyFields, int[] includeFields, File f) {
+        TupleDesc td = table.getTupleDesc();
+        if (keyFields.length == 0)
+            throw new IllegalArgumentException("index " + name + " has no key fields");
+        this.name = name;
+        this.tableid = table.getId();
+        this.keyFields = keyFields.clone();
+        this.includeFields = includeFields.clone();
+
+        ArrayList<Type> types = new ArrayList<Type>();
+        ArrayList<String> names = new ArrayList<String>();
+        if (keyFields.length > 1) {
+            types.add(Type.STRING_TYPE);
+            names.add("key");
+        }
+        entryFields = new int[td.numFields()];
+        Arrays.fill(entryFields, -1);
+        for (int[] fields : new int[][] { keyFields, includeFields }) {
+            for (int field : fields) {
+                if (entryFields[field] >= 0)
+                    throw new IllegalArgumentException("field " + td.getFieldName(field)
+                            + " appears twice in index " + name);
+                entryFields[field] = types.size();
+                types.add(td.getFieldType(field));
+                names.add(td.getFieldName(field));
+            }
+        }
+        types.add(Type.INT_TYPE);
+        names.add("pageno");
+        types.add(Type.INT_TYPE);
+        names.add("tupleno");
+        this.file = new BTreeFile(f, 0, new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0])));
+    }
+
+    /** @return the name of the index */
+    public String getName() {
+        return name;
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the field of the indexed table the index is keyed on, the most
+     *         significant one of a composite index
+     */
+    public int getKeyField() {
+        return keyFields[0];
+    }
+
+    /** @return the fields of the indexed table the index is keyed on */
+    public int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    /** @return the fields of the indexed table stored besides the key */
+    public int[] getIncludeFields() {
+        return includeFields.clone();
+    }
+
+    /** @return true if the index is keyed on more than one field */
+    public boolean isComposite() {
+        return keyFields.length > 1;
+    }
+
+    /**
+     * @return the field of the entries holding a field of the indexed table,
+     *         or -1 if the entries do not store it
+     */
+    public int entryField(int tableField) {
+        return entryFields[tableField];
+    }
+
+    /**
+     * @return true if the entries store every one of the given fields of the
+     *         indexed table, so a scan reading only them needs no table page
+     */
+    public boolean covers(Collection<Integer> tableFields) {
+        for (int field : tableFields)
+            if (entryFields[field] < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Pack the values of the leading key fields of a composite index into a
+     * string that sorts like the values compared lexicographically: an int
+     * becomes eight hex digits of its value with the sign bit flipped, and a
+     * string its characters followed by a NUL. The packed values of a prefix
+     * of the key fields are a prefix of the packed key of every entry
+     * starting with them. Strings holding NULs or characters above 0x7e do
+     * not sort correctly.
+     *
+     * @param values the values of the first values.length key fields
+     * @return the packed key, not cut to Type.STRING_LEN
+     */
+    static String packKey(Field[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (Field v : values) {
+            if (v.getType() == Type.INT_TYPE) {
+                String hex = Integer.toHexString(((IntField) v).getValue() ^ Integer.MIN_VALUE);
+                for (int i = hex.length(); i < 8; i++)
+                    sb.append('0');
+                sb.append(hex);
+            } else {
+                sb.append(((StringField) v).getValue()).append('\0');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the value of the first field of the entries that the entries
+     *         whose leading key fields have the given values start at
+     */
+    public Field lowerKey(Field[] values) {
+        if (!isComposite())
+            return values[0];
+        return new StringField(packKey(values), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the value of the first field of the entries that the entries
+     *         whose leading key fields have the given values end at,
+     *         inclusive
+     */
+    public Field upperKey(Field[] values) {
+        if (!isComposite())
+            return values[0];
+        // 0x7f sorts after any character a packed key continues with
+        String s = packKey(values) + '\u007f';
+        return new StringField(s.substring(0, Math.min(s.length(), Type.STRING_LEN)), Type.STRING_LEN);
+    }
+
+    /** @return the field of the entries holding the page number */
+    int pageNoField() {
+        return file.getTupleDesc().numFields() - 2;
+    }
+
+    /** @return the BTreeFile storing the entries of the index */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index entry pointing to a tuple of the indexed table
+     */
+    Tuple entryFor(Tuple t) {
+        RecordId rid = t.getRecordId();
+        Tuple entry = new Tuple(file.getTupleDesc());
+        if (isComposite()) {
+            Field[] key = new Field[keyFields.length];
+            for (int i = 0; i < key.length; i++)
+                key[i] = t.getField(keyFields[i]);
+            entry.setField(0, lowerKey(key));
+        }
+        for (int i = 0; i < entryFields.length; i++)
+            if (entryFields[i] >= 0)
+                entry.setField(entryFields[i], t.getField(i));
+        entry.setField(pageNoField(), new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(pageNoField() + 1, new IntField(rid.getTupleNumber()));
+        return entry;
+    }
+
+    /**
+     * @return the RecordId an index entry points to
+     */
+    RecordId recordIdOf(Tuple entry) {
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(pageNoField())).getValue()),
+                ((IntField) entry.getField(pageNoField() + 1)).getValue());
+    }
+
+    /**
+     * Add the entry for a tuple just inserted into the table.
+     *
+     * @param tid the transaction inserting the tuple
+     * @param t the tuple, with the RecordId it was stored at
+     * @return the index pages that were modified
+     */
+    ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return file.insertTuple(tid, entryFor(t));
+    }
+
+    /**
+     * Remove the entry for a tuple deleted from the table.
+     *
+     * @param tid the transaction deleting the tuple
+     * @param t the tuple, with the RecordId it was stored at
+     * @return the index pages that were modified
+     * @throws DbException if the index has no entry for the tuple
+     */
+    ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, entryFor(t).getField(0)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (recordIdOf(entry).equals(rid))
+                    return file.deleteTuple(tid, entry);
+            }
+        } finally {
+            it.close();
+        }
+        throw new DbException("index " + name + " has no entry for tuple " + rid);
+    }
+
+    /**
+     * Fill an empty index with the entries of every tuple in the table. The
+     * entries are sorted with an ExternalSort and written by a
+     * BTreeBulkLoader, so the table need not fit in memory. The index must be
+     * registered with the Catalog.
+     *
+     * @param tid the transaction reading the table
+     * @param fillFactor the fraction of each index page to fill
+     * @return the number of entries loaded
+     */
+    public int build(TransactionId tid, double fillFactor)
+            throws DbException, TransactionAbortedException, IOException {
+        OpIterator entries = new EntryIterator(new SeqScan(tid, tableid));
+        return BTreeBulkLoader.load(file, new ExternalSort(0, true, entries), fillFactor);
+    }
+
+    /**
+     * Turns the tuples of the indexed table into index entries.
+     */
+    private class EntryIterator extends Operator {
+
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+
+        EntryIterator(OpIterator child) {
+            this.child = child;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return file.getTupleDesc();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return child.hasNext() ? entryFor(child.next()) : null;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            this.child = children[0];
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SemiJoin operator returns the tuples of its outer child that have a
+ * match in its inner child (IN, EXISTS), or, as an anti-join, those that
+ * have none (NOT IN, NOT EXISTS). Only the fields of the outer child are
+ * returned, and each outer tuple at most once.
+ * <p>
+ * The inner child is read once, when the operator is opened, into a hash
+ * set of its join field values; each outer tuple is then checked with one
+ * lookup. Without a join predicate the operator tests only whether the
+ * inner child returns any tuple, as an uncorrelated EXISTS does.
+ */
+public class SemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate p;
+    private final boolean anti;
+    private OpIterator child1;
+    private OpIterator child2;
+
+    private transient HashSet<Field> keys;
+    private transient boolean innerEmpty;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The equality predicate between a field of the outer child
+     *            and a field of the inner child, or null to only test if the
+     *            inner child is empty
+     * @param child1
+     *            Iterator for the outer relation, whose tuples are returned
+     * @param child2
+     *            Iterator for the inner relation, read once per open
+     * @param anti
+     *            true to return the outer tuples without a match
+     * @throws IllegalArgumentException
+     *             if p does not compare the fields for equality
+     */
+    public SemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p != null && p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("semi-joins require an equality predicate");
+        }
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /** @return true if this is an anti-join */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table
+     *         name, or null without a join predicate
+     */
+    public String getJoinField1Name() {
+        return p == null ? null : child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table
+     *         name, or null without a join predicate
+     */
+    public String getJoinField2Name() {
+        return p == null ? null : child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    /** @return the TupleDesc of the outer child */
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        keys = new HashSet<Field>();
+        innerEmpty = !child2.hasNext();
+        if (p != null) {
+            while (child2.hasNext())
+                keys.add(child2.next().getField(p.getField2()));
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        keys = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the hash set built at open stays valid
+        child1.rewind();
+    }
+
+    /**
+     * Returns the next outer tuple that has a match in the inner relation,
+     * or that has none for an anti-join.
+     *
+     * @return The next qualifying tuple, or null if there are no more.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p == null) {
+            // the outcome is the same for every outer tuple
+            if (innerEmpty != anti)
+                return null;
+            return child1.hasNext() ? child1.next() : null;
+        }
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (keys.contains(t.getField(p.getField1())) != anti)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -15,6 +15,14 @@ public class SeqScan implements OpIterator {
     int tableid;
     String tableAlias;
     DbFileIterator dbFileIterator;
+    // the page range of a partial scan, or -1 for the whole table
+    int startPage = -1;
+    int endPage = -1;
+    // predicates evaluated by the scan itself, see pushPredicate
+    ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    // keys published by a hash join above the scan, see setBloomFilter
+    BloomFilter bloomFilter;
+    int bloomField = -1;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -40,6 +48,35 @@ public class SeqScan implements OpIterator {
         this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
     }
 
+    /**
+     * Creates a sequential scan over a contiguous range of pages of a
+     * {@link HeapFile}, used to split one scan across several workers.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table (see {@link #SeqScan(TransactionId, int, String)})
+     * @param startPage
+     *            the first page to scan
+     * @param endPage
+     *            one past the last page to scan
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile)) {
+            throw new IllegalArgumentException("page range scans require a HeapFile");
+        }
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.startPage = startPage;
+        this.endPage = endPage;
+        this.dbFileIterator = ((HeapFile) file).iterator(tid, startPage, endPage);
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -76,12 +113,85 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Run this scan as part of another transaction. Used to execute a cached
+     * plan again; the scan must be closed.
+     */
+    void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+        this.dbFileIterator = newIterator(null);
+    }
+
+    /**
+     * Have the scan return only the tuples satisfying p, in addition to any
+     * predicates pushed before. The predicates are compiled into one
+     * {@link TupleFilter} when the scan is opened and evaluated on each
+     * page as it is read, saving a Filter operator above the scan.
+     * Comparisons of INT fields with constants are evaluated on the bytes
+     * of the page, before the tuples are decoded.
+     *
+     * @param p a predicate over the fields of this scan's TupleDesc
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    public void pushPredicate(Predicate p) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("predicates can only be pushed into HeapFile scans");
+        }
+        predicates.add(p);
+    }
+
+    /**
+     * @return the predicates pushed into this scan
+     */
+    public List<Predicate> getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Have the scan drop the tuples whose value of field is not in bf, as it
+     * reads each page. Set by the HashEquiJoin whose probe side this scan
+     * feeds; takes effect when the scan is next opened.
+     *
+     * @throws IllegalArgumentException if the table is not a HeapFile
+     */
+    void setBloomFilter(int field, BloomFilter bf) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("Bloom filters can only be applied by HeapFile scans");
+        }
+        this.bloomField = field;
+        this.bloomFilter = bf;
+    }
+
+    /** @return the Bloom filter applied by the scan, or null */
+    public BloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    private DbFileIterator newIterator(TupleFilter filter) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (startPage >= 0) {
+            return ((HeapFile) file).iterator(tid, startPage, endPage, filter);
+        }
+        if (filter != null) {
+            return ((HeapFile) file).iterator(tid, 0, Integer.MAX_VALUE, filter);
+        }
+        return file.iterator(tid);
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        if (!predicates.isEmpty() || bloomFilter != null) {
+            // compiled here, since bound parameters may change the operands
+            TupleFilter filter = predicates.isEmpty() ? null : PredicateCompiler.compile(predicates,
+                    Database.getCatalog().getTupleDesc(tableid));
+            if (bloomFilter != null)
+                filter = bloomFilter.filter(bloomField, filter);
+            this.dbFileIterator = newIterator(filter);
+        }
         this.dbFileIterator.open();
     }
 
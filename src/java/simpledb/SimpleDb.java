@@ -90,6 +90,26 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("calibrate")) {
+            String[] newargs = new String[args.length-1];
+            System.arraycopy(args, 1, newargs, 0, newargs.length);
+            try {
+                CostCalibration.main(newargs);
+            } catch (Exception e) {
+                System.out.println("Error in calibration.");
+                e.printStackTrace();
+            }
+        }
+        else if (args[0].equals("benchmark")) {
+            String[] newargs = new String[args.length-1];
+            System.arraycopy(args, 1, newargs, 0, newargs.length);
+            try {
+                PipelineBenchmark.main(newargs);
+            } catch (Exception e) {
+                System.out.println("Error in benchmark.");
+                e.printStackTrace();
+            }
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
@@ -0,0 +1,16 @@
+package simpledb;
+
+/**
+ * A SlotFilter decides whether a tuple passes a selection while the tuple is
+ * still serialized in a page, before it is decoded. Built by
+ * {@link PredicateCompiler} for comparisons on INT fields, which sit at a
+ * fixed offset in every slot of a HeapPage.
+ */
+interface SlotFilter {
+    /**
+     * @param data the bytes of the page
+     * @param offset the offset of the tuple's slot in data
+     * @return true if the tuple satisfies the filter
+     */
+    boolean matches(byte[] data, int offset);
+}
@@ -0,0 +1,299 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is an implementation of a DbFile that stores a collection
+ * of tuples in no particular order, like a HeapFile, on slotted pages: each
+ * tuple takes the space of its values rather than a fixed size slot, so the
+ * tables it stores may have VARCHAR fields. A VARCHAR value too long to keep
+ * on a page with its tuple is stored on a chain of overflow pages of the same
+ * file; the overflow pages of a deleted tuple are freed, and reused by later
+ * inserts. The format of the pages is described in the SlottedPage
+ * constructor.
+ *
+ * @see simpledb.SlottedPage#SlottedPage
+ */
+public class SlottedHeapFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableId;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param td
+     *            the tuple descriptor of tuples in the file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.tableId = f.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the File backing this SlottedHeapFile on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this SlottedHeapFile: the hash code
+     * of the absolute file name of the underlying file.
+     */
+    public int getId() {
+        return tableId;
+    }
+
+    /**
+     * Returns the TupleDesc of the table stored in this DbFile.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            byte[] data = new byte[BufferPool.getPageSize()];
+            raf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+            if (raf.read(data) < data.length) {
+                throw new IllegalArgumentException("Read past end of table");
+            }
+            return new SlottedPage((HeapPageId) pid, data, td);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException e) {
+                // Ignore failures closing the file
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this SlottedHeapFile, including the
+     * overflow pages.
+     */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Add an empty page at the end of the file.
+     * @return the id of the new page
+     */
+    private synchronized HeapPageId appendPage() throws IOException {
+        HeapPageId pid = new HeapPageId(tableId, numPages());
+        writePage(new SlottedPage(pid, SlottedPage.createEmptyPageData(), td));
+        return pid;
+    }
+
+    /**
+     * Find data pages which satisfy a condition, looking at every page of the
+     * file in order and locking the ones found for writing; the pages which
+     * do not qualify are unlocked again, unless tid locked them before. Pages
+     * are added at the end of the file for the ones not found.
+     *
+     * @param count the number of pages to find
+     * @param minFree the size of the record each page must have room for, or
+     *            -1 for empty pages
+     * @param skip pages not to return, such as ones already found
+     */
+    private ArrayList<SlottedPage> findPages(TransactionId tid, int count, int minFree, Set<PageId> skip)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<SlottedPage> found = new ArrayList<>();
+        for (int i = 0; i < numPages() && found.size() < count; i++) {
+            HeapPageId pid = new HeapPageId(tableId, i);
+            if (skip.contains(pid))
+                continue;
+            boolean held = Database.getBufferPool().holdsLock(tid, pid);
+            SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (minFree < 0 ? page.isEmpty() : page.hasRoomFor(minFree)) {
+                found.add((SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE));
+            } else if (!held) {
+                Database.getBufferPool().releasePage(tid, pid);
+            }
+        }
+        while (found.size() < count) {
+            HeapPageId pid = appendPage();
+            found.add((SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE));
+        }
+        return found;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        ArrayList<Page> modifiedPages = new ArrayList<>();
+        Set<PageId> used = new HashSet<>();
+
+        // the values stored on overflow pages, each on a chain of empty pages
+        boolean[] overflowed = SlottedPage.overflowedFields(td, t);
+        int[] overflowPages = new int[td.numFields()];
+        Arrays.fill(overflowPages, -1);
+        for (int i = 0; i < overflowed.length; i++) {
+            if (!overflowed[i])
+                continue;
+            byte[] value = SlottedPage.stringBytes(((StringField) t.getField(i)).getValue());
+            int capacity = SlottedPage.overflowCapacity();
+            ArrayList<SlottedPage> chain = findPages(tid, (value.length + capacity - 1) / capacity, -1, used);
+            for (int j = 0; j < chain.size(); j++) {
+                int next = j + 1 < chain.size() ? chain.get(j + 1).getId().getPageNumber() : -1;
+                int off = j * capacity;
+                chain.get(j).setOverflow(value, off, Math.min(capacity, value.length - off), next);
+                used.add(chain.get(j).getId());
+                modifiedPages.add(chain.get(j));
+            }
+            overflowPages[i] = chain.get(0).getId().getPageNumber();
+        }
+
+        int size = SlottedPage.recordSize(td, t, overflowed);
+        SlottedPage page = findPages(tid, 1, size, used).get(0);
+        page.insertTuple(t, overflowPages);
+        modifiedPages.add(page);
+        return modifiedPages;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != tableId)
+            throw new DbException("tuple is not a member of this file");
+        ArrayList<Page> modifiedPages = new ArrayList<>();
+        SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(tableId, rid.getPageId().getPageNumber()), Permissions.READ_WRITE);
+        if (!page.isSlotUsed(rid.getTupleNumber()))
+            throw new DbException("tuple slot is already empty");
+        int[] overflowPages = page.getOverflowPages(rid.getTupleNumber());
+        page.deleteTuple(t);
+        modifiedPages.add(page);
+
+        // free the overflow pages of the tuple
+        for (int i = 0; overflowPages != null && i < overflowPages.length; i++) {
+            int pgNo = overflowPages[i];
+            while (pgNo >= 0) {
+                SlottedPage overflow = (SlottedPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableId, pgNo), Permissions.READ_WRITE);
+                pgNo = overflow.getNextOverflowPage();
+                overflow.clear();
+                modifiedPages.add(overflow);
+            }
+        }
+        return modifiedPages;
+    }
+
+    /**
+     * Read a VARCHAR value stored on a chain of overflow pages.
+     * @param pgNo the number of the first page of the chain
+     */
+    private Field readOverflow(TransactionId tid, int pgNo)
+            throws DbException, TransactionAbortedException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        while (pgNo >= 0) {
+            SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableId, pgNo), Permissions.READ_ONLY);
+            byte[] part = page.getOverflowData();
+            value.write(part, 0, part.length);
+            pgNo = page.getNextOverflowPage();
+        }
+        return new VarcharField(new String(value.toByteArray()));
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedHeapFileIterator(tid);
+    }
+
+    /**
+     * Iterates over the data pages of the file in order, and the slots of
+     * each page, reading the values stored on overflow pages along the way.
+     */
+    private class SlottedHeapFileIterator extends AbstractDbFileIterator {
+
+        private final TransactionId tid;
+        private SlottedPage page;
+        private int pgNo;
+        private int slot;
+        private boolean open = false;
+
+        SlottedHeapFileIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            open = true;
+            page = null;
+            pgNo = 0;
+            slot = 0;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                return null;
+            while (true) {
+                if (page == null) {
+                    if (pgNo >= numPages())
+                        return null;
+                    page = (SlottedPage) Database.getBufferPool().getPage(tid,
+                            new HeapPageId(tableId, pgNo), Permissions.READ_ONLY);
+                    slot = 0;
+                }
+                while (slot < page.getNumSlots()) {
+                    int i = slot++;
+                    if (!page.isSlotUsed(i))
+                        continue;
+                    Tuple t = page.getTuple(i);
+                    int[] overflowPages = page.getOverflowPages(i);
+                    if (overflowPages == null)
+                        return t;
+                    // the page's tuple leaves these values out; copy it
+                    Tuple copy = new Tuple(td);
+                    copy.setRecordId(t.getRecordId());
+                    for (int j = 0; j < td.numFields(); j++)
+                        copy.setField(j, overflowPages[j] < 0 ? t.getField(j) : readOverflow(tid, overflowPages[j]));
+                    return copy;
+                }
+                page = null;
+                pgNo++;
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            open = false;
+            page = null;
+        }
+    }
+}
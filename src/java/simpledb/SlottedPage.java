@@ -0,0 +1,560 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * Each instance of SlottedPage stores data for one page of a SlottedHeapFile
+ * and implements the Page interface that is used by BufferPool. Unlike a
+ * HeapPage, whose slots are all the size of the largest tuple, a slotted page
+ * stores each tuple as a record of the size of its values, so that tables
+ * with VARCHAR fields holding short strings fill their pages.
+ * <p>
+ * A page is either a data page or an overflow page, as told by its first
+ * byte. A data page is laid out as
+ * <pre>
+ *   kind (1 byte) | number of slots (2) | start of heap (2) | slot directory | free space | heap
+ * </pre>
+ * where each entry of the slot directory holds the offset and the length of
+ * a record (2 bytes each; an offset of 0 marks an empty slot), and the heap
+ * of records grows from the end of the page towards the directory. The
+ * record in a slot never changes slot, so RecordIds stay valid, but records
+ * move within the page: the heap is compacted whenever a record is deleted,
+ * so the free space is always the single gap between directory and heap.
+ * <p>
+ * A record holds the fields of its tuple in order: INT and STRING fields as
+ * {@link Field#serialize} writes them, and VARCHAR fields as their length
+ * followed by their bytes. A VARCHAR value too long to keep in the record is
+ * stored on a chain of overflow pages instead, and the record holds its
+ * negated length and the number of the first page of the chain. An overflow
+ * page is laid out as
+ * <pre>
+ *   kind (1 byte) | next page of the chain, or -1 (4) | number of bytes (2) | bytes
+ * </pre>
+ * An all-zero page is an empty data page, which is free to become an
+ * overflow page.
+ *
+ * @see SlottedHeapFile
+ * @see BufferPool
+ */
+public class SlottedPage implements Page {
+
+    static final byte DATA = 0;
+    static final byte OVERFLOW = 1;
+
+    static final int HEADER_SIZE = 5;
+    static final int SLOT_SIZE = 4;
+    static final int OVERFLOW_HEADER_SIZE = 7;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final byte[] data;
+    Tuple[] tuples; // the tuples decoded from the records, by slot
+    TransactionId tid;
+    boolean dirty;
+
+    byte[] oldData;
+    private final byte[] oldDataLock = new byte[0];
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk, in the
+     * format described above.
+     * @see Database#getCatalog
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+    }
+
+    /**
+     * Create a SlottedPage holding tuples of the given TupleDesc.
+     */
+    SlottedPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
+        if (data.length != BufferPool.getPageSize())
+            throw new IOException("a page must be " + BufferPool.getPageSize() + " bytes");
+        this.pid = id;
+        this.td = td;
+        this.data = data;
+        this.tuples = new Tuple[maxSlots()];
+        setBeforeImage();
+    }
+
+    /**
+     * @return the most slots a page can have, each holding a record of at
+     *         least one byte
+     */
+    private static int maxSlots() {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (SLOT_SIZE + 1);
+    }
+
+    /**
+     * @return the size of the largest record: one that fills an empty page
+     */
+    static int maxRecordSize() {
+        return BufferPool.getPageSize() - HEADER_SIZE - SLOT_SIZE;
+    }
+
+    /**
+     * @return the length of the longest VARCHAR value kept in a record; longer
+     *         values go to overflow pages, so that a page holds several tuples
+     */
+    static int maxInlineLength() {
+        return BufferPool.getPageSize() / 4;
+    }
+
+    /**
+     * @return the number of bytes of a value an overflow page holds
+     */
+    static int overflowCapacity() {
+        return BufferPool.getPageSize() - OVERFLOW_HEADER_SIZE;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedPage getBeforeImage(){
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new SlottedPage(pid,oldDataRef.clone(),td);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = getPageData();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @see #SlottedPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * data page.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        int len = BufferPool.getPageSize();
+        return new byte[len]; //all 0
+    }
+
+    private int getShort(int off) {
+        return ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+    }
+
+    private void putShort(int off, int v) {
+        data[off] = (byte) (v >>> 8);
+        data[off + 1] = (byte) v;
+    }
+
+    private int getInt(int off) {
+        return (getShort(off) << 16) | getShort(off + 2);
+    }
+
+    private void putInt(int off, int v) {
+        putShort(off, v >>> 16);
+        putShort(off + 2, v);
+    }
+
+    /**
+     * @return true if this is an overflow page, holding part of a VARCHAR value
+     */
+    public boolean isOverflowPage() {
+        return data[0] == OVERFLOW;
+    }
+
+    /**
+     * @return true if this is a data page without records, which may be
+     *         reused as an overflow page
+     */
+    public boolean isEmpty() {
+        return !isOverflowPage() && getNumSlots() == 0;
+    }
+
+    /**
+     * @return the number of slots in the slot directory of this data page,
+     *         empty or not
+     */
+    public int getNumSlots() {
+        return isOverflowPage() ? 0 : getShort(1);
+    }
+
+    private void setNumSlots(int n) {
+        putShort(1, n);
+    }
+
+    /**
+     * @return the offset of the first byte of the heap of records; an empty
+     *         page stores 0, for the end of the page
+     */
+    private int getHeapStart() {
+        int start = getShort(3);
+        return start == 0 ? data.length : start;
+    }
+
+    private void setHeapStart(int start) {
+        putShort(3, start == data.length ? 0 : start);
+    }
+
+    private int slotOffset(int i) {
+        return getShort(HEADER_SIZE + i * SLOT_SIZE);
+    }
+
+    private int slotLength(int i) {
+        return getShort(HEADER_SIZE + i * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int i, int offset, int length) {
+        putShort(HEADER_SIZE + i * SLOT_SIZE, offset);
+        putShort(HEADER_SIZE + i * SLOT_SIZE + 2, length);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < getNumSlots() && slotOffset(i) != 0;
+    }
+
+    /**
+     * Returns the number of tuples on this page.
+     */
+    public int getNumTuples() {
+        int num = 0;
+        for (int i = 0; i < getNumSlots(); i++)
+            if (isSlotUsed(i))
+                num++;
+        return num;
+    }
+
+    /**
+     * Returns the number of bytes between the slot directory and the heap of
+     * records of this data page.
+     */
+    public int getFreeSpace() {
+        if (isOverflowPage())
+            return 0;
+        return getHeapStart() - HEADER_SIZE - getNumSlots() * SLOT_SIZE;
+    }
+
+    /**
+     * @return the first empty slot of the directory, or getNumSlots() if a
+     *         slot has to be added
+     */
+    private int firstEmptySlot() {
+        int n = getNumSlots();
+        for (int i = 0; i < n; i++)
+            if (slotOffset(i) == 0)
+                return i;
+        return n;
+    }
+
+    /**
+     * @return true if a record of the given size fits on this data page
+     */
+    public boolean hasRoomFor(int recordSize) {
+        if (isOverflowPage())
+            return false;
+        int slotSize = firstEmptySlot() < getNumSlots() ? 0 : SLOT_SIZE;
+        return recordSize + slotSize <= getFreeSpace() && getNumSlots() + slotSize / SLOT_SIZE <= maxSlots();
+    }
+
+    /**
+     * Decide which VARCHAR values of a tuple are stored on overflow pages:
+     * those longer than {@link #maxInlineLength}, then the longest of the
+     * others until the record fits on a page.
+     * @return whether each field of t is stored on overflow pages
+     * @throws DbException if the record does not fit on a page anyway
+     */
+    static boolean[] overflowedFields(TupleDesc td, Tuple t) throws DbException {
+        boolean[] overflowed = new boolean[td.numFields()];
+        for (int i = 0; i < overflowed.length; i++) {
+            if (td.getFieldType(i) == Type.VARCHAR_TYPE)
+                overflowed[i] = varcharLength(t, i) > maxInlineLength();
+        }
+        while (recordSize(td, t, overflowed) > maxRecordSize()) {
+            int longest = -1;
+            for (int i = 0; i < overflowed.length; i++) {
+                if (td.getFieldType(i) == Type.VARCHAR_TYPE && !overflowed[i]
+                        && (longest < 0 || varcharLength(t, i) > varcharLength(t, longest)))
+                    longest = i;
+            }
+            // an overflowed value takes 8 bytes in the record
+            if (longest < 0 || varcharLength(t, longest) <= 4)
+                throw new DbException("tuple is too large for a page");
+            overflowed[longest] = true;
+        }
+        return overflowed;
+    }
+
+    private static int varcharLength(Tuple t, int i) {
+        return ((StringField) t.getField(i)).getValue().length();
+    }
+
+    /**
+     * @return the number of bytes the record of a tuple takes, when the given
+     *         fields are stored on overflow pages
+     */
+    static int recordSize(TupleDesc td, Tuple t, boolean[] overflowed) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) != Type.VARCHAR_TYPE)
+                size += td.getFieldType(i).getLen();
+            else
+                size += overflowed[i] ? 8 : 4 + varcharLength(t, i);
+        }
+        return size;
+    }
+
+    /**
+     * @return the bytes a string is stored as: the low bytes of its
+     *         characters, as written by {@link DataOutputStream#writeBytes}
+     */
+    static byte[] stringBytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    /**
+     * Encode the record of a tuple.
+     * @param overflowPages - the number of the first overflow page of each
+     *        field stored on overflow pages, and -1 for the others
+     */
+    private byte[] encode(Tuple t, int[] overflowPages) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) != Type.VARCHAR_TYPE) {
+                    f.serialize(dos);
+                } else if (overflowPages[i] >= 0) {
+                    dos.writeInt(-varcharLength(t, i));
+                    dos.writeInt(overflowPages[i]);
+                } else {
+                    String s = ((StringField) f).getValue();
+                    dos.writeInt(s.length());
+                    dos.writeBytes(s);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the tuple in a slot of this page, or null if the slot is empty.
+     *         The VARCHAR fields stored on overflow pages are null; see
+     *         {@link #getOverflowPages}.
+     */
+    public Tuple getTuple(int i) {
+        if (!isSlotUsed(i))
+            return null;
+        if (tuples[i] == null)
+            tuples[i] = decode(i);
+        return tuples[i];
+    }
+
+    private Tuple decode(int slot) {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(data, slotOffset(slot), slotLength(slot)));
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) != Type.VARCHAR_TYPE) {
+                    t.setField(j, td.getFieldType(j).parse(dis));
+                    continue;
+                }
+                int len = dis.readInt();
+                if (len < 0) {
+                    dis.readInt(); // the first overflow page
+                    continue;
+                }
+                byte[] bs = new byte[len];
+                dis.readFully(bs);
+                t.setField(j, new VarcharField(new String(bs)));
+            }
+        } catch (IOException | java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    /**
+     * @return the number of the first overflow page of each field of the
+     *         tuple in a slot, or -1 for the fields stored in its record; or
+     *         null if none of them is stored on overflow pages
+     */
+    public int[] getOverflowPages(int slot) {
+        int[] pages = null;
+        int off = slotOffset(slot);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) != Type.VARCHAR_TYPE) {
+                off += td.getFieldType(j).getLen();
+                continue;
+            }
+            int len = getInt(off);
+            if (len >= 0) {
+                off += 4 + len;
+                continue;
+            }
+            if (pages == null) {
+                pages = new int[td.numFields()];
+                Arrays.fill(pages, -1);
+            }
+            pages[j] = getInt(off + 4);
+            off += 8;
+        }
+        return pages;
+    }
+
+    /**
+     * Adds the specified tuple to this data page, in the first empty slot;
+     * the tuple is updated to reflect that it is now stored on this page.
+     * @param overflowPages - the number of the first overflow page of each
+     *        field stored on overflow pages, and -1 for the others; see
+     *        {@link #overflowedFields}
+     * @throws DbException if the record of the tuple does not fit on the page
+     *         or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int[] overflowPages) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("tupledesc is mismatch");
+        byte[] record = encode(t, overflowPages);
+        if (!hasRoomFor(record.length))
+            throw new DbException("page is full");
+        int slot = firstEmptySlot();
+        if (slot == getNumSlots())
+            setNumSlots(slot + 1);
+        int start = getHeapStart() - record.length;
+        System.arraycopy(record, 0, data, start, record.length);
+        setHeapStart(start);
+        setSlot(slot, start, record.length);
+        tuples[slot] = null;
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from this data page, and compact the heap of
+     * records: the records below the deleted one move up to fill the hole it
+     * leaves, so that all the free space is between directory and heap.
+     * Empty slots at the end of the directory are dropped.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.getTupleNumber()))
+            throw new DbException("tuple is not on this page, or tuple slot is already empty");
+        int slot = rid.getTupleNumber();
+        int off = slotOffset(slot);
+        int len = slotLength(slot);
+        int start = getHeapStart();
+        System.arraycopy(data, start, data, start + len, off - start);
+        Arrays.fill(data, start, start + len, (byte) 0);
+        setHeapStart(start + len);
+        for (int i = 0; i < getNumSlots(); i++) {
+            if (slotOffset(i) != 0 && slotOffset(i) < off)
+                setSlot(i, slotOffset(i) + len, slotLength(i));
+        }
+        setSlot(slot, 0, 0);
+        tuples[slot] = null;
+
+        int n = getNumSlots();
+        while (n > 0 && slotOffset(n - 1) == 0)
+            n--;
+        setNumSlots(n);
+    }
+
+    /**
+     * @return the number of the next page of the chain of this overflow page,
+     *         or -1 if it is the last one
+     */
+    public int getNextOverflowPage() {
+        return getInt(1);
+    }
+
+    /**
+     * @return the part of a VARCHAR value held by this overflow page
+     */
+    public byte[] getOverflowData() {
+        return Arrays.copyOfRange(data, OVERFLOW_HEADER_SIZE, OVERFLOW_HEADER_SIZE + getShort(5));
+    }
+
+    /**
+     * Make this empty page an overflow page, holding len bytes of a value
+     * from off, at most {@link #overflowCapacity}.
+     * @param next - the number of the next page of the chain, or -1
+     */
+    public void setOverflow(byte[] value, int off, int len, int next) throws DbException {
+        if (!isEmpty())
+            throw new DbException("only an empty page can become an overflow page");
+        if (len > overflowCapacity())
+            throw new DbException("value does not fit on an overflow page");
+        data[0] = OVERFLOW;
+        putInt(1, next);
+        putShort(5, len);
+        System.arraycopy(value, off, data, OVERFLOW_HEADER_SIZE, len);
+    }
+
+    /**
+     * Free this overflow page: it becomes an empty data page.
+     */
+    public void clear() {
+        Arrays.fill(data, (byte) 0);
+        Arrays.fill(tuples, null);
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.tid = tid;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        if(dirty){
+            return tid;
+        }else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StatementCache keeps the plans of prepared queries that are not in use,
+ * keyed by their normalized SQL, and evicts the least recently used plan
+ * once it holds more than its capacity.
+ * <p>
+ * A plan is an operator tree that can only run one execution at a time, so
+ * {@link #take} removes it from the cache and {@link PreparedQuery#close}
+ * gives it back. Plans built before the last change to the Catalog or to
+ * TableStats are dropped instead of being handed out.
+ *
+ * @Threadsafe
+ */
+public class StatementCache {
+
+    /** Default number of plans kept. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedQuery> plans;
+    private int hits = 0;
+    private int misses = 0;
+    private int invalidations = 0;
+
+    /**
+     * @param capacity the maximum number of plans kept
+     */
+    public StatementCache(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        this.capacity = capacity;
+        this.plans = new LinkedHashMap<String, PreparedQuery>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedQuery> eldest) {
+                return size() > StatementCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Normalize a statement so that statements differing only in
+     * whitespace or a trailing ';' share a cache entry. Quoted strings are
+     * left untouched.
+     */
+    public static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"')
+                quoted = !quoted;
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0)
+                sb.append(' ');
+            space = false;
+            sb.append(c);
+        }
+        int end = sb.length();
+        while (end > 0 && (sb.charAt(end - 1) == ';' || sb.charAt(end - 1) == ' '))
+            end--;
+        return sb.substring(0, end);
+    }
+
+    /**
+     * Remove and return the plan cached for a normalized statement.
+     *
+     * @return the plan, or null if none is cached or the cached one is stale
+     */
+    public synchronized PreparedQuery take(String sql) {
+        PreparedQuery pq = plans.remove(sql);
+        if (pq == null) {
+            misses++;
+            return null;
+        }
+        if (pq.isStale()) {
+            invalidations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return pq;
+    }
+
+    /**
+     * Cache the plan of a prepared query that is no longer in use,
+     * replacing any plan cached for the same statement.
+     */
+    public synchronized void release(PreparedQuery pq) {
+        if (capacity > 0 && !pq.isStale())
+            plans.put(pq.getSql(), pq);
+    }
+
+    /** Drop every cached plan. */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /** @return the number of cached plans */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of calls to {@link #take} that returned a plan */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /** @return the number of calls to {@link #take} that returned null */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    /** @return the number of stale plans dropped by {@link #take} */
+    public synchronized int invalidations() {
+        return invalidations;
+    }
+}
@@ -1,21 +1,15 @@
 package simpledb;
 
-import java.util.*;
-
 /**
  * Knows how to compute some aggregate over a set of StringFields.
+ * 
+ * Groups are held in the primitive-array hash table of {@link HashAggregator}
+ * and spill to disk once its memory budget is exceeded.
  */
-public class StringAggregator implements Aggregator {
+public class StringAggregator extends HashAggregator {
 
     private static final long serialVersionUID = 1L;
-    int gbfield;
-    Type gbfieldtype;
-    int afield;
-    Op what;
-    Map<Field,Integer> groupValToAggregateVal;
-    Map<Field,Integer> groupValToGroupSize;
-    TupleDesc tupleDesc;
-    Field fieldHolder = new StringField("",0);
+
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
@@ -26,122 +20,26 @@ public class StringAggregator implements Aggregator {
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        // some code goes here
-        if(!what.equals(Op.COUNT)){
-            throw new IllegalArgumentException();
-        }
-        if(gbfield == NO_GROUPING){
-            this.tupleDesc = new TupleDesc(new Type[]{Type.INT_TYPE});
-        }else{
-            this.tupleDesc = new TupleDesc(new Type[]{gbfieldtype,Type.INT_TYPE});
-        }
-        this.gbfield = gbfield;
-        this.gbfieldtype = gbfieldtype;
-        this.afield = afield;
-        this.what = what;
-        this.groupValToAggregateVal = new HashMap<>();
-        this.groupValToGroupSize = new HashMap<>();
+        this(gbfield, gbfieldtype, afield, what, DEFAULT_MEMORY_BUDGET);
     }
 
     /**
-     * Merge a new tuple into the aggregate, grouping as indicated in the
-     * constructor
+     * Aggregate constructor with an explicit memory budget
      *
-     * @param tup
-     *            the Tuple containing an aggregate field and a group-by field
+     * @param memoryBudget the number of bytes the in-memory group table may
+     *            occupy before groups are spilled to disk
+     * @throws IllegalArgumentException if what != COUNT
+     * @see #StringAggregator(int, Type, int, Op)
      */
-    public void mergeTupleIntoGroup(Tuple tup) {
-        // some code goes here
-        Field groupkey;
-        if(gbfield == NO_GROUPING){
-            groupkey = fieldHolder;
-        }else{
-            groupkey = tup.getField(gbfield);
-        }
-        if(groupValToAggregateVal.containsKey(groupkey)){
-            groupValToGroupSize.put(groupkey,groupValToGroupSize.get(groupkey)+1);
-            Integer aggregateVal = groupValToAggregateVal.get(groupkey);
-            switch (what){
-                case COUNT:
-                    groupValToAggregateVal.put(groupkey,aggregateVal+1);
-                    break;
-            }
-
-        }else {
-            Integer aggregateBase = null;
-            switch (what){
-                case COUNT:
-                    aggregateBase = 1;
-                    break;
-            }
-            groupValToAggregateVal.putIfAbsent(groupkey,aggregateBase);
-            groupValToGroupSize.putIfAbsent(groupkey,1);
-        }
-
-        //System.out.println("afetr input tuple: "+groupValToAggregateVal);
-
+    public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what, long memoryBudget) {
+        super(gbfield, gbfieldtype, afield, checkCount(what), memoryBudget);
     }
 
-    /**
-     * Create a OpIterator over group aggregate results.
-     *
-     * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
-     *         if using group, or a single (aggregateVal) if no grouping. The
-     *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
-     */
-    public OpIterator iterator() {
-        // some code goes here
-
-        return new OpIterator(){
-            Iterator<Tuple> it;
-            @Override
-            public void open() throws DbException, TransactionAbortedException {
-                List<Tuple> aggregateRets = new ArrayList<>();
-                for(Map.Entry<Field,Integer> entry : groupValToAggregateVal.entrySet()){
-                    Integer val = null;
-                    switch (what){
-                        case COUNT:
-                            val = entry.getValue();
-                            break;
-                    }
-                    if(gbfield == NO_GROUPING){
-                        aggregateRets.add(new Tuple(tupleDesc).setFields(Arrays.asList(new Field[]{new IntField(val)})));
-                    }else{
-                        aggregateRets.add(new Tuple(tupleDesc).setFields(Arrays.asList(new Field[]{entry.getKey(), new IntField(val)})));
-                    }
-                }
-                it = aggregateRets.iterator();
-            }
-
-            @Override
-            public boolean hasNext() throws DbException, TransactionAbortedException {
-                return it.hasNext();
-            }
-
-            @Override
-            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                //System.out.println("next aggreted tuple: "+tuple);
-                return it.next();
-            }
-
-            @Override
-            public void rewind() throws DbException, TransactionAbortedException {
-                open();
-            }
-
-            @Override
-            public TupleDesc getTupleDesc() {
-                return tupleDesc;
-            }
-
-            @Override
-            public void close() {
-
-            }
-        };
-//        throw new
-//        UnsupportedOperationException("please implement me for lab2");
+    private static Op checkCount(Op what) {
+        if (!what.equals(Op.COUNT)) {
+            throw new IllegalArgumentException();
+        }
+        return what;
     }
 
 }
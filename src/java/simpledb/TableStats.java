@@ -1,28 +1,73 @@
 package simpledb;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * Statistics can be saved to a stats file next to the catalog and loaded at
+ * startup instead of re-scanning every table. Tuple and page counts are
+ * maintained incrementally as tuples are inserted and deleted; once the
+ * number of modifications since the last scan exceeds a fraction of the
+ * table, a background ANALYZE rebuilds the histograms (see
+ * {@link #enableAutoAnalyze}).
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** Default fraction of a table that must change before it is re-analyzed. */
+    public static final double DEFAULT_ANALYZE_THRESHOLD = 0.2;
+
+    /** Tables smaller than this are treated as this large when measuring drift. */
+    static final int MIN_ANALYZE_TUPLES = 100;
+
+    private static volatile double analyzeThreshold = 0;
+    private static volatile File statsFile;
+    private static ExecutorService analyzer;
+
     static final int IOCOSTPERPAGE = 1000;
 
+    /** Default selectivity of a range predicate whose constant is unknown. */
+    public static final double DEFAULT_RANGE_SELECTIVITY = 1.0 / 3;
+
+    private static final AtomicLong version = new AtomicLong();
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever the statistics of a table are
+     *         replaced; plans costed with older statistics may be stale
+     */
+    public static long getVersion() {
+        return version.get();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -31,6 +76,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -55,10 +101,202 @@ public class TableStats {
             int tableid = tableIt.next();
             TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
             setTableStats(Database.getCatalog().getTableName(tableid), s);
+            System.out.println("  " + Database.getCatalog().getTableName(tableid) + ": " + s.samplingReport());
         }
         System.out.println("Done.");
     }
 
+    /**
+     * @return the stats file kept next to the given catalog file
+     */
+    public static File statsFileFor(String catalogFile) {
+        return new File(catalogFile + ".stats");
+    }
+
+    /**
+     * Write the statistics of every table to a file. The file is written to
+     * a temporary file first and then renamed, so a crash never leaves a
+     * truncated stats file behind.
+     */
+    public static void saveStatistics(File f) throws IOException {
+        HashMap<String, TableStats> snapshot = new HashMap<String, TableStats>(statsMap);
+        File tmp = new File(f.getPath() + ".tmp");
+        ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            oos.writeObject(snapshot);
+        } finally {
+            oos.close();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Load the statistics saved by {@link #saveStatistics} for the tables in
+     * the catalog, and compute statistics for tables that have none or whose
+     * schema or page count no longer matches the saved statistics. The file
+     * is remembered, and rewritten whenever a background ANALYZE completes.
+     *
+     * @return the number of tables whose statistics were loaded rather than
+     *         computed
+     */
+    @SuppressWarnings("unchecked")
+    public static int loadStatistics(File f) {
+        statsFile = f;
+        Map<String, TableStats> saved = new HashMap<String, TableStats>();
+        if (f.exists()) {
+            try {
+                ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+                try {
+                    saved = (Map<String, TableStats>) ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                System.out.println("Ignoring unreadable stats file " + f + ": " + e);
+            }
+        }
+
+        int loaded = 0;
+        boolean computed = false;
+        Set<Integer> seen = new HashSet<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            if (!seen.add(tableid)) {
+                continue;
+            }
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = saved.get(name);
+            if (s != null && s.tupleDesc.equals(Database.getCatalog().getTupleDesc(tableid))
+                    && s.numPages == numPages(tableid)) {
+                s.tableid = tableid;
+                loaded++;
+            } else {
+                s = new TableStats(tableid, IOCOSTPERPAGE);
+                System.out.println("Computed table stats for " + name + ": " + s.samplingReport());
+                computed = true;
+            }
+            setTableStats(name, s);
+        }
+        if (computed) {
+            try {
+                saveStatistics(f);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Start refreshing the statistics of a table in the background once the
+     * tuples inserted and deleted since it was last scanned exceed the given
+     * fraction of its size.
+     *
+     * @param threshold the fraction of modified tuples that triggers an
+     *            ANALYZE, or 0 to disable background ANALYZE
+     */
+    public static synchronized void enableAutoAnalyze(double threshold) {
+        analyzeThreshold = threshold;
+        if (threshold > 0 && analyzer == null) {
+            analyzer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "analyze");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Record that a tuple was inserted into a table. Called by the
+     * BufferPool; has no effect on tables without statistics.
+     */
+    static void tupleInserted(int tableid) {
+        TableStats s = statsFor(tableid);
+        if (s != null) {
+            s.recordModification(1);
+        }
+    }
+
+    /**
+     * Record that a tuple was deleted from a table. Called by the
+     * BufferPool; has no effect on tables without statistics.
+     */
+    static void tupleDeleted(int tableid) {
+        TableStats s = statsFor(tableid);
+        if (s != null) {
+            s.recordModification(-1);
+        }
+    }
+
+    private static TableStats statsFor(int tableid) {
+        try {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+            return s != null && s.tableid == tableid ? s : null;
+        } catch (NoSuchElementException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    private static int numPages(int tableid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).numPages();
+        }
+        if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).numPages();
+        }
+        if (file instanceof HashFile) {
+            return ((HashFile) file).numPages();
+        }
+        if (file instanceof SlottedHeapFile) {
+            return ((SlottedHeapFile) file).numPages();
+        }
+        return 0;
+    }
+
+    /**
+     * Adjust the tuple count after an insert (+1) or delete (-1) and schedule
+     * an ANALYZE if the table has drifted too far from its histograms.
+     * Counts of aborted transactions are not undone; the next ANALYZE
+     * corrects them.
+     */
+    private synchronized void recordModification(int delta) {
+        tupleCnt = Math.max(0, tupleCnt + delta);
+        modifications++;
+        if (delta > 0) {
+            numPages = numPages(tableid);
+        }
+        double threshold = analyzeThreshold;
+        if (threshold > 0 && !analyzePending
+                && modifications > threshold * Math.max(analyzedTupleCnt, MIN_ANALYZE_TUPLES)) {
+            analyzePending = true;
+            analyzer.submit(this::analyze);
+        }
+    }
+
+    /**
+     * Rescan the table and replace these statistics with the result, unless
+     * they have been replaced in the meantime or the scan could not complete.
+     */
+    private void analyze() {
+        try {
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats fresh = new TableStats(tableid, ioCostPerPage);
+            if (fresh.complete && statsMap.replace(name, this, fresh)) {
+                version.incrementAndGet();
+                File f = statsFile;
+                if (f != null) {
+                    saveStatistics(f);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            analyzePending = false;
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,71 +304,322 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Default number of pages of a HeapFile read to build its statistics;
+     * larger files are block-sampled.
+     */
+    public static final int DEFAULT_SAMPLE_PAGES = 256;
+
+    /**
+     * Default number of values per column kept in the uniform reservoir
+     * sample from which histograms and most common values are built.
+     */
+    public static final int DEFAULT_RESERVOIR_SIZE = 20000;
+
+    private static volatile int samplePages = DEFAULT_SAMPLE_PAGES;
+    private static volatile int reservoirSize = DEFAULT_RESERVOIR_SIZE;
+
+    /**
+     * Set the sampling knobs used by {@link #TableStats(int, int)}: reading
+     * more pages makes tuple counts and distinct counts more accurate, and a
+     * larger reservoir makes histograms more accurate, at the cost of a
+     * slower ANALYZE.
+     *
+     * @param pages the number of pages of each HeapFile to read
+     * @param reservoir the number of values per column to sample
+     */
+    public static void setSampling(int pages, int reservoir) {
+        if (pages < 1 || reservoir < 1) {
+            throw new IllegalArgumentException("sample sizes must be positive");
+        }
+        samplePages = pages;
+        reservoirSize = reservoir;
+    }
+
     int tableid;
     int ioCostPerPage;
     Histogram[] hists;
     TupleDesc tupleDesc;
     int tupleCnt;
+    int numPages;
+    // tuple count at the last scan, and tuples inserted or deleted since
+    int analyzedTupleCnt;
+    int modifications;
+    // what the last scan read, and per-column results
+    int sampledPages;
+    int sampledTuples;
+    double[] distinctCounts;
+    int[] mins;
+    int[] maxs;
+    double distinctError;
+    // false if the scan building these statistics was aborted
+    transient boolean complete;
+    private transient volatile boolean analyzePending;
+
+    // scan state, only used while the statistics are built
+    private transient Random random;
+    private transient int[][] reservoir;
+    private transient HyperLogLog[] sketches;
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table, using the sampling knobs set by
+     * {@link #setSampling}.
      * 
      * @param tableid
      *            The table over which to compute statistics
      * @param ioCostPerPage
-     *            The cost per page of IO. This doesn't differentiate between
-     *            sequential-scan IO and disk seeks.
+     *            The cost of reading a page sequentially; the other
+     *            constants of {@link CostModel} are scaled by it.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
+        this(tableid, ioCostPerPage, samplePages, reservoirSize);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the table.
+     * <p>
+     * A HeapFile with more than samplePages pages is block-sampled: that many
+     * pages are chosen at random and read in file order, and every tuple on
+     * them is part of the sample. Other files are scanned in full. A
+     * reservoir of up to reservoirSize values per column is kept from the
+     * sample to build equi-depth histograms with most common values, while
+     * minimum, maximum and a HyperLogLog distinct-count sketch see every
+     * sampled value. Distinct counts of sampled tables are scaled up with
+     * the Haas-Stokes Duj1 estimator.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param samplePages
+     *            The number of pages of a HeapFile to read
+     * @param reservoirSize
+     *            The number of values per column used to build histograms
+     */
+    public TableStats(int tableid, int ioCostPerPage, int samplePages, int reservoirSize) {
         // some code goes here
         this.tupleCnt = 0;
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
         this.tupleDesc = Database.getCatalog().getTupleDesc(tableid);
-        this.hists = new Histogram[tupleDesc.numFields()];
-        for(int i=0;i<hists.length;i++){
-            switch (tupleDesc.getFieldType(i)){
-                case STRING_TYPE:
-                    hists[i] = new StringHistogram(NUM_HIST_BINS);
-                    break;
-                case INT_TYPE:
-                    hists[i] = new IntHistogram(NUM_HIST_BINS,0,32);
-                    break;
+        this.numPages = numPages(tableid);
+        int numFields = tupleDesc.numFields();
+        this.hists = new Histogram[numFields];
+        this.distinctCounts = new double[numFields];
+        this.mins = new int[numFields];
+        this.maxs = new int[numFields];
+        Arrays.fill(mins, Integer.MAX_VALUE);
+        Arrays.fill(maxs, Integer.MIN_VALUE);
+        this.random = new Random(tableid);
+        this.reservoir = new int[numFields][reservoirSize];
+        this.sketches = new HyperLogLog[numFields];
+        for(int i=0;i<numFields;i++){
+            sketches[i] = new HyperLogLog();
+            if (tupleDesc.getFieldType(i) != Type.INT_TYPE) {
+                hists[i] = new StringHistogram(NUM_HIST_BINS);
             }
-
         }
+        this.distinctError = sketches.length > 0 ? sketches[0].relativeError() : 0;
 
-        DbFileIterator iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(new TransactionId());
+        TransactionId tid = new TransactionId();
         try {
-            iterator.open();
-            while (iterator.hasNext()){
-                Tuple tuple = iterator.next();
-                tupleCnt ++;
-               // System.out.println("tuple: "+tuple);
-                for(int i=0;i<hists.length;i++){
-                    switch (tupleDesc.getFieldType(i)){
-                        case STRING_TYPE:
-                            hists[i].addValue(((StringField)tuple.getField(i)).getValue());
-                            break;
-                        case INT_TYPE:
-                            hists[i].addValue(((IntField)tuple.getField(i)).getValue());
-                            break;
-                    }
-                }
+            DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+            if (file instanceof HeapFile && numPages > samplePages) {
+                scanSampledPages(tid, (HeapFile) file, samplePages);
+            } else {
+                scanAll(tid, file);
+                sampledPages = numPages;
             }
+            complete = true;
         } catch (DbException e) {
             e.printStackTrace();
         } catch (TransactionAbortedException e) {
             e.printStackTrace();
+        } finally {
+            // release the read locks taken by the scan
+            try {
+                Database.getBufferPool().transactionComplete(tid);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        boolean sampled = sampledPages < numPages;
+        this.tupleCnt = sampled
+                ? (int) Math.round((double) sampledTuples * numPages / sampledPages)
+                : sampledTuples;
+        int kept = Math.min(sampledTuples, reservoirSize);
+        for (int i = 0; i < numFields; i++) {
+            int[] values = Arrays.copyOf(reservoir[i], kept);
+            distinctCounts[i] = estimateDistinct(values, sketches[i]);
+            if (tupleDesc.getFieldType(i) == Type.INT_TYPE) {
+                hists[i] = new EquiDepthHistogram(values, NUM_HIST_BINS, distinctCounts[i]);
+            }
+        }
+        this.random = null;
+        this.reservoir = null;
+        this.sketches = null;
+        this.analyzedTupleCnt = tupleCnt;
+    }
+
+    private void scanAll(TransactionId tid, DbFile file)
+            throws DbException, TransactionAbortedException {
+        DbFileIterator iterator = file.iterator(tid);
+        try {
+            iterator.open();
+            while (iterator.hasNext()) {
+                addToSample(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Read a random subset of the pages of a HeapFile, in file order.
+     */
+    private void scanSampledPages(TransactionId tid, HeapFile file, int pages)
+            throws DbException, TransactionAbortedException {
+        // Floyd's algorithm picks `pages` distinct page numbers
+        TreeSet<Integer> chosen = new TreeSet<Integer>();
+        for (int j = numPages - pages; j < numPages; j++) {
+            int p = random.nextInt(j + 1);
+            chosen.add(chosen.contains(p) ? j : p);
+        }
+        for (int pgNo : chosen) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(file.getId(), pgNo), Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                addToSample(it.next());
+            }
+        }
+        sampledPages = pages;
+    }
+
+    /**
+     * Account for one sampled tuple: every value updates the min/max and
+     * distinct sketches, and the tuple replaces a random reservoir entry
+     * with probability reservoirSize / sampledTuples.
+     */
+    private void addToSample(Tuple tuple) {
+        sampledTuples++;
+        int slot = sampledTuples - 1;
+        int capacity = reservoir.length > 0 ? reservoir[0].length : 0;
+        if (slot >= capacity) {
+            slot = random.nextInt(sampledTuples);
+        }
+        for (int i = 0; i < reservoir.length; i++) {
+            Field f = tuple.getField(i);
+            int v;
+            if (f.getType() == Type.INT_TYPE) {
+                v = ((IntField) f).getValue();
+                mins[i] = Math.min(mins[i], v);
+                maxs[i] = Math.max(maxs[i], v);
+            } else {
+                // strings are sampled by hash, only to count distinct values
+                v = f.hashCode();
+                hists[i].addValue(((StringField) f).getValue());
+            }
+            sketches[i].add(f);
+            if (slot < capacity) {
+                reservoir[i][slot] = v;
+            }
+        }
+    }
+
+    /**
+     * Estimate the number of distinct values of a column. When the reservoir
+     * holds every sampled value the sample's distinct count is exact;
+     * otherwise the sketch's estimate is used, with the fraction of values
+     * seen once taken from the reservoir. A block sample is scaled up to the
+     * whole table with Duj1: D = n d / (n - f1 + f1 n / N).
+     */
+    private double estimateDistinct(int[] values, HyperLogLog sketch) {
+        if (values.length == 0) {
+            return 0;
+        }
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        int singletons = 0;
+        for (int i = 0; i < sorted.length; ) {
+            int j = i;
+            while (j < sorted.length && sorted[j] == sorted[i]) {
+                j++;
+            }
+            distinct++;
+            if (j - i == 1) {
+                singletons++;
+            }
+            i = j;
         }
+        double n = sampledTuples;
+        double d = distinct;
+        double f1 = singletons;
+        if (values.length < sampledTuples) {
+            d = Math.max(distinct, sketch.estimate());
+            f1 = d * singletons / distinct;
+        }
+        if (tupleCnt > sampledTuples) {
+            d = n * d / (n - f1 + f1 * n / tupleCnt);
+        }
+        return Math.min(d, Math.max(tupleCnt, 1));
+    }
+
+    /**
+     * @return the fraction of the table's pages read to build these
+     *         statistics
+     */
+    public double samplingRate() {
+        return numPages == 0 ? 1.0 : (double) sampledPages / numPages;
+    }
+
+    /**
+     * @return the estimated number of distinct values of a field
+     */
+    public double distinctCount(int field) {
+        return distinctCounts[field];
+    }
+
+    /**
+     * @return the relative standard error of the distinct-count sketches;
+     *         estimates from a block sample may be further off
+     */
+    public double distinctCountError() {
+        return distinctError;
+    }
+
+    /**
+     * @return the smallest sampled value of an INT field
+     */
+    public int minValue(int field) {
+        return mins[field];
+    }
+
+    /**
+     * @return the largest sampled value of an INT field
+     */
+    public int maxValue(int field) {
+        return maxs[field];
+    }
+
+    /**
+     * @return the histogram built over a field
+     */
+    Histogram histogram(int field) {
+        return hists[field];
+    }
+
+    /**
+     * @return a one-line description of how these statistics were sampled
+     *         and how accurate they are expected to be
+     */
+    public String samplingReport() {
+        return String.format("%d/%d pages (%.1f%%), %d sampled tuples, ~%d tuples, distinct-count error +/-%.1f%%%s",
+                sampledPages, numPages, samplingRate() * 100, sampledTuples, tupleCnt,
+                distinctError * 100, samplingRate() < 1 ? " plus sampling error" : "");
     }
 
     /**
@@ -147,7 +636,121 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return tupleCnt*ioCostPerPage;
+        return estimateScanCost(0.0, 0);
+    }
+
+    /**
+     * Estimates the cost of sequentially scanning the file with the pages
+     * currently cached in the BufferPool costing {@link CostModel#cachedPageCost}
+     * rather than a disk read.
+     */
+    public double estimateCachedScanCost() {
+        return estimateScanCost(CostModel.residentFraction(tableid, numPages), 0);
+    }
+
+    /**
+     * Estimates the cost of a sequential scan that evaluates predicates on
+     * every tuple.
+     *
+     * @param residentFraction
+     *            The fraction of the file's pages cached in the BufferPool
+     * @param numPredicates
+     *            The number of predicates applied to each tuple
+     */
+    public double estimateScanCost(double residentFraction, int numPredicates) {
+        double cost = CostModel.pageCost(numPages, residentFraction, CostModel.seqPageCost())
+                + tupleCnt * (CostModel.cpuTupleCost() + numPredicates * CostModel.cpuPredicateCost());
+        return cost * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of scanning the tuples of a BTreeFile whose keys
+     * satisfy a predicate of the given selectivity on the key field: one
+     * random read per level down to the first leaf, then the matching leaf
+     * pages, which are linked but not necessarily adjacent on disk.
+     *
+     * @return the estimated cost, or the cost of a full scan if the table is
+     *         not a BTreeFile
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof BTreeFile))
+            return estimateScanCost();
+        int keyLen = tupleDesc.getFieldType(((BTreeFile) file).keyField()).getLen();
+        int height = CostModel.btreeHeight(numPages, btreeFanout(keyLen));
+        double resident = CostModel.residentFraction(tableid, numPages);
+        double leaves = Math.max(1, Math.ceil(numPages * selectivity));
+        double cost = CostModel.pageCost(height - 1 + leaves, resident, CostModel.randomPageCost())
+                + tupleCnt * selectivity * CostModel.cpuTupleCost();
+        return cost * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of a {@link HashScan} of this table for the key
+     * values of the given selectivity: one random read of the bucket of the
+     * key, and of as many overflow pages as the matches fill. The meta page
+     * is assumed to be cached.
+     *
+     * @return the estimated cost, or the cost of a full scan if the table is
+     *         not a HashFile
+     */
+    public double estimateHashScanCost(double selectivity) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(file instanceof HashFile))
+            return estimateScanCost();
+        double matches = tupleCnt * selectivity;
+        double pages = Math.max(1, Math.ceil(matches / HashBucketPage.getMaxTuples(tupleDesc)));
+        double cost = CostModel.pageCost(pages, CostModel.residentFraction(tableid, numPages),
+                CostModel.randomPageCost()) + matches * CostModel.cpuTupleCost();
+        return cost * ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of an {@link IndexScan} of this table through a
+     * secondary index, for a predicate of the given selectivity on the key of
+     * the index: the descent and the matching leaves of the index, then one
+     * random read per distinct page of the table holding a match. The RecordIds
+     * are sorted by page, so a page is read once however many matches it
+     * holds; the number of distinct pages among m matches spread uniformly
+     * over n pages is n * (1 - (1 - 1/n)^m).
+     */
+    public double estimateSecondaryIndexCost(SecondaryIndex index, double selectivity) {
+        return estimateSecondaryIndexCost(index, selectivity, false);
+    }
+
+    /**
+     * Estimates the cost of an {@link IndexScan} of this table through a
+     * secondary index, which reads no page of the table if indexOnly is set.
+     *
+     * @see #estimateSecondaryIndexCost(SecondaryIndex, double)
+     */
+    public double estimateSecondaryIndexCost(SecondaryIndex index, double selectivity, boolean indexOnly) {
+        BTreeFile file = index.getFile();
+        int indexPages = Math.max(1, file.numPages());
+        int keyLen = file.getTupleDesc().getFieldType(0).getLen();
+        int height = CostModel.btreeHeight(indexPages, btreeFanout(keyLen));
+        double indexLeaves = Math.max(1, Math.ceil(indexPages * selectivity));
+        double matches = tupleCnt * selectivity;
+        double cost = CostModel.pageCost(height - 1 + indexLeaves,
+                CostModel.residentFraction(file.getId(), indexPages), CostModel.randomPageCost());
+        if (indexOnly)
+            return (cost + matches * CostModel.cpuTupleCost()) * ioCostPerPage;
+        double heapPages = numPages <= 1 ? numPages
+                : numPages * (1 - Math.pow(1 - 1.0 / numPages, matches));
+        cost += CostModel.pageCost(Math.max(1, heapPages),
+                CostModel.residentFraction(tableid, numPages), CostModel.randomPageCost())
+                + matches * 2 * CostModel.cpuTupleCost();
+        return cost * ioCostPerPage;
+    }
+
+    /**
+     * @return the number of children of a BTreeInternalPage with keys of the
+     *         given length
+     */
+    static int btreeFanout(int keyLen) {
+        int indexBits = Type.INT_TYPE.getLen() * 8;
+        int extraBits = 2 * indexBits + 8 + 1;
+        return (BufferPool.getPageSize() * 8 - extraBits) / (keyLen * 8 + indexBits + 1) + 1;
     }
 
     /**
@@ -176,7 +779,21 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        double eq;
+        if (hists[field] instanceof EquiDepthHistogram) {
+            eq = ((EquiDepthHistogram) hists[field]).avgSelectivity();
+        } else {
+            eq = 1.0 / Math.max(1.0, distinctCounts[field]);
+        }
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return eq;
+            case NOT_EQUALS:
+                return 1 - eq;
+            default:
+                return DEFAULT_RANGE_SELECTIVITY;
+        }
     }
 
     /**
@@ -196,6 +813,7 @@ public class TableStats {
         // some code goes here
         switch (tupleDesc.getFieldType(field)){
             case STRING_TYPE:
+            case VARCHAR_TYPE:
                 return hists[field].estimateSelectivity(op,((StringField)constant).getValue());
             case INT_TYPE:
                 return hists[field].estimateSelectivity(op,((IntField)constant).getValue());
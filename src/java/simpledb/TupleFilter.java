@@ -0,0 +1,11 @@
+package simpledb;
+
+/**
+ * A TupleFilter decides whether a tuple passes a selection. Instances are
+ * built by {@link PredicateCompiler} from Predicates and evaluated by scans
+ * and Filter operators on every tuple.
+ */
+public interface TupleFilter {
+    /** @return true if t satisfies the filter */
+    boolean matches(Tuple t);
+}
@@ -42,10 +42,36 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+    }, VARCHAR_TYPE() {
+        /**
+         * A VARCHAR value is stored as its length followed by its bytes,
+         * without padding, so this is only the most it can take. Only files
+         * of slotted pages store VARCHAR fields.
+         * @see SlottedPage
+         */
+        @Override
+        public int getLen() {
+            return VARCHAR_LEN+4;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readInt();
+                byte bs[] = new byte[strLen];
+                dis.readFully(bs);
+                return new VarcharField(new String(bs));
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
 
+    /** the maximum length of a VARCHAR value */
+    public static final int VARCHAR_LEN = 65535;
+
   /**
    * @return the number of bytes required to store a field of this type.
    */
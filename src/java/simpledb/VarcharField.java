@@ -0,0 +1,42 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Instance of Field that stores a single String of variable length, up to
+ * Type.VARCHAR_LEN characters. It compares with, and equals, a StringField of
+ * the same value.
+ */
+public class VarcharField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param s
+	 *            The value of this field.
+	 */
+	public VarcharField(String s) {
+		super(s, Type.VARCHAR_LEN);
+	}
+
+	/**
+	 * Write this string to dos. Writes the string length in four bytes,
+	 * followed by the string, without padding.
+	 * 
+	 * @param dos
+	 *            Where the string is written
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		dos.writeInt(getValue().length());
+		dos.writeBytes(getValue());
+	}
+
+	/**
+	 * @return the Type for this Field
+	 */
+	public Type getType() {
+		return Type.VARCHAR_TYPE;
+	}
+}
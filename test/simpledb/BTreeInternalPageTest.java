@@ -166,6 +166,53 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with an empty slot
+	 * between its entries
+	 */
+	@Test public void reverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		for (int i = 0; i < 5; i++)
+			it.next();
+		page.deleteKeyAndRightChild(it.next());
+
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		Collections.reverse(entries);
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(entries.get(row).getKey(), e.getKey());
+			assertEquals(entries.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(entries.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(new BTreePageId(-1, 1, BTreePageId.LEAF), page.findChild(null));
+		assertEquals(1, page.findChild(new IntField(0)).getPageNumber());
+		assertEquals(1, page.findChild(new IntField(1468)).getPageNumber());
+		assertEquals(2, page.findChild(new IntField(1469)).getPageNumber());
+		assertEquals(4, page.findChild(new IntField(9086)).getPageNumber());
+		assertEquals(21, page.findChild(new IntField(62779)).getPageNumber());
+
+		// the search sees entries deleted after an earlier search
+		Iterator<BTreeEntry> it = page.iterator();
+		page.deleteKeyAndRightChild(it.next());
+		assertEquals(1, page.findChild(new IntField(1469)).getPageNumber());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
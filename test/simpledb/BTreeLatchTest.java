@@ -0,0 +1,126 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bigFile;
+	private ArrayList<ArrayList<Integer>> tuples;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		// This should create a B+ tree with 100 leaf pages
+		tuples = new ArrayList<ArrayList<Integer>>();
+		bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, tuples, 0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Insert tuples with a key larger than any other on behalf of writer, until the
+	 * right-most leaf page splits.
+	 */
+	private void splitLastLeaf(TransactionId writer) throws Exception {
+		int pages = bigFile.numPages();
+		while(bigFile.numPages() == pages) {
+			Database.getBufferPool().insertTuple(writer, bigFile.getId(),
+					BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2));
+		}
+	}
+
+	private int countKey(TransactionId reader, int key) throws Exception {
+		DbFileIterator fit = bigFile.indexIterator(reader, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		fit.open();
+		int count = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			count++;
+		}
+		fit.close();
+		return count;
+	}
+
+	private int minKey() {
+		int min = Integer.MAX_VALUE;
+		for(ArrayList<Integer> t : tuples) {
+			min = Math.min(min, t.get(0));
+		}
+		return min;
+	}
+
+	/**
+	 * A reader of one leaf is not blocked by the uncommitted split of another leaf,
+	 * although the split changed the root page the reader traverses.
+	 */
+	@Test
+	public void readerNotBlockedBySplit() throws Exception {
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		Database.getBufferPool().transactionComplete(tid);
+
+		TransactionId writer = new TransactionId();
+		splitLastLeaf(writer);
+		assertTrue(Database.getBufferPool().holdsLock(writer, rootId));
+
+		int key = minKey();
+		int expected = 0;
+		for(ArrayList<Integer> t : tuples) {
+			if(t.get(0) == key) {
+				expected++;
+			}
+		}
+		tid = new TransactionId();
+		assertEquals(expected, countKey(tid, key));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+
+		Database.getBufferPool().transactionComplete(writer);
+	}
+
+	/**
+	 * Readers which traverse the tree after an uncommitted split was rolled back
+	 * find the tuples on their original pages.
+	 */
+	@Test
+	public void splitRolledBack() throws Exception {
+		TransactionId writer = new TransactionId();
+		splitLastLeaf(writer);
+		Database.getBufferPool().transactionComplete(writer, false);
+
+		assertEquals(0, countKey(tid, BTreeUtility.MAX_RAND_VALUE));
+		int count = 0;
+		DbFileIterator fit = bigFile.iterator(tid);
+		fit.open();
+		while(fit.hasNext()) {
+			fit.next();
+			count++;
+		}
+		fit.close();
+		assertEquals(tuples.size(), count);
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
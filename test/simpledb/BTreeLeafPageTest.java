@@ -185,6 +185,32 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field, boolean)
+	 */
+	@Test public void iteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(new IntField(1468), page.iterator(new IntField(0), true).next().getField(0));
+		assertEquals(new IntField(22064), page.iterator(new IntField(22064), true).next().getField(0));
+		assertEquals(new IntField(22189), page.iterator(new IntField(22064), false).next().getField(0));
+		assertFalse(page.iterator(new IntField(62778), false).hasNext());
+
+		// the search sees tuples inserted after an earlier search
+		Tuple tup = new Tuple(Utility.getTupleDesc(2));
+		tup.setField(0, new IntField(22100));
+		tup.setField(1, new IntField(0));
+		page.insertTuple(tup);
+		Iterator<Tuple> it = page.iterator(new IntField(22064), false);
+		assertEquals(new IntField(22100), it.next().getField(0));
+		assertEquals(new IntField(22189), it.next().getField(0));
+		int count = 2;
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertEquals(13, count);
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
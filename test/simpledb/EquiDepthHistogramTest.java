@@ -0,0 +1,51 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EquiDepthHistogramTest {
+
+    /**
+     * Skewed values show up as most common values with their frequencies.
+     */
+    @Test public void mostCommonValuesTest() {
+        int[] sample = new int[1000];
+        for (int i = 0; i < sample.length; i++)
+            sample[i] = i % 2 == 0 ? 7 : 1000 + i;
+        EquiDepthHistogram h = new EquiDepthHistogram(sample, 10, 0);
+        Assert.assertArrayEquals(new int[]{7}, h.mostCommonValues());
+        Assert.assertEquals(0.5, h.mostCommonFrequencies()[0], 0.001);
+        Assert.assertEquals(0.5, h.estimateSelectivity(Predicate.Op.EQUALS, 7), 0.001);
+        Assert.assertEquals(0.001, h.estimateSelectivity(Predicate.Op.EQUALS, 1501), 0.001);
+        Assert.assertEquals(0.5 + 0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN, 1500), 0.02);
+        Assert.assertEquals(501, h.distinctValues(), 0.001);
+    }
+
+    /**
+     * Values uniformly spread over a range split into buckets of equal depth.
+     */
+    @Test public void uniformTest() {
+        int[] sample = new int[10000];
+        for (int i = 0; i < sample.length; i++)
+            sample[i] = i;
+        EquiDepthHistogram h = new EquiDepthHistogram(sample, 100, 0);
+        Assert.assertEquals(0, h.mostCommonValues().length);
+        Assert.assertEquals(0.0001, h.estimateSelectivity(Predicate.Op.EQUALS, 1234), 0.00001);
+        Assert.assertEquals(0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN, 2500), 0.001);
+        Assert.assertEquals(0.75, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 2500), 0.001);
+        Assert.assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 9999), 0.001);
+        Assert.assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 10000), 0.001);
+
+        // values added later count towards their bucket
+        for (int i = 0; i < 10000; i++)
+            h.addValue(i % 100);
+        Assert.assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 100), 0.01);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(EquiDepthHistogramTest.class);
+    }
+}
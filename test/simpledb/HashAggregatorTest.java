@@ -0,0 +1,228 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+  private static final int NUM_GROUPS = 1000;
+  private static final int TUPLES_PER_GROUP = 5;
+
+  /**
+   * Build (group, value) tuples for NUM_GROUPS interleaved groups, where
+   * group g receives the values g, g+1, ..., g+TUPLES_PER_GROUP-1.
+   */
+  private OpIterator groups() {
+    int[] data = new int[NUM_GROUPS * TUPLES_PER_GROUP * 2];
+    int i = 0;
+    for (int k = 0; k < TUPLES_PER_GROUP; k++) {
+      for (int g = 0; g < NUM_GROUPS; g++) {
+        data[i++] = g;
+        data[i++] = g + k;
+      }
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private Map<Integer, Integer> run(HashAggregator agg) throws Exception {
+    OpIterator scan = groups();
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+
+    Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+    OpIterator it = agg.iterator();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      Integer prev = result.put(((IntField) t.getField(0)).getValue(),
+          ((IntField) t.getField(1)).getValue());
+      assertEquals("group returned twice", null, prev);
+    }
+    it.close();
+    return result;
+  }
+
+  /**
+   * Without a tight budget every group stays resident.
+   */
+  @Test public void inMemory() throws Exception {
+    HashAggregator agg = new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    Map<Integer, Integer> result = run(agg);
+    assertFalse(agg.hasSpilled());
+    assertEquals(NUM_GROUPS, result.size());
+    for (int g = 0; g < NUM_GROUPS; g++)
+      assertEquals(TUPLES_PER_GROUP * g + 10, (int) result.get(g));
+  }
+
+  /**
+   * A budget of a few groups forces most groups to spill, possibly
+   * recursively, and every group must still be returned exactly once.
+   */
+  @Test public void spillSum() throws Exception {
+    HashAggregator agg = new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM, 1024);
+    Map<Integer, Integer> result = run(agg);
+    assertTrue(agg.hasSpilled());
+    assertEquals(NUM_GROUPS, result.size());
+    for (int g = 0; g < NUM_GROUPS; g++)
+      assertEquals(TUPLES_PER_GROUP * g + 10, (int) result.get(g));
+  }
+
+  @Test public void spillMinMaxAvgCount() throws Exception {
+    Map<Integer, Integer> min = run(new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MIN, 1024));
+    Map<Integer, Integer> max = run(new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.MAX, 1024));
+    Map<Integer, Integer> avg = run(new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG, 1024));
+    Map<Integer, Integer> count = run(new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT, 1024));
+    for (int g = 0; g < NUM_GROUPS; g++) {
+      assertEquals(g, (int) min.get(g));
+      assertEquals(g + TUPLES_PER_GROUP - 1, (int) max.get(g));
+      assertEquals(g + 2, (int) avg.get(g));
+      assertEquals(TUPLES_PER_GROUP, (int) count.get(g));
+    }
+  }
+
+  /**
+   * Closing an iterator keeps the spill partitions, so the aggregator can be
+   * iterated again; releaseSpill deletes them, after which iterating fails
+   * instead of silently skipping the spilled groups.
+   */
+  @Test public void spillFilesKeptUntilReleased() throws Exception {
+    HashAggregator agg = new HashAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM, 1024);
+    Map<Integer, Integer> first = run(agg);
+    assertTrue(agg.hasSpilled());
+    assertEquals(NUM_GROUPS, first.size());
+    List<File> files = new ArrayList<File>();
+    for (File f : agg.spillFiles) {
+      if (f != null) {
+        assertTrue(f.exists());
+        files.add(f);
+      }
+    }
+    assertFalse(files.isEmpty());
+    for (DataOutputStream dos : agg.spillStreams)
+      assertNull(dos);
+
+    // a second iterator returns every group again
+    OpIterator it = agg.iterator();
+    it.open();
+    int groups = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertEquals(first.get(((IntField) t.getField(0)).getValue()).intValue(),
+          ((IntField) t.getField(1)).getValue());
+      groups++;
+    }
+    it.close();
+    assertEquals(NUM_GROUPS, groups);
+
+    agg.releaseSpill();
+    for (File f : files)
+      assertFalse(f.exists());
+    try {
+      agg.iterator();
+      fail("iterating after releaseSpill should fail");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * String group keys spill and come back intact.
+   */
+  @Test public void spillStringGroups() throws Exception {
+    Object[] data = new Object[NUM_GROUPS * 2 * 2];
+    int i = 0;
+    for (int k = 0; k < 2; k++) {
+      for (int g = 0; g < NUM_GROUPS; g++) {
+        data[i++] = "group" + g;
+        data[i++] = "value" + k;
+      }
+    }
+    OpIterator scan = TestUtil.createTupleList(2, data);
+    StringAggregator agg = new StringAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.COUNT, 4096);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    assertTrue(agg.hasSpilled());
+
+    OpIterator it = agg.iterator();
+    it.open();
+    int groups = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertTrue(((StringField) t.getField(0)).getValue().startsWith("group"));
+      assertEquals(2, ((IntField) t.getField(1)).getValue());
+      groups++;
+    }
+    assertEquals(NUM_GROUPS, groups);
+
+    // rewinding re-reads the spill partitions
+    it.rewind();
+    groups = 0;
+    while (it.hasNext()) {
+      it.next();
+      groups++;
+    }
+    assertEquals(NUM_GROUPS, groups);
+  }
+
+  /**
+   * Several aggregates over a composite (INT, STRING) key survive spilling.
+   */
+  @Test public void spillCompositeKeyMultipleAggregates() throws Exception {
+    Object[] data = new Object[NUM_GROUPS * TUPLES_PER_GROUP * 3];
+    int i = 0;
+    for (int k = 0; k < TUPLES_PER_GROUP; k++) {
+      for (int g = 0; g < NUM_GROUPS; g++) {
+        data[i++] = g % 10;
+        data[i++] = "group" + g / 10;
+        data[i++] = g + k;
+      }
+    }
+    OpIterator scan = TestUtil.createTupleList(3, data);
+    HashAggregator agg = new HashAggregator(new int[]{0, 1},
+        new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new int[]{2, 2, 2},
+        new Aggregator.Op[]{Aggregator.Op.MAX, Aggregator.Op.AVG, Aggregator.Op.COUNT}, 4096);
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    assertTrue(agg.hasSpilled());
+
+    OpIterator it = agg.iterator();
+    it.open();
+    int groups = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int g = Integer.parseInt(((StringField) t.getField(1)).getValue().substring(5)) * 10
+          + ((IntField) t.getField(0)).getValue();
+      assertEquals(g + TUPLES_PER_GROUP - 1, ((IntField) t.getField(2)).getValue());
+      assertEquals(g + 2, ((IntField) t.getField(3)).getValue());
+      assertEquals(TUPLES_PER_GROUP, ((IntField) t.getField(4)).getValue());
+      groups++;
+    }
+    assertEquals(NUM_GROUPS, groups);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregatorTest.class);
+  }
+}
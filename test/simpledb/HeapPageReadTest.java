@@ -99,6 +99,40 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(TupleFilter) with a filter compiled for
+     * the page: the INT comparisons are tested on the bytes of each slot, and
+     * only the tuples that pass them are decoded.
+     */
+    @Test public void filterBeforeDecoding() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        ArrayList<Predicate> conjuncts = new ArrayList<Predicate>();
+        conjuncts.add(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)));
+        conjuncts.add(new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(43771)));
+        TupleFilter filter = PredicateCompiler.compile(conjuncts, Utility.getTupleDesc(2));
+        assertTrue(filter instanceof PageFilter);
+
+        Iterator<Tuple> it = page.iterator(filter);
+        int expected = 0;
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            boolean matches = EXAMPLE_VALUES[row][0] > 20000 && EXAMPLE_VALUES[row][1] <= 43771;
+            if (matches) {
+                expected++;
+                Tuple tup = it.next();
+                assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            }
+            assertEquals("slot " + row + " decoded", matches, page.tuples.get(row) != null);
+        }
+        assertFalse(it.hasNext());
+
+        // decoded tuples are tested as tuples, and pass the same filter
+        int n = 0;
+        for (it = page.iterator(filter); it.hasNext(); it.next())
+            n++;
+        assertEquals(expected, n);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
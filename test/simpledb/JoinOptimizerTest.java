@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -621,4 +622,221 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Test a join ordering over a join graph with a cycle: every join must be
+     * kept, and each of the first joins must bring a new table into the plan
+     */
+    @Test
+    public void cyclicOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int IO_COST = 101;
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 100, 50, null,
+                tuples, "c");
+        HeapFile b = createDuplicateHeapFile(tuples, 2, "c");
+        HeapFile c = createDuplicateHeapFile(tuples, 2, "c");
+        HeapFile d = createDuplicateHeapFile(tuples, 2, "c");
+        Database.getCatalog().addTable(a, "a");
+        Database.getCatalog().addTable(b, "b");
+        Database.getCatalog().addTable(c, "c");
+        Database.getCatalog().addTable(d, "d");
+        for (String t : new String[] { "a", "b", "c", "d" }) {
+            stats.put(t, new TableStats(Database.getCatalog().getTableId(t), IO_COST));
+            filterSelectivities.put(t, 1.0);
+        }
+        filterSelectivities.put("d", 0.1);
+
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("b", "c", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("c", "a", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("c", "d", "c1", "c1", Predicate.Op.EQUALS));
+
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(
+                p.generateLogicalPlan(
+                        tid,
+                        "SELECT COUNT(a.c0) FROM a, b, c, d WHERE a.c0 = b.c0 AND b.c1 = c.c1 AND c.c0 = a.c0 AND c.c1 = d.c1;"),
+                nodes);
+        Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        HashSet<String> seen = new HashSet<String>();
+        for (int i = 0; i < result.size() - 1; i++) {
+            LogicalJoinNode n = result.get(i);
+            Assert.assertTrue(seen.add(n.t1Alias) | seen.add(n.t2Alias));
+        }
+        Assert.assertEquals(4, seen.size());
+    }
+
+    /**
+     * Equality joins run as hash joins, which scan each side once. The
+     * orderer should then join two selective pairs of tables separately and
+     * join their small results last, a bushy plan that a nested loops join
+     * would pay for by rerunning its inner subplan once per outer tuple.
+     */
+    @Test
+    public void hashJoinOrderJoinsTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        // c0 is a key; c1 has 200 distinct values
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 2000; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i % 200);
+            tuples.add(t);
+        }
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        for (String t : new String[] { "a", "b", "c", "d" }) {
+            Database.getCatalog().addTable(createDuplicateHeapFile(tuples, 2, "c"), t);
+            stats.put(t, new TableStats(Database.getCatalog().getTableId(t), 101));
+            filterSelectivities.put(t, 1.0);
+        }
+        filterSelectivities.put("a", 0.005);
+        filterSelectivities.put("d", 0.005);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        LogicalJoinNode bc = new LogicalJoinNode("b", "c", "c1", "c1", Predicate.Op.EQUALS);
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(bc);
+        nodes.add(new LogicalJoinNode("c", "d", "c0", "c0", Predicate.Op.EQUALS));
+
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(
+                new TransactionId(),
+                "SELECT COUNT(a.c0) FROM a, b, c, d WHERE a.c0 = b.c0 AND b.c1 = c.c1 AND c.c0 = d.c0;"),
+                nodes);
+        Vector<LogicalJoinNode> result = j.orderJoins(stats,
+                filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        LogicalJoinNode last = result.get(result.size() - 1);
+        Assert.assertTrue(result.toString(), last.equals(bc) || last.equals(bc.swapInnerOuter()));
+
+        // the cost of an equality join no longer grows with the product of
+        // the outer cardinality and the inner cost
+        LogicalJoinNode ab = nodes.get(0);
+        Assert.assertEquals(j.estimateJoinCost(ab, 10, 2000, 5.0, 500.0),
+                j.estimateJoinCost(ab.swapInnerOuter(), 2000, 10, 500.0, 5.0), 1e-6);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "c0", "c0",
+                Predicate.Op.LESS_THAN);
+        Assert.assertTrue(j.estimateJoinCost(lt, 10, 2000, 5.0, 500.0)
+                > 10 * 500.0);
+    }
+
+    /**
+     * Verify that join cardinalities follow the distinct counts and the
+     * overlap of the histograms of the join columns
+     */
+    @Test
+    public void histogramJoinCardinalityTest() throws IOException,
+            ParsingException {
+        // lo.c0 in [0, 1000), each value 4 times; lo.c1 = lo.c0 / 10
+        // hi.c0 in [500, 1500), each value once; hi.c1 = hi.c0 / 10
+        ArrayList<ArrayList<Integer>> loTuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 4000; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i % 1000);
+            t.add((i % 1000) / 10);
+            loTuples.add(t);
+        }
+        ArrayList<ArrayList<Integer>> hiTuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 500; i < 1500; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i / 10);
+            hiTuples.add(t);
+        }
+        HeapFile lo = createDuplicateHeapFile(loTuples, 2, "c");
+        HeapFile hi = createDuplicateHeapFile(hiTuples, 2, "c");
+        Database.getCatalog().addTable(lo, "lo");
+        Database.getCatalog().addTable(hi, "hi");
+        TableStats.setTableStats("lo", new TableStats(lo.getId(), 1));
+        TableStats.setTableStats("hi", new TableStats(hi.getId(), 1));
+
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(
+                new TransactionId(),
+                "SELECT * FROM lo, hi WHERE lo.c0 = hi.c0;"),
+                new Vector<LogicalJoinNode>());
+
+        // only [500, 1000) overlaps: 2000 x 500 tuples over 500 values
+        int card = j.estimateJoinCardinality(new LogicalJoinNode("lo", "hi",
+                "c0", "c0", Predicate.Op.EQUALS), 4000, 1000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue("equi-join cardinality " + card,
+                card > 1500 && card < 2700);
+
+        // 100 distinct values of lo.c1, 50 of them shared with hi.c1
+        card = j.estimateJoinCardinality(new LogicalJoinNode("lo", "hi",
+                "c1", "c1", Predicate.Op.EQUALS), 4000, 1000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue("equi-join cardinality " + card,
+                card > 15000 && card < 27000);
+
+        // hi.c0 is a key of hi: each lo tuple matches at most once
+        card = j.estimateJoinCardinality(new LogicalJoinNode("lo", "hi",
+                "c0", "c0", Predicate.Op.EQUALS), 4000, 1000, false, true,
+                TableStats.getStatsMap());
+        Assert.assertEquals(4000, card);
+
+        // lo.c0 < hi.c0 holds for 7/8 of the pairs
+        card = j.estimateJoinCardinality(new LogicalJoinNode("lo", "hi",
+                "c0", "c0", Predicate.Op.LESS_THAN), 4000, 1000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue("range join cardinality " + card,
+                card > 0.8 * 4000000 && card < 0.95 * 4000000);
+
+        card = j.estimateJoinCardinality(new LogicalJoinNode("lo", "hi",
+                "c0", "c0", Predicate.Op.GREATER_THAN), 4000, 1000, false,
+                false, TableStats.getStatsMap());
+        Assert.assertTrue("range join cardinality " + card,
+                card > 0.05 * 4000000 && card < 0.2 * 4000000);
+    }
+
+    /**
+     * Verify that semi-joins and anti-joins with a subquery are costed as
+     * one run of the subquery, and split the outer tuples between them
+     */
+    @Test
+    public void semiJoinTest() throws ParsingException {
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(
+                new TransactionId(), "SELECT * FROM " + tableName1 + " t1;"),
+                new Vector<LogicalJoinNode>());
+        OpIterator sub = new SeqScan(new TransactionId(), tableId2, "t2");
+
+        LogicalSubplanJoinNode semi = new LogicalSubplanJoinNode("t1", "c1", sub,
+                LogicalSubplanJoinNode.Kind.SEMI, 5000, 5);
+        LogicalSubplanJoinNode anti = new LogicalSubplanJoinNode("t1", "c1", sub,
+                LogicalSubplanJoinNode.Kind.ANTI, 5000, 5);
+        LogicalSubplanJoinNode join = new LogicalSubplanJoinNode("t1", "c1", sub,
+                Predicate.Op.EQUALS);
+
+        // the subquery runs once, not once per outer tuple
+        double semiCost = j.estimateJoinCost(semi, 1000, 5, 100, 5000);
+        Assert.assertTrue(semiCost < 100 + 2 * 5000);
+        Assert.assertTrue(j.estimateJoinCost(join, 1000, 5, 100, 5000) > 100 * semiCost);
+
+        // t1.c1 has about 20 distinct values, 5 of which the subquery returns
+        int semiCard = j.estimateJoinCardinality(semi, 1000, 5, false, false,
+                TableStats.getStatsMap());
+        int antiCard = j.estimateJoinCardinality(anti, 1000, 5, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue("semi-join cardinality " + semiCard,
+                semiCard > 150 && semiCard < 350);
+        Assert.assertEquals(1000, semiCard + antiCard);
+
+        // an uncorrelated EXISTS passes all tuples or none
+        Assert.assertEquals(1000, JoinOptimizer.estimateSemiJoinCardinality(false, true, 1000, -1, 5));
+        Assert.assertEquals(0, JoinOptimizer.estimateSemiJoinCardinality(true, true, 1000, -1, 5));
+    }
 }
@@ -5,6 +5,11 @@ import org.junit.Test;
 import simpledb.systemtest.SimpleDbTestBase;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
 import junit.framework.JUnit4TestAdapter;
 
 public class PredicateTest extends SimpleDbTestBase{
@@ -55,6 +60,62 @@ public class PredicateTest extends SimpleDbTestBase{
     }
   }
 
+  /**
+   * Unit test for PredicateCompiler: compiled predicates and conjunctions
+   * agree with Predicate.filter()
+   */
+  @Test public void compiled() {
+    int[] vals = new int[] { -1, 0, 1 };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int i : vals) {
+        Predicate p = new Predicate(0, op, TestUtil.getField(i));
+        TupleFilter f = PredicateCompiler.compile(p);
+        for (int j = i - 1; j <= i + 1; j++) {
+          Tuple t = Utility.getHeapTuple(j);
+          assertEquals(op + " " + i + " on " + j, p.filter(t), f.matches(t));
+        }
+      }
+    }
+
+    ArrayList<Predicate> conjuncts = new ArrayList<Predicate>();
+    assertTrue(PredicateCompiler.compile(conjuncts).matches(Utility.getHeapTuple(0)));
+    for (int n = 1; n <= 4; n++) {
+      // 0 < x < 10 - n
+      conjuncts.clear();
+      conjuncts.add(new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(0)));
+      for (int k = 1; k < n; k++)
+        conjuncts.add(new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(10 - k)));
+      TupleFilter f = PredicateCompiler.compile(conjuncts);
+      for (int x = -1; x <= 11; x++) {
+        boolean expected = x > 0 && (n == 1 || x < 11 - n);
+        assertEquals(n + " conjuncts on " + x, expected, f.matches(Utility.getHeapTuple(x)));
+      }
+    }
+  }
+
+  /**
+   * Unit test for PredicateCompiler.compileSlot: comparisons on serialized
+   * tuples agree with Predicate.filter(), including on negative values
+   */
+  @Test public void compiledSlot() throws Exception {
+    int[] vals = new int[] { Integer.MIN_VALUE, -256, -1, 0, 1, 255, 256, Integer.MAX_VALUE };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int i : vals) {
+        Predicate p = new Predicate(1, op, TestUtil.getField(i));
+        SlotFilter f = PredicateCompiler.compileSlot(p, Type.INT_TYPE.getLen());
+        for (int j : vals) {
+          Tuple t = Utility.getHeapTuple(new int[] { 0, j });
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          DataOutputStream dos = new DataOutputStream(baos);
+          dos.write(new byte[3]);
+          t.getField(0).serialize(dos);
+          t.getField(1).serialize(dos);
+          assertEquals(op + " " + i + " on " + j, p.filter(t), f.matches(baos.toByteArray(), 3));
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -151,4 +151,135 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Saved statistics are loaded back instead of being recomputed, and are
+	 * recomputed once the table no longer matches them.
+	 */
+	@Test public void saveAndLoadTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.getStatsMap().clear();
+		TableStats.setTableStats(tableName, s);
+		java.io.File statsFile = java.io.File.createTempFile("table", ".stats");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+
+		TableStats.getStatsMap().clear();
+		Assert.assertEquals(1, TableStats.loadStatistics(statsFile));
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, loaded);
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)),
+				loaded.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)), 0.0);
+
+		// a page appended behind the stats file's back invalidates it
+		f.writePage(new HeapPage(new HeapPageId(tableId, f.numPages()), HeapPage.createEmptyPageData()));
+		TableStats.getStatsMap().clear();
+		Assert.assertEquals(0, TableStats.loadStatistics(statsFile));
+		Assert.assertEquals(s.totalTuples(), TableStats.getTableStats(tableName).totalTuples());
+	}
+
+	/**
+	 * Inserts and deletes adjust the tuple count, and enough of them trigger
+	 * a background ANALYZE that replaces the statistics.
+	 */
+	@Test public void incrementalCountAndAnalyzeTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		TransactionId tid = new TransactionId();
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+			t.setField(i, new IntField(1));
+		Database.getBufferPool().insertTuple(tid, tableId, t);
+		Assert.assertEquals(10201, s.totalTuples());
+		Database.getBufferPool().deleteTuple(tid, t);
+		Assert.assertEquals(10200, s.totalTuples());
+
+		TableStats.enableAutoAnalyze(0.001);
+		try {
+			for (int i = 0; i < 20; i++) {
+				Tuple u = new Tuple(f.getTupleDesc());
+				for (int j = 0; j < u.getTupleDesc().numFields(); j++)
+					u.setField(j, new IntField(1));
+				Database.getBufferPool().insertTuple(tid, tableId, u);
+			}
+			Database.getBufferPool().transactionComplete(tid);
+			for (int i = 0; i < 100 && TableStats.getTableStats(tableName) == s; i++)
+				Thread.sleep(50);
+			TableStats fresh = TableStats.getTableStats(tableName);
+			Assert.assertNotSame(s, fresh);
+			Assert.assertEquals(10220, fresh.totalTuples());
+		} finally {
+			TableStats.enableAutoAnalyze(0);
+		}
+	}
+
+	/**
+	 * Statistics built from a block sample of a larger table estimate its
+	 * size, value range, distinct values and selectivities.
+	 */
+	@Test public void sampledStatisticsTest() throws Exception {
+		HeapFile big = SystemTestUtil.createRandomHeapFile(2, 50000, 1000, null, null);
+		Database.getCatalog().addTable(big, SystemTestUtil.getUUID());
+		TableStats s = new TableStats(big.getId(), IO_COST, big.numPages() / 5, 2000);
+
+		Assert.assertEquals(0.2, s.samplingRate(), 0.01);
+		Assert.assertTrue(s.samplingReport().contains("sampling error"));
+		Assert.assertEquals(50000, s.totalTuples(), 2500);
+		Assert.assertTrue(s.minValue(0) < 10);
+		Assert.assertTrue(s.maxValue(0) > 990);
+		Assert.assertEquals(1000, s.distinctCount(0), 100);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(500)), 0.05);
+		Assert.assertEquals(0.001, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(500)), 0.001);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(1000)), 0.001);
+	}
+
+	@Test public void hyperLogLogTest() {
+		HyperLogLog hll = new HyperLogLog();
+		for (int i = 0; i < 100000; i++)
+			hll.add(i % 20000);
+		Assert.assertEquals(20000, hll.estimate(), 20000 * 3 * hll.relativeError());
+	}
+
+	/**
+	 * Scans are charged per page, and pages cached in the BufferPool cost
+	 * less than pages read from disk.
+	 */
+	@Test public void cachedScanCostTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		int pages = this.f.numPages();
+		double cold = s.estimateScanCost();
+		Assert.assertEquals(IO_COST * (pages * CostModel.seqPageCost() + 10200 * CostModel.cpuTupleCost()), cold, 1e-6);
+		Assert.assertTrue(s.estimateScanCost(0.0, 2) > cold);
+
+		Database.resetBufferPool(pages + 10);
+		Assert.assertEquals(cold, s.estimateCachedScanCost(), 1e-6);
+
+		TransactionId tid = new TransactionId();
+		SeqScan scan = new SeqScan(tid, this.tableId, "t");
+		scan.open();
+		while (scan.hasNext())
+			scan.next();
+		scan.close();
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(pages, Database.getBufferPool().residentPages(this.tableId));
+		Assert.assertTrue(s.estimateCachedScanCost() < cold);
+		Assert.assertEquals(cold, s.estimateIndexScanCost(0.1), 1e-6);
+	}
+
+	@Test public void costModelSaveAndLoadTest() throws Exception {
+		java.io.File f = java.io.File.createTempFile("costs", ".properties");
+		f.deleteOnExit();
+		try {
+			CostModel.setCosts(1.0, 2.5, 0.05, 0.02, 0.004);
+			CostModel.save(f);
+			CostModel.resetCosts();
+			Assert.assertEquals(CostModel.DEFAULT_RANDOM_PAGE_COST, CostModel.randomPageCost(), 0);
+			Assert.assertTrue(CostModel.load(f));
+			Assert.assertEquals(2.5, CostModel.randomPageCost(), 0);
+			Assert.assertEquals(0.004, CostModel.cpuPredicateCost(), 0);
+		} finally {
+			CostModel.resetCosts();
+		}
+	}
 }
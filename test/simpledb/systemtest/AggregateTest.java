@@ -12,9 +12,20 @@ import org.junit.Test;
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult)
             throws DbException, TransactionAbortedException, IOException {
+        validateAggregate(table, operation, aggregateColumn, groupColumn, expectedResult, 0);
+    }
+
+    /**
+     * @param parallelism the number of aggregation workers, or 0 to keep the
+     *            default
+     */
+    public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, ArrayList<ArrayList<Integer>> expectedResult, int parallelism)
+            throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, table.getId(), "");
         Aggregate ag = new Aggregate(ss, aggregateColumn, groupColumn, operation);
+        if (parallelism > 0)
+            ag.setParallelism(parallelism);
 
         SystemTestUtil.matchTuples(ag, expectedResult);
         Database.getBufferPool().transactionComplete(tid);
@@ -75,17 +86,22 @@ public class AggregateTest extends SimpleDbTestBase {
     private final static int COLUMNS = 3;
     private void doAggregate(Aggregator.Op operation, int groupColumn)
             throws IOException, DbException, TransactionAbortedException {
+        doAggregate(operation, groupColumn, ROWS, 0);
+    }
+
+    private void doAggregate(Aggregator.Op operation, int groupColumn, int rows, int parallelism)
+            throws IOException, DbException, TransactionAbortedException {
         // Create the table
         ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
         HeapFile table = SystemTestUtil.createRandomHeapFile(
-                COLUMNS, ROWS, MAX_VALUE, null, createdTuples);
+                COLUMNS, rows, MAX_VALUE, null, createdTuples);
 
         // Compute the expected answer
         ArrayList<ArrayList<Integer>> expected =
                 aggregate(createdTuples, operation, 1, groupColumn);
 
         // validate that we get the answer
-        validateAggregate(table, operation, 1, groupColumn, expected);
+        validateAggregate(table, operation, 1, groupColumn, expected, parallelism);
     }
 
     @Test public void testSum() throws IOException, DbException, TransactionAbortedException {
@@ -113,6 +129,74 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /** Enough rows for four workers to each scan their own page range. */
+    private final static int PARALLEL_ROWS = 25000;
+
+    @Test public void testParallelSum() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.SUM, 0, PARALLEL_ROWS, 4);
+    }
+
+    @Test public void testParallelMin() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.MIN, 0, PARALLEL_ROWS, 4);
+    }
+
+    @Test public void testParallelAverage() throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.AVG, 0, PARALLEL_ROWS, 4);
+    }
+
+    @Test public void testParallelCountNoGroup()
+            throws IOException, DbException, TransactionAbortedException {
+        doAggregate(Aggregator.Op.COUNT, Aggregator.NO_GROUPING, PARALLEL_ROWS, 4);
+    }
+
+    /**
+     * SUM, MIN and COUNT of column 1 grouped by columns (0, 2), computed in
+     * one pass and compared against each aggregate computed separately.
+     */
+    private void doMultiAggregate(int rows, int parallelism)
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, rows, MAX_VALUE / 8, null, createdTuples);
+
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> values =
+                new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>();
+            key.add(t.get(0));
+            key.add(t.get(2));
+            if (!values.containsKey(key)) values.put(key, new ArrayList<Integer>());
+            values.get(key).add(t.get(1));
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<ArrayList<Integer>, ArrayList<Integer>> e : values.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>(e.getKey());
+            result.add(computeAggregate(e.getValue(), Aggregator.Op.SUM));
+            result.add(computeAggregate(e.getValue(), Aggregator.Op.MIN));
+            result.add(computeAggregate(e.getValue(), Aggregator.Op.COUNT));
+            expected.add(result);
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        Aggregate ag = new Aggregate(ss, new int[]{1, 1, 1}, new int[]{0, 2},
+                new Aggregator.Op[]{Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.COUNT});
+        if (parallelism > 0)
+            ag.setParallelism(parallelism);
+        SystemTestUtil.matchTuples(ag, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testMultipleAggregatesCompositeKey()
+            throws IOException, DbException, TransactionAbortedException {
+        doMultiAggregate(ROWS, 0);
+    }
+
+    @Test public void testParallelMultipleAggregatesCompositeKey()
+            throws IOException, DbException, TransactionAbortedException {
+        doMultiAggregate(PARALLEL_ROWS, 4);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -0,0 +1,193 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+    private static final Comparator<ArrayList<Integer>> BY_KEY = new Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+            return t1.get(0).compareTo(t2.get(0));
+        }
+    };
+
+    @After public void tearDown() {
+        BufferPool.resetPageSize();
+    }
+
+    private static BTreeFile emptyBTreeFile(int columns) throws Exception {
+        File bFile = File.createTempFile("bulk_index", ".dat");
+        bFile.deleteOnExit();
+        bFile.delete();
+        return BTreeUtility.openBTreeFile(columns, bFile, 0);
+    }
+
+    private static int countLeaves(BTreeFile bf, TransactionId tid) throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage p = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            pid = p.iterator().next().getLeftChild();
+        }
+        int leaves = 0;
+        while (pid != null) {
+            leaves++;
+            pid = ((BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY))
+                    .getRightSiblingId();
+        }
+        return leaves;
+    }
+
+    /**
+     * Load a B+ tree from a HeapFile and check that it is well formed and
+     * holds every tuple, in order.
+     */
+    private BTreeFile loadFromHeapFile(int rows, double fillFactor, ArrayList<ArrayList<Integer>> tuples)
+            throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, tuples);
+        BTreeFile bf = emptyBTreeFile(2);
+        TransactionId tid = new TransactionId();
+        assertEquals(rows, BTreeBulkLoader.load(tid, hf, bf, fillFactor));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        Collections.sort(tuples, BY_KEY);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        assertEquals(rows, keys.size());
+        for (int i = 0; i < rows; i++)
+            assertEquals(tuples.get(i).get(0), keys.get(i));
+        SystemTestUtil.matchTuples(bf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+        return bf;
+    }
+
+    /** A table of many pages is loaded into a tree of several levels. */
+    @Test public void loadHeapFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int rows = 60000;
+        BTreeFile bf = loadFromHeapFile(rows, BTreeBulkLoader.DEFAULT_FILL_FACTOR, tuples);
+
+        // leaves are filled to the fill factor
+        int perLeaf = (int) (BTreeUtility.getNumTuplesPerPage(2) * BTreeBulkLoader.DEFAULT_FILL_FACTOR);
+        TransactionId tid = new TransactionId();
+        int leaves = countLeaves(bf, tid);
+        assertTrue(leaves >= rows / perLeaf - 1 && leaves <= rows / perLeaf + 1);
+
+        // the tree can be searched and updated like any other
+        int key = tuples.get(rows / 2).get(0);
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) == key)
+                expected++;
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            it.next();
+            found++;
+        }
+        it.close();
+        assertEquals(expected, found);
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Small pages give a tree of three levels, also when they are only half full. */
+    @Test public void smallPages() throws Exception {
+        BufferPool.setPageSize(1024);
+        Database.reset();
+        TransactionId tid = new TransactionId();
+        for (double fillFactor : new double[] { 0.5, 1.0 }) {
+            BTreeFile bf = loadFromHeapFile(40000, fillFactor, new ArrayList<ArrayList<Integer>>());
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                    BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+            BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+                    rootPtr.getRootId(), Permissions.READ_ONLY);
+            assertEquals(BTreePageId.INTERNAL, root.iterator().next().getLeftChild().pgcateg());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Full pages, and inputs which fit on one or two leaf pages. */
+    @Test public void pageBoundaries() throws Exception {
+        int perPage = BTreeUtility.getNumTuplesPerPage(2);
+        int[] sizes = { 1, 10, perPage, perPage + 1, 2 * perPage + 3, 300 * perPage };
+        for (int rows : sizes) {
+            loadFromHeapFile(rows, 1.0, new ArrayList<ArrayList<Integer>>());
+        }
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = loadFromHeapFile(perPage + 1, 1.0, tuples);
+        assertEquals(2, countLeaves(bf, tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An empty input leaves an empty file, which is an empty B+ tree. */
+    @Test public void emptyInput() throws Exception {
+        BTreeFile bf = emptyBTreeFile(2);
+        assertEquals(0, BTreeBulkLoader.load(bf, new TupleIterator(bf.getTupleDesc(),
+                new ArrayList<Tuple>()), 1.0));
+        assertEquals(0, bf.getFile().length());
+        loadFromHeapFile(0, 1.0, new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** Input which is not sorted on the key is rejected. */
+    @Test(expected = DbException.class) public void unsortedInput() throws Exception {
+        ArrayList<Tuple> unsorted = new ArrayList<Tuple>();
+        unsorted.add(BTreeUtility.getBTreeTuple(new int[] { 2, 0 }));
+        unsorted.add(BTreeUtility.getBTreeTuple(new int[] { 1, 0 }));
+        BTreeFile bf = emptyBTreeFile(2);
+        BTreeBulkLoader.load(bf, new TupleIterator(bf.getTupleDesc(), unsorted), 1.0);
+    }
+
+    /** ExternalSort merges its runs, in more than one pass if there are many. */
+    @Test public void externalSort() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 500, null, tuples);
+        TransactionId tid = new TransactionId();
+        ExternalSort sort = new ExternalSort(0, false, new SeqScan(tid, hf.getId()), 150);
+        sort.open();
+        assertTrue(sort.numRuns() > 1);
+        ArrayList<ArrayList<Integer>> sorted = new ArrayList<ArrayList<Integer>>();
+        while (sort.hasNext())
+            sorted.add(SystemTestUtil.tupleToList(sort.next()));
+        // the sort is stable
+        Collections.sort(tuples, Collections.reverseOrder(BY_KEY));
+        assertEquals(tuples, sorted);
+        sort.rewind();
+        int count = 0;
+        while (sort.hasNext()) {
+            sort.next();
+            count++;
+        }
+        assertEquals(tuples.size(), count);
+        sort.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
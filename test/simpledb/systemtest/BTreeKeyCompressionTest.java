@@ -0,0 +1,213 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeKeyCompressionTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "url", "n" });
+
+    /** Keys sharing a long prefix, like the URLs of a site. */
+    private static String url(int i) {
+        return String.format("http://www.example.com/users/%07d/profile", i);
+    }
+
+    private static Tuple tuple(String key, int n) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new StringField(key, Type.STRING_LEN));
+        t.setField(1, new IntField(n));
+        return t;
+    }
+
+    private static BTreeFile emptyBTreeFile(String name) throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        BTreeFile bf = new BTreeFile(f, 0, TD);
+        Database.getCatalog().addTable(bf, name);
+        return bf;
+    }
+
+    /** Check that a B+ tree is well formed and holds exactly the given keys. */
+    private static void checkTree(BTreeFile bf, ArrayList<String> keys) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        Collections.sort(keys);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        for (String key : keys) {
+            assertTrue(it.hasNext());
+            assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+        }
+        assertFalse(it.hasNext());
+        it.close();
+
+        // point lookups, of keys which are there or not
+        for (int i = 0; i < 20; i++) {
+            String key = i % 2 == 0 ? keys.get(r.nextInt(keys.size())) : url(-i);
+            it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new StringField(key, Type.STRING_LEN)));
+            it.open();
+            assertEquals(i % 2 == 0, it.hasNext());
+            while (it.hasNext())
+                assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+            it.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static BTreePage rootPage(BTreeFile bf, TransactionId tid) throws Exception {
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Random inserts and deletes keep the tree well formed, its pages hold
+     * many more keys than fixed size slots allow, and they read back the same
+     * after being written out.
+     */
+    @Test public void insertAndDelete() throws Exception {
+        BTreeFile bf = emptyBTreeFile("urls");
+        Database.resetBufferPool(1000);
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < 20000; i++)
+            ids.add(i);
+        Collections.shuffle(ids, r);
+        ArrayList<String> keys = new ArrayList<String>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i % 1000 == 999) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            keys.add(url(ids.get(i)));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(url(ids.get(i)), i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(1000);
+        checkTree(bf, keys);
+
+        // the root holds more separators than an uncompressed page can, and
+        // they are truncated to the digits which tell the leaves apart
+        tid = new TransactionId();
+        BTreeInternalPage root = (BTreeInternalPage) rootPage(bf, tid);
+        assertTrue(root.getNumEntries() > root.getMaxEntries());
+        BTreeEntry e = root.iterator().next();
+        assertTrue(((StringField) e.getKey()).getValue().length() < url(0).length());
+        BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, e.getLeftChild(),
+                Permissions.READ_ONLY);
+        assertTrue(leaf.getNumTuples() > 4 * leaf.getMaxTuples());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // delete three tuples out of four, which merges and redistributes pages
+        tid = new TransactionId();
+        ArrayList<String> remaining = new ArrayList<String>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> deleting = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (r.nextInt(4) == 0)
+                remaining.add(((StringField) t.getField(0)).getValue());
+            else
+                deleting.add(t);
+        }
+        it.close();
+        for (int i = 0; i < deleting.size(); i++) {
+            if (i % 1000 == 999) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            Database.getBufferPool().deleteTuple(tid, deleting.get(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(1000);
+        checkTree(bf, remaining);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** A bulk load packs compressed pages, with truncated separators. */
+    @Test public void bulkLoad() throws Exception {
+        BTreeFile bf = emptyBTreeFile("urlload");
+        ArrayList<String> keys = new ArrayList<String>();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 30000; i++) {
+            // some keys are repeated, and some are much longer than the others
+            String key = url(i / 2) + (i % 50 == 1 ? String.format("%080d", i) : "");
+            keys.add(key);
+            tuples.add(tuple(key, i));
+        }
+        assertEquals(keys.size(), BTreeBulkLoader.load(bf, new TupleIterator(TD, tuples),
+                BTreeBulkLoader.DEFAULT_FILL_FACTOR));
+        checkTree(bf, keys);
+
+        TransactionId tid = new TransactionId();
+        BTreePage root = rootPage(bf, tid);
+        assertTrue(root instanceof BTreeInternalPage);
+        BTreeInternalPage internal = (BTreeInternalPage) root;
+        assertTrue(internal.getNumEntries() > internal.getMaxEntries());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // inserts split the loaded pages
+        Database.resetBufferPool(1000);
+        tid = new TransactionId();
+        for (int i = 0; i < 2000; i++) {
+            String key = url(r.nextInt(15000)) + "/" + i;
+            keys.add(key);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key, -i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        checkTree(bf, keys);
+    }
+
+    /**
+     * The root pointer records that the keys are compressed, and a
+     * string-keyed file without the marker, as written before keys were
+     * compressed, is rejected rather than misread.
+     */
+    @Test public void formatMarker() throws Exception {
+        BTreeFile bf = emptyBTreeFile("urlformat");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(url(i), i));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        RandomAccessFile raf = new RandomAccessFile(bf.getFile(), "rw");
+        raf.seek(4); // root page category
+        int category = raf.readByte();
+        assertTrue((category & 0x80) != 0);
+        raf.seek(4);
+        raf.writeByte(category & 0x7f);
+        raf.close();
+
+        tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        try {
+            it.open();
+            fail("expected the uncompressed file to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeKeyCompressionTest.class);
+    }
+}
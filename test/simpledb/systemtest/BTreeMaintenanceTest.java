@@ -0,0 +1,241 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class BTreeMaintenanceTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    private static final TupleDesc TD = Utility.getTupleDesc(2, "c");
+
+    private static Tuple tuple(int key) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(-key));
+        return t;
+    }
+
+    /**
+     * Create a BTreeFile keyed on the first of two int columns, and insert the
+     * keys from 0 to rows-1 in random order, so that the leaf pages are out of
+     * key order on disk.
+     */
+    private static BTreeFile createBTreeFile(String name, int rows, ArrayList<Integer> keys) throws Exception {
+        File f = File.createTempFile("maintained", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        BTreeFile bf = new BTreeFile(f, 0, TD);
+        Database.getCatalog().addTable(bf, name);
+        for (int i = 0; i < rows; i++)
+            keys.add(i);
+        Collections.shuffle(keys, r);
+        Database.resetBufferPool(1000);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < keys.size(); i++) {
+            if (i % 1000 == 999) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return bf;
+    }
+
+    /** Delete about three keys out of four, and return the others. */
+    private static ArrayList<Integer> deleteMost(BTreeFile bf) throws Exception {
+        ArrayList<Integer> remaining = new ArrayList<Integer>();
+        ArrayList<Tuple> deleting = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (r.nextInt(4) == 0)
+                remaining.add(((IntField) t.getField(0)).getValue());
+            else
+                deleting.add(t);
+        }
+        it.close();
+        for (int i = 0; i < deleting.size(); i++) {
+            if (i % 1000 == 999) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            Database.getBufferPool().deleteTuple(tid, deleting.get(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return remaining;
+    }
+
+    /** The page numbers of the leaf pages, in key order. */
+    private static ArrayList<Integer> leafPageNos(BTreeFile bf) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePageId pid = rootPtr.getRootId();
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid,
+                    Permissions.READ_ONLY);
+            pid = page.iterator().next().getLeftChild();
+        }
+        ArrayList<Integer> pageNos = new ArrayList<Integer>();
+        while (pid != null) {
+            pageNos.add(pid.getPageNumber());
+            pid = ((BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY))
+                    .getRightSiblingId();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return pageNos;
+    }
+
+    private static boolean ascending(ArrayList<Integer> pageNos) {
+        for (int i = 1; i < pageNos.size(); i++)
+            if (pageNos.get(i - 1) > pageNos.get(i))
+                return false;
+        return true;
+    }
+
+    /** Check that a B+ tree is well formed and holds exactly the given keys. */
+    private static void checkTree(BTreeFile bf, ArrayList<Integer> keys, boolean checkOccupancy) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), checkOccupancy);
+        Collections.sort(keys);
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        for (int key : keys) {
+            assertTrue(it.hasNext());
+            assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+        }
+        assertFalse(it.hasNext());
+        it.close();
+        for (int i = 0; i < 20; i++) {
+            int key = i % 2 == 0 ? keys.get(r.nextInt(keys.size())) : -i;
+            it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+            it.open();
+            assertEquals(i % 2 == 0, it.hasNext());
+            it.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Deferred deletes leave underfull leaf pages, which compaction merges. */
+    @Test public void compact() throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        BTreeFile bf = createBTreeFile("compacted", 20000, keys);
+        bf.setMergeOnDelete(false);
+        int numPages = bf.numPages();
+        int numLeaves = leafPageNos(bf).size();
+        ArrayList<Integer> remaining = deleteMost(bf);
+
+        // the deletes did not restructure the tree
+        assertEquals(numPages, bf.numPages());
+        assertEquals(numLeaves, leafPageNos(bf).size());
+        checkTree(bf, remaining, false);
+
+        BTreeMaintainer maintainer = new BTreeMaintainer(bf);
+        assertTrue(maintainer.compact() > 0);
+        assertTrue(leafPageNos(bf).size() < numLeaves * 2 / 3);
+        checkTree(bf, remaining, true);
+        assertEquals(0, maintainer.compact());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Re-sequencing puts the leaf pages in key order on disk, at the start of
+     * the file, so the free pages after them can be truncated.
+     */
+    @Test public void resequenceAndTruncate() throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        BTreeFile bf = createBTreeFile("resequenced", 20000, keys);
+        bf.setMergeOnDelete(false);
+        ArrayList<Integer> remaining = deleteMost(bf);
+        BTreeMaintainer maintainer = new BTreeMaintainer(bf);
+        maintainer.compact();
+        assertFalse(ascending(leafPageNos(bf)));
+
+        assertTrue(maintainer.resequence() > 0);
+        ArrayList<Integer> leaves = leafPageNos(bf);
+        assertTrue(ascending(leaves));
+        checkTree(bf, remaining, true);
+        assertEquals(0, maintainer.resequence());
+
+        int numPages = bf.numPages();
+        assertTrue(maintainer.truncate() > 0);
+        assertTrue(bf.numPages() < numPages);
+        // the tree holds little more than its leaf pages
+        assertTrue(bf.numPages() <= leaves.size() + 10);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        checkTree(bf, remaining, true);
+        assertEquals(leaves, leafPageNos(bf));
+
+        // the file grows again, and pages are freed and reused, as usual
+        bf.setMergeOnDelete(true);
+        Database.resetBufferPool(1000);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 5000; i++) {
+            int key = 20000 + r.nextInt(20000);
+            remaining.add(key);
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(key));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(bf.numPages() > leaves.size() + 10);
+        remaining = deleteMost(bf);
+        checkTree(bf, remaining, true);
+        assertTrue(maintainer.runOnce() > 0);
+        assertTrue(ascending(leafPageNos(bf)));
+        checkTree(bf, remaining, true);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** The maintainer runs in the background while transactions delete keys. */
+    @Test public void background() throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        BTreeFile bf = createBTreeFile("background", 5000, keys);
+        bf.setMergeOnDelete(false);
+        BTreeMaintainer maintainer = new BTreeMaintainer(bf);
+        maintainer.start(1);
+
+        ArrayList<Integer> remaining = new ArrayList<Integer>(keys);
+        Collections.shuffle(remaining, r);
+        int deleted = 0;
+        while (deleted < 4000) {
+            // delete a key, which the maintainer may have moved in the meantime
+            TransactionId tid = new TransactionId();
+            int key = remaining.get(remaining.size() - 1);
+            try {
+                DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+                it.open();
+                Tuple t = it.next();
+                it.close();
+                Database.getBufferPool().deleteTuple(tid, t);
+                Database.getBufferPool().transactionComplete(tid);
+                remaining.remove(remaining.size() - 1);
+                deleted++;
+            } catch (TransactionAbortedException e) {
+                Database.getBufferPool().transactionComplete(tid, false);
+            }
+        }
+        maintainer.stop();
+
+        maintainer.runOnce();
+        checkTree(bf, remaining, true);
+        assertTrue(ascending(leafPageNos(bf)));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeMaintenanceTest.class);
+    }
+}
@@ -7,8 +7,10 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Iterator;
@@ -282,6 +284,258 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test that a scan with an upper bound stops at the end of its key range. */
+    @Test public void testBoundedScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, 5000, null, tuples, 0);
+        ArrayList<ArrayList<Integer>> inRange = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) > 1000 && t.get(0) <= 1500)
+                inRange.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table",
+                new IndexPredicate(Op.GREATER_THAN, new IntField(1000)),
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(1500)));
+        SystemTestUtil.matchTuples(scan, inRange);
+        scan.open();
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        assertEquals(inRange.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Test that the planner reads a selective range of a BTreeFile with a
+     * single bounded index scan, and a non-selective one with a SeqScan.
+     */
+    @Test public void testAccessPathSelection() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, 10000, null, tuples, 0);
+        f = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, "btplan");
+        TableStats.setTableStats("btplan", new TableStats(f.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> inRange = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= 100 && t.get(0) < 300)
+                inRange.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM btplan WHERE btplan.c0 >= 100 AND btplan.c0 < 300 AND btplan.c0 > 50;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        OpIterator leaf = plan;
+        while (leaf instanceof Operator) {
+            assertFalse(leaf instanceof Filter);
+            leaf = ((Operator) leaf).getChildren()[0];
+        }
+        assertTrue(leaf instanceof BTreeScan);
+        SystemTestUtil.matchTuples(plan, inRange);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // with no pages cached, reading nearly every leaf in key order
+        // costs more than a sequential scan
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM btplan WHERE btplan.c0 >= 10;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        leaf = plan;
+        while (leaf instanceof Operator)
+            leaf = ((Operator) leaf).getChildren()[0];
+        assertTrue(leaf instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that an equality against a parameter is answered by the index. */
+    @Test public void testParameterizedLookup() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, 10000, null, tuples, 0);
+        f = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, "btprep");
+        TableStats.setTableStats("btprep", new TableStats(f.getId(), 1000));
+
+        PreparedQuery pq = new Parser().prepare("SELECT * FROM btprep WHERE btprep.c0 = ?;");
+        for (int key : new int[] { tuples.get(0).get(0), tuples.get(1).get(0), -1 }) {
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> t : tuples) {
+                if (t.get(0) == key)
+                    expected.add(t);
+            }
+            pq.setInt(0, key);
+            TransactionId tid = new TransactionId();
+            OpIterator plan = pq.execute(tid).getPhysicalPlan();
+            OpIterator leaf = plan;
+            while (leaf instanceof Operator) {
+                assertFalse(leaf instanceof Filter);
+                leaf = ((Operator) leaf).getChildren()[0];
+            }
+            assertTrue(leaf instanceof BTreeScan);
+            SystemTestUtil.matchTuples(plan, expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        assertEquals(1, pq.timesPlanned());
+    }
+
+    /** @return the tuples of a scan, checking that their keys are in descending order */
+    private static ArrayList<ArrayList<Integer>> readDescending(OpIterator scan, int keyField)
+            throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        scan.open();
+        while (scan.hasNext()) {
+            ArrayList<Integer> t = SystemTestUtil.tupleToList(scan.next());
+            if (!result.isEmpty())
+                assertTrue(result.get(result.size() - 1).get(keyField) >= t.get(keyField));
+            result.add(t);
+        }
+        scan.close();
+        return result;
+    }
+
+    /** Test descending scans with and without bounds. */
+    @Test public void testDescendingScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, 3000, null, tuples, 0);
+        int key = tuples.get(0).get(0);
+        IndexPredicate[] preds = new IndexPredicate[] { null,
+                new IndexPredicate(Op.GREATER_THAN, new IntField(500), Op.LESS_THAN_OR_EQ, new IntField(1500)),
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(500), Op.LESS_THAN, new IntField(501)),
+                new IndexPredicate(Op.EQUALS, new IntField(key)),
+                new IndexPredicate(Op.LESS_THAN, new IntField(700)),
+                new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(key)),
+                new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(2800)),
+                new IndexPredicate(Op.GREATER_THAN, new IntField(5000)),
+                IndexPredicate.in(new IntField(key), new IntField(3), new IntField(2999)) };
+        TransactionId tid = new TransactionId();
+        for (IndexPredicate ipred : preds) {
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> t : tuples) {
+                if (ipred == null || ipred.matches(new IntField(t.get(0))))
+                    expected.add(t);
+            }
+            BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred, true);
+            assertTrue(scan.isDescending());
+            ArrayList<ArrayList<Integer>> found = readDescending(scan, 0);
+            assertEquals(expected.size(), found.size());
+            SystemTestUtil.matchTuples(scan, expected);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a range at the high end of the keys reads only the leaves holding it. */
+    @Test public void testTwoSidedRange() throws Exception {
+        final int LEAF_PAGES = 30;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, 0);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        int lower = LEAF_PAGES*502 - 600, upper = LEAF_PAGES*502 - 400;
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) >= lower && t.get(0) < upper)
+                expected.add(t);
+        }
+        for (boolean descending : new boolean[] { false, true }) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            table.readCount = 0;
+            TransactionId tid = new TransactionId();
+            BTreeScan scan = new BTreeScan(tid, table.getId(), "table", new IndexPredicate(
+                    Op.GREATER_THAN_OR_EQ, new IntField(lower), Op.LESS_THAN, new IntField(upper)), descending);
+            SystemTestUtil.matchTuples(scan, expected);
+            // root pointer page + root + at most two leaves holding the range + one past it
+            assertTrue(table.readCount <= 5);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /** Test IN-list lookups, including absent, duplicate and boundary keys. */
+    @Test public void testInList() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, 4000, null, tuples, 0);
+        Collections.sort(tuples, new TupleComparator(0));
+        // neighbours of a random key (likely on one leaf), the first and last
+        // keys, absent keys, a repeated key, and keys far apart
+        int key = tuples.get(r.nextInt(tuples.size())).get(0);
+        Field[] values = new Field[] { new IntField(key + 1), new IntField(key), new IntField(key + 2),
+                new IntField(tuples.get(0).get(0)), new IntField(tuples.get(tuples.size() - 1).get(0)),
+                new IntField(-5), new IntField(5000), new IntField(key), new IntField(1000),
+                new IntField(3000) };
+        IndexPredicate ipred = IndexPredicate.in(values);
+        // key is repeated on purpose, and its neighbours may also coincide
+        // with the first, last or fixed keys
+        assertEquals(new HashSet<Field>(Arrays.asList(values)).size(), ipred.getValues().length);
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (ipred.matches(new IntField(t.get(0))))
+                expected.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", ipred);
+        scan.open();
+        int count = 0;
+        int last = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            int k = ((IntField) scan.next().getField(0)).getValue();
+            assertTrue(k >= last);
+            last = k;
+            count++;
+        }
+        scan.close();
+        assertEquals(expected.size(), count);
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that ORDER BY on the key of a BTreeFile is answered by the scan order. */
+    @Test public void testOrderByKey() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, 2000, null, tuples, 0);
+        f = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(f, "btorder");
+        TableStats.setTableStats("btorder", new TableStats(f.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 1500 && t.get(1) > 100)
+                expected.add(t);
+        }
+        for (String order : new String[] { "DESC", "ASC" }) {
+            TransactionId tid = new TransactionId();
+            OpIterator plan = new Parser().generateLogicalPlan(tid,
+                    "SELECT * FROM btorder WHERE btorder.c0 < 1500 AND btorder.c1 > 100 ORDER BY btorder.c0 "
+                    + order + ";").physicalPlan(tid, TableStats.getStatsMap(), false);
+            OpIterator leaf = plan;
+            while (leaf instanceof Operator) {
+                assertFalse(leaf instanceof OrderBy);
+                leaf = ((Operator) leaf).getChildren()[0];
+            }
+            assertTrue(leaf instanceof BTreeScan);
+            assertEquals(order.equals("DESC"), ((BTreeScan) leaf).isDescending());
+            plan.open();
+            int count = 0;
+            Integer last = null;
+            while (plan.hasNext()) {
+                int k = ((IntField) plan.next().getField(0)).getValue();
+                if (last != null)
+                    assertTrue(order.equals("DESC") ? k <= last : k >= last);
+                last = k;
+                count++;
+            }
+            plan.close();
+            assertEquals(expected.size(), count);
+            SystemTestUtil.matchTuples(plan, expected);
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
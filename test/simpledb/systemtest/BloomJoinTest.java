@@ -0,0 +1,163 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class BloomJoinTest extends SimpleDbTestBase {
+
+    private static HashEquiJoin findHashJoin(OpIterator it) {
+        if (it instanceof HashEquiJoin)
+            return (HashEquiJoin) it;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                HashEquiJoin j = child == null ? null : findHashJoin(child);
+                if (j != null)
+                    return j;
+            }
+        }
+        return null;
+    }
+
+    /** @return the tuples of an equi-join of t1 and t2 on their first fields */
+    private static ArrayList<ArrayList<Integer>> join(ArrayList<ArrayList<Integer>> t1,
+            ArrayList<ArrayList<Integer>> t2) {
+        HashMap<Integer, ArrayList<ArrayList<Integer>>> byKey = new HashMap<Integer, ArrayList<ArrayList<Integer>>>();
+        for (ArrayList<Integer> t : t1) {
+            byKey.computeIfAbsent(t.get(0), k -> new ArrayList<ArrayList<Integer>>()).add(t);
+        }
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : t2) {
+            for (ArrayList<Integer> m : byKey.getOrDefault(t.get(0), new ArrayList<ArrayList<Integer>>())) {
+                ArrayList<Integer> joined = new ArrayList<Integer>(m);
+                joined.addAll(t);
+                result.add(joined);
+            }
+        }
+        return result;
+    }
+
+    /** Unit test for BloomFilter: no false negatives, few false positives */
+    @Test public void falsePositiveRate() {
+        BloomFilter bf = new BloomFilter(0.01);
+        bf.reset(1000);
+        for (int i = 0; i < 1000; i++)
+            bf.add(new IntField(i * 7));
+        for (int i = 0; i < 1000; i++)
+            assertTrue(bf.mightContain(new IntField(i * 7)));
+        int positives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (bf.mightContain(new IntField(1000000 + i)))
+                positives++;
+        }
+        assertTrue("false positives " + positives, positives < 2000);
+        assertEquals(100000 - positives, bf.rejected());
+
+        bf.reset(10);
+        assertFalse(bf.mightContain(new IntField(0)));
+    }
+
+    /**
+     * Unit test for the planner: a selective dimension joined to a large
+     * fact table publishes a Bloom filter into the fact table's scan
+     */
+    @Test public void starJoin() throws Exception {
+        ArrayList<ArrayList<Integer>> fact = new ArrayList<ArrayList<Integer>>();
+        HeapFile ff = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, null, fact, "c");
+        Database.getCatalog().addTable(ff, "fact");
+        TableStats.setTableStats("fact", new TableStats(ff.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> dim = new ArrayList<ArrayList<Integer>>();
+        HeapFile fd = SystemTestUtil.createRandomHeapFile(2, 1000, 1000, null, dim, "c");
+        Database.getCatalog().addTable(fd, "dim");
+        TableStats.setTableStats("dim", new TableStats(fd.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> selected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : dim) {
+            if (t.get(1) < 20)
+                selected.add(t);
+        }
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM dim, fact WHERE dim.c0 = fact.c0 AND dim.c1 < 20;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        HashEquiJoin j = findHashJoin(plan);
+        assertNotNull(j);
+        BloomFilter bf = j.getBloomFilter();
+        assertNotNull(bf);
+        OpIterator probe = j.getChildren()[1];
+        assertTrue(probe instanceof SeqScan);
+
+        ArrayList<ArrayList<Integer>> expected = join(selected, fact);
+        SystemTestUtil.matchTuples(plan, expected);
+        assertSame(bf, ((SeqScan) probe).getBloomFilter());
+        // most fact tuples were dropped by the scan
+        assertTrue("rejected " + bf.rejected(), bf.rejected() > fact.size() / 2);
+
+        // the same result with the scan fused
+        QueryCompiler.setEnabled(true);
+        try {
+            plan = new Parser().generateLogicalPlan(tid,
+                    "SELECT * FROM dim, fact WHERE dim.c0 = fact.c0 AND dim.c1 < 20;")
+                    .physicalPlan(tid, TableStats.getStatsMap(), false);
+            SystemTestUtil.matchTuples(plan, expected);
+        } finally {
+            QueryCompiler.setEnabled(false);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for HashEquiJoin: the Bloom filter is refilled for each batch
+     * of build tuples, and the join can be rewound
+     */
+    @Test public void batches() throws Exception {
+        ArrayList<ArrayList<Integer>> build = new ArrayList<ArrayList<Integer>>();
+        HeapFile fb = SystemTestUtil.createRandomHeapFile(1, HashEquiJoin.MAP_SIZE + 5000, 1000000, null, build, "c");
+        ArrayList<ArrayList<Integer>> probe = new ArrayList<ArrayList<Integer>>();
+        HeapFile fp = SystemTestUtil.createRandomHeapFile(1, 3000, 1000000, null, probe, "c");
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, fp.getId(), "p");
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), scan);
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, fb.getId(), "b"), filter);
+        j.setBloomFilterFpp(0.01);
+        ArrayList<ArrayList<Integer>> expected = join(build, probe);
+        SystemTestUtil.matchTuples(j, expected);
+        assertSame(j.getBloomFilter(), scan.getBloomFilter());
+        assertNull(filter.getBloomFilter());
+
+        j.open();
+        while (j.hasNext())
+            j.next();
+        j.rewind();
+        int count = 0;
+        while (j.hasNext()) {
+            j.next();
+            count++;
+        }
+        j.close();
+        assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Unit test for JoinOptimizer: Bloom filters only for selective joins */
+    @Test public void fpp() {
+        assertEquals(0.0, JoinOptimizer.bloomFilterFpp(900, 1000), 0.0);
+        double fpp = JoinOptimizer.bloomFilterFpp(20, 1000);
+        assertTrue(fpp > 0 && fpp <= 0.01);
+        assertTrue(JoinOptimizer.bloomFilterFpp(100, 1000) > fpp);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BloomJoinTest.class);
+    }
+}
@@ -0,0 +1,243 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class HashFileTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    /** Counts the number of readPage operations. */
+    static class InstrumentedHashFile extends HashFile {
+        public InstrumentedHashFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+
+        public int readCount = 0;
+    }
+
+    /**
+     * Create a HashFile of two int columns keyed on the first one, named
+     * name in the catalog, and fill it with rows tuples whose keys are drawn
+     * from [0, maxKey), committing every 500 inserts. The inserts dirty
+     * pages all over the file, so they run with a larger BufferPool.
+     */
+    private static InstrumentedHashFile createHashFile(String name, int rows, int maxKey,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        File f = File.createTempFile("hash", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        TupleDesc td = Utility.getTupleDesc(2, "c");
+        InstrumentedHashFile hf = new InstrumentedHashFile(f, 0, td);
+        Database.getCatalog().addTable(hf, name);
+        Database.resetBufferPool(1000);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            if (i % 500 == 499) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            int key = r.nextInt(maxKey);
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(key));
+            t.setField(1, new IntField(i));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(key);
+            row.add(i);
+            tuples.add(row);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return hf;
+    }
+
+    private static ArrayList<ArrayList<Integer>> withKey(ArrayList<ArrayList<Integer>> tuples, int key) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) == key)
+                result.add(t);
+        return result;
+    }
+
+    /** Inserts grow the table by splitting buckets, and every tuple stays reachable by its key. */
+    @Test public void insertAndLookup() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HashFile hf = createHashFile("ht", 20000, 5000, tuples);
+        // 20000 tuples need about 40 full pages
+        assertTrue(hf.numPages() > 40);
+
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "ht", null), tuples);
+        for (int i = 0; i < 50; i++) {
+            int key = i < 40 ? tuples.get(r.nextInt(tuples.size())).get(0) : -i;
+            SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "ht",
+                    new IndexPredicate(Predicate.Op.EQUALS, new IntField(key))), withKey(tuples, key));
+        }
+
+        // a list of keys reads each of their buckets, and a range the whole file
+        int a = tuples.get(0).get(0), b = tuples.get(1).get(0);
+        ArrayList<ArrayList<Integer>> expected = withKey(tuples, a);
+        if (b != a)
+            expected.addAll(withKey(tuples, b));
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "ht",
+                IndexPredicate.in(new IntField(a), new IntField(b), new IntField(-1))), expected);
+        expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) < 100)
+                expected.add(t);
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "ht",
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100))), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A point lookup reads the bucket of its key, and the meta page until it is cached. */
+    @Test public void pointLookupReads() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        InstrumentedHashFile hf = createHashFile("hreads", 40000, Integer.MAX_VALUE, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.readCount = 0;
+
+        TransactionId tid = new TransactionId();
+        int lookups = 200, most = 0, total = 0;
+        for (int i = 0; i < lookups; i++) {
+            ArrayList<Integer> t = tuples.get(r.nextInt(tuples.size()));
+            int before = hf.readCount;
+            SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "hreads",
+                    new IndexPredicate(Predicate.Op.EQUALS, new IntField(t.get(0)))), withKey(tuples, t.get(0)));
+            // the lookups of a transaction hold their pages, so start over
+            // when the BufferPool fills up
+            if (i % 40 == 39) {
+                Database.getBufferPool().transactionComplete(tid);
+                Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                tid = new TransactionId();
+            }
+            int reads = hf.readCount - before;
+            most = Math.max(most, reads);
+            total += reads;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // the meta page and the primary page, and rarely an overflow page
+        assertTrue("a lookup read " + most + " pages", most <= 3);
+        assertTrue("lookups read " + total + " pages", total <= lookups * 1.5 + lookups / 40);
+    }
+
+    /** Deletes and inserts roll back when their transaction aborts, splits included. */
+    @Test public void deleteAndAbort() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HashFile hf = createHashFile("hdel", 3000, 300, tuples);
+        int pages = hf.numPages();
+
+        // an aborted batch of inserts splits buckets, then rolls back
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(1000 + i));
+            t.setField(1, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "hdel", null), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // delete the tuples of one key, abort, then commit
+        int key = tuples.get(0).get(0);
+        for (boolean commit : new boolean[] { false, true }) {
+            tid = new TransactionId();
+            HashScan scan = new HashScan(tid, hf.getId(), "hdel",
+                    new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+            Delete delete = new Delete(tid, scan);
+            delete.open();
+            assertEquals(withKey(tuples, key).size(), ((IntField) delete.next().getField(0)).getValue());
+            delete.close();
+            Database.getBufferPool().transactionComplete(tid, commit);
+        }
+        ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>(tuples);
+        remaining.removeAll(withKey(tuples, key));
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "hdel", null), remaining);
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "hdel",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key))), new ArrayList<ArrayList<Integer>>());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the pages allocated by the aborted inserts are reused
+        tid = new TransactionId();
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(1000 + i));
+            t.setField(1, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(1000 + i);
+            row.add(-i);
+            remaining.add(row);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(new HashScan(tid, hf.getId(), "hdel", null), remaining);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(hf.numPages() >= pages);
+    }
+
+    private static OpIterator leaf(OpIterator plan) {
+        while (plan instanceof Operator)
+            plan = ((Operator) plan).getChildren()[0];
+        return plan;
+    }
+
+    /** The planner reads an equality on the key through the hash table, and a range with a SeqScan. */
+    @Test public void planner() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HashFile hf = createHashFile("hplan", 10000, 5000, tuples);
+        TableStats.setTableStats("hplan", new TableStats(hf.getId(), 1000));
+
+        int key = tuples.get(0).get(0);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM hplan WHERE hplan.c0 = " + key + ";")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(leaf(plan) instanceof HashScan);
+        SystemTestUtil.matchTuples(plan, withKey(tuples, key));
+
+        plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM hplan WHERE hplan.c0 > 10;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(leaf(plan) instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // an equality against a parameter is bound into the hash scan
+        PreparedQuery pq = new Parser().prepare("SELECT * FROM hplan WHERE hplan.c0 = ?;");
+        for (int k : new int[] { key, tuples.get(1).get(0), -1 }) {
+            pq.setInt(0, k);
+            tid = new TransactionId();
+            plan = pq.execute(tid).getPhysicalPlan();
+            OpIterator it = plan;
+            while (it instanceof Operator) {
+                assertFalse(it instanceof Filter);
+                it = ((Operator) it).getChildren()[0];
+            }
+            assertTrue(it instanceof HashScan);
+            SystemTestUtil.matchTuples(plan, withKey(tuples, k));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        assertEquals(1, pq.timesPlanned());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashFileTest.class);
+    }
+}
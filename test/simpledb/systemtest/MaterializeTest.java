@@ -0,0 +1,194 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+public class MaterializeTest extends SimpleDbTestBase {
+
+    /** An operator counting the tuples read from its child. */
+    private static class Counting extends Operator {
+        private static final long serialVersionUID = 1L;
+        private OpIterator child;
+        int reads = 0;
+
+        Counting(OpIterator child) {
+            this.child = child;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext())
+                return null;
+            reads++;
+            return child.next();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { child };
+        }
+
+        public void setChildren(OpIterator[] children) {
+            this.child = children[0];
+        }
+    }
+
+    private static Materialize findMaterialize(OpIterator it) {
+        if (it instanceof Materialize)
+            return (Materialize) it;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                Materialize m = child == null ? null : findMaterialize(child);
+                if (m != null)
+                    return m;
+            }
+        }
+        return null;
+    }
+
+    private static ArrayList<ArrayList<Integer>> drain(OpIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        return result;
+    }
+
+    private void checkRewinds(int rows, int maxInMemory, boolean spills) throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, rows, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+        Counting child = new Counting(new SeqScan(tid, f.getId(), "t"));
+        Materialize m = new Materialize(child, maxInMemory);
+
+        m.open();
+        // a partial first pass, the rest is spooled by rewind
+        for (int i = 0; i < rows / 3; i++)
+            m.next();
+        m.rewind();
+        assertTrue(m.isComplete());
+        assertEquals(tuples, drain(m));
+        m.rewind();
+        assertEquals(tuples, drain(m));
+        assertEquals(rows, child.reads);
+        assertEquals(spills, m.numSpilledTuples() > 0);
+        m.close();
+
+        // reopening spools the child again
+        m.open();
+        assertEquals(tuples, drain(m));
+        m.close();
+        assertEquals(2 * rows, child.reads);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Unit test for Materialize: rewinds are served from memory */
+    @Test public void inMemory() throws Exception {
+        checkRewinds(2000, Materialize.DEFAULT_MAX_IN_MEMORY, false);
+    }
+
+    /** Unit test for Materialize: tuples beyond the threshold spill to disk */
+    @Test public void spill() throws Exception {
+        checkRewinds(5000, 100, true);
+        checkRewinds(5000, 0, true);
+    }
+
+    /**
+     * Unit test for the planner: the filtered inner side of a nested loops
+     * join is spooled, with the same result
+     */
+    @Test public void nestedLoops() throws Exception {
+        ArrayList<ArrayList<Integer>> a = new ArrayList<ArrayList<Integer>>();
+        HeapFile fa = SystemTestUtil.createRandomHeapFile(2, 300, 100, null, a, "c");
+        Database.getCatalog().addTable(fa, "ma");
+        TableStats.setTableStats("ma", new TableStats(fa.getId(), 1000));
+        ArrayList<ArrayList<Integer>> b = new ArrayList<ArrayList<Integer>>();
+        HeapFile fb = SystemTestUtil.createRandomHeapFile(2, 400, 100, null, b, "c");
+        Database.getCatalog().addTable(fb, "mb");
+        TableStats.setTableStats("mb", new TableStats(fb.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> ta : a) {
+            for (ArrayList<Integer> tb : b) {
+                if (ta.get(1) < 10 && tb.get(1) < 20 && ta.get(0) < tb.get(0)) {
+                    ArrayList<Integer> joined = new ArrayList<Integer>(ta);
+                    joined.addAll(tb);
+                    expected.add(joined);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM ma, mb WHERE ma.c0 < mb.c0 AND ma.c1 < 10 AND mb.c1 < 20;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNotNull(findMaterialize(plan));
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for Materialize: tuples with VARCHAR fields, which are too
+     * wide for a HeapPage, spill and read back intact
+     */
+    @Test public void spillVarchar() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE },
+                new String[] { "id", "body" });
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            StringBuilder body = new StringBuilder();
+            for (int j = 0; j < i % 40; j++)
+                body.append("row").append(i);
+            t.setField(1, new VarcharField(body.toString()));
+            tuples.add(t);
+        }
+        Materialize m = new Materialize(new TupleIterator(td, tuples), 10);
+        m.open();
+        for (int pass = 0; pass < 3; pass++) {
+            for (Tuple expected : tuples) {
+                assertTrue(m.hasNext());
+                Tuple t = m.next();
+                assertEquals(expected.getField(0), t.getField(0));
+                assertEquals(expected.getField(1), t.getField(1));
+            }
+            assertFalse(m.hasNext());
+            m.rewind();
+        }
+        assertEquals(tuples.size() - 10, m.numSpilledTuples());
+        m.close();
+    }
+
+    /** Unit test for JoinOptimizer: spool only when rerunning costs more */
+    @Test public void shouldMaterialize() {
+        assertFalse(JoinOptimizer.shouldMaterialize(1, 1e6, 10));
+        assertTrue(JoinOptimizer.shouldMaterialize(100, 1e6, 10));
+        assertFalse(JoinOptimizer.shouldMaterialize(100, 10, 100000));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MaterializeTest.class);
+    }
+}
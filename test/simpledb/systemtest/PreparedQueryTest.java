@@ -0,0 +1,142 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class PreparedQueryTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private Parser parser;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 50, null, tuples, "c");
+        Database.getCatalog().addTable(f, "prep");
+        TableStats.setTableStats("prep", new TableStats(f.getId(), 1000));
+        parser = new Parser();
+    }
+
+    private ArrayList<ArrayList<Integer>> matching(int c0, int c1) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) == c0 && t.get(1) > c1)
+                result.add(t);
+        }
+        return result;
+    }
+
+    private void check(PreparedQuery pq, int c0, int c1) throws Exception {
+        pq.setInt(0, c0);
+        pq.setInt(1, c1);
+        TransactionId tid = new TransactionId();
+        Query q = pq.execute(tid);
+        SystemTestUtil.matchTuples(q.getPhysicalPlan(), matching(c0, c1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for PreparedQuery: one plan serves executions with
+     * different parameters in different transactions
+     */
+    @Test public void rebind() throws Exception {
+        PreparedQuery pq = parser.prepare("SELECT * FROM prep WHERE prep.c0 = ? AND prep.c1 > ?;");
+        assertEquals(2, pq.numParameters());
+        check(pq, 3, 10);
+        check(pq, 7, 25);
+        check(pq, 7, 60);
+        assertEquals(1, pq.timesPlanned());
+    }
+
+    /**
+     * Unit test for PreparedQuery: executing with a missing or mistyped
+     * parameter fails
+     */
+    @Test public void unboundParameter() throws Exception {
+        PreparedQuery pq = parser.prepare("SELECT * FROM prep WHERE prep.c0 = ? AND prep.c1 > ?;");
+        pq.setInt(0, 3);
+        try {
+            pq.execute(new TransactionId());
+            fail("expected DbException for an unset parameter");
+        } catch (DbException e) {
+        }
+        pq.setString(1, "x");
+        try {
+            pq.execute(new TransactionId());
+            fail("expected DbException for a string parameter on an int field");
+        } catch (DbException e) {
+        }
+        try {
+            parser.prepare("SELECT * FROM prep WHERE ? = 3;");
+            fail("expected ParsingException for a parameter not compared to a field");
+        } catch (ParsingException e) {
+        }
+    }
+
+    /**
+     * Unit test for StatementCache: closed statements are reused, keyed by
+     * normalized SQL, and dropped when the statistics change
+     */
+    @Test public void cache() throws Exception {
+        StatementCache cache = parser.getStatementCache();
+        PreparedQuery pq = parser.prepare("SELECT * FROM prep WHERE prep.c0 = ? AND prep.c1 > ?;");
+        check(pq, 3, 10);
+        pq.close();
+        assertEquals(1, cache.size());
+
+        PreparedQuery again = parser.prepare("SELECT *  FROM prep\n WHERE prep.c0 = ? AND prep.c1 > ?");
+        assertSame(pq, again);
+        assertEquals(1, cache.hits());
+        check(again, 5, 20);
+        assertEquals(1, again.timesPlanned());
+        again.close();
+
+        // new statistics make the cached plan stale
+        TableStats.setTableStats("prep", new TableStats(Database.getCatalog().getTableId("prep"), 1000));
+        PreparedQuery replanned = parser.prepare("SELECT * FROM prep WHERE prep.c0 = ? AND prep.c1 > ?;");
+        assertNotSame(pq, replanned);
+        assertEquals(1, cache.invalidations());
+
+        // a plan held while the catalog changes is rebuilt on execution
+        check(replanned, 5, 20);
+        Database.getCatalog().addTable(new HeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(1, 1, 10, null, new ArrayList<ArrayList<Integer>>()),
+                Utility.getTupleDesc(1)), "other");
+        assertTrue(replanned.isStale());
+        check(replanned, 9, 0);
+        assertEquals(2, replanned.timesPlanned());
+    }
+
+    /**
+     * Unit test for StatementCache: the least recently used plan is evicted
+     */
+    @Test public void eviction() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        Parser p = new Parser();
+        PreparedQuery a = p.prepare("SELECT * FROM prep WHERE prep.c0 = ?;");
+        PreparedQuery b = p.prepare("SELECT * FROM prep WHERE prep.c1 = ?;");
+        PreparedQuery c = p.prepare("SELECT * FROM prep WHERE prep.c0 > ?;");
+        cache.release(a);
+        cache.release(b);
+        assertSame(a, cache.take(a.getSql()));
+        cache.release(a);
+        cache.release(c);
+        assertEquals(2, cache.size());
+        assertNull(cache.take(b.getSql()));
+        assertSame(a, cache.take(a.getSql()));
+        assertSame(c, cache.take(c.getSql()));
+
+        assertEquals("SELECT * FROM t WHERE t.s = 'a  b'",
+                StatementCache.normalize("  SELECT *\tFROM t\n WHERE t.s = 'a  b' ; "));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PreparedQueryTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class QueryCompilerTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile table;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        table = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(table, "fused");
+        TableStats.setTableStats("fused", new TableStats(table.getId(), 1000));
+    }
+
+    private static final java.util.Comparator<ArrayList<Integer>> ORDER = (a, b) -> {
+        for (int i = 0; i < a.size(); i++) {
+            int c = Integer.compare(a.get(i), b.get(i));
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    };
+
+    @After public void tearDown() {
+        QueryCompiler.setEnabled(false);
+    }
+
+    private OpIterator plan(String sql, boolean compile) throws Exception {
+        QueryCompiler.setEnabled(compile);
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private static boolean containsFusedScan(OpIterator it) {
+        if (it instanceof FusedScan)
+            return true;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null && containsFusedScan(child))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static ArrayList<ArrayList<Integer>> collect(OpIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            result.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        return result;
+    }
+
+    private void checkSame(String sql) throws Exception {
+        ArrayList<ArrayList<Integer>> interpreted = collect(plan(sql, false));
+        OpIterator compiled = plan(sql, true);
+        assertTrue(containsFusedScan(compiled));
+        SystemTestUtil.matchTuples(compiled, interpreted);
+    }
+
+    /** Unit test for QueryCompiler: fused scan and filter */
+    @Test public void filter() throws Exception {
+        checkSame("SELECT fused.c0, fused.c2 FROM fused WHERE fused.c1 > 40 AND fused.c2 < 70;");
+    }
+
+    /** Unit test for QueryCompiler: scan and filter fused into an aggregate */
+    @Test public void aggregate() throws Exception {
+        checkSame("SELECT COUNT(fused.c0) FROM fused WHERE fused.c1 > 40;");
+        checkSame("SELECT fused.c2, SUM(fused.c0), MIN(fused.c1) FROM fused WHERE fused.c0 < 50 GROUP BY fused.c2;");
+    }
+
+    /** Unit test for FusedScan: partitions and forEach cover the same tuples */
+    @Test public void partitions() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30));
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) > 30)
+                expected.add(t);
+        }
+
+        TransactionId tid = new TransactionId();
+        FusedScan scan = new FusedScan(tid, table.getId(), "", Arrays.asList(p), 0, Integer.MAX_VALUE);
+        SystemTestUtil.matchTuples(scan, expected);
+
+        int half = table.numPages() / 2;
+        ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+        for (FusedScan part : Arrays.asList(scan.partition(0, half), scan.partition(half, table.numPages()))) {
+            part.forEach(t -> actual.add(SystemTestUtil.tupleToList(t)));
+        }
+        actual.sort(ORDER);
+        expected.sort(ORDER);
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(QueryCompilerTest.class);
+    }
+}
@@ -0,0 +1,352 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+
+    private static SecondaryIndex addIndex(HeapFile hf, int keyField) throws Exception {
+        return addIndex(hf, new int[] { keyField }, new int[0]);
+    }
+
+    private static SecondaryIndex addIndex(HeapFile hf, int[] keyFields, int[] includeFields)
+            throws Exception {
+        File f = File.createTempFile("secondary", ".idx");
+        f.deleteOnExit();
+        f.delete();
+        SecondaryIndex index = new SecondaryIndex("idx" + Arrays.toString(keyFields), hf, keyFields,
+                includeFields, f);
+        Database.getCatalog().addIndex(index);
+        TransactionId tid = new TransactionId();
+        index.build(tid, BTreeBulkLoader.DEFAULT_FILL_FACTOR);
+        Database.getBufferPool().transactionComplete(tid);
+        return index;
+    }
+
+    /** @return every (key, page number, tuple number) entry of the index */
+    private static HashSet<ArrayList<Integer>> entries(SecondaryIndex index, TransactionId tid)
+            throws Exception {
+        HashSet<ArrayList<Integer>> result = new HashSet<ArrayList<Integer>>();
+        DbFileIterator it = index.getFile().iterator(tid);
+        it.open();
+        while (it.hasNext())
+            assertTrue(result.add(SystemTestUtil.tupleToList(it.next())));
+        it.close();
+        return result;
+    }
+
+    /** @return the entries an index on keyField of the table should hold */
+    private static HashSet<ArrayList<Integer>> expectedEntries(HeapFile hf, int keyField, TransactionId tid)
+            throws Exception {
+        HashSet<ArrayList<Integer>> result = new HashSet<ArrayList<Integer>>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            ArrayList<Integer> e = new ArrayList<Integer>();
+            e.add(((IntField) t.getField(keyField)).getValue());
+            e.add(t.getRecordId().getPageId().getPageNumber());
+            e.add(t.getRecordId().getTupleNumber());
+            result.add(e);
+        }
+        it.close();
+        return result;
+    }
+
+    /** Inserts and deletes through the BufferPool keep the index in sync, also on abort. */
+    @Test public void maintenance() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3000, 200, null, null);
+        SecondaryIndex index = addIndex(hf, 1);
+        TransactionId tid = new TransactionId();
+        assertEquals(expectedEntries(hf, 1, tid), entries(index, tid));
+
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, i % 7 }));
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(1)).getValue() < 20)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(expectedEntries(hf, 1, tid), entries(index, tid));
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<PageId, Page>(), false);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        HashSet<ArrayList<Integer>> committed = entries(index, tid);
+        for (int i = 0; i < 100; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), BTreeUtility.getBTreeTuple(new int[] { i, 1000 }));
+        Database.getBufferPool().transactionComplete(tid, false);
+        tid = new TransactionId();
+        assertEquals(committed, entries(index, tid));
+        assertEquals(expectedEntries(hf, 1, tid), committed);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An IndexScan returns the tuples in the range, reading their pages in order. */
+    @Test public void indexScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, 500, null, tuples);
+        SecondaryIndex index = addIndex(hf, 1);
+        TransactionId tid = new TransactionId();
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) >= 100 && t.get(1) < 120)
+                expected.add(t);
+        IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+                new IntField(100)), new IndexPredicate(Op.LESS_THAN, new IntField(120)));
+        scan.open();
+        ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+        int lastPage = -1;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int page = t.getRecordId().getPageId().getPageNumber();
+            assertTrue(page >= lastPage);
+            lastPage = page;
+            found.add(SystemTestUtil.tupleToList(t));
+        }
+        assertEquals(expected.size(), scan.numMatches());
+        scan.rewind();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        assertEquals(expected.size(), count);
+        scan.close();
+
+        Collections.sort(found, Comparator.comparing(Object::toString));
+        Collections.sort(expected, Comparator.comparing(Object::toString));
+        assertEquals(expected, found);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The planner reads a selective filter on an indexed field through the index. */
+    @Test public void planner() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, 5000, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "si");
+        addIndex(hf, 1);
+        TableStats.setTableStats("si", new TableStats(hf.getId(), 1000));
+
+        int key = tuples.get(0).get(1);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) == key && t.get(0) > 100)
+                expected.add(t);
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM si WHERE si.c1 = " + key + " AND si.c0 > 100;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNotNull(findIndexScan(plan));
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // an unselective range is read with a SeqScan
+        plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM si WHERE si.c1 > 10;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertNull(findIndexScan(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static IndexScan findIndexScan(OpIterator it) {
+        if (it instanceof IndexScan)
+            return (IndexScan) it;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                IndexScan scan = child == null ? null : findIndexScan(child);
+                if (scan != null)
+                    return scan;
+            }
+        }
+        return null;
+    }
+
+    private static int compareKeys(ArrayList<Integer> a, ArrayList<Integer> b, int[] fields) {
+        for (int f : fields) {
+            int c = Integer.compare(a.get(f), b.get(f));
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private static ArrayList<ArrayList<Integer>> scan(IndexScan scan) throws Exception {
+        ArrayList<ArrayList<Integer>> found = new ArrayList<ArrayList<Integer>>();
+        scan.open();
+        while (scan.hasNext())
+            found.add(SystemTestUtil.tupleToList(scan.next()));
+        scan.close();
+        Collections.sort(found, Comparator.comparing(Object::toString));
+        return found;
+    }
+
+    /** A composite index orders its entries on its key fields lexicographically, negative values included. */
+    @Test public void compositeKeys() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 3000, 20, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 200; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>(Arrays.asList(i, 5 - i % 11, -i % 13));
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] { t.get(0), t.get(1), t.get(2) }));
+            tuples.add(t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        int[] keys = new int[] { 1, 2 };
+        SecondaryIndex index = addIndex(hf, keys, new int[0]);
+        assertTrue(index.isComposite());
+        assertEquals(1, index.entryField(1));
+        assertEquals(-1, index.entryField(0));
+
+        // entries come out of the index sorted on (c1, c2)
+        tid = new TransactionId();
+        DbFileIterator it = index.getFile().iterator(tid);
+        it.open();
+        ArrayList<Integer> last = null;
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple entry = it.next();
+            ArrayList<Integer> key = new ArrayList<Integer>(Arrays.asList(0,
+                    ((IntField) entry.getField(1)).getValue(), ((IntField) entry.getField(2)).getValue()));
+            if (last != null)
+                assertTrue(compareKeys(last, key, keys) <= 0);
+            last = key;
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+
+        // a prefix scan and a range over the second field after an equal first
+        for (int c1 = -5; c1 <= 6; c1++) {
+            Field[] prefix = new Field[] { new IntField(c1) };
+            ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+            for (ArrayList<Integer> t : tuples)
+                if (t.get(1) == c1)
+                    expected.add(t);
+            Collections.sort(expected, Comparator.comparing(Object::toString));
+            assertEquals(expected, scan(new IndexScan(tid, index, "t",
+                    new IndexPredicate(Op.GREATER_THAN_OR_EQ, index.lowerKey(prefix)),
+                    new IndexPredicate(Op.LESS_THAN_OR_EQ, index.upperKey(prefix)))));
+
+            expected.clear();
+            for (ArrayList<Integer> t : tuples)
+                if (t.get(1) == c1 && t.get(2) >= -3 && t.get(2) <= 7)
+                    expected.add(t);
+            Collections.sort(expected, Comparator.comparing(Object::toString));
+            assertEquals(expected, scan(new IndexScan(tid, index, "t",
+                    new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+                            index.lowerKey(new Field[] { new IntField(c1), new IntField(-3) })),
+                    new IndexPredicate(Op.LESS_THAN_OR_EQ,
+                            index.upperKey(new Field[] { new IntField(c1), new IntField(7) })))));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Queries reading only the fields an index stores are answered from the index. */
+    @Test public void coveringIndex() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(4, 20000, 2000, null, tuples, "c");
+        Database.getCatalog().addTable(hf, "cov");
+        addIndex(hf, new int[] { 1, 2 }, new int[] { 3 });
+        TableStats.setTableStats("cov", new TableStats(hf.getId(), 1000));
+        int c1 = tuples.get(0).get(1), c2 = tuples.get(0).get(2);
+        TransactionId tid = new TransactionId();
+
+        // prefix of the key, reading an included field
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) == c1)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(2), t.get(3))));
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT cov.c2, cov.c3 FROM cov WHERE cov.c1 = " + c1 + ";")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(findIndexScan(plan).isIndexOnly());
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // range over the second key field
+        expected.clear();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) == c1 && t.get(2) >= c2 && t.get(2) < c2 + 500)
+                expected.add(new ArrayList<Integer>(Arrays.asList(t.get(3))));
+        plan = new Parser().generateLogicalPlan(tid, "SELECT cov.c3 FROM cov WHERE cov.c1 = " + c1
+                + " AND cov.c2 >= " + c2 + " AND cov.c2 < " + (c2 + 500) + ";")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(findIndexScan(plan).isIndexOnly());
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // a field outside the index has to be read from the table
+        expected.clear();
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(1) == c1 && t.get(2) == c2)
+                expected.add(t);
+        plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM cov WHERE cov.c1 = " + c1
+                + " AND cov.c2 = " + c2 + ";")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(findIndexScan(plan).isIndexOnly());
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Columns annotated with index in a catalog file are indexed when the schema is loaded. */
+    @Test public void loadSchema() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File dat = SystemTestUtil.createRandomHeapFileUnopened(3, 1000, 100, null, tuples);
+        File dir = dat.getParentFile();
+        String name = "schema" + SystemTestUtil.getUUID().replace("-", "");
+        File table = new File(dir, name + ".dat");
+        assertTrue(dat.renameTo(table));
+        table.deleteOnExit();
+        File schema = new File(dir, name + ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write(name + " (a int pk include=ab, b int index index=ab, c int index=ab)\n");
+        w.close();
+        new File(dir, name + "_b.idx").deleteOnExit();
+        new File(dir, name + "_ab.idx").deleteOnExit();
+
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        int tableid = Database.getCatalog().getTableId(name);
+        assertEquals(2, Database.getCatalog().getIndexes(tableid).size());
+        SecondaryIndex composite = Database.getCatalog().getIndexes(tableid).get(1);
+        assertArrayEquals(new int[] { 1, 2 }, composite.getKeyFields());
+        assertArrayEquals(new int[] { 0 }, composite.getIncludeFields());
+        SecondaryIndex index = Database.getCatalog().getIndexes(tableid).get(0);
+        assertEquals(1, index.getKeyField());
+        TransactionId tid = new TransactionId();
+        assertEquals(expectedEntries((HeapFile) Database.getCatalog().getDatabaseFile(tableid), 1, tid),
+                entries(index, tid));
+        DbFileIterator it = composite.getFile().iterator(tid);
+        it.open();
+        int count = 0;
+        for (; it.hasNext(); count++)
+            assertEquals(6, it.next().getTupleDesc().numFields()); // key, b, c, a, pageno, tupleno
+        it.close();
+        assertEquals(tuples.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
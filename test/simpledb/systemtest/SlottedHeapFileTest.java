@@ -0,0 +1,258 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+    private final static Random r = new Random();
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.VARCHAR_TYPE },
+            new String[] { "id", "name" });
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new VarcharField(name));
+        return t;
+    }
+
+    private static String randomString(int len) {
+        char[] c = new char[len];
+        for (int i = 0; i < len; i++)
+            c[i] = (char) ('a' + r.nextInt(26));
+        return new String(c);
+    }
+
+    private static SlottedHeapFile emptyFile(String name) throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        SlottedHeapFile sf = new SlottedHeapFile(f, TD);
+        Database.getCatalog().addTable(sf, name);
+        return sf;
+    }
+
+    private static void insert(SlottedHeapFile sf, ArrayList<Tuple> tuples) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < tuples.size(); i++) {
+            if (i % 500 == 499) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+            Database.getBufferPool().insertTuple(tid, sf.getId(), tuples.get(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Check that the file holds exactly the given tuples, by id. */
+    private static void checkFile(SlottedHeapFile sf, ArrayList<Tuple> tuples) throws Exception {
+        String[] expected = new String[tuples.size()];
+        for (Tuple t : tuples)
+            expected[((IntField) t.getField(0)).getValue()] = ((StringField) t.getField(1)).getValue();
+        String[] actual = new String[expected.length];
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = sf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(Type.VARCHAR_TYPE, t.getField(1).getType());
+            actual[((IntField) t.getField(0)).getValue()] = ((StringField) t.getField(1)).getValue();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(tuples.size(), count);
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * Short strings take the space of their characters, so a page holds many
+     * more of them than the fixed size slots of a HeapPage, and the tuples
+     * read back the same after being written out.
+     */
+    @Test public void shortStrings() throws Exception {
+        SlottedHeapFile sf = emptyFile("short");
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 5000; i++)
+            tuples.add(tuple(i, randomString(r.nextInt(20))));
+        insert(sf, tuples);
+        checkFile(sf, tuples);
+
+        int heapPageTuples = BufferPool.getPageSize() * 8
+                / (new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE }).getSize() * 8 + 1);
+        assertTrue(sf.numPages() * heapPageTuples < tuples.size() / 5);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        checkFile(sf, tuples);
+
+        // a scan with a predicate on the VARCHAR field, as the planner builds
+        String name = ((StringField) tuples.get(0).getField(1)).getValue();
+        TransactionId tid = new TransactionId();
+        Filter filter = new Filter(new Predicate(1, Op.EQUALS, new VarcharField(name)),
+                new SeqScan(tid, sf.getId(), "s"));
+        filter.open();
+        assertTrue(filter.hasNext());
+        while (filter.hasNext())
+            assertEquals(name, ((StringField) filter.next().getField(1)).getValue());
+        filter.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deletes compact the records of a page, so that inserts reuse the space
+     * they free, and the tuples which stay keep their RecordIds.
+     */
+    @Test public void deleteCompacts() throws Exception {
+        SlottedHeapFile sf = emptyFile("compacted");
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 2000; i++)
+            tuples.add(tuple(i, randomString(r.nextInt(60))));
+        insert(sf, tuples);
+        int numPages = sf.numPages();
+
+        // delete every other tuple, in random order
+        ArrayList<Tuple> deleting = new ArrayList<Tuple>();
+        ArrayList<Tuple> remaining = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = sf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            (((IntField) t.getField(0)).getValue() % 2 == 0 ? deleting : remaining).add(t);
+        }
+        it.close();
+        Collections.shuffle(deleting, r);
+        for (Tuple t : deleting)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        // all the free space of a page is in one piece, and the remaining
+        // tuples are where their RecordIds say
+        tid = new TransactionId();
+        int free = 0;
+        for (int i = 0; i < numPages; i++) {
+            SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(sf.getId(), i), Permissions.READ_ONLY);
+            free += page.getFreeSpace();
+        }
+        assertTrue(free > numPages * BufferPool.getPageSize() / 3);
+        for (Tuple t : remaining) {
+            RecordId rid = t.getRecordId();
+            SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            Tuple stored = page.getTuple(rid.getTupleNumber());
+            assertEquals(t.getField(0), stored.getField(0));
+            assertEquals(t.getField(1), stored.getField(1));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the freed space takes the tuples back without growing the file
+        ArrayList<Tuple> reinserted = new ArrayList<Tuple>();
+        for (Tuple t : deleting)
+            reinserted.add(tuple(((IntField) t.getField(0)).getValue(), ((StringField) t.getField(1)).getValue()));
+        insert(sf, reinserted);
+        assertEquals(numPages, sf.numPages());
+        checkFile(sf, tuples);
+    }
+
+    /**
+     * Values too long for a page are stored on overflow pages, which deletes
+     * free for later inserts.
+     */
+    @Test public void overflow() throws Exception {
+        SlottedHeapFile sf = emptyFile("overflowed");
+        Database.resetBufferPool(500);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        int[] lengths = { 0, 10, BufferPool.getPageSize() / 4, BufferPool.getPageSize() / 4 + 1,
+                BufferPool.getPageSize() - 20, BufferPool.getPageSize() * 3, 20000, Type.VARCHAR_LEN };
+        for (int i = 0; i < 100; i++)
+            tuples.add(tuple(i, randomString(i < lengths.length ? lengths[i] : r.nextInt(10000))));
+        insert(sf, tuples);
+        checkFile(sf, tuples);
+        Database.resetBufferPool(500);
+        checkFile(sf, tuples);
+
+        // the tuples with the longest values share data pages
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = sf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        while (it.hasNext())
+            all.add(it.next());
+        it.close();
+        Tuple longest = null;
+        for (Tuple t : all)
+            if (((IntField) t.getField(0)).getValue() == 7)
+                longest = t;
+        SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid,
+                longest.getRecordId().getPageId(), Permissions.READ_ONLY);
+        assertTrue(page.getNumTuples() > 1);
+        int[] overflowPages = page.getOverflowPages(longest.getRecordId().getTupleNumber());
+        assertEquals(-1, overflowPages[0]);
+        assertTrue(overflowPages[1] >= 0);
+
+        // deleting everything frees the overflow pages, which inserts reuse
+        for (Tuple t : all)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        checkFile(sf, new ArrayList<Tuple>());
+        int numPages = sf.numPages();
+        tid = new TransactionId();
+        for (int i = 0; i < numPages; i++) {
+            page = (SlottedPage) Database.getBufferPool().getPage(tid, new HeapPageId(sf.getId(), i),
+                    Permissions.READ_ONLY);
+            assertTrue(page.isEmpty());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Collections.shuffle(tuples, r);
+        ArrayList<Tuple> reinserted = new ArrayList<Tuple>();
+        for (Tuple t : tuples)
+            reinserted.add(tuple(((IntField) t.getField(0)).getValue(), ((StringField) t.getField(1)).getValue()));
+        insert(sf, reinserted);
+        assertEquals(numPages, sf.numPages());
+        checkFile(sf, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** A page written out and read back holds the same records. */
+    @Test public void pageData() throws Exception {
+        SlottedHeapFile sf = emptyFile("paged");
+        HeapPageId pid = new HeapPageId(sf.getId(), 0);
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        assertTrue(page.isEmpty());
+        int free = page.getFreeSpace();
+        String[] names = { "a", "", "bcd", randomString(100) };
+        for (int i = 0; i < names.length; i++)
+            page.insertTuple(tuple(i, names[i]), new int[] { -1, -1 });
+        assertEquals(names.length, page.getNumSlots());
+        page.deleteTuple(page.getTuple(1));
+        page.deleteTuple(page.getTuple(3));
+        // the last slot is dropped, the one in the middle stays empty
+        assertEquals(3, page.getNumSlots());
+        assertFalse(page.isSlotUsed(1));
+        assertEquals(free - 3 * 4 - (4 + 4 + 1) - (4 + 4 + 3), page.getFreeSpace());
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertTrue(Arrays.equals(page.getPageData(), copy.getPageData()));
+        assertEquals(2, copy.getNumTuples());
+        assertEquals("a", ((StringField) copy.getTuple(0).getField(1)).getValue());
+        assertEquals("bcd", ((StringField) copy.getTuple(2).getField(1)).getValue());
+        assertEquals(new RecordId(pid, 2), copy.getTuple(2).getRecordId());
+        assertNull(copy.getTuple(1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
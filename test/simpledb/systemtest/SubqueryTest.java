@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.*;
+
+public class SubqueryTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> outer;
+    private ArrayList<ArrayList<Integer>> inner;
+
+    @Before public void setUp() throws Exception {
+        outer = new ArrayList<ArrayList<Integer>>();
+        HeapFile fo = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, outer, "c");
+        Database.getCatalog().addTable(fo, "so");
+        TableStats.setTableStats("so", new TableStats(fo.getId(), 1000));
+
+        inner = new ArrayList<ArrayList<Integer>>();
+        HeapFile fi = SystemTestUtil.createRandomHeapFile(2, 300, 100, null, inner, "c");
+        Database.getCatalog().addTable(fi, "si");
+        TableStats.setTableStats("si", new TableStats(fi.getId(), 1000));
+    }
+
+    private OpIterator plan(String sql) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, sql)
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private static SemiJoin findSemiJoin(OpIterator it) {
+        if (it instanceof SemiJoin)
+            return (SemiJoin) it;
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                SemiJoin j = child == null ? null : findSemiJoin(child);
+                if (j != null)
+                    return j;
+            }
+        }
+        return null;
+    }
+
+    /** @return the outer tuples whose c0 is the c0 of an inner tuple with c1 > 20 */
+    private ArrayList<ArrayList<Integer>> expected(boolean anti) {
+        HashSet<Integer> keys = new HashSet<Integer>();
+        for (ArrayList<Integer> t : inner) {
+            if (t.get(1) > 20)
+                keys.add(t.get(0));
+        }
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : outer) {
+            if (keys.contains(t.get(0)) != anti)
+                result.add(t);
+        }
+        return result;
+    }
+
+    private void check(String sql, boolean anti) throws Exception {
+        OpIterator p = plan(sql);
+        SemiJoin j = findSemiJoin(p);
+        assertNotNull(j);
+        assertEquals(anti, j.isAnti());
+        SystemTestUtil.matchTuples(p, expected(anti));
+    }
+
+    /** Unit test for IN and NOT IN subqueries */
+    @Test public void in() throws Exception {
+        check("SELECT * FROM so WHERE so.c0 IN (SELECT si.c0 FROM si WHERE si.c1 > 20);", false);
+        check("SELECT * FROM so WHERE so.c0 NOT IN (SELECT si.c0 FROM si WHERE si.c1 > 20);", true);
+        check("SELECT * FROM so WHERE NOT (so.c0 IN (SELECT si.c0 FROM si WHERE si.c1 > 20));", true);
+    }
+
+    /** Unit test for correlated EXISTS and NOT EXISTS subqueries */
+    @Test public void correlatedExists() throws Exception {
+        check("SELECT * FROM so WHERE EXISTS (SELECT si.c1 FROM si WHERE si.c0 = so.c0 AND si.c1 > 20);", false);
+        check("SELECT * FROM so WHERE NOT EXISTS (SELECT * FROM si WHERE si.c1 > 20 AND so.c0 = si.c0);", true);
+    }
+
+    /** Unit test for uncorrelated EXISTS subqueries */
+    @Test public void uncorrelatedExists() throws Exception {
+        SystemTestUtil.matchTuples(plan("SELECT * FROM so WHERE EXISTS (SELECT * FROM si WHERE si.c1 > 20);"), outer);
+        SystemTestUtil.matchTuples(plan("SELECT * FROM so WHERE EXISTS (SELECT * FROM si WHERE si.c1 > 1000);"),
+                new ArrayList<ArrayList<Integer>>());
+        SystemTestUtil.matchTuples(plan("SELECT * FROM so WHERE NOT EXISTS (SELECT * FROM si WHERE si.c1 > 1000);"), outer);
+    }
+
+    /**
+     * Unit test for SemiJoin: the subquery is read once, however often the
+     * outer input is rewound
+     */
+    @Test public void rewind() throws Exception {
+        OpIterator p = plan("SELECT * FROM so WHERE so.c0 IN (SELECT si.c0 FROM si WHERE si.c1 > 20);");
+        SystemTestUtil.matchTuples(p, expected(false));
+        SemiJoin j = findSemiJoin(p);
+        j.open();
+        int first = 0;
+        while (j.hasNext()) {
+            j.next();
+            first++;
+        }
+        j.rewind();
+        int second = 0;
+        while (j.hasNext()) {
+            j.next();
+            second++;
+        }
+        j.close();
+        assertEquals(expected(false).size(), first);
+        assertEquals(first, second);
+    }
+
+    /** Unit test for subqueries the planner rejects */
+    @Test public void unsupported() throws Exception {
+        try {
+            plan("SELECT * FROM so WHERE so.c0 IN (SELECT * FROM si);");
+            fail("expected ParsingException for a subquery returning two fields");
+        } catch (ParsingException e) {
+        }
+        try {
+            plan("SELECT * FROM so WHERE EXISTS (SELECT * FROM si WHERE si.c0 = so.c0 AND si.c1 > so.c1);");
+            fail("expected ParsingException for two correlated predicates");
+        } catch (ParsingException e) {
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SubqueryTest.class);
+    }
+}